@@ -1,7 +1,6 @@
 package com.ronda.audiodemo;
 
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
 import android.util.LruCache;
 
 
@@ -12,6 +11,9 @@ import java.io.IOException;
 
 /**
  * Implements a basic cache of album arts, with async loading support.
+ * <p/>
+ * Art is downloaded on the network lane of the {@link TaskScheduler} and decoded on its CPU
+ * lane, so decoding never waits behind downloads.
  */
 public final class AlbumArtCache {
     private static final String TAG = LogHelper.makeLogTag(AlbumArtCache.class);
@@ -72,33 +74,50 @@ public final class AlbumArtCache {
             listener.onFetched(artUrl, bitmap[BIG_BITMAP_INDEX], bitmap[ICON_BITMAP_INDEX]);
             return;
         }
-        LogHelper.d(TAG, "getOrFetch: starting asynctask to fetch ", artUrl);
-
-        new AsyncTask<Void, Void, Bitmap[]>() {
-            @Override
-            protected Bitmap[] doInBackground(Void[] objects) {
-                Bitmap[] bitmaps;
-                try {
-                    Bitmap bitmap = BitmapHelper.fetchAndRescaleBitmap(artUrl, MAX_ART_WIDTH, MAX_ART_HEIGHT);
-                    Bitmap icon = BitmapHelper.scaleBitmap(bitmap, MAX_ART_WIDTH_ICON, MAX_ART_HEIGHT_ICON);
-                    bitmaps = new Bitmap[]{bitmap, icon};
-                    mCache.put(artUrl, bitmaps);
-                } catch (IOException e) {
-                    return null;
-                }
-                LogHelper.d(TAG, "doInBackground: putting bitmap in cache. cache size=" + mCache.size());
-                return bitmaps;
-            }
+        LogHelper.d(TAG, "getOrFetch: starting task to fetch ", artUrl);
+
+        TaskScheduler.getInstance().execute(TaskScheduler.Lane.NETWORK, TaskScheduler.PRIORITY_NORMAL,
+                new TaskScheduler.Task<byte[]>() {
+                    @Override
+                    protected byte[] doInBackground() throws IOException {
+                        return BitmapHelper.fetchBytes(artUrl);
+                    }
+
+                    @Override
+                    protected void onResult(byte[] data) {
+                        decode(artUrl, data, listener);
+                    }
+
+                    @Override
+                    protected void onError(Exception e) {
+                        listener.onError(artUrl, e);
+                    }
+                });
+    }
 
-            @Override
-            protected void onPostExecute(Bitmap[] bitmaps) {
-                if (bitmaps == null) {
-                    listener.onError(artUrl, new IllegalArgumentException("got null bitmaps"));
-                } else {
-                    listener.onFetched(artUrl, bitmaps[BIG_BITMAP_INDEX], bitmaps[ICON_BITMAP_INDEX]);
-                }
-            }
-        }.execute();
+    private void decode(final String artUrl, final byte[] data, final FetchListener listener) {
+        TaskScheduler.getInstance().execute(TaskScheduler.Lane.CPU, TaskScheduler.PRIORITY_NORMAL,
+                new TaskScheduler.Task<Bitmap[]>() {
+                    @Override
+                    protected Bitmap[] doInBackground() throws IOException {
+                        Bitmap bitmap = BitmapHelper.decodeScaledBitmap(data, MAX_ART_WIDTH, MAX_ART_HEIGHT);
+                        Bitmap icon = BitmapHelper.scaleBitmap(bitmap, MAX_ART_WIDTH_ICON, MAX_ART_HEIGHT_ICON);
+                        Bitmap[] bitmaps = new Bitmap[]{bitmap, icon};
+                        mCache.put(artUrl, bitmaps);
+                        LogHelper.d(TAG, "doInBackground: putting bitmap in cache. cache size=" + mCache.size());
+                        return bitmaps;
+                    }
+
+                    @Override
+                    protected void onResult(Bitmap[] bitmaps) {
+                        listener.onFetched(artUrl, bitmaps[BIG_BITMAP_INDEX], bitmaps[ICON_BITMAP_INDEX]);
+                    }
+
+                    @Override
+                    protected void onError(Exception e) {
+                        listener.onError(artUrl, e);
+                    }
+                });
     }
 
     public static abstract class FetchListener {
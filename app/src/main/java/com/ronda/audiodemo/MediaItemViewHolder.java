@@ -20,6 +20,7 @@ import android.content.Context;
 import android.content.res.ColorStateList;
 import android.graphics.drawable.AnimationDrawable;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.graphics.drawable.DrawableCompat;
 import android.support.v4.media.MediaBrowserCompat;
@@ -49,37 +50,47 @@ public class MediaItemViewHolder {
     private ImageView mImageView;
     private TextView mTitleView;
     private TextView mDescriptionView;
+    private ImageView mThumbnailView;
 
     // Returns a view for use in media item list.
     public static View setupListView(Activity activity, View convertView, ViewGroup parent, MediaBrowserCompat.MediaItem item) {
-        if (sColorStateNotPlaying == null || sColorStatePlaying == null) {
-            initializeColorStateLists(activity);
+        if (convertView == null) {
+            convertView = createView(activity, parent);
         }
+        bindView(activity, convertView, item);
+        return convertView;
+    }
 
-        MediaItemViewHolder holder;
-
-        Integer cachedState = STATE_INVALID;
+    // Inflates a media item row and attaches its holder, without binding any item to it.
+    public static View createView(Activity activity, ViewGroup parent) {
+        View view = LayoutInflater.from(activity).inflate(R.layout.media_list_item, parent, false);
+        MediaItemViewHolder holder = new MediaItemViewHolder();
+        holder.mImageView = (ImageView) view.findViewById(R.id.play_eq);
+        holder.mTitleView = (TextView) view.findViewById(R.id.title);
+        holder.mDescriptionView = (TextView) view.findViewById(R.id.description);
+        holder.mThumbnailView = (ImageView) view.findViewById(R.id.thumbnail);
+        view.setTag(holder);
+        return view;
+    }
 
-        if (convertView == null) {
-            convertView = LayoutInflater.from(activity).inflate(R.layout.media_list_item, parent, false);
-            holder = new MediaItemViewHolder();
-            holder.mImageView = (ImageView) convertView.findViewById(R.id.play_eq);
-            holder.mTitleView = (TextView) convertView.findViewById(R.id.title);
-            holder.mDescriptionView = (TextView) convertView.findViewById(R.id.description);
-            convertView.setTag(holder);
-        } else {
-            // 这里可以发现, view 是既可以直接使用 setTag(Object) 存储一个与View关联的tag对象, 也可以使用 setTag(int, Object) 给存储的这个tag对象设置一个标识.
-            // 所以,使用 setTag(int, Object) 其实是可以关联多个对象的. View 中专门有一个Object类型和一个SparseArray类型的成员变量分别存储这两个方法的tag值
-            // 而且再使用 setTag(int, Object)  方法时, 要注意: 这个int类型的key值必须为 application-specific resource id
-            holder = (MediaItemViewHolder) convertView.getTag();
-            cachedState = (Integer) convertView.getTag(R.id.tag_mediaitem_state_cache);
+    // Binds the item to a row created by createView.
+    public static void bindView(Activity activity, View view, MediaBrowserCompat.MediaItem item) {
+        if (sColorStateNotPlaying == null || sColorStatePlaying == null) {
+            initializeColorStateLists(activity);
         }
 
+        // 这里可以发现, view 是既可以直接使用 setTag(Object) 存储一个与View关联的tag对象, 也可以使用 setTag(int, Object) 给存储的这个tag对象设置一个标识.
+        // 所以,使用 setTag(int, Object) 其实是可以关联多个对象的. View 中专门有一个Object类型和一个SparseArray类型的成员变量分别存储这两个方法的tag值
+        // 而且再使用 setTag(int, Object)  方法时, 要注意: 这个int类型的key值必须为 application-specific resource id
+        MediaItemViewHolder holder = (MediaItemViewHolder) view.getTag();
+        Integer cachedState = (Integer) view.getTag(R.id.tag_mediaitem_state_cache);
+
         MediaDescriptionCompat description = item.getDescription();
         holder.mTitleView.setText(description.getTitle());
         holder.mDescriptionView.setText(description.getSubtitle());
+        bindThumbnail(holder.mThumbnailView, description);
 
-        // If the state of convertView is different, we need to adapt the view to the
+        // If the state of the view is different, we need to adapt the view to the
         // new state.
         int state = getMediaItemState(activity, item);
         if (cachedState == null || cachedState != state) {
@@ -90,10 +101,30 @@ public class MediaItemViewHolder {
             } else {
                 holder.mImageView.setVisibility(View.GONE);
             }
-            convertView.setTag(R.id.tag_mediaitem_state_cache, state);
+            view.setTag(R.id.tag_mediaitem_state_cache, state);
         }
+    }
 
-        return convertView;
+    // Releases what a bound row holds on to, before the row is recycled.
+    public static void unbindView(View view) {
+        MediaItemViewHolder holder = (MediaItemViewHolder) view.getTag();
+        ThumbnailLoader.getInstance().cancel(holder.mThumbnailView);
+    }
+
+    private static void bindThumbnail(ImageView thumbnailView, MediaDescriptionCompat description) {
+        Uri iconUri = description.getIconUri();
+        String scheme = iconUri == null ? null : iconUri.getScheme();
+        if ("http".equals(scheme) || "https".equals(scheme)) {
+            thumbnailView.setVisibility(View.VISIBLE);
+            ThumbnailLoader.getInstance().load(thumbnailView, iconUri.toString(), R.drawable.ic_default_art);
+        } else if (description.getIconBitmap() != null) {
+            ThumbnailLoader.getInstance().cancel(thumbnailView);
+            thumbnailView.setVisibility(View.VISIBLE);
+            thumbnailView.setImageBitmap(description.getIconBitmap());
+        } else {
+            ThumbnailLoader.getInstance().cancel(thumbnailView);
+            thumbnailView.setVisibility(View.GONE);
+        }
     }
 
     private static void initializeColorStateLists(Context ctx) {
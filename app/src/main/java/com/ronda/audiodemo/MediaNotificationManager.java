@@ -13,7 +13,9 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.os.Build;
+import android.os.Handler;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
 import android.support.v4.app.NotificationCompat;
@@ -23,6 +25,7 @@ import android.support.v4.media.app.NotificationCompat.MediaStyle;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
 
 import com.ronda.audiodemo.ui.MusicPlayerActivity;
 import com.ronda.audiodemo.utils.LogHelper;
@@ -42,6 +45,12 @@ public class MediaNotificationManager extends BroadcastReceiver {
     private static final int NOTIFICATION_ID = 412;
     private static final int REQUEST_CODE = 100;
 
+    // Session updates arriving within this window are folded into a single notification post.
+    private static final long UPDATE_COALESCE_MS = 16;
+    // Minimum time between two posts, so buffering/playing flaps and rapid skips can't flood
+    // the NotificationManager.
+    private static final long MIN_UPDATE_INTERVAL_MS = 250;
+
     public static final String ACTION_PAUSE = "com.example.android.uamp.pause";
     public static final String ACTION_PLAY = "com.example.android.uamp.play";
     public static final String ACTION_PREV = "com.example.android.uamp.prev";
@@ -71,6 +80,30 @@ public class MediaNotificationManager extends BroadcastReceiver {
 
     private boolean mStarted = false;
 
+    private final Handler mHandler = new Handler();
+    private boolean mUpdatePending;
+    private long mLastUpdateTime;
+    // What the posted notification currently shows; updates that wouldn't change it are skipped.
+    private ContentKey mPostedContent;
+
+    private Bitmap mPlaceholderArt;
+    private boolean mChannelCreated;
+
+    // The builder is kept as long as its action buttons stay the same; only its content is
+    // refreshed on updates.
+    private NotificationCompat.Builder mNotificationBuilder;
+    private int mBuilderActions = -1;
+    private String mBuilderCastName;
+    private String mContentIntentMediaId;
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mUpdatePending = false;
+            updateNotification();
+        }
+    };
+
     public MediaNotificationManager(MusicService service) throws RemoteException {
         mService = service;
         updateSessionToken();
@@ -113,6 +146,8 @@ public class MediaNotificationManager extends BroadcastReceiver {
             // The notification must be updated after setting started to true
             Notification notification = createNotification();
             if (notification != null) {
+                mPostedContent = getContentKey();
+                mLastUpdateTime = SystemClock.elapsedRealtime();
                 mController.registerCallback(mCb);
                 IntentFilter filter = new IntentFilter();
                 filter.addAction(ACTION_NEXT);
@@ -135,6 +170,9 @@ public class MediaNotificationManager extends BroadcastReceiver {
     public void stopNotification() {
         if (mStarted) {
             mStarted = false;
+            mHandler.removeCallbacks(mUpdateRunnable);
+            mUpdatePending = false;
+            mPostedContent = null;
             mController.unregisterCallback(mCb);
             try {
                 mNotificationManager.cancel(NOTIFICATION_ID);
@@ -217,10 +255,7 @@ public class MediaNotificationManager extends BroadcastReceiver {
                     state.getState() == PlaybackStateCompat.STATE_NONE) {
                 stopNotification();
             } else {
-                Notification notification = createNotification();
-                if (notification != null) {
-                    mNotificationManager.notify(NOTIFICATION_ID, notification);
-                }
+                scheduleUpdate();
             }
         }
 
@@ -228,10 +263,7 @@ public class MediaNotificationManager extends BroadcastReceiver {
         public void onMetadataChanged(MediaMetadataCompat metadata) {
             mMetadata = metadata;
             LogHelper.d(TAG, "Received new metadata ", metadata);
-            Notification notification = createNotification();
-            if (notification != null) {
-                mNotificationManager.notify(NOTIFICATION_ID, notification);
-            }
+            scheduleUpdate();
         }
 
         @Override
@@ -246,6 +278,86 @@ public class MediaNotificationManager extends BroadcastReceiver {
         }
     };
 
+    /**
+     * Request a notification refresh. Bursts of requests are coalesced into one post, and posts
+     * are spaced at least {@link #MIN_UPDATE_INTERVAL_MS} apart.
+     */
+    private void scheduleUpdate() {
+        if (mUpdatePending) {
+            return;
+        }
+        mUpdatePending = true;
+        long sinceLastUpdate = SystemClock.elapsedRealtime() - mLastUpdateTime;
+        mHandler.postDelayed(mUpdateRunnable,
+                Math.max(UPDATE_COALESCE_MS, MIN_UPDATE_INTERVAL_MS - sinceLastUpdate));
+    }
+
+    private void updateNotification() {
+        if (!mStarted) {
+            return;
+        }
+        ContentKey content = getContentKey();
+        if (content == null || content.equals(mPostedContent)) {
+            LogHelper.d(TAG, "updateNotification: visible content unchanged, skipping");
+            return;
+        }
+        Notification notification = createNotification();
+        if (notification != null) {
+            mNotificationManager.notify(NOTIFICATION_ID, notification);
+            mPostedContent = content;
+            mLastUpdateTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private ContentKey getContentKey() {
+        if (mMetadata == null || mPlaybackState == null) {
+            return null;
+        }
+        MediaDescriptionCompat description = mMetadata.getDescription();
+        return new ContentKey(description.getMediaId(), description.getTitle(),
+                description.getSubtitle(), getArt(description), getActionButtons(), getCastName());
+    }
+
+    // Returns the cached album art, a placeholder if the art isn't loaded yet, or null if the
+    // media has no art.
+    private Bitmap getArt(MediaDescriptionCompat description) {
+        if (description.getIconUri() == null) {
+            return null;
+        }
+        Bitmap art = AlbumArtCache.getInstance().getBigImage(description.getIconUri().toString());
+        return art != null ? art : getPlaceholderArt();
+    }
+
+    private Bitmap getPlaceholderArt() {
+        if (mPlaceholderArt == null) {
+            mPlaceholderArt = BitmapFactory.decodeResource(mService.getResources(),
+                    R.drawable.ic_default_art);
+        }
+        return mPlaceholderArt;
+    }
+
+    // Bit mask of the buttons shown: skip to previous, play/pause, skip to next.
+    private int getActionButtons() {
+        int buttons = 0;
+        if ((mPlaybackState.getActions() & PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS) != 0) {
+            buttons |= 1;
+        }
+        if (mPlaybackState.getState() == PlaybackStateCompat.STATE_PLAYING) {
+            buttons |= 2;
+        }
+        if ((mPlaybackState.getActions() & PlaybackStateCompat.ACTION_SKIP_TO_NEXT) != 0) {
+            buttons |= 4;
+        }
+        return buttons;
+    }
+
+    private String getCastName() {
+        if (mController != null && mController.getExtras() != null) {
+            return mController.getExtras().getString(MusicService.EXTRA_CONNECTED_CAST);
+        }
+        return null;
+    }
+
     private Notification createNotification() {
         LogHelper.d(TAG, "updateNotificationMetadata. mMetadata=" + mMetadata);
         if (mMetadata == null || mPlaybackState == null) {
@@ -255,26 +367,52 @@ public class MediaNotificationManager extends BroadcastReceiver {
         MediaDescriptionCompat description = mMetadata.getDescription();
 
         String fetchArtUrl = null;
-        Bitmap art = null;
-        if (description.getIconUri() != null) {
+        Bitmap art = getArt(description);
+        if (art == mPlaceholderArt && art != null) {
             // This sample assumes the iconUri will be a valid URL formatted String, but
             // it can actually be any valid Android Uri formatted String.
-            // async fetch the album art icon
-            String artUrl = description.getIconUri().toString();
-            art = AlbumArtCache.getInstance().getBigImage(artUrl);
-            if (art == null) {
-                fetchArtUrl = artUrl;
-                // use a placeholder art while the remote art is being downloaded
-                art = BitmapFactory.decodeResource(mService.getResources(),
-                        R.drawable.ic_default_art);
-            }
+            // async fetch the album art icon, the placeholder is used while the remote
+            // art is being downloaded
+            fetchArtUrl = description.getIconUri().toString();
         }
 
         // Notification channels are only supported on Android O+.
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && !mChannelCreated) {
             createNotificationChannel();
+            mChannelCreated = true;
         }
 
+        int actionButtons = getActionButtons();
+        String castName = getCastName();
+        if (mNotificationBuilder == null || actionButtons != mBuilderActions
+                || !TextUtils.equals(castName, mBuilderCastName)) {
+            mNotificationBuilder = createNotificationBuilder(castName);
+            mBuilderActions = actionButtons;
+            mBuilderCastName = castName;
+            mContentIntentMediaId = null;
+        }
+        final NotificationCompat.Builder notificationBuilder = mNotificationBuilder;
+
+        // Creating the PendingIntent is an IPC: only do it when the media changes.
+        if (mContentIntentMediaId == null
+                || !TextUtils.equals(mContentIntentMediaId, description.getMediaId())) {
+            notificationBuilder.setContentIntent(createContentIntent(description));
+            mContentIntentMediaId = description.getMediaId();
+        }
+        notificationBuilder
+                .setContentTitle(description.getTitle())
+                .setContentText(description.getSubtitle())
+                .setLargeIcon(art);
+
+        setNotificationPlaybackState(notificationBuilder);
+        if (fetchArtUrl != null) {
+            fetchBitmapFromURLAsync(fetchArtUrl);
+        }
+
+        return notificationBuilder.build();
+    }
+
+    private NotificationCompat.Builder createNotificationBuilder(String castName) {
         final NotificationCompat.Builder notificationBuilder =
                 new NotificationCompat.Builder(mService, CHANNEL_ID);
 
@@ -290,28 +428,15 @@ public class MediaNotificationManager extends BroadcastReceiver {
                 .setColor(mNotificationColor)
                 .setSmallIcon(R.drawable.ic_notification)
                 .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
-                .setOnlyAlertOnce(true)
-                .setContentIntent(createContentIntent(description))
-                .setContentTitle(description.getTitle())
-                .setContentText(description.getSubtitle())
-                .setLargeIcon(art);
+                .setOnlyAlertOnce(true);
 
-        if (mController != null && mController.getExtras() != null) {
-            String castName = mController.getExtras().getString(MusicService.EXTRA_CONNECTED_CAST);
-            if (castName != null) {
-                String castInfo = mService.getResources()
-                        .getString(R.string.casting_to_device, castName);
-                notificationBuilder.setSubText(castInfo);
-                notificationBuilder.addAction(R.drawable.ic_close_black_24dp, "Stop Casting", mStopCastIntent);
-            }
+        if (castName != null) {
+            String castInfo = mService.getResources()
+                    .getString(R.string.casting_to_device, castName);
+            notificationBuilder.setSubText(castInfo);
+            notificationBuilder.addAction(R.drawable.ic_close_black_24dp, "Stop Casting", mStopCastIntent);
         }
-
-        setNotificationPlaybackState(notificationBuilder);
-        if (fetchArtUrl != null) {
-            fetchBitmapFromURLAsync(fetchArtUrl, notificationBuilder);
-        }
-
-        return notificationBuilder.build();
+        return notificationBuilder;
     }
 
     private int addActions(final NotificationCompat.Builder notificationBuilder) {
@@ -365,23 +490,65 @@ public class MediaNotificationManager extends BroadcastReceiver {
         builder.setOngoing(mPlaybackState.getState() == PlaybackStateCompat.STATE_PLAYING);
     }
 
-    private void fetchBitmapFromURLAsync(final String bitmapUrl,
-                                         final NotificationCompat.Builder builder) {
+    private void fetchBitmapFromURLAsync(final String bitmapUrl) {
         AlbumArtCache.getInstance().fetch(bitmapUrl, new AlbumArtCache.FetchListener() {
             @Override
             public void onFetched(String artUrl, Bitmap bitmap, Bitmap icon) {
                 if (mMetadata != null && mMetadata.getDescription().getIconUri() != null &&
                         mMetadata.getDescription().getIconUri().toString().equals(artUrl)) {
-                    // If the media is still the same, update the notification:
+                    // If the media is still the same, update the notification. The art is in
+                    // the cache now, so the next update picks it up.
                     LogHelper.d(TAG, "fetchBitmapFromURLAsync: set bitmap to ", artUrl);
-                    builder.setLargeIcon(bitmap);
-                    addActions(builder);
-                    mNotificationManager.notify(NOTIFICATION_ID, builder.build());
+                    scheduleUpdate();
                 }
             }
         });
     }
 
+    /**
+     * The parts of the notification that are visible to the user.
+     */
+    private static final class ContentKey {
+        final String mediaId;
+        final CharSequence title;
+        final CharSequence subtitle;
+        final Bitmap art;
+        final int actionButtons;
+        final String castName;
+
+        ContentKey(String mediaId, CharSequence title, CharSequence subtitle, Bitmap art,
+                   int actionButtons, String castName) {
+            this.mediaId = mediaId;
+            this.title = title;
+            this.subtitle = subtitle;
+            this.art = art;
+            this.actionButtons = actionButtons;
+            this.castName = castName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || o.getClass() != ContentKey.class) {
+                return false;
+            }
+            ContentKey that = (ContentKey) o;
+            return actionButtons == that.actionButtons
+                    && art == that.art
+                    && TextUtils.equals(mediaId, that.mediaId)
+                    && TextUtils.equals(title, that.title)
+                    && TextUtils.equals(subtitle, that.subtitle)
+                    && TextUtils.equals(castName, that.castName);
+        }
+
+        @Override
+        public int hashCode() {
+            return mediaId == null ? 0 : mediaId.hashCode();
+        }
+    }
+
     /**
      * Creates Notification Channel. This is required in Android O+ to display notifications.
      */
@@ -6,6 +6,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteException;
@@ -22,13 +23,16 @@ import android.support.v7.media.MediaRouter;
 import com.ronda.audiodemo.model.MusicProvider;
 import com.ronda.audiodemo.playback.LocalPlayback;
 import com.ronda.audiodemo.playback.PlaybackManager;
+import com.ronda.audiodemo.playback.PlaybackSessionStore;
 import com.ronda.audiodemo.playback.QueueManager;
 import com.ronda.audiodemo.ui.NowPlayingActivity;
 import com.ronda.audiodemo.utils.LogHelper;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.ronda.audiodemo.utils.MediaIDHelper.MEDIA_ID_EMPTY_ROOT;
 import static com.ronda.audiodemo.utils.MediaIDHelper.MEDIA_ID_ROOT;
@@ -141,14 +145,32 @@ public class MusicService extends MediaBrowserServiceCompat implements PlaybackM
     public static final String CMD_STOP_CASTING = "CMD_STOP_CASTING";
     // Delay stopSelf by using a handler.
     private static final int STOP_DELAY = 30000;
+    // Interval between syncs of the music catalog with its source, while the service runs.
+    private static final long CATALOG_SYNC_INTERVAL = 60 * 60 * 1000;
 
     private MusicProvider mMusicProvider;
     private PlaybackManager mPlaybackManager;
+    // PlaybackManager, its QueueManager and the player live on this thread; session commands are
+    // delivered to it directly and only the resulting service/notification updates come back to
+    // the main thread.
+    private HandlerThread mPlaybackThread;
+    private Handler mPlaybackHandler;
+    private final Handler mMainHandler = new Handler();
+    // The searches being run for onSearch, by search media id, cancelled if the service goes
+    // away. Main thread only.
+    private final Map<String, Search> mSearches = new HashMap<>();
 
     private MediaSessionCompat mSession;
     private MediaNotificationManager mMediaNotificationManager;
 //    private Bundle mSessionExtras;
     private final DelayedStopHandler mDelayedStopHandler = new DelayedStopHandler(this);
+    private final Runnable mCatalogSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mMusicProvider.syncCatalogAsync(null /* Callback */);
+            mMainHandler.postDelayed(this, CATALOG_SYNC_INTERVAL);
+        }
+    };
     private MediaRouter mMediaRouter;
     private PackageValidator mPackageValidator;
 //    private SessionManager mCastSessionManager;
@@ -163,15 +185,31 @@ public class MusicService extends MediaBrowserServiceCompat implements PlaybackM
         super.onCreate();
         LogHelper.d(TAG, "onCreate");
 
-        mMusicProvider = new MusicProvider();
+        mMusicProvider = ((MyApplication) getApplication()).getMusicProvider();
+        // Only the subscribers of the affected node reload it; the browse lists diff the new
+        // children against the rows they show.
+        mMusicProvider.setOnChildrenChangedListener(new MusicProvider.OnChildrenChangedListener() {
+            @Override
+            public void onChildrenChanged(String parentMediaId) {
+                notifyChildrenChanged(parentMediaId);
+            }
+        });
 
         // To make the app more responsive(响应的, 反应灵敏的), fetch and cache catalog(目录) information now.
         // This can help improve the response time in the method
         // {@link #onLoadChildren(String, Result<List<MediaItem>>) onLoadChildren()}.
+        // Usually the StartupOrchestrator has already done so, in which case this is a no-op.
         mMusicProvider.retrieveMediaAsync(null /* Callback */);
+        // The catalog changes a little every now and then: apply the changes rather than
+        // reloading it.
+        mMainHandler.postDelayed(mCatalogSyncRunnable, CATALOG_SYNC_INTERVAL);
 
         mPackageValidator = new PackageValidator(this);
 
+        mPlaybackThread = new HandlerThread("MusicPlayback");
+        mPlaybackThread.start();
+        mPlaybackHandler = new Handler(mPlaybackThread.getLooper());
+
         QueueManager queueManager = new QueueManager(mMusicProvider, getResources(), new QueueManager.MetadataUpdateListener() {
             @Override
             public void onMetadataChanged(MediaMetadataCompat metadata) {
@@ -193,10 +231,12 @@ public class MusicService extends MediaBrowserServiceCompat implements PlaybackM
                 mSession.setQueue(newQueue);
                 mSession.setQueueTitle(title);
             }
-        });
+        }, mPlaybackHandler);
 
-        LocalPlayback playback = new LocalPlayback(this, mMusicProvider);
-        mPlaybackManager = new PlaybackManager(this, getResources(), mMusicProvider, queueManager, playback);
+        LocalPlayback playback = new LocalPlayback(this, mMusicProvider, mPlaybackHandler);
+        PlaybackSessionStore sessionStore = new PlaybackSessionStore(getFilesDir(), mPlaybackHandler);
+        mPlaybackManager = new PlaybackManager(this, getResources(), mMusicProvider, queueManager,
+                playback, sessionStore, mPlaybackHandler);
 
         // Start a new MediaSession
         mSession = new MediaSessionCompat(this, "MusicService");
@@ -204,8 +244,9 @@ public class MusicService extends MediaBrowserServiceCompat implements PlaybackM
         // Enable callbacks from MediaButtons and TransportControls
         mSession.setFlags(MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS |
                 MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
-        // Callback has methods that handle callbacks from a media controller
-        mSession.setCallback(mPlaybackManager.getMediaSessionCallback());
+        // Callback has methods that handle callbacks from a media controller. They run on the
+        // playback thread, so queue building and searches never block the main thread.
+        mSession.setCallback(mPlaybackManager.getMediaSessionCallback(), mPlaybackHandler);
         // Set the session's token so that client activities can communicate with it.
         setSessionToken(mSession.getSessionToken());
 
@@ -221,7 +262,12 @@ public class MusicService extends MediaBrowserServiceCompat implements PlaybackM
 //        WearHelper.setUseBackgroundFromTheme(mSessionExtras, true);
 //        mSession.setExtras(mSessionExtras);
 
-        mPlaybackManager.updatePlaybackState(null);
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPlaybackManager.updatePlaybackState(null);
+            }
+        });
 
         try {
             mMediaNotificationManager = new MediaNotificationManager(this);
@@ -251,7 +297,12 @@ public class MusicService extends MediaBrowserServiceCompat implements PlaybackM
             String command = startIntent.getStringExtra(CMD_NAME);
             if (ACTION_CMD.equals(action)) {
                 if (CMD_PAUSE.equals(command)) {
-                    mPlaybackManager.handlePauseRequest();
+                    mPlaybackHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mPlaybackManager.handlePauseRequest();
+                        }
+                    });
                 } else if (CMD_STOP_CASTING.equals(command)) {
 //                    CastContext.getSharedInstance(this).getSessionManager().endCurrentSession(true);
                 }
@@ -285,8 +336,33 @@ public class MusicService extends MediaBrowserServiceCompat implements PlaybackM
         LogHelper.d(TAG, "onDestroy");
 //        unregisterCarConnectionReceiver();
         // Service is being killed, so make sure we release our resources
-        mPlaybackManager.handleStopRequest(null);
         mMediaNotificationManager.stopNotification();
+        mPackageValidator.release();
+        // The provider belongs to the application and outlives this service.
+        mMusicProvider.setOnChildrenChangedListener(null);
+        mMusicProvider.flushFavorites();
+        mMusicProvider.flushPlayHistory();
+        mMainHandler.removeCallbacks(mCatalogSyncRunnable);
+        for (Search search : new ArrayList<>(mSearches.values())) {
+            search.cancel();
+        }
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPlaybackManager.handleStopRequest(null);
+                LogHelper.d(TAG, "Playback states ", mPlaybackManager.getStatePublishingStats());
+                LogHelper.d(TAG, "Background tasks:\n", TaskScheduler.getInstance().getStats());
+                mSession.release();
+                mPlaybackThread.quit();
+                // Drop the delayed stop that handleStopRequest scheduled.
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mDelayedStopHandler.removeCallbacksAndMessages(null);
+                    }
+                });
+            }
+        });
 
 //        if (mCastSessionManager != null) {
 //            mCastSessionManager.removeSessionManagerListener(mCastSessionManagerListener,
@@ -294,7 +370,6 @@ public class MusicService extends MediaBrowserServiceCompat implements PlaybackM
 //        }
 
         mDelayedStopHandler.removeCallbacksAndMessages(null);
-        mSession.release();
     }
 
     @Nullable
@@ -334,54 +409,234 @@ public class MusicService extends MediaBrowserServiceCompat implements PlaybackM
     @Override
     public void onLoadChildren(@NonNull final String parentMediaId, @NonNull final Result<List<MediaBrowserCompat.MediaItem>> result) {
         LogHelper.d(TAG, "OnLoadChildren: parentMediaId=", parentMediaId);
+        loadChildren(parentMediaId, result, 0, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void onLoadChildren(@NonNull final String parentMediaId, @NonNull final Result<List<MediaBrowserCompat.MediaItem>> result, @NonNull Bundle options) {
+        int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+        int pageSize = options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+        LogHelper.d(TAG, "OnLoadChildren: parentMediaId=", parentMediaId, " page=", page, " pageSize=", pageSize);
+        if (page < 0 || pageSize < 1) {
+            loadChildren(parentMediaId, result, 0, Integer.MAX_VALUE);
+            return;
+        }
+        long fromIndex = (long) page * pageSize;
+        if (fromIndex > Integer.MAX_VALUE) {
+            result.sendResult(new ArrayList<MediaBrowserCompat.MediaItem>());
+            return;
+        }
+        // Only the requested page is built by the provider, so the paging options are handled
+        // here and the framework must not apply them a second time.
+        loadChildren(parentMediaId, result, (int) fromIndex, pageSize);
+    }
+
+    private void loadChildren(final String parentMediaId, final Result<List<MediaBrowserCompat.MediaItem>> result,
+                              final int fromIndex, final int count) {
         if (MEDIA_ID_EMPTY_ROOT.equals(parentMediaId)) {
             result.sendResult(new ArrayList<MediaBrowserCompat.MediaItem>());
         } else if (mMusicProvider.isInitialized()) {
             // if music library is ready, return immediately
-            result.sendResult(mMusicProvider.getChildren(parentMediaId, getResources()));
+            result.sendResult(mMusicProvider.getChildren(parentMediaId, getResources(), fromIndex, count));
         } else {
             // otherwise, only return results when the music library is retrieved
             result.detach();
             mMusicProvider.retrieveMediaAsync(new MusicProvider.Callback() {
                 @Override
                 public void onMusicCatalogReady(boolean success) {
-                    result.sendResult(mMusicProvider.getChildren(parentMediaId, getResources()));
+                    result.sendResult(mMusicProvider.getChildren(parentMediaId, getResources(), fromIndex, count));
                 }
             });
         }
     }
 
     /**
-     * Callback method called from PlaybackManager whenever the music is about to play.
+     * Search the catalog for browsers that want results without starting playback (Android
+     * Auto, assistants). Each query is searched once, on the CPU lane: requests for it that
+     * arrive while it runs, such as other pages or the same query from another client, wait for
+     * that run, and each is answered with its own page as soon as the run is done. The results
+     * are cached per query by the provider, so later pages are served from the cache.
+     * <p/>
+     * A query being typed supersedes the searches of its prefixes: those are cancelled, and their
+     * requests get a null (error) result. Other searches don't cancel each other, since they may
+     * come from another client.
+     */
+    @Override
+    public void onSearch(@NonNull final String query, final Bundle extras,
+                         @NonNull final Result<List<MediaBrowserCompat.MediaItem>> result) {
+        LogHelper.d(TAG, "onSearch: query=", query, " extras=", extras);
+        final String searchMediaId = MusicProvider.getSearchMediaId(query);
+        int page = extras == null ? -1 : extras.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+        int pageSize = extras == null ? -1 : extras.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+        long fromIndex = page < 0 || pageSize < 1 ? 0 : (long) page * pageSize;
+        if (searchMediaId == null || fromIndex >= MusicProvider.SEARCH_MAX_RESULTS) {
+            result.sendResult(new ArrayList<MediaBrowserCompat.MediaItem>());
+            return;
+        }
+        int count = page < 0 || pageSize < 1 ? Integer.MAX_VALUE : pageSize;
+
+        result.detach();
+        Search search = mSearches.get(searchMediaId);
+        if (search == null) {
+            for (Search running : new ArrayList<>(mSearches.values())) {
+                if (searchMediaId.startsWith(running.mediaId)) {
+                    LogHelper.d(TAG, "Search for ", running.mediaId, " superseded by ",
+                            searchMediaId);
+                    running.cancel();
+                }
+            }
+            search = new Search(searchMediaId);
+            mSearches.put(searchMediaId, search);
+            search.start();
+        }
+        search.requests.add(new SearchRequest(result, (int) fromIndex, count));
+    }
+
+    /**
+     * A page of search results asked for by a browser.
+     */
+    private static final class SearchRequest {
+        final Result<List<MediaBrowserCompat.MediaItem>> result;
+        final int fromIndex;
+        final int count;
+
+        SearchRequest(Result<List<MediaBrowserCompat.MediaItem>> result, int fromIndex,
+                      int count) {
+            this.result = result;
+            this.fromIndex = fromIndex;
+            this.count = count;
+        }
+    }
+
+    /**
+     * The run of a query and the requests waiting for it. Main thread only.
+     */
+    private final class Search {
+        final String mediaId;
+        final List<SearchRequest> requests = new ArrayList<>();
+        final TaskScheduler.Task<List<MediaBrowserCompat.MediaItem>> task =
+                new TaskScheduler.Task<List<MediaBrowserCompat.MediaItem>>() {
+                    @Override
+                    protected List<MediaBrowserCompat.MediaItem> doInBackground() {
+                        if (isCancelled()) {
+                            return null;
+                        }
+                        return mMusicProvider.getChildren(mediaId, getResources(), 0,
+                                MusicProvider.SEARCH_MAX_RESULTS);
+                    }
+
+                    @Override
+                    protected void onResult(List<MediaBrowserCompat.MediaItem> items) {
+                        finish(items);
+                    }
+
+                    @Override
+                    protected void onError(Exception e) {
+                        super.onError(e);
+                        finish(null);
+                    }
+
+                    @Override
+                    protected void onCancelled() {
+                        finish(null);
+                    }
+                };
+
+        Search(String mediaId) {
+            this.mediaId = mediaId;
+        }
+
+        void start() {
+            if (mMusicProvider.isInitialized()) {
+                TaskScheduler.getInstance().execute(TaskScheduler.Lane.CPU,
+                        TaskScheduler.PRIORITY_HIGH, task);
+                return;
+            }
+            mMusicProvider.retrieveMediaAsync(new MusicProvider.Callback() {
+                @Override
+                public void onMusicCatalogReady(boolean success) {
+                    if (!task.isCancelled()) {
+                        TaskScheduler.getInstance().execute(TaskScheduler.Lane.CPU,
+                                TaskScheduler.PRIORITY_HIGH, task);
+                    }
+                }
+            });
+        }
+
+        // Requests for the same query from now on start a new search.
+        void cancel() {
+            if (mSearches.get(mediaId) == this) {
+                mSearches.remove(mediaId);
+            }
+            task.cancel();
+        }
+
+        // Answer every waiting request with its page, or with null if the search failed.
+        private void finish(List<MediaBrowserCompat.MediaItem> items) {
+            if (mSearches.get(mediaId) == this) {
+                mSearches.remove(mediaId);
+            }
+            for (SearchRequest request : requests) {
+                if (items == null) {
+                    request.result.sendResult(null);
+                    continue;
+                }
+                int from = Math.min(request.fromIndex, items.size());
+                int to = request.count >= items.size() - from ? items.size() : from + request.count;
+                request.result.sendResult(new ArrayList<>(items.subList(from, to)));
+            }
+            requests.clear();
+        }
+    }
+
+    /**
+     * Callback method called from PlaybackManager (on the playback thread) whenever the music is
+     * about to play.
      */
     @Override
     public void onPlaybackStart() {
         mSession.setActive(true);
 
-        mDelayedStopHandler.removeCallbacksAndMessages(null);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDelayedStopHandler.removeCallbacksAndMessages(null);
 
-        // The service needs to continue running even after the bound client (usually a
-        // MediaController) disconnects, otherwise the music playback will stop.
-        // Calling startService(Intent) will keep the service running until it is explicitly killed.
-        startService(new Intent(getApplicationContext(), MusicService.class));
+                // The service needs to continue running even after the bound client (usually a
+                // MediaController) disconnects, otherwise the music playback will stop.
+                // Calling startService(Intent) will keep the service running until it is explicitly killed.
+                startService(new Intent(getApplicationContext(), MusicService.class));
+            }
+        });
     }
 
     /**
-     * Callback method called from PlaybackManager whenever the music stops playing.
+     * Callback method called from PlaybackManager (on the playback thread) whenever the music
+     * stops playing.
      */
     @Override
     public void onPlaybackStop() {
         mSession.setActive(false);
-        // Reset the delayed stop handler, so after STOP_DELAY it will be executed again,
-        // potentially stopping the service.
-        mDelayedStopHandler.removeCallbacksAndMessages(null);
-        mDelayedStopHandler.sendEmptyMessageDelayed(0, STOP_DELAY);
-        stopForeground(true);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Reset the delayed stop handler, so after STOP_DELAY it will be executed again,
+                // potentially stopping the service.
+                mDelayedStopHandler.removeCallbacksAndMessages(null);
+                mDelayedStopHandler.sendEmptyMessageDelayed(0, STOP_DELAY);
+                stopForeground(true);
+            }
+        });
     }
 
     @Override
     public void onNotificationRequired() {
-        mMediaNotificationManager.startNotification();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mMediaNotificationManager.startNotification();
+            }
+        });
     }
 
     @Override
@@ -389,6 +644,11 @@ public class MusicService extends MediaBrowserServiceCompat implements PlaybackM
         mSession.setPlaybackState(newState);
     }
 
+    @Override
+    public void onShuffleModeUpdated(int shuffleMode) {
+        mSession.setShuffleMode(shuffleMode);
+    }
+
     /**
      * A simple handler that stops the service if playback is not active (playing)
      */
@@ -401,15 +661,24 @@ public class MusicService extends MediaBrowserServiceCompat implements PlaybackM
 
         @Override
         public void handleMessage(Message msg) {
-            MusicService service = mWeakReference.get();
-            if (service != null && service.mPlaybackManager.getPlayback() != null) {
-                if (service.mPlaybackManager.getPlayback().isPlaying()) {
-                    LogHelper.d(TAG, "Ignoring delayed stop since the media player is in use.");
-                    return;
-                }
-                LogHelper.d(TAG, "Stopping service with delay handler.");
-                service.stopSelf();
+            final MusicService service = mWeakReference.get();
+            if (service == null) {
+                return;
             }
+            // The player state is owned by the playback thread: check it there.
+            service.mPlaybackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (service.mPlaybackManager.getPlayback() != null) {
+                        if (service.mPlaybackManager.getPlayback().isPlaying()) {
+                            LogHelper.d(TAG, "Ignoring delayed stop since the media player is in use.");
+                            return;
+                        }
+                        LogHelper.d(TAG, "Stopping service with delay handler.");
+                        service.stopSelf();
+                    }
+                }
+            });
         }
     }
 }
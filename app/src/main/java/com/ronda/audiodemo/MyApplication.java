@@ -3,19 +3,62 @@ package com.ronda.audiodemo;
 import android.app.Application;
 import android.os.Environment;
 
+import com.ronda.audiodemo.model.FavoritesStore;
+import com.ronda.audiodemo.model.FederatedSource;
+import com.ronda.audiodemo.model.LocalFileSource;
+import com.ronda.audiodemo.model.MusicProvider;
+import com.ronda.audiodemo.model.MusicProviderSource;
+import com.ronda.audiodemo.model.PlayHistoryStore;
+import com.ronda.audiodemo.model.RemoteJSONSource;
 import com.socks.library.KLog;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Created by Ronda on 2017/12/11.
  */
 
 public class MyApplication extends Application {
 
+    private static final String FAVORITES_FILE = "favorites.log";
+    private static final String PLAY_HISTORY_FILE = "play_history.log";
+    private static final String LOCAL_MUSIC_CACHE_FILE = "local_music.cache";
+
+    // Shared with MusicService, which runs in this process: the catalog warmed up here is the
+    // one the service browses.
+    private MusicProvider mMusicProvider;
+
     @Override
     public void onCreate() {
         super.onCreate();
 
         KLog.init(true, "Liu");
 
+        FavoritesStore favorites = new FavoritesStore(new File(getFilesDir(), FAVORITES_FILE));
+        favorites.loadAsync();
+        PlayHistoryStore playHistory = new PlayHistoryStore(new File(getFilesDir(), PLAY_HISTORY_FILE));
+        playHistory.loadAsync();
+        mMusicProvider = new MusicProvider(createMusicSource(), favorites, playHistory);
+        StartupOrchestrator.getInstance().start(mMusicProvider, getResources());
+    }
+
+    // The remote catalog, plus the audio files in the app's own music directory when there is
+    // external storage: reading it needs no permission.
+    private MusicProviderSource createMusicSource() {
+        List<MusicProviderSource> sources = new ArrayList<>();
+        sources.add(new RemoteJSONSource());
+        File musicDir = getExternalFilesDir(Environment.DIRECTORY_MUSIC);
+        if (musicDir != null) {
+            sources.add(new LocalFileSource(Collections.singletonList(musicDir),
+                    new File(getFilesDir(), LOCAL_MUSIC_CACHE_FILE)));
+        }
+        return new FederatedSource(sources);
+    }
+
+    public MusicProvider getMusicProvider() {
+        return mMusicProvider;
     }
 }
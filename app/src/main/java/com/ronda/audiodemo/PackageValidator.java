@@ -1,9 +1,14 @@
 package com.ronda.audiodemo;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.Signature;
 import android.content.res.XmlResourceParser;
+import android.net.Uri;
 import android.os.Process;
 import android.util.Base64;
 
@@ -12,10 +17,20 @@ import com.ronda.audiodemo.utils.LogHelper;
 
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Validates that the calling package is authorized to browse a
@@ -28,24 +43,121 @@ import java.util.Map;
  * its signature, this class will print to logcat (INFO level) a message with the proper base64
  * version of the caller certificate that has not been validated. You can copy from logcat and
  * paste into allowed_media_browser_callers.xml. Spaces and newlines are ignored.
+ *
+ * The XML is not parsed at runtime: the compileAllowedCallers build step turns it into
+ * assets/allowed_callers.bin, a table of SHA-256 certificate digests sorted for binary search,
+ * which is loaded on the first caller that needs checking. The XML is only read if the asset is
+ * missing.
+ *
+ * Verdicts are cached by caller uid and package, so the reconnections of a browser only cost a
+ * map lookup. The cache entries of a package are dropped when it is installed, updated or
+ * removed, since its signature may have changed. Call {@link #release()} when done.
  * todo 这个类看的不太懂
  */
 public class PackageValidator {
     private static final String TAG = LogHelper.makeLogTag(PackageValidator.class);
 
+    // Written by the compileAllowedCallers task of app/build.gradle:
+    //   int magic, int count, then count times:
+    //   byte[32] SHA-256 of the certificate, UTF package name, UTF name, boolean release
+    // sorted by digest, compared as unsigned bytes.
+    private static final String CALLERS_ASSET = "allowed_callers.bin";
+    private static final int CALLERS_MAGIC = 0x41434c31; // "ACL1"
+    private static final int DIGEST_LENGTH = 32;
+
     /**
-     * Map allowed callers' certificate keys to the expected caller information.
-     *
+     * Allowed callers' certificate digests and the expected caller information, loaded lazily.
      */
-    private final Map<String, ArrayList<CallerInfo>> mValidCertificates;
+    private CallerTable mValidCertificates;
+
+    // "uid:package" -> whether the caller is allowed.
+    private final Map<String, Boolean> mVerifiedCallers = new ConcurrentHashMap<>();
+    // Signature of the "android" package, looked up once.
+    private Signature mPlatformSignature;
+    private boolean mPlatformSignatureLoaded;
+
+    private final Context mContext;
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (data != null) {
+                forgetPackage(data.getSchemeSpecificPart());
+            }
+        }
+    };
 
     public PackageValidator(Context ctx) {
-        mValidCertificates = readValidCertificates(ctx.getResources().getXml(
-            R.xml.allowed_media_browser_callers));
+        mContext = ctx;
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        ctx.registerReceiver(mPackageReceiver, filter);
     }
 
-    private Map<String, ArrayList<CallerInfo>> readValidCertificates(XmlResourceParser parser) {
-        HashMap<String, ArrayList<CallerInfo>> validCertificates = new HashMap<>();
+    /**
+     * Stop listening to package changes.
+     */
+    public void release() {
+        mContext.unregisterReceiver(mPackageReceiver);
+        mVerifiedCallers.clear();
+    }
+
+    private void forgetPackage(String packageName) {
+        String suffix = ":" + packageName;
+        Iterator<String> callers = mVerifiedCallers.keySet().iterator();
+        while (callers.hasNext()) {
+            if (callers.next().endsWith(suffix)) {
+                callers.remove();
+            }
+        }
+    }
+
+    private synchronized CallerTable getValidCertificates(Context context) {
+        if (mValidCertificates == null) {
+            try {
+                mValidCertificates = readCallerTable(context);
+            } catch (FileNotFoundException e) {
+                LogHelper.w(TAG, "No ", CALLERS_ASSET, " asset, reading allowed callers from XML");
+                mValidCertificates = readValidCertificates(context.getResources().getXml(
+                    R.xml.allowed_media_browser_callers));
+            } catch (IOException e) {
+                LogHelper.e(TAG, e, "Could not read allowed callers from ", CALLERS_ASSET);
+                mValidCertificates = new CallerTable(new ArrayList<CallerEntry>());
+            }
+        }
+        return mValidCertificates;
+    }
+
+    private CallerTable readCallerTable(Context context) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            context.getAssets().open(CALLERS_ASSET)));
+        try {
+            if (in.readInt() != CALLERS_MAGIC) {
+                throw new IOException("Unexpected format of " + CALLERS_ASSET);
+            }
+            int count = in.readInt();
+            List<CallerEntry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] digest = new byte[DIGEST_LENGTH];
+                in.readFully(digest);
+                String packageName = in.readUTF();
+                String name = in.readUTF();
+                boolean release = in.readBoolean();
+                entries.add(new CallerEntry(digest, new CallerInfo(name, packageName, release)));
+            }
+            return new CallerTable(entries);
+        } finally {
+            in.close();
+        }
+    }
+
+    private CallerTable readValidCertificates(XmlResourceParser parser) {
+        List<CallerEntry> entries = new ArrayList<>();
         try {
             int eventType = parser.next();
             while (eventType != XmlResourceParser.END_DOCUMENT) {
@@ -58,23 +170,24 @@ public class PackageValidator {
                     String certificate = parser.nextText().replaceAll("\\s|\\n", "");
 
                     CallerInfo info = new CallerInfo(name, packageName, isRelease);
-
-                    ArrayList<CallerInfo> infos = validCertificates.get(certificate);
-                    if (infos == null) {
-                        infos = new ArrayList<>();
-                        validCertificates.put(certificate, infos);
-                    }
                     LogHelper.v(TAG, "Adding allowed caller: ", info.name,
                         " package=", info.packageName, " release=", info.release,
                         " certificate=", certificate);
-                    infos.add(info);
+                    entries.add(new CallerEntry(
+                        sha256(Base64.decode(certificate, Base64.DEFAULT)), info));
                 }
                 eventType = parser.next();
             }
         } catch (XmlPullParserException | IOException e) {
             LogHelper.e(TAG, e, "Could not read allowed callers from XML.");
         }
-        return validCertificates;
+        Collections.sort(entries, new Comparator<CallerEntry>() {
+            @Override
+            public int compare(CallerEntry a, CallerEntry b) {
+                return compareDigests(a.digest, 0, b.digest);
+            }
+        });
+        return new CallerTable(entries);
     }
 
     /**
@@ -87,27 +200,38 @@ public class PackageValidator {
             return true;
         }
 
-        if (isPlatformSigned(context, callingPackage)) {
-            return true;
+        String key = callingUid + ":" + callingPackage;
+        Boolean verified = mVerifiedCallers.get(key);
+        if (verified == null) {
+            verified = verifyCaller(context, callingPackage);
+            mVerifiedCallers.put(key, verified);
         }
+        return verified;
+    }
 
+    private boolean verifyCaller(Context context, String callingPackage) {
         PackageInfo packageInfo = getPackageInfo(context, callingPackage);
-        if (packageInfo == null) {
+        if (packageInfo == null || packageInfo.signatures == null) {
             return false;
         }
+
+        if (isPlatformSigned(context, packageInfo)) {
+            return true;
+        }
+
         if (packageInfo.signatures.length != 1) {
             LogHelper.w(TAG, "Caller does not have exactly one signature certificate!");
             return false;
         }
-        String signature = Base64.encodeToString(
-            packageInfo.signatures[0].toByteArray(), Base64.NO_WRAP);
+        byte[] certificate = packageInfo.signatures[0].toByteArray();
 
         // Test for known signatures:
-        ArrayList<CallerInfo> validCallers = mValidCertificates.get(signature);
-        if (validCallers == null) {
+        CallerTable validCertificates = getValidCertificates(context);
+        List<CallerInfo> validCallers = validCertificates.get(sha256(certificate));
+        if (validCallers.isEmpty()) {
             LogHelper.v(TAG, "Signature for caller ", callingPackage, " is not valid: \n"
-                , signature);
-            if (mValidCertificates.isEmpty()) {
+                , Base64.encodeToString(certificate, Base64.NO_WRAP));
+            if (validCertificates.isEmpty()) {
                 LogHelper.w(TAG, "The list of valid certificates is empty. Either your file ",
                         "res/xml/allowed_media_browser_callers.xml is empty or there was an error ",
                         "while reading it. Check previous log messages.");
@@ -129,7 +253,8 @@ public class PackageValidator {
         LogHelper.i(TAG, "Caller has a valid certificate, but its package doesn't match any ",
             "expected package for the given certificate. Caller's package is ", callingPackage,
             ". Expected packages as defined in res/xml/allowed_media_browser_callers.xml are (",
-            expectedPackages, "). This caller's certificate is: \n", signature);
+            expectedPackages, "). This caller's certificate is: \n",
+            Base64.encodeToString(certificate, Base64.NO_WRAP));
 
         return false;
     }
@@ -137,20 +262,28 @@ public class PackageValidator {
     /**
      * @return true if the installed package signature matches the platform signature.
      */
-    private boolean isPlatformSigned(Context context, String pkgName) {
-        PackageInfo platformPackageInfo = getPackageInfo(context, "android");
+    private boolean isPlatformSigned(Context context, PackageInfo clientPackageInfo) {
+        Signature platformSignature = getPlatformSignature(context);
 
         // Should never happen.
-        if (platformPackageInfo == null || platformPackageInfo.signatures == null
-                || platformPackageInfo.signatures.length == 0) {
+        if (platformSignature == null) {
             return false;
         }
 
-        PackageInfo clientPackageInfo = getPackageInfo(context, pkgName);
+        return clientPackageInfo.signatures.length > 0
+                && platformSignature.equals(clientPackageInfo.signatures[0]);
+    }
 
-        return (clientPackageInfo != null && clientPackageInfo.signatures != null
-                && clientPackageInfo.signatures.length > 0 &&
-                platformPackageInfo.signatures[0].equals(clientPackageInfo.signatures[0]));
+    private synchronized Signature getPlatformSignature(Context context) {
+        if (!mPlatformSignatureLoaded) {
+            PackageInfo platformPackageInfo = getPackageInfo(context, "android");
+            if (platformPackageInfo != null && platformPackageInfo.signatures != null
+                    && platformPackageInfo.signatures.length > 0) {
+                mPlatformSignature = platformPackageInfo.signatures[0];
+            }
+            mPlatformSignatureLoaded = true;
+        }
+        return mPlatformSignature;
     }
 
     /**
@@ -166,6 +299,90 @@ public class PackageValidator {
         return null;
     }
 
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android release provides SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Compare the digest stored at offset in digests with the given one, as unsigned bytes.
+    private static int compareDigests(byte[] digests, int offset, byte[] digest) {
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            int a = digests[offset + i] & 0xff;
+            int b = digest[i] & 0xff;
+            if (a != b) {
+                return a < b ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private final static class CallerEntry {
+        final byte[] digest;
+        final CallerInfo info;
+
+        CallerEntry(byte[] digest, CallerInfo info) {
+            this.digest = digest;
+            this.info = info;
+        }
+    }
+
+    /**
+     * Certificate digests, packed in one array in sorted order, with the caller of each entry.
+     * A certificate allowed for several packages has one consecutive entry per package.
+     */
+    private final static class CallerTable {
+        final byte[] digests;
+        final CallerInfo[] infos;
+
+        /**
+         * @param entries sorted by digest
+         */
+        CallerTable(List<CallerEntry> entries) {
+            digests = new byte[entries.size() * DIGEST_LENGTH];
+            infos = new CallerInfo[entries.size()];
+            for (int i = 0; i < infos.length; i++) {
+                System.arraycopy(entries.get(i).digest, 0, digests, i * DIGEST_LENGTH, DIGEST_LENGTH);
+                infos[i] = entries.get(i).info;
+            }
+        }
+
+        boolean isEmpty() {
+            return infos.length == 0;
+        }
+
+        /**
+         * @return the callers allowed to use the certificate with the given digest
+         */
+        List<CallerInfo> get(byte[] digest) {
+            int low = 0;
+            int high = infos.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compareDigests(digests, mid * DIGEST_LENGTH, digest);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    int from = mid;
+                    while (from > 0 && compareDigests(digests, (from - 1) * DIGEST_LENGTH, digest) == 0) {
+                        from--;
+                    }
+                    int to = mid + 1;
+                    while (to < infos.length && compareDigests(digests, to * DIGEST_LENGTH, digest) == 0) {
+                        to++;
+                    }
+                    return Arrays.asList(infos).subList(from, to);
+                }
+            }
+            return Collections.emptyList();
+        }
+    }
+
     private final static class CallerInfo {
         final String name;
         final String packageName;
@@ -0,0 +1,154 @@
+package com.ronda.audiodemo;
+
+import android.content.res.Resources;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.media.MediaBrowserCompat;
+
+import com.ronda.audiodemo.model.MusicProvider;
+import com.ronda.audiodemo.ui.MediaBrowserFragment;
+import com.ronda.audiodemo.utils.LogHelper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.ronda.audiodemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE;
+import static com.ronda.audiodemo.utils.MediaIDHelper.MEDIA_ID_ROOT;
+
+/**
+ * Warms up what the browse UI needs from MyApplication.onCreate, instead of waiting for the
+ * activity to connect to MusicService and subscribe.
+ * <p/>
+ * Phases run in dependency order, each one started when the one it depends on is done:
+ * <ol>
+ * <li>catalog: the music catalog is retrieved;</li>
+ * <li>snapshot: the browse MediaItems of the root, the genre list and the first page of each
+ * genre are built into the provider's cache;</li>
+ * <li>art: the thumbnails of the first rows of each genre are prefetched at row size.</li>
+ * </ol>
+ * Each phase leaves a timing mark relative to process start, and the trace ends when the first
+ * browse row is bound, see {@link #markFirstBrowseRow()}.
+ */
+public final class StartupOrchestrator {
+    private static final String TAG = LogHelper.makeLogTag(StartupOrchestrator.class);
+
+    public static final String MARK_APP_CREATE = "app_create";
+    public static final String MARK_CATALOG_READY = "catalog_ready";
+    public static final String MARK_SNAPSHOT_READY = "snapshot_ready";
+    public static final String MARK_ART_QUEUED = "art_queued";
+    public static final String MARK_FIRST_BROWSE_ROW = "first_browse_row";
+
+    // Thumbnails prefetched per genre, and overall: about what the first screen of a genre shows.
+    private static final int ART_ROWS_PER_GENRE = 10;
+    private static final int MAX_ART_PREFETCH = 40;
+
+    private static final StartupOrchestrator sInstance = new StartupOrchestrator();
+
+    public static StartupOrchestrator getInstance() {
+        return sInstance;
+    }
+
+    private final long mProcessStart;
+    // Mark name -> ms since process start, in the order the marks were hit.
+    private final Map<String, Long> mMarks = new LinkedHashMap<>();
+
+    private StartupOrchestrator() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            mProcessStart = Process.getStartElapsedRealtime();
+        } else {
+            // Best effort: the application class is loaded right after the process starts.
+            mProcessStart = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Start the warm-up phases. Must be called on the main thread.
+     */
+    public void start(final MusicProvider musicProvider, final Resources resources) {
+        mark(MARK_APP_CREATE);
+        musicProvider.retrieveMediaAsync(new MusicProvider.Callback() {
+            @Override
+            public void onMusicCatalogReady(boolean success) {
+                mark(MARK_CATALOG_READY);
+                if (success) {
+                    buildSnapshot(musicProvider, resources);
+                } else {
+                    LogHelper.w(TAG, "Catalog not available, skipping browse warm-up");
+                }
+            }
+        });
+    }
+
+    private void buildSnapshot(final MusicProvider musicProvider, final Resources resources) {
+        TaskScheduler.getInstance().execute(TaskScheduler.Lane.CPU, TaskScheduler.PRIORITY_NORMAL,
+                new TaskScheduler.Task<List<String>>() {
+                    @Override
+                    protected List<String> doInBackground() {
+                        musicProvider.getChildren(MEDIA_ID_ROOT, resources);
+                        List<String> artUrls = new ArrayList<>();
+                        for (MediaBrowserCompat.MediaItem genre : musicProvider.getChildren(
+                                MEDIA_ID_MUSICS_BY_GENRE, resources, 0, MediaBrowserFragment.PAGE_SIZE)) {
+                            List<MediaBrowserCompat.MediaItem> tracks = musicProvider.getChildren(
+                                    genre.getMediaId(), resources, 0, MediaBrowserFragment.PAGE_SIZE);
+                            for (int i = 0; i < tracks.size() && i < ART_ROWS_PER_GENRE
+                                    && artUrls.size() < MAX_ART_PREFETCH; i++) {
+                                Uri iconUri = tracks.get(i).getDescription().getIconUri();
+                                if (iconUri != null && !artUrls.contains(iconUri.toString())) {
+                                    artUrls.add(iconUri.toString());
+                                }
+                            }
+                        }
+                        return artUrls;
+                    }
+
+                    @Override
+                    protected void onResult(List<String> artUrls) {
+                        mark(MARK_SNAPSHOT_READY);
+                        warmUpArt(artUrls, resources);
+                    }
+                });
+    }
+
+    private void warmUpArt(List<String> artUrls, Resources resources) {
+        int size = resources.getDimensionPixelSize(R.dimen.browse_thumbnail_size);
+        for (String artUrl : artUrls) {
+            ThumbnailLoader.getInstance().prefetch(artUrl, size, size);
+        }
+        mark(MARK_ART_QUEUED);
+    }
+
+    /**
+     * Called by the browse list when it binds its first row; ends the startup trace.
+     */
+    public void markFirstBrowseRow() {
+        if (mark(MARK_FIRST_BROWSE_ROW)) {
+            LogHelper.i(TAG, "Startup marks (ms since process start): ", getMarks());
+        }
+    }
+
+    /**
+     * Record a timing mark. Only the first hit of each mark is kept.
+     *
+     * @return true if this was the first time the mark was hit
+     */
+    public synchronized boolean mark(String name) {
+        if (mMarks.containsKey(name)) {
+            return false;
+        }
+        long sinceStart = SystemClock.elapsedRealtime() - mProcessStart;
+        mMarks.put(name, sinceStart);
+        LogHelper.d(TAG, "Startup mark ", name, " at +", sinceStart, "ms");
+        return true;
+    }
+
+    /**
+     * @return the marks hit so far, in order, with their time since process start in ms
+     */
+    public synchronized String getMarks() {
+        return mMarks.toString();
+    }
+}
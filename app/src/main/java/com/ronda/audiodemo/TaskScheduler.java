@@ -0,0 +1,280 @@
+package com.ronda.audiodemo;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.ronda.audiodemo.utils.LogHelper;
+
+import java.util.Locale;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * App-wide scheduler for background work.
+ * <p/>
+ * Tasks are split into lanes by what they wait on: network I/O, CPU (decoding, parsing,
+ * diffing) and disk. Each lane has its own small, bounded pool of threads, so a slow catalog
+ * download can't hold up art decoding queued behind it, the way it does on the serial AsyncTask
+ * executor. Within a lane, higher priority tasks run first and equal priorities run in
+ * submission order. Each lane records how long its tasks waited in the queue and how long they
+ * ran, see {@link #getStats()}.
+ * <p/>
+ * Like an AsyncTask, a {@link Task} does its work in {@link Task#doInBackground()} and reports
+ * back on the main thread.
+ */
+public final class TaskScheduler {
+    private static final String TAG = LogHelper.makeLogTag(TaskScheduler.class);
+
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    // Idle lane threads are let go after this long.
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    public enum Lane {
+        NETWORK(4),
+        CPU(Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() - 1))),
+        DISK(2);
+
+        final int threads;
+
+        Lane(int threads) {
+            this.threads = threads;
+        }
+    }
+
+    private static final TaskScheduler sInstance = new TaskScheduler();
+
+    public static TaskScheduler getInstance() {
+        return sInstance;
+    }
+
+    private final LaneExecutor[] mLanes;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private TaskScheduler() {
+        Lane[] lanes = Lane.values();
+        mLanes = new LaneExecutor[lanes.length];
+        for (Lane lane : lanes) {
+            mLanes[lane.ordinal()] = new LaneExecutor(lane);
+        }
+    }
+
+    /**
+     * Queue the task on the given lane. A task can only be executed once.
+     *
+     * @param priority one of {@link #PRIORITY_LOW}, {@link #PRIORITY_NORMAL} or
+     *                 {@link #PRIORITY_HIGH}
+     * @return the task, so it can be kept for {@link Task#cancel()}
+     */
+    public <Result> Task<Result> execute(Lane lane, int priority, Task<Result> task) {
+        LaneExecutor executor = mLanes[lane.ordinal()];
+        Job job = new Job(task, executor, priority, mSequence.getAndIncrement());
+        synchronized (task) {
+            if (task.mJob != null) {
+                throw new IllegalStateException("Task has already been executed");
+            }
+            task.mJob = job;
+        }
+        if (!task.isCancelled()) {
+            executor.execute(job);
+        }
+        return task;
+    }
+
+    /**
+     * @return one line per lane with the number of tasks run and their average and worst queue
+     * wait and run times, for diagnostics
+     */
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        for (LaneExecutor executor : mLanes) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            executor.appendStats(sb);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A unit of background work. Subclasses implement {@link #doInBackground()}; the result
+     * callbacks are called on the main thread, and exactly one of them is called.
+     */
+    public static abstract class Task<Result> {
+        private volatile boolean mCancelled;
+        // Set once the outcome (result, error or cancellation) has been claimed for delivery.
+        private final AtomicBoolean mFinished = new AtomicBoolean();
+        private Job mJob;
+
+        /**
+         * Runs on a lane thread. Long running work should poll {@link #isCancelled()}.
+         */
+        protected abstract Result doInBackground() throws Exception;
+
+        protected void onResult(Result result) {
+        }
+
+        protected void onError(Exception e) {
+            LogHelper.e(TAG, e, "Background task failed");
+        }
+
+        protected void onCancelled() {
+        }
+
+        public final boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Cancel the task. A queued task is removed from its lane and never runs. A running task
+         * is not interrupted, but its result is dropped. {@link #onCancelled()} is called
+         * instead, unless the result was already delivered.
+         */
+        public final void cancel() {
+            mCancelled = true;
+            Job job;
+            synchronized (this) {
+                job = mJob;
+            }
+            if (job != null) {
+                job.mExecutor.remove(job);
+            }
+            if (mFinished.compareAndSet(false, true)) {
+                sInstance.mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onCancelled();
+                    }
+                });
+            }
+        }
+
+        private void run() {
+            Result result = null;
+            Exception error = null;
+            try {
+                result = doInBackground();
+            } catch (Exception e) {
+                error = e;
+            }
+            final Result deliveredResult = result;
+            final Exception deliveredError = error;
+            sInstance.mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCancelled || !mFinished.compareAndSet(false, true)) {
+                        return;
+                    }
+                    if (deliveredError != null) {
+                        onError(deliveredError);
+                    } else {
+                        onResult(deliveredResult);
+                    }
+                }
+            });
+        }
+    }
+
+    private static final class Job implements Runnable, Comparable<Job> {
+        final Task<?> mTask;
+        final LaneExecutor mExecutor;
+        final int mPriority;
+        final long mSequence;
+        final long mQueuedAt = SystemClock.elapsedRealtime();
+
+        Job(Task<?> task, LaneExecutor executor, int priority, long sequence) {
+            mTask = task;
+            mExecutor = executor;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            long start = SystemClock.elapsedRealtime();
+            if (mTask.isCancelled()) {
+                return;
+            }
+            mTask.run();
+            mExecutor.record(start - mQueuedAt, SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    /**
+     * The threads of one lane. Jobs are Comparable, so the queue orders them by priority; only
+     * execute() may be used, submit() would wrap them in a FutureTask.
+     */
+    private static final class LaneExecutor extends ThreadPoolExecutor {
+        private final Lane mLane;
+        private final AtomicLong mCompleted = new AtomicLong();
+        private final AtomicLong mTotalWaitMs = new AtomicLong();
+        private final AtomicLong mTotalRunMs = new AtomicLong();
+        private volatile long mMaxWaitMs;
+        private volatile long mMaxRunMs;
+
+        LaneExecutor(final Lane lane) {
+            super(lane.threads, lane.threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            String name = "TaskScheduler-" + lane.name().toLowerCase(Locale.US)
+                                    + '-' + mCount.getAndIncrement();
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, name);
+                        }
+                    });
+            mLane = lane;
+            allowCoreThreadTimeOut(true);
+        }
+
+        void record(long waitMs, long runMs) {
+            mCompleted.incrementAndGet();
+            mTotalWaitMs.addAndGet(waitMs);
+            mTotalRunMs.addAndGet(runMs);
+            // Racy maxima are good enough for diagnostics.
+            if (waitMs > mMaxWaitMs) {
+                mMaxWaitMs = waitMs;
+            }
+            if (runMs > mMaxRunMs) {
+                mMaxRunMs = runMs;
+            }
+        }
+
+        void appendStats(StringBuilder sb) {
+            long completed = mCompleted.get();
+            sb.append(mLane.name()).append(": tasks=").append(completed)
+                    .append(" queued=").append(getQueue().size());
+            if (completed > 0) {
+                sb.append(" avgWaitMs=").append(mTotalWaitMs.get() / completed)
+                        .append(" maxWaitMs=").append(mMaxWaitMs)
+                        .append(" avgRunMs=").append(mTotalRunMs.get() / completed)
+                        .append(" maxRunMs=").append(mMaxRunMs);
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.ronda.audiodemo;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import com.ronda.audiodemo.utils.BitmapHelper;
+import com.ronda.audiodemo.utils.LogHelper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads album art thumbnails into list rows.
+ * <p/>
+ * Requests are bound to their ImageView: binding a view again, or calling {@link #cancel},
+ * drops the previous request of that view, so recycled rows never receive stale art and
+ * rows scrolled off screen don't keep the workers busy. The most recently bound rows are
+ * loaded first, since they are the ones currently on screen. While loading is paused (during
+ * a fling) new requests are only queued. Images are decoded at the exact pixel size of the
+ * view.
+ */
+public final class ThumbnailLoader {
+    private static final String TAG = LogHelper.makeLogTag(ThumbnailLoader.class);
+
+    private static final int MAX_THUMBNAIL_CACHE_SIZE = 4 * 1024 * 1024;  // 4 MB
+    private static final int WORKER_THREADS = 2;
+
+    private static final ThumbnailLoader sInstance = new ThumbnailLoader();
+
+    public static ThumbnailLoader getInstance() {
+        return sInstance;
+    }
+
+    private final LruCache<String, Bitmap> mCache;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Accessed on the main thread only.
+    private final List<Request> mPending = new ArrayList<>();
+    private boolean mPaused;
+    private long mNextSequence;
+    // Prefetches count down from -1, so they always run after requests bound to a view.
+    private long mNextPrefetchSequence = -1;
+
+    private ThumbnailLoader() {
+        int maxSize = Math.min(MAX_THUMBNAIL_CACHE_SIZE, (int) (Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8)));
+        mCache = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        // Requests are Comparable, so the queue hands the newest (visible) rows to the workers
+        // first. Only execute() may be used: submit() would wrap them in a FutureTask.
+        mExecutor = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Load the image at artUrl into the view, at the view's layout size. Must be called on the
+     * main thread.
+     *
+     * @param placeholderResId drawable shown until the image is loaded, or if it fails to load
+     */
+    public void load(ImageView view, String artUrl, int placeholderResId) {
+        cancel(view);
+
+        ViewGroup.LayoutParams params = view.getLayoutParams();
+        int width = params != null && params.width > 0 ? params.width : view.getWidth();
+        int height = params != null && params.height > 0 ? params.height : view.getHeight();
+        if (width <= 0 || height <= 0) {
+            LogHelper.w(TAG, "Cannot load thumbnail into a view without a fixed size: ", artUrl);
+            view.setImageResource(placeholderResId);
+            return;
+        }
+
+        String key = artUrl + '@' + width + 'x' + height;
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            return;
+        }
+
+        view.setImageResource(placeholderResId);
+        Request request = new Request(view, artUrl, key, width, height, mNextSequence++);
+        view.setTag(R.id.tag_thumbnail_request, request);
+        if (mPaused) {
+            mPending.add(request);
+        } else {
+            mExecutor.execute(request);
+        }
+    }
+
+    /**
+     * Load an image into the cache, at the given size, without a target view. Prefetches run
+     * after every view-bound request. Must be called on the main thread.
+     */
+    public void prefetch(String artUrl, int width, int height) {
+        String key = artUrl + '@' + width + 'x' + height;
+        if (mCache.get(key) != null) {
+            return;
+        }
+        Request request = new Request(null, artUrl, key, width, height, mNextPrefetchSequence--);
+        if (mPaused) {
+            mPending.add(request);
+        } else {
+            mExecutor.execute(request);
+        }
+    }
+
+    /**
+     * Cancel the request bound to the view, if any. Must be called on the main thread.
+     */
+    public void cancel(ImageView view) {
+        Request request = (Request) view.getTag(R.id.tag_thumbnail_request);
+        if (request != null) {
+            request.mCancelled = true;
+            view.setTag(R.id.tag_thumbnail_request, null);
+            if (!mPending.remove(request)) {
+                mExecutor.remove(request);
+            }
+        }
+    }
+
+    /**
+     * Stop starting new downloads, for example while a list is flinging. Requests made while
+     * paused are queued until {@link #resume()}.
+     */
+    public void pause() {
+        mPaused = true;
+    }
+
+    public void resume() {
+        if (!mPaused) {
+            return;
+        }
+        mPaused = false;
+        for (Request request : mPending) {
+            mExecutor.execute(request);
+        }
+        mPending.clear();
+    }
+
+    private final class Request implements Runnable, Comparable<Request> {
+        final ImageView mView;
+        final String mArtUrl;
+        final String mKey;
+        final int mWidth;
+        final int mHeight;
+        final long mSequence;
+        volatile boolean mCancelled;
+
+        Request(ImageView view, String artUrl, String key, int width, int height, long sequence) {
+            mView = view;
+            mArtUrl = artUrl;
+            mKey = key;
+            mWidth = width;
+            mHeight = height;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            // Newest request first.
+            return mSequence > other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            Bitmap bitmap = mCache.get(mKey);
+            if (bitmap == null) {
+                try {
+                    bitmap = BitmapHelper.fetchAndDecodeBitmap(mArtUrl, mWidth, mHeight);
+                    mCache.put(mKey, bitmap);
+                } catch (IOException e) {
+                    LogHelper.w(TAG, e, "Could not load thumbnail ", mArtUrl);
+                    return;
+                }
+            }
+            if (mView == null) {
+                // Prefetch: the cache is all there is to fill.
+                return;
+            }
+            final Bitmap result = bitmap;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // The view may have been rebound to another item in the meantime.
+                    if (!mCancelled && mView.getTag(R.id.tag_thumbnail_request) == Request.this) {
+                        mView.setTag(R.id.tag_thumbnail_request, null);
+                        mView.setImageBitmap(result);
+                    }
+                }
+            });
+        }
+    }
+}
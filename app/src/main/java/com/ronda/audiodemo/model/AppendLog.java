@@ -0,0 +1,292 @@
+package com.ronda.audiodemo.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.AtomicFile;
+
+import com.ronda.audiodemo.TaskScheduler;
+import com.ronda.audiodemo.utils.LogHelper;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Log file of records, appended in batches a moment after the changes they record
+ * (write-behind), so a burst of changes costs one write.
+ * <p/>
+ * The owner applies its changes to memory at once and encodes each one as a record into a
+ * pending batch. On a flush, on the DISK lane, the log takes the batch from the owner and
+ * appends it to the file. Once the log has grown well past the state it adds up to, the owner
+ * hands a snapshot of that state instead, and the file is rewritten with it through an
+ * AtomicFile, so a crash mid-rewrite keeps the previous log.
+ * <p/>
+ * A record torn by a crash while appending is cut off the file on load, before anything is
+ * appended after it, so that the records that follow stay aligned.
+ */
+final class AppendLog {
+    private static final String TAG = LogHelper.makeLogTag(AppendLog.class);
+
+    // Delay before writing again the changes of a batch that failed to be written.
+    private static final long RETRY_DELAY_MS = 30000;
+
+    interface Owner {
+        /**
+         * Read one record and apply it. Called by {@link #load()}, with the owner's lock held
+         * if the owner holds it there.
+         *
+         * @throws EOFException if the log ends within the record
+         */
+        void readRecord(DataInputStream in) throws IOException;
+
+        /**
+         * Take the pending records, clearing them, or a snapshot of the whole state to replace
+         * the log with. Called on the DISK lane, with the file lock held: the owner must take
+         * its own lock here, and never call into the log while holding it except for
+         * {@link #scheduleFlush} and {@link #flush}.
+         *
+         * @param logRecords the number of records in the log file
+         * @param needSnapshot whether a snapshot is needed, even with nothing pending: a batch
+         *                     taken before failed to be written, and only a snapshot covers it
+         * @return the batch, or null if nothing is pending
+         */
+        Batch takeBatch(int logRecords, boolean needSnapshot);
+    }
+
+    static final class Batch {
+        final byte[] records;
+        final int count;
+        // Whether the records replace the log instead of extending it.
+        final boolean snapshot;
+
+        private Batch(byte[] records, int count, boolean snapshot) {
+            this.records = records;
+            this.count = count;
+            this.snapshot = snapshot;
+        }
+
+        static Batch append(byte[] records, int count) {
+            return new Batch(records, count, false);
+        }
+
+        /**
+         * A snapshot must cover every change applied so far, the pending ones included: they
+         * are not written otherwise.
+         */
+        static Batch snapshot(byte[] records, int count) {
+            return new Batch(records, count, true);
+        }
+    }
+
+    private final AtomicFile mFile;
+    private final Owner mOwner;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    // Serializes the file writes of successive flushes. Taken before the owner's lock, never
+    // after.
+    private final Object mFileLock = new Object();
+
+    // Number of records in the log file. Counted by load, then guarded by mFileLock.
+    private int mLogRecords;
+    // Whether a batch was lost to a write error, so the next one must be a snapshot. Guarded
+    // by mFileLock.
+    private boolean mSnapshotNeeded;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    AppendLog(File file, Owner owner) {
+        mFile = new AtomicFile(file);
+        mOwner = owner;
+    }
+
+    /**
+     * Read the whole log. Must be called once, before any flush: the file lock isn't taken,
+     * so that the owner can load under its own lock.
+     *
+     * @return the number of records read
+     */
+    int load() {
+        CountingInputStream counter = null;
+        long whole = 0;
+        try {
+            counter = new CountingInputStream(new BufferedInputStream(mFile.openRead()));
+            DataInputStream in = new DataInputStream(counter);
+            while (true) {
+                try {
+                    mOwner.readRecord(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                mLogRecords++;
+                whole = counter.count;
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing written yet.
+            return 0;
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not read ", mFile.getBaseFile(), ", ", mLogRecords,
+                    " records read");
+        } finally {
+            closeQuietly(counter);
+        }
+        // A torn or unreadable tail would misalign every record appended after it.
+        truncate(whole);
+        return mLogRecords;
+    }
+
+    /**
+     * Flush after the given delay, unless a flush is already scheduled.
+     */
+    void scheduleFlush(long delayMs) {
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            mHandler.postDelayed(mFlushRunnable, delayMs);
+        }
+    }
+
+    /**
+     * Write the pending records now, on the DISK lane, instead of waiting for the scheduled
+     * flush.
+     */
+    void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mFlushScheduled.set(false);
+        TaskScheduler.getInstance().execute(TaskScheduler.Lane.DISK, TaskScheduler.PRIORITY_NORMAL,
+                new TaskScheduler.Task<Void>() {
+                    @Override
+                    protected Void doInBackground() throws IOException {
+                        writePending();
+                        return null;
+                    }
+                });
+    }
+
+    // The batch is taken and written under the file lock, so that two flushes running on
+    // different DISK threads can't write their batches out of order.
+    private void writePending() throws IOException {
+        synchronized (mFileLock) {
+            Batch batch = mOwner.takeBatch(mLogRecords, mSnapshotNeeded);
+            if (batch == null) {
+                return;
+            }
+            try {
+                if (batch.snapshot) {
+                    rewrite(batch);
+                } else {
+                    append(batch);
+                }
+            } catch (IOException e) {
+                // The owner has dropped the records of the batch: only a snapshot of its
+                // state still covers them.
+                mSnapshotNeeded = true;
+                scheduleFlush(RETRY_DELAY_MS);
+                throw e;
+            }
+            mSnapshotNeeded = false;
+        }
+    }
+
+    private void append(Batch batch) throws IOException {
+        File file = mFile.getBaseFile();
+        long length = file.length();
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(batch.records);
+            out.close();
+        } catch (IOException e) {
+            closeQuietly(out);
+            // Cut off what was written of the batch, so the next one starts on a record.
+            truncate(length);
+            throw e;
+        }
+        mLogRecords += batch.count;
+    }
+
+    private void rewrite(Batch batch) throws IOException {
+        FileOutputStream stream = mFile.startWrite();
+        try {
+            stream.write(batch.records);
+            mFile.finishWrite(stream);
+        } catch (IOException e) {
+            mFile.failWrite(stream);
+            throw e;
+        }
+        LogHelper.d(TAG, "Compacted ", mFile.getBaseFile(), " from ", mLogRecords, " to ",
+                batch.count, " records");
+        mLogRecords = batch.count;
+    }
+
+    private void truncate(long length) {
+        File file = mFile.getBaseFile();
+        if (file.length() <= length) {
+            return;
+        }
+        LogHelper.w(TAG, "Cutting ", file, " from ", file.length(), " to ", length, " bytes");
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not cut ", file);
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Only called once the data is written, or failed to be.
+            }
+        }
+    }
+
+    // Counts the bytes read through it, to find where the last whole record ends.
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.ronda.audiodemo.model;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes between two versions of a catalog: the tracks added, the tracks whose metadata
+ * changed, and the ids of the tracks removed.
+ */
+public final class CatalogDelta {
+
+    // The metadata a source provides; two versions of a track that agree on these are the same.
+    private static final String[] STRING_KEYS = {
+            MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE,
+            MediaMetadataCompat.METADATA_KEY_TITLE,
+            MediaMetadataCompat.METADATA_KEY_ARTIST,
+            MediaMetadataCompat.METADATA_KEY_ALBUM,
+            MediaMetadataCompat.METADATA_KEY_GENRE,
+            MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI};
+    private static final String[] LONG_KEYS = {
+            MediaMetadataCompat.METADATA_KEY_DURATION,
+            MediaMetadataCompat.METADATA_KEY_TRACK_NUMBER,
+            MediaMetadataCompat.METADATA_KEY_NUM_TRACKS};
+
+    // The metadata the search and similarity indexes are built from.
+    private static final String[] INDEXED_KEYS = {
+            MediaMetadataCompat.METADATA_KEY_TITLE,
+            MediaMetadataCompat.METADATA_KEY_ARTIST,
+            MediaMetadataCompat.METADATA_KEY_ALBUM,
+            MediaMetadataCompat.METADATA_KEY_GENRE};
+
+    /**
+     * Version of the catalog once the changes are applied.
+     */
+    public final String version;
+    public final List<MediaMetadataCompat> added;
+    public final List<MediaMetadataCompat> changed;
+    public final List<String> removed;
+
+    public CatalogDelta(String version, List<MediaMetadataCompat> added,
+                        List<MediaMetadataCompat> changed, List<String> removed) {
+        this.version = version;
+        this.added = added;
+        this.changed = changed;
+        this.removed = removed;
+    }
+
+    /**
+     * @return a delta without changes, for a catalog still at the given version
+     */
+    public static CatalogDelta unchanged(String version) {
+        return new CatalogDelta(version, Collections.<MediaMetadataCompat>emptyList(),
+                Collections.<MediaMetadataCompat>emptyList(), Collections.<String>emptyList());
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * Compare two full versions of a catalog, for sources that can only list their whole catalog.
+     *
+     * @param previous the tracks of the old version, by music id
+     * @param current  the tracks of the new version
+     */
+    public static CatalogDelta between(Map<String, MediaMetadataCompat> previous,
+                                       Collection<MediaMetadataCompat> current, String version) {
+        List<MediaMetadataCompat> added = new ArrayList<>();
+        List<MediaMetadataCompat> changed = new ArrayList<>();
+        Set<String> seen = new HashSet<>(current.size() * 2);
+        for (MediaMetadataCompat track : current) {
+            String musicId = track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+            if (!seen.add(musicId)) {
+                continue;
+            }
+            MediaMetadataCompat old = previous.get(musicId);
+            if (old == null) {
+                added.add(track);
+            } else if (!isSameTrack(old, track)) {
+                changed.add(track);
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        for (String musicId : previous.keySet()) {
+            if (!seen.contains(musicId)) {
+                removed.add(musicId);
+            }
+        }
+        return new CatalogDelta(version, added, changed, removed);
+    }
+
+    /**
+     * @return whether the two versions of a track have the same source metadata. Art fetched
+     * by the app (bitmaps) is not compared.
+     */
+    static boolean isSameTrack(MediaMetadataCompat a, MediaMetadataCompat b) {
+        for (String key : STRING_KEYS) {
+            if (!TextUtils.equals(a.getString(key), b.getString(key))) {
+                return false;
+            }
+        }
+        for (String key : LONG_KEYS) {
+            if (a.getLong(key) != b.getLong(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the two versions of a track differ in what the search and similarity
+     * indexes are built from
+     */
+    static boolean isIndexedChange(MediaMetadataCompat a, MediaMetadataCompat b) {
+        for (String key : INDEXED_KEYS) {
+            if (!TextUtils.equals(a.getString(key), b.getString(key))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
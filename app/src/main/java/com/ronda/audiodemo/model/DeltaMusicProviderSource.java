@@ -0,0 +1,23 @@
+package com.ronda.audiodemo.model;
+
+/**
+ * A source that can tell what changed in its catalog since a given version, so that the catalog
+ * can be kept up to date without being reloaded.
+ */
+public interface DeltaMusicProviderSource extends MusicProviderSource {
+
+    /**
+     * @return the version of the catalog the last complete iteration returned, or null if
+     * there was none
+     */
+    String getVersion();
+
+    /**
+     * Return the changes from the given version to the current catalog. The delta's version is
+     * the one to pass on the next call.
+     *
+     * @return the changes, or null if the source can't tell them from that version: the
+     * catalog must then be iterated again
+     */
+    CatalogDelta getDelta(String sinceVersion);
+}
@@ -0,0 +1,190 @@
+package com.ronda.audiodemo.model;
+
+import com.ronda.audiodemo.TaskScheduler;
+import com.ronda.audiodemo.utils.LogHelper;
+import com.ronda.audiodemo.utils.LongHashSet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Durable set of favorite tracks.
+ * <p/>
+ * Changes apply to memory at once and are appended to an {@link AppendLog} in batches, written
+ * on the DISK lane a moment after the first unsaved change, so a burst of thumbs up costs one
+ * write. The log is a sequence of (add or remove, music id) records; once it holds many more
+ * records than there are favorites, it is rewritten with one add per favorite.
+ * <p/>
+ * Membership is kept as a set of 64-bit hashes of the music ids, so a lookup doesn't box or
+ * compare strings; the ids themselves are kept in a list, in the order they were favorited,
+ * to serve the favorites browse node.
+ */
+public class FavoritesStore {
+    private static final String TAG = LogHelper.makeLogTag(FavoritesStore.class);
+
+    private static final byte OP_REMOVE = 0;
+    private static final byte OP_ADD = 1;
+
+    private static final long WRITE_BEHIND_DELAY_MS = 2000;
+    // The log is compacted once it holds this many records more than twice the favorites.
+    private static final int COMPACT_SLACK = 64;
+
+    private final AppendLog mLog;
+
+    // Guarded by this:
+    private boolean mLoaded;
+    private final LongHashSet mKeys = new LongHashSet();
+    private final List<String> mMusicIds = new ArrayList<>();
+    private ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    private int mPendingRecords;
+
+    /**
+     * @param file the log file, or null to keep favorites in memory only
+     */
+    public FavoritesStore(File file) {
+        mLog = file == null ? null : new AppendLog(file, new AppendLog.Owner() {
+            @Override
+            public void readRecord(DataInputStream in) throws IOException {
+                FavoritesStore.this.readRecord(in);
+            }
+
+            @Override
+            public AppendLog.Batch takeBatch(int logRecords, boolean needSnapshot) {
+                return FavoritesStore.this.takeBatch(logRecords, needSnapshot);
+            }
+        });
+    }
+
+    /**
+     * Load the log on the DISK lane, so the set is ready before the first lookup.
+     */
+    public void loadAsync() {
+        TaskScheduler.getInstance().execute(TaskScheduler.Lane.DISK, TaskScheduler.PRIORITY_HIGH,
+                new TaskScheduler.Task<Void>() {
+                    @Override
+                    protected Void doInBackground() {
+                        load();
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Read the log, if not done yet. Lookups call this, so it only needs to be called directly
+     * to load ahead of time.
+     */
+    public synchronized void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (mLog == null) {
+            return;
+        }
+        // No flush can run yet: there is nothing pending before the set is loaded.
+        int records = mLog.load();
+        LogHelper.d(TAG, "Loaded ", mMusicIds.size(), " favorites from ", records, " records");
+    }
+
+    // Must hold the lock.
+    private void readRecord(DataInputStream in) throws IOException {
+        byte op = in.readByte();
+        String musicId = in.readUTF();
+        apply(musicId, op == OP_ADD);
+    }
+
+    public synchronized boolean isFavorite(String musicId) {
+        load();
+        return mKeys.contains(TrackKey.of(musicId));
+    }
+
+    /**
+     * @return true if the favorite state of the track changed
+     */
+    public synchronized boolean setFavorite(String musicId, boolean favorite) {
+        load();
+        if (!apply(musicId, favorite)) {
+            return false;
+        }
+        if (mLog != null) {
+            writeRecord(mPending, favorite ? OP_ADD : OP_REMOVE, musicId);
+            mPendingRecords++;
+            mLog.scheduleFlush(WRITE_BEHIND_DELAY_MS);
+        }
+        return true;
+    }
+
+    /**
+     * @return the favorite music ids, most recently favorited first
+     */
+    public synchronized List<String> getFavorites() {
+        load();
+        List<String> favorites = new ArrayList<>(mMusicIds.size());
+        for (int i = mMusicIds.size() - 1; i >= 0; i--) {
+            favorites.add(mMusicIds.get(i));
+        }
+        return favorites;
+    }
+
+    /**
+     * Write the unsaved changes now, on the DISK lane, instead of waiting for the write-behind
+     * delay.
+     */
+    public void flush() {
+        if (mLog != null) {
+            mLog.flush();
+        }
+    }
+
+    // The snapshot and the pending changes are taken together, so the snapshot covers exactly
+    // the changes it drops.
+    private synchronized AppendLog.Batch takeBatch(int logRecords, boolean needSnapshot) {
+        if (mPendingRecords == 0 && !needSnapshot) {
+            return null;
+        }
+        AppendLog.Batch batch;
+        if (needSnapshot || logRecords + mPendingRecords > 2 * mMusicIds.size() + COMPACT_SLACK) {
+            ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+            for (String musicId : mMusicIds) {
+                writeRecord(snapshot, OP_ADD, musicId);
+            }
+            batch = AppendLog.Batch.snapshot(snapshot.toByteArray(), mMusicIds.size());
+        } else {
+            batch = AppendLog.Batch.append(mPending.toByteArray(), mPendingRecords);
+        }
+        mPending = new ByteArrayOutputStream();
+        mPendingRecords = 0;
+        return batch;
+    }
+
+    // Must hold the lock. Returns true if the set changed.
+    private boolean apply(String musicId, boolean favorite) {
+        long key = TrackKey.of(musicId);
+        if (favorite) {
+            if (mKeys.add(key)) {
+                mMusicIds.add(musicId);
+                return true;
+            }
+        } else if (mKeys.remove(key)) {
+            mMusicIds.remove(musicId);
+            return true;
+        }
+        return false;
+    }
+
+    private static void writeRecord(ByteArrayOutputStream bytes, byte op, String musicId) {
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(op);
+            out.writeUTF(musicId);
+        } catch (IOException e) {
+            // Writing to memory.
+            throw new IllegalStateException(e);
+        }
+    }
+}
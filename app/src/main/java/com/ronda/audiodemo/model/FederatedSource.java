@@ -0,0 +1,461 @@
+package com.ronda.audiodemo.model;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import com.ronda.audiodemo.utils.LogHelper;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Pattern;
+
+/**
+ * A catalog made of several sources, for example remote catalogs and files on the device.
+ * <p/>
+ * The sources are read at the same time, each on its own thread, and their tracks are handed
+ * to the iterator as they arrive: a catalog takes as long as its slowest source, not the sum of
+ * them all. A source that fails is left out; only when all of them fail does the iterator fail.
+ * <p/>
+ * A track found in several sources is kept once, from whichever source delivered it first. Tracks
+ * are the same when their normalized artist and title match and their durations are within
+ * {@link #DURATION_TOLERANCE_MS}; the check is a hash lookup per track. The duplicates left out
+ * are remembered, so that when a delta removes the kept track, a duplicate takes its place.
+ * <p/>
+ * Deltas are available when every source provides them. They are asked for at the same time
+ * too, and go through the same deduplication.
+ */
+public class FederatedSource implements DeltaMusicProviderSource {
+
+    private static final String TAG = LogHelper.makeLogTag(FederatedSource.class);
+
+    // Sources encode durations differently (whole seconds in the remote catalog, milliseconds
+    // from file headers), so the same recording rarely has exactly the same duration.
+    private static final long DURATION_TOLERANCE_MS = 2000;
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern NOT_ALPHANUMERIC = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private final List<MusicProviderSource> mSources;
+
+    // The tracks handed out by the last complete iteration and the deltas since, with the
+    // version of each source they reflect. Null until an iteration completes.
+    private Dedup mDedup;
+    private String[] mSourceVersions;
+    // Counts the catalog versions handed out, the last one being the current version.
+    private int mVersionCount;
+
+    public FederatedSource(MusicProviderSource... sources) {
+        this(Arrays.asList(sources));
+    }
+
+    public FederatedSource(List<MusicProviderSource> sources) {
+        mSources = new ArrayList<>(sources);
+    }
+
+    @Override
+    public Iterator<MediaMetadataCompat> iterator() {
+        return new MergingIterator();
+    }
+
+    @Override
+    public synchronized String getVersion() {
+        return mDedup == null ? null : String.valueOf(mVersionCount);
+    }
+
+    @Override
+    public synchronized CatalogDelta getDelta(String sinceVersion) {
+        if (mDedup == null || !String.valueOf(mVersionCount).equals(sinceVersion)) {
+            return null;
+        }
+        for (int i = 0; i < mSources.size(); i++) {
+            if (!(mSources.get(i) instanceof DeltaMusicProviderSource) || mSourceVersions[i] == null) {
+                return null;
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(mSources.size());
+        List<Future<CatalogDelta>> futures = new ArrayList<>(mSources.size());
+        for (int i = 0; i < mSources.size(); i++) {
+            final DeltaMusicProviderSource source = (DeltaMusicProviderSource) mSources.get(i);
+            final String version = mSourceVersions[i];
+            futures.add(executor.submit(new Callable<CatalogDelta>() {
+                @Override
+                public CatalogDelta call() {
+                    return source.getDelta(version);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        CatalogDelta[] deltas = new CatalogDelta[mSources.size()];
+        int failed = 0;
+        for (int i = 0; i < deltas.length; i++) {
+            try {
+                deltas[i] = futures.get(i).get();
+                if (deltas[i] == null) {
+                    // The other sources have moved on already, but a full iteration reads them
+                    // all again anyway.
+                    return null;
+                }
+            } catch (ExecutionException e) {
+                // Left at its version: its changes are asked for again next time.
+                LogHelper.e(TAG, e.getCause(), "Could not retrieve music changes from ", mSources.get(i));
+                failed++;
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while retrieving music changes", e);
+            }
+        }
+        if (failed == deltas.length) {
+            throw new RuntimeException("Could not retrieve music changes from any source");
+        }
+
+        Changes changes = new Changes();
+        for (int i = 0; i < deltas.length; i++) {
+            CatalogDelta delta = deltas[i];
+            if (delta == null) {
+                continue;
+            }
+            for (String musicId : delta.removed) {
+                mDedup.remove(musicId, changes);
+            }
+            for (MediaMetadataCompat track : delta.changed) {
+                mDedup.update(track, changes);
+            }
+            for (MediaMetadataCompat track : delta.added) {
+                mDedup.add(track, changes);
+            }
+            mSourceVersions[i] = delta.version;
+        }
+        if (!changes.isEmpty()) {
+            mVersionCount++;
+        }
+        LogHelper.i(TAG, "Merged changes from ", mSources.size(), " sources: ", changes.added.size(),
+                " added, ", changes.changed.size(), " changed, ", changes.removed.size(),
+                " removed, ", failed, " sources failed");
+        return new CatalogDelta(String.valueOf(mVersionCount),
+                new ArrayList<>(changes.added.values()), new ArrayList<>(changes.changed.values()),
+                new ArrayList<>(changes.removed));
+    }
+
+    private synchronized void onIterationComplete(Dedup dedup, String[] sourceVersions) {
+        mDedup = dedup;
+        mSourceVersions = sourceVersions;
+        mVersionCount++;
+    }
+
+    // Marks the end of a source in the queue.
+    private static final class SourceDone {
+        final boolean failed;
+
+        SourceDone(boolean failed) {
+            this.failed = failed;
+        }
+    }
+
+    private final class MergingIterator implements Iterator<MediaMetadataCompat> {
+        private final LinkedBlockingQueue<Object> mArrivals = new LinkedBlockingQueue<>();
+        private final ExecutorService mExecutor;
+        private int mRunning;
+        private int mFailed;
+
+        private final Dedup mHandedOut = new Dedup();
+        // Version of each source once read, written by its thread before its SourceDone.
+        private final String[] mVersions = new String[mSources.size()];
+
+        private MediaMetadataCompat mNext;
+
+        MergingIterator() {
+            mRunning = mSources.size();
+            mExecutor = Executors.newFixedThreadPool(Math.max(1, mSources.size()));
+            for (int i = 0; i < mSources.size(); i++) {
+                final MusicProviderSource source = mSources.get(i);
+                final int index = i;
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean failed = true;
+                        try {
+                            Iterator<MediaMetadataCompat> tracks = source.iterator();
+                            while (tracks.hasNext()) {
+                                mArrivals.add(tracks.next());
+                            }
+                            if (source instanceof DeltaMusicProviderSource) {
+                                mVersions[index] = ((DeltaMusicProviderSource) source).getVersion();
+                            }
+                            failed = false;
+                        } catch (RuntimeException e) {
+                            LogHelper.e(TAG, e, "Could not retrieve music from ", source);
+                        } finally {
+                            mArrivals.add(new SourceDone(failed));
+                        }
+                    }
+                });
+            }
+            mExecutor.shutdown();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (mNext == null && mRunning > 0) {
+                Object arrival;
+                try {
+                    arrival = mArrivals.take();
+                } catch (InterruptedException e) {
+                    mExecutor.shutdownNow();
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while retrieving music", e);
+                }
+                if (arrival instanceof SourceDone) {
+                    mRunning--;
+                    if (((SourceDone) arrival).failed) {
+                        mFailed++;
+                    }
+                    if (mRunning == 0) {
+                        finish();
+                    }
+                } else if (mHandedOut.add((MediaMetadataCompat) arrival)) {
+                    mNext = (MediaMetadataCompat) arrival;
+                }
+            }
+            return mNext != null;
+        }
+
+        @Override
+        public MediaMetadataCompat next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            MediaMetadataCompat next = mNext;
+            mNext = null;
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void finish() {
+            LogHelper.i(TAG, "Merged ", mHandedOut.size(), " tracks from ", mSources.size(),
+                    " sources, ", mHandedOut.mDuplicates, " duplicates, ", mFailed, " sources failed");
+            if (mFailed > 0 && mFailed == mSources.size()) {
+                throw new RuntimeException("Could not retrieve music from any source");
+            }
+            onIterationComplete(mHandedOut, mVersions);
+        }
+    }
+
+    /**
+     * The tracks of all sources, grouped by content: tracks with the same content key and a
+     * duration within the tolerance of the group's first track. The first track of each group
+     * is the one handed out; the others are kept aside, so that one of them can take its place
+     * when it goes away.
+     */
+    private static final class Dedup {
+        // Groups by content key: usually one, more when recordings differ in duration.
+        private final Map<String, List<Group>> mGroupsByKey = new HashMap<>();
+        // The group of every track, handed out or not, by music id.
+        private final Map<String, Group> mGroupsById = new HashMap<>();
+        private int mHandedOut;
+        private int mDuplicates;
+
+        int size() {
+            return mHandedOut;
+        }
+
+        /**
+         * @return true if the track is new, false if it duplicates one already handed out
+         */
+        boolean add(MediaMetadataCompat track) {
+            String mediaId = track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+            if (mediaId == null || mGroupsById.containsKey(mediaId)) {
+                mDuplicates++;
+                return false;
+            }
+            String key = contentKey(track);
+            Group group = findGroup(key, track.getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
+            if (group != null) {
+                group.tracks.add(track);
+                mGroupsById.put(mediaId, group);
+                mDuplicates++;
+                return false;
+            }
+            group = new Group(key, track);
+            List<Group> groups = mGroupsByKey.get(key);
+            if (groups == null) {
+                groups = new ArrayList<>(1);
+                mGroupsByKey.put(key, groups);
+            }
+            groups.add(group);
+            mGroupsById.put(mediaId, group);
+            mHandedOut++;
+            return true;
+        }
+
+        void add(MediaMetadataCompat track, Changes changes) {
+            if (add(track)) {
+                changes.handedOut(track);
+            }
+        }
+
+        /**
+         * Update a track. A track handed out stays so as long as its artist and title are the
+         * same and its duration within the tolerance of the previous one; otherwise it goes
+         * through {@link #remove} and {@link #add} again, duplicates included.
+         */
+        void update(MediaMetadataCompat track, Changes changes) {
+            String mediaId = track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+            Group group = mGroupsById.get(mediaId);
+            if (group != null && group.getHandedOutId().equals(mediaId)
+                    && group.key.equals(contentKey(track))
+                    && Math.abs(group.getDuration()
+                    - track.getLong(MediaMetadataCompat.METADATA_KEY_DURATION)) <= DURATION_TOLERANCE_MS) {
+                group.tracks.set(0, track);
+                changes.changed(track);
+                return;
+            }
+            remove(mediaId, changes);
+            add(track, changes);
+        }
+
+        /**
+         * Remove a track. A track handed out is replaced by one of its duplicates, if any.
+         */
+        void remove(String mediaId, Changes changes) {
+            Group group = mGroupsById.remove(mediaId);
+            if (group == null) {
+                return;
+            }
+            if (!group.getHandedOutId().equals(mediaId)) {
+                group.tracks.remove(group.indexOf(mediaId));
+                mDuplicates--;
+                return;
+            }
+            mHandedOut--;
+            changes.removed(mediaId);
+            List<Group> groups = mGroupsByKey.get(group.key);
+            groups.remove(group);
+            if (groups.isEmpty()) {
+                mGroupsByKey.remove(group.key);
+            }
+            // The duplicates were matched against the removed track's duration: group them
+            // again, around the first of them.
+            for (int i = 1; i < group.tracks.size(); i++) {
+                MediaMetadataCompat duplicate = group.tracks.get(i);
+                mGroupsById.remove(duplicate.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID));
+                mDuplicates--;
+                add(duplicate, changes);
+            }
+        }
+
+        private Group findGroup(String key, long duration) {
+            List<Group> groups = mGroupsByKey.get(key);
+            if (groups != null) {
+                for (Group group : groups) {
+                    if (Math.abs(group.getDuration() - duration) <= DURATION_TOLERANCE_MS) {
+                        return group;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private static String contentKey(MediaMetadataCompat track) {
+            return normalize(track.getString(MediaMetadataCompat.METADATA_KEY_ARTIST))
+                    + '\u0000' + normalize(track.getString(MediaMetadataCompat.METADATA_KEY_TITLE));
+        }
+    }
+
+    private static final class Group {
+        final String key;
+        // The track handed out, then its duplicates in arrival order.
+        final List<MediaMetadataCompat> tracks = new ArrayList<>(1);
+
+        Group(String key, MediaMetadataCompat track) {
+            this.key = key;
+            tracks.add(track);
+        }
+
+        String getHandedOutId() {
+            return tracks.get(0).getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+        }
+
+        long getDuration() {
+            return tracks.get(0).getLong(MediaMetadataCompat.METADATA_KEY_DURATION);
+        }
+
+        int indexOf(String mediaId) {
+            for (int i = 0; i < tracks.size(); i++) {
+                if (mediaId.equals(tracks.get(i).getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The net changes to the tracks handed out, over one delta: a track removed and handed out
+     * again is changed, a track handed out and removed again never was.
+     */
+    private static final class Changes {
+        final Map<String, MediaMetadataCompat> added = new LinkedHashMap<>();
+        final Map<String, MediaMetadataCompat> changed = new LinkedHashMap<>();
+        final Set<String> removed = new LinkedHashSet<>();
+
+        boolean isEmpty() {
+            return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+        }
+
+        void handedOut(MediaMetadataCompat track) {
+            String mediaId = track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+            if (removed.remove(mediaId)) {
+                changed.put(mediaId, track);
+            } else {
+                added.put(mediaId, track);
+            }
+        }
+
+        void changed(MediaMetadataCompat track) {
+            String mediaId = track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+            if (added.containsKey(mediaId)) {
+                added.put(mediaId, track);
+            } else {
+                changed.put(mediaId, track);
+            }
+        }
+
+        void removed(String mediaId) {
+            if (added.remove(mediaId) == null) {
+                changed.remove(mediaId);
+                removed.add(mediaId);
+            }
+        }
+    }
+
+    // Case, accents, punctuation and spacing differ between sources for the same track.
+    private static String normalize(String value) {
+        if (value == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(value.toLowerCase(Locale.US), Normalizer.Form.NFD);
+        return NOT_ALPHANUMERIC.matcher(MARKS.matcher(decomposed).replaceAll("")).replaceAll("");
+    }
+}
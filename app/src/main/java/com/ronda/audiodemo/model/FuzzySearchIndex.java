@@ -0,0 +1,599 @@
+package com.ronda.audiodemo.model;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Word index over the title, artist, album and genre of every catalog track, tolerant of the
+ * misspellings voice recognition produces ("beetles" for "beatles").
+ * <p/>
+ * Each query word is expanded to the catalog words it may stand for: the same word, words it is
+ * a prefix of, words that sound the same (same Soundex key) and words within a small edit
+ * distance, and words containing it. Edit distance and substring candidates come from a
+ * trigram index and are only verified with a bounded Levenshtein or a substring test, so the
+ * cost depends on the number of similar words, not on the size of the catalog. Tracks are then
+ * scored in a single pass over the postings of the expanded words, across all fields at once,
+ * and only the best are kept, in a bounded heap.
+ * <p/>
+ * Tracks are addressed by ordinal, the index of their id in the array the index was built from.
+ * Immutable once built, so it can be searched from any thread. The per-track scoring arrays of
+ * a search are kept for the next one, so a keystroke doesn't allocate arrays the size of the
+ * catalog, and scoring stops at the search's deadline like word expansion does.
+ */
+final class FuzzySearchIndex {
+
+    static final int FIELD_TITLE = 0;
+    static final int FIELD_ARTIST = 1;
+    static final int FIELD_ALBUM = 2;
+    static final int FIELD_GENRE = 3;
+    static final int FIELD_COUNT = 4;
+
+    private static final String[] FIELD_KEYS = {
+            MediaMetadataCompat.METADATA_KEY_TITLE,
+            MediaMetadataCompat.METADATA_KEY_ARTIST,
+            MediaMetadataCompat.METADATA_KEY_ALBUM,
+            MediaMetadataCompat.METADATA_KEY_GENRE,
+    };
+
+    // How much a catalog word is worth, by how it matched the query word.
+    private static final float EXACT_SCORE = 1f;
+    private static final float PREFIX_SCORE = 0.8f;
+    private static final float PHONETIC_SCORE = 0.7f;
+    private static final float EDIT_SCORE = 0.6f;
+    private static final float SUBSTRING_SCORE = 0.5f;
+    // Each extra word in a field lowers the score of a match in it, so "Help" ranks an exact
+    // title "Help" above "Help Me Rhonda".
+    private static final float LENGTH_PENALTY = 0.1f;
+
+    // Catalog words a query word may expand to by prefix, and by edit distance.
+    private static final int MAX_PREFIX_TERMS = 64;
+    private static final int MAX_EDIT_TERMS = 64;
+    private static final int MAX_SUBSTRING_TERMS = 64;
+
+    private static final Comparator<Map.Entry<Integer, Float>> BEST_MATCH_FIRST =
+            new Comparator<Map.Entry<Integer, Float>>() {
+                @Override
+                public int compare(Map.Entry<Integer, Float> a, Map.Entry<Integer, Float> b) {
+                    return Float.compare(b.getValue(), a.getValue());
+                }
+            };
+
+    // Sorted distinct words of the catalog; a word's term id is its index in this array.
+    private final String[] mTerms;
+    // Postings of each term: (ordinal << 2) | field, in ordinal order.
+    private final int[][] mPostings;
+    // Number of distinct tracks containing each term, for weighting rare words higher.
+    private final int[] mDocumentCounts;
+    // Number of words in each field of each track, at ordinal * FIELD_COUNT + field, capped.
+    private final byte[] mFieldLengths;
+    private final Map<String, int[]> mTermsByPhoneticKey;
+    private final Map<String, int[]> mTermsByTrigram;
+    private final int mTrackCount;
+    private final String[] mTrackIds;
+    // Scratch arrays of the last search, taken by the next one. Concurrent searches each get
+    // their own: they are rare, and not worth keeping arrays the size of the catalog per thread.
+    private final AtomicReference<Scratch> mScratch = new AtomicReference<>();
+
+    private FuzzySearchIndex(String[] terms, int[][] postings, int[] documentCounts,
+                             byte[] fieldLengths, Map<String, int[]> termsByPhoneticKey,
+                             Map<String, int[]> termsByTrigram, String[] trackIds) {
+        mTerms = terms;
+        mPostings = postings;
+        mDocumentCounts = documentCounts;
+        mFieldLengths = fieldLengths;
+        mTermsByPhoneticKey = termsByPhoneticKey;
+        mTermsByTrigram = termsByTrigram;
+        mTrackCount = trackIds.length;
+        mTrackIds = trackIds;
+    }
+
+    /**
+     * @param trackIds the catalog track ids, by ordinal
+     * @param tracks   the metadata of each track, by ordinal
+     */
+    static FuzzySearchIndex build(String[] trackIds, MediaMetadataCompat[] tracks) {
+        // Word -> growable postings, sorted by word so term ids follow the sort order.
+        TreeMap<String, IntList> postingsByWord = new TreeMap<>();
+        byte[] fieldLengths = new byte[tracks.length * FIELD_COUNT];
+        for (int ordinal = 0; ordinal < tracks.length; ordinal++) {
+            for (int field = 0; field < FIELD_COUNT; field++) {
+                List<String> words = tokenize(tracks[ordinal].getString(FIELD_KEYS[field]));
+                fieldLengths[ordinal * FIELD_COUNT + field] = (byte) Math.min(words.size(), 127);
+                for (String word : words) {
+                    IntList postings = postingsByWord.get(word);
+                    if (postings == null) {
+                        postings = new IntList();
+                        postingsByWord.put(word, postings);
+                    }
+                    int posting = (ordinal << 2) | field;
+                    if (postings.size == 0 || postings.last() != posting) {
+                        postings.add(posting);
+                    }
+                }
+            }
+        }
+
+        int termCount = postingsByWord.size();
+        String[] terms = new String[termCount];
+        int[][] postings = new int[termCount][];
+        int[] documentCounts = new int[termCount];
+        Map<String, IntList> phonetic = new HashMap<>();
+        Map<String, IntList> trigrams = new HashMap<>();
+        int termId = 0;
+        for (Map.Entry<String, IntList> entry : postingsByWord.entrySet()) {
+            String term = entry.getKey();
+            terms[termId] = term;
+            postings[termId] = entry.getValue().toArray();
+            int previous = -1;
+            for (int posting : postings[termId]) {
+                if (posting >> 2 != previous) {
+                    previous = posting >> 2;
+                    documentCounts[termId]++;
+                }
+            }
+            addTo(phonetic, soundex(term), termId);
+            for (String trigram : trigrams(term)) {
+                IntList ids = trigrams.get(trigram);
+                if (ids == null || ids.last() != termId) {
+                    addTo(trigrams, trigram, termId);
+                }
+            }
+            termId++;
+        }
+        return new FuzzySearchIndex(terms, postings, documentCounts, fieldLengths,
+                toArrays(phonetic), toArrays(trigrams), trackIds);
+    }
+
+    /**
+     * @return the id of the track at the given ordinal, which may have left the catalog since
+     * the index was built
+     */
+    String getTrackId(int ordinal) {
+        return mTrackIds[ordinal];
+    }
+
+    /**
+     * Score the tracks matching the query.
+     *
+     * @param fieldWeights  weight of a match in each FIELD_*
+     * @param maxResults    most results returned; only this many are ever kept ordered
+     * @param budgetNanos   time after which no more words are expanded and no more postings
+     *                      scored; the tracks scored so far are still ranked
+     * @return the ordinals of the matching tracks, best first
+     */
+    int[] search(String query, float[] fieldWeights, int maxResults, long budgetNanos) {
+        long deadline = System.nanoTime() + budgetNanos;
+        List<String> words = tokenize(query);
+        Scratch scratch = mScratch.getAndSet(null);
+        if (scratch == null) {
+            scratch = new Scratch(mTrackCount, mTerms.length);
+        }
+        try {
+            score(words, fieldWeights, deadline, scratch);
+            return rank(scratch.matched, scratch.scores, maxResults);
+        } finally {
+            scratch.clear();
+            mScratch.set(scratch);
+        }
+    }
+
+    // The best matches of each word are scored first, so that running out of time drops the
+    // weakest ones.
+    private void score(List<String> words, float[] fieldWeights, long deadline, Scratch scratch) {
+        float[] scores = scratch.scores;
+        float[] wordScores = scratch.wordScores;
+        int[] wordStamps = scratch.wordStamps;
+        int scored = 0;
+        for (int w = 0; w < words.size(); w++) {
+            List<Map.Entry<Integer, Float>> expansion = new ArrayList<>(
+                    expand(words.get(w), scratch.trigramCounts, deadline).entrySet());
+            Collections.sort(expansion, BEST_MATCH_FIRST);
+            for (Map.Entry<Integer, Float> entry : expansion) {
+                int termId = entry.getKey();
+                float termScore = entry.getValue() * idf(termId);
+                int[] postings = mPostings[termId];
+                for (int i = 0; i < postings.length; i++) {
+                    if ((++scored & 1023) == 0 && System.nanoTime() > deadline) {
+                        return;
+                    }
+                    int ordinal = postings[i] >> 2;
+                    int field = postings[i] & 3;
+                    float score = termScore * fieldWeights[field] / (1 + LENGTH_PENALTY
+                            * (mFieldLengths[ordinal * FIELD_COUNT + field] - 1));
+                    if (wordStamps[ordinal] != w + 1) {
+                        if (wordStamps[ordinal] == 0) {
+                            scratch.matched.add(ordinal);
+                        }
+                        wordStamps[ordinal] = w + 1;
+                        wordScores[ordinal] = score;
+                        scores[ordinal] += score;
+                    } else if (score > wordScores[ordinal]) {
+                        scores[ordinal] += score - wordScores[ordinal];
+                        wordScores[ordinal] = score;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Select the best maxResults of the matched tracks with a bounded min-heap, in O(n log k),
+     * without sorting all of them: a one letter query can match most of the catalog.
+     */
+    private static int[] rank(IntList matched, float[] scores, int maxResults) {
+        int[] heap = new int[Math.max(0, Math.min(maxResults, matched.size))];
+        int size = 0;
+        for (int i = 0; i < matched.size; i++) {
+            int ordinal = matched.values[i];
+            if (scores[ordinal] <= 0) {
+                continue;
+            }
+            if (size < heap.length) {
+                heap[size] = ordinal;
+                siftUp(heap, size++, scores);
+            } else if (size > 0 && isBetter(ordinal, heap[0], scores)) {
+                heap[0] = ordinal;
+                siftDown(heap, 0, size, scores);
+            }
+        }
+        // Pop the worst first, filling the result from its end.
+        int[] result = new int[size];
+        for (int i = size - 1; i >= 0; i--) {
+            result[i] = heap[0];
+            heap[0] = heap[i];
+            siftDown(heap, 0, i, scores);
+        }
+        return result;
+    }
+
+    // Higher score first, then lower ordinal, so equal scores rank the same way every time.
+    private static boolean isBetter(int a, int b, float[] scores) {
+        return scores[a] > scores[b] || (scores[a] == scores[b] && a < b);
+    }
+
+    private static void siftUp(int[] heap, int i, float[] scores) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!isBetter(heap[parent], heap[i], scores)) {
+                break;
+            }
+            swap(heap, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, int i, int size, float[] scores) {
+        while (true) {
+            int worst = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && isBetter(heap[worst], heap[left], scores)) {
+                worst = left;
+            }
+            if (right < size && isBetter(heap[worst], heap[right], scores)) {
+                worst = right;
+            }
+            if (worst == i) {
+                return;
+            }
+            swap(heap, i, worst);
+            i = worst;
+        }
+    }
+
+    private static void swap(int[] values, int i, int j) {
+        int value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    // Catalog words the query word may stand for, with how well each one matches.
+    private Map<Integer, Float> expand(String word, int[] trigramCounts, long deadline) {
+        Map<Integer, Float> expansion = new HashMap<>();
+        int exact = Arrays.binarySearch(mTerms, word);
+        if (exact >= 0) {
+            expansion.put(exact, EXACT_SCORE);
+        }
+
+        // Prefix matches are contiguous in the sorted terms.
+        if (word.length() >= 2) {
+            int from = exact >= 0 ? exact + 1 : -exact - 1;
+            for (int i = from; i < mTerms.length && i < from + MAX_PREFIX_TERMS
+                    && mTerms[i].startsWith(word); i++) {
+                putBest(expansion, i, PREFIX_SCORE);
+            }
+        }
+
+        if (word.length() < 3 || System.nanoTime() > deadline) {
+            return expansion;
+        }
+        int[] sameSound = mTermsByPhoneticKey.get(soundex(word));
+        if (sameSound != null) {
+            for (int termId : sameSound) {
+                putBest(expansion, termId, PHONETIC_SCORE);
+            }
+        }
+
+        // Words containing the query word contain all of its inner trigrams: walk the words of
+        // its rarest trigram and test them.
+        int[] rarest = null;
+        for (int i = 0; i + 3 <= word.length(); i++) {
+            int[] termIds = mTermsByTrigram.get(word.substring(i, i + 3));
+            if (termIds == null) {
+                rarest = null;
+                break;
+            }
+            if (rarest == null || termIds.length < rarest.length) {
+                rarest = termIds;
+            }
+        }
+        if (rarest != null) {
+            int found = 0;
+            for (int i = 0; i < rarest.length && found < MAX_SUBSTRING_TERMS; i++) {
+                if ((i & 63) == 0 && System.nanoTime() > deadline) {
+                    break;
+                }
+                if (!expansion.containsKey(rarest[i]) && mTerms[rarest[i]].contains(word)) {
+                    expansion.put(rarest[i], SUBSTRING_SCORE);
+                    found++;
+                }
+            }
+        }
+
+        // Edit distance candidates must share enough trigrams with the word: each edit
+        // destroys at most three of them.
+        int maxEdits = word.length() <= 5 ? 1 : 2;
+        List<String> wordTrigrams = trigrams(word);
+        int minShared = wordTrigrams.size() - 3 * maxEdits;
+        if (minShared < 1) {
+            minShared = 1;
+        }
+        IntList touched = new IntList();
+        for (String trigram : wordTrigrams) {
+            int[] termIds = mTermsByTrigram.get(trigram);
+            if (termIds == null) {
+                continue;
+            }
+            for (int termId : termIds) {
+                if (trigramCounts[termId]++ == 0) {
+                    touched.add(termId);
+                }
+            }
+        }
+        int found = 0;
+        boolean inBudget = true;
+        for (int i = 0; i < touched.size; i++) {
+            int termId = touched.values[i];
+            if ((i & 63) == 0 && System.nanoTime() > deadline) {
+                inBudget = false;
+            }
+            if (inBudget && found < MAX_EDIT_TERMS && trigramCounts[termId] >= minShared
+                    && !expansion.containsKey(termId)) {
+                int distance = boundedEditDistance(word, mTerms[termId], maxEdits);
+                if (distance <= maxEdits) {
+                    putBest(expansion, termId, EDIT_SCORE / distance);
+                    found++;
+                }
+            }
+            // Clear as we go, the counts are reused for the next word.
+            trigramCounts[termId] = 0;
+        }
+        return expansion;
+    }
+
+    private float idf(int termId) {
+        return (float) Math.log(1 + (double) mTrackCount / mDocumentCounts[termId]);
+    }
+
+    private static void putBest(Map<Integer, Float> expansion, int termId, float score) {
+        Float previous = expansion.get(termId);
+        if (previous == null || previous < score) {
+            expansion.put(termId, score);
+        }
+    }
+
+    /**
+     * Levenshtein distance, computed only in the band |i - j| <= max.
+     *
+     * @return the distance, or max + 1 if it is larger than max
+     */
+    static int boundedEditDistance(String a, String b, int max) {
+        int n = a.length();
+        int m = b.length();
+        if (Math.abs(n - m) > max) {
+            return max + 1;
+        }
+        int[] previous = new int[m + 1];
+        int[] current = new int[m + 1];
+        for (int j = 0; j <= m; j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= n; i++) {
+            int from = Math.max(1, i - max);
+            int to = Math.min(m, i + max);
+            current[0] = i;
+            if (from > 1) {
+                current[from - 1] = max + 1;
+            }
+            int rowMin = i <= max ? i : max + 1;
+            for (int j = from; j <= to; j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int value = previous[j - 1] + cost;
+                if (previous[j] + 1 < value) {
+                    value = previous[j] + 1;
+                }
+                if (current[j - 1] + 1 < value) {
+                    value = current[j - 1] + 1;
+                }
+                current[j] = value;
+                rowMin = Math.min(rowMin, value);
+            }
+            if (to < m) {
+                current[to + 1] = max + 1;
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(previous[m], max + 1);
+    }
+
+    /**
+     * Split into lower case words of letters and digits, with accents removed.
+     */
+    static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return words;
+        }
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}+", "").toLowerCase(Locale.US);
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            boolean wordChar = i < normalized.length()
+                    && Character.isLetterOrDigit(normalized.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(normalized.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * American Soundex code of a word: its first letter and up to three digits for the
+     * following consonant sounds. Words that sound alike get the same code.
+     */
+    static String soundex(String word) {
+        StringBuilder code = new StringBuilder(4);
+        char last = 0;
+        for (int i = 0; i < word.length() && code.length() < 4; i++) {
+            char c = word.charAt(i);
+            char digit = soundexDigit(c);
+            if (code.length() == 0) {
+                code.append(c);
+                last = digit;
+            } else if (digit != 0 && digit != last) {
+                code.append(digit);
+                last = digit;
+            } else if (c != 'h' && c != 'w') {
+                // Vowels separate repeated codes; h and w don't.
+                last = digit;
+            }
+        }
+        return code.toString();
+    }
+
+    private static char soundexDigit(char c) {
+        switch (c) {
+            case 'b': case 'f': case 'p': case 'v':
+                return '1';
+            case 'c': case 'g': case 'j': case 'k': case 'q': case 's': case 'x': case 'z':
+                return '2';
+            case 'd': case 't':
+                return '3';
+            case 'l':
+                return '4';
+            case 'm': case 'n':
+                return '5';
+            case 'r':
+                return '6';
+            default:
+                return 0;
+        }
+    }
+
+    // Trigrams of the word padded with one boundary marker on each side.
+    private static List<String> trigrams(String word) {
+        String padded = '^' + word + '$';
+        List<String> result = new ArrayList<>(padded.length());
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            result.add(padded.substring(i, i + 3));
+        }
+        return result;
+    }
+
+    private static void addTo(Map<String, IntList> map, String key, int value) {
+        IntList list = map.get(key);
+        if (list == null) {
+            list = new IntList();
+            map.put(key, list);
+        }
+        list.add(value);
+    }
+
+    private static Map<String, int[]> toArrays(Map<String, IntList> map) {
+        Map<String, int[]> result = new HashMap<>(map.size() * 2);
+        for (Map.Entry<String, IntList> entry : map.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toArray());
+        }
+        return result;
+    }
+
+    /**
+     * Per-search state, sized to the catalog and the vocabulary. Cleared after each search
+     * through the matched list, so reusing it costs the matches, not the catalog size.
+     */
+    private static final class Scratch {
+        final float[] scores;
+        // Best score of the current query word for each track, so that a word found in
+        // several fields (or as several catalog words) of a track only counts once.
+        final float[] wordScores;
+        final int[] wordStamps;
+        final IntList matched = new IntList();
+        // Cleared by expand as it goes.
+        final int[] trigramCounts;
+
+        Scratch(int trackCount, int termCount) {
+            scores = new float[trackCount];
+            wordScores = new float[trackCount];
+            wordStamps = new int[trackCount];
+            trigramCounts = new int[termCount];
+        }
+
+        void clear() {
+            for (int i = 0; i < matched.size; i++) {
+                int ordinal = matched.values[i];
+                scores[ordinal] = 0;
+                wordStamps[ordinal] = 0;
+            }
+            matched.size = 0;
+        }
+    }
+
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int last() {
+            return values[size - 1];
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
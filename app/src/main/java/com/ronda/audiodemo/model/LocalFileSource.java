@@ -0,0 +1,124 @@
+package com.ronda.audiodemo.model;
+
+import android.net.Uri;
+import android.support.v4.media.MediaMetadataCompat;
+
+import com.ronda.audiodemo.utils.LogHelper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Music from audio files on the device, found by a {@link LocalMusicScanner}.
+ * <p/>
+ * Each call to {@link #iterator()} or {@link #getDelta(String)} rescans the directories; only
+ * the files that changed since the last scan, in this process or a previous one, have their
+ * tags read again.
+ */
+public class LocalFileSource implements DeltaMusicProviderSource {
+
+    private static final String TAG = LogHelper.makeLogTag(LocalFileSource.class);
+
+    // Genre of the files without one: the catalog groups every track under its genre.
+    private static final String UNKNOWN_GENRE = "Unknown";
+
+    private final LocalMusicScanner mScanner;
+
+    // The tracks of the last scan by music id, to tell what the next one changed, and the
+    // number of that scan as its version.
+    private Map<String, MediaMetadataCompat> mSnapshot;
+    private int mScanCount;
+
+    /**
+     * @param roots     directories to scan, with their subdirectories
+     * @param cacheFile where the scan results are kept between runs
+     */
+    public LocalFileSource(List<File> roots, File cacheFile) {
+        int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        mScanner = new LocalMusicScanner(roots, cacheFile, threads);
+    }
+
+    @Override
+    public synchronized Iterator<MediaMetadataCompat> iterator() {
+        List<MediaMetadataCompat> tracks = scan();
+        setSnapshot(tracks);
+        return tracks.iterator();
+    }
+
+    @Override
+    public synchronized String getVersion() {
+        return mSnapshot == null ? null : String.valueOf(mScanCount);
+    }
+
+    @Override
+    public synchronized CatalogDelta getDelta(String sinceVersion) {
+        if (mSnapshot == null || !String.valueOf(mScanCount).equals(sinceVersion)) {
+            return null;
+        }
+        List<MediaMetadataCompat> tracks = scan();
+        Map<String, MediaMetadataCompat> previous = mSnapshot;
+        setSnapshot(tracks);
+        return CatalogDelta.between(previous, tracks, String.valueOf(mScanCount));
+    }
+
+    private List<MediaMetadataCompat> scan() {
+        LocalMusicScanner.Result result;
+        try {
+            result = mScanner.scan();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while scanning music files", e);
+        }
+        LogHelper.i(TAG, "Scanned ", result.entries.size(), " music files in ",
+                result.elapsedMs, "ms: ", result.parsed, " read, ", result.reused,
+                " unchanged, ", result.failed, " failed");
+        ArrayList<MediaMetadataCompat> tracks = new ArrayList<>(result.entries.size());
+        for (LocalMusicScanner.Entry entry : result.entries) {
+            tracks.add(buildFromEntry(entry));
+        }
+        return tracks;
+    }
+
+    private void setSnapshot(List<MediaMetadataCompat> tracks) {
+        Map<String, MediaMetadataCompat> snapshot = new HashMap<>(tracks.size() * 2);
+        for (MediaMetadataCompat track : tracks) {
+            snapshot.put(track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID), track);
+        }
+        mSnapshot = snapshot;
+        mScanCount++;
+    }
+
+    private MediaMetadataCompat buildFromEntry(LocalMusicScanner.Entry entry) {
+        TagReader.Tags tags = entry.tags;
+        File file = new File(entry.path);
+        String title = tags.title;
+        if (title == null) {
+            title = file.getName();
+            int dot = title.lastIndexOf('.');
+            if (dot > 0) {
+                title = title.substring(0, dot);
+            }
+        }
+        String genre = tags.genre != null ? tags.genre : UNKNOWN_GENRE;
+        // The path is the only stable identity a local file has.
+        String id = TrackKey.toMusicId(TrackKey.forContent(entry.path));
+
+        //noinspection ResourceType
+        return new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, id)
+                .putString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE,
+                        Uri.fromFile(file).toString())
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, tags.album)
+                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, tags.artist)
+                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, tags.durationMs)
+                .putString(MediaMetadataCompat.METADATA_KEY_GENRE, genre)
+                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
+                .putLong(MediaMetadataCompat.METADATA_KEY_TRACK_NUMBER, tags.trackNumber)
+                .putLong(MediaMetadataCompat.METADATA_KEY_NUM_TRACKS, tags.trackCount)
+                .build();
+    }
+}
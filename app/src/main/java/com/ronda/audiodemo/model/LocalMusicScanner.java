@@ -0,0 +1,350 @@
+package com.ronda.audiodemo.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the audio files under a set of directories and reads their tags.
+ * <p/>
+ * Directories are walked in parallel: every directory is a task on a small pool, which lists it,
+ * submits its subdirectories as new tasks and reads the tags of its audio files. A scan is done
+ * when no directory task is left.
+ * <p/>
+ * Rescans are incremental. Every file is fingerprinted by its size and modification time, and the
+ * tags of a file whose fingerprint did not change are taken from the previous scan instead of
+ * being read again. The fingerprints and tags are kept in memory between scans and saved to a
+ * cache file, so the first scan after a restart is incremental as well.
+ * <p/>
+ * Plain Java, so it can be run against a fixture tree on a desktop JVM. Errors don't stop a
+ * scan: they are counted in the {@link Result} and the file or directory is skipped.
+ */
+final class LocalMusicScanner {
+
+    private static final int CACHE_MAGIC = 0x4c4d5331; // "LMS1"
+
+    private static final String[] AUDIO_EXTENSIONS = {
+            ".mp3", ".flac", ".ogg", ".oga", ".opus", ".m4a", ".mp4"};
+
+    // Android's marker for directories media scanners should skip.
+    private static final String NO_MEDIA = ".nomedia";
+
+    /**
+     * An audio file with its fingerprint and tags.
+     */
+    static final class Entry {
+        final String path;
+        final long size;
+        final long modified;
+        final TagReader.Tags tags;
+
+        Entry(String path, long size, long modified, TagReader.Tags tags) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.tags = tags;
+        }
+    }
+
+    /**
+     * The audio files found by a scan, sorted by path, and what it took to find them.
+     */
+    static final class Result {
+        final List<Entry> entries;
+        // Files whose tags were read, and files whose tags came from the previous scan.
+        final int parsed;
+        final int reused;
+        // Files and directories that could not be read.
+        final int failed;
+        final long elapsedMs;
+
+        Result(List<Entry> entries, int parsed, int reused, int failed, long elapsedMs) {
+            this.entries = entries;
+            this.parsed = parsed;
+            this.reused = reused;
+            this.failed = failed;
+            this.elapsedMs = elapsedMs;
+        }
+    }
+
+    private final List<File> mRoots;
+    private final File mCacheFile;
+    private final int mThreads;
+
+    // Entries of the last scan by path, null until the cache file has been loaded.
+    private Map<String, Entry> mPrevious;
+
+    /**
+     * @param cacheFile where the fingerprints are kept between runs, or null to keep them in
+     *                  memory only
+     * @param threads   number of directories scanned at the same time
+     */
+    LocalMusicScanner(List<File> roots, File cacheFile, int threads) {
+        mRoots = new ArrayList<>(roots);
+        mCacheFile = cacheFile;
+        mThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Scan the roots, blocking until done. Scans are serialized.
+     */
+    synchronized Result scan() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        if (mPrevious == null) {
+            mPrevious = loadCache();
+        }
+        Walk walk = new Walk(mPrevious);
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        try {
+            for (File root : mRoots) {
+                walk.submitDirectory(executor, root);
+            }
+            walk.await();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<Entry> entries = new ArrayList<>(walk.mEntries.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.path.compareTo(b.path);
+            }
+        });
+        int parsed = walk.mParsed.get();
+        boolean changed = parsed > 0 || entries.size() != mPrevious.size();
+        mPrevious = walk.mEntries;
+        if (changed) {
+            saveCache(entries);
+        }
+        return new Result(entries, parsed, walk.mReused.get(), walk.mFailed.get(),
+                System.currentTimeMillis() - start);
+    }
+
+    private static boolean isAudioFile(String name) {
+        String lower = name.toLowerCase();
+        for (String extension : AUDIO_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * State of one scan, shared by its directory tasks.
+     */
+    private final class Walk {
+        private final Map<String, Entry> mKnown;
+        private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<>();
+        // Canonical paths of the directories already walked, against symlink loops.
+        private final ConcurrentHashMap<String, Boolean> mVisited = new ConcurrentHashMap<>();
+        private final AtomicInteger mParsed = new AtomicInteger();
+        private final AtomicInteger mReused = new AtomicInteger();
+        private final AtomicInteger mFailed = new AtomicInteger();
+        // Directory tasks submitted and not finished yet.
+        private int mPending;
+
+        // One reader per pool thread, each with its own scratch buffer.
+        private final ThreadLocal<TagReader> mReaders = new ThreadLocal<TagReader>() {
+            @Override
+            protected TagReader initialValue() {
+                return new TagReader();
+            }
+        };
+
+        Walk(Map<String, Entry> known) {
+            mKnown = known;
+        }
+
+        void submitDirectory(final ExecutorService executor, final File directory) {
+            synchronized (this) {
+                mPending++;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scanDirectory(executor, directory);
+                    } catch (RuntimeException e) {
+                        mFailed.incrementAndGet();
+                    } finally {
+                        synchronized (Walk.this) {
+                            if (--mPending == 0) {
+                                Walk.this.notifyAll();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        synchronized void await() throws InterruptedException {
+            while (mPending > 0) {
+                wait();
+            }
+        }
+
+        private void scanDirectory(ExecutorService executor, File directory) {
+            try {
+                if (mVisited.putIfAbsent(directory.getCanonicalPath(), Boolean.TRUE) != null) {
+                    return;
+                }
+            } catch (IOException e) {
+                mFailed.incrementAndGet();
+                return;
+            }
+            File[] files = directory.listFiles();
+            if (files == null) {
+                mFailed.incrementAndGet();
+                return;
+            }
+            for (File file : files) {
+                if (file.getName().equals(NO_MEDIA)) {
+                    return;
+                }
+            }
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(".")) {
+                    continue;
+                }
+                if (file.isDirectory()) {
+                    submitDirectory(executor, file);
+                } else if (isAudioFile(name)) {
+                    scanFile(file);
+                }
+            }
+        }
+
+        private void scanFile(File file) {
+            String path = file.getAbsolutePath();
+            long size = file.length();
+            long modified = file.lastModified();
+            Entry previous = mKnown.get(path);
+            if (previous != null && previous.size == size && previous.modified == modified) {
+                mEntries.put(path, previous);
+                mReused.incrementAndGet();
+                return;
+            }
+            try {
+                TagReader.Tags tags = mReaders.get().read(file);
+                if (tags != null) {
+                    mEntries.put(path, new Entry(path, size, modified, tags));
+                    mParsed.incrementAndGet();
+                } else {
+                    mFailed.incrementAndGet();
+                }
+            } catch (IOException | RuntimeException e) {
+                // Unreadable or malformed: skipped, and tried again on the next scan.
+                mFailed.incrementAndGet();
+            }
+        }
+    }
+
+    private Map<String, Entry> loadCache() {
+        Map<String, Entry> entries = new HashMap<>();
+        if (mCacheFile == null || !mCacheFile.exists()) {
+            return entries;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mCacheFile)));
+            if (in.readInt() != CACHE_MAGIC) {
+                return entries;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                TagReader.Tags tags = new TagReader.Tags();
+                tags.title = readString(in);
+                tags.artist = readString(in);
+                tags.album = readString(in);
+                tags.genre = readString(in);
+                tags.trackNumber = in.readInt();
+                tags.trackCount = in.readInt();
+                tags.durationMs = in.readLong();
+                entries.put(path, new Entry(path, size, modified, tags));
+            }
+        } catch (IOException e) {
+            // Truncated or corrupt: what was read is still good, the rest gets rescanned.
+        } finally {
+            closeQuietly(in);
+        }
+        return entries;
+    }
+
+    // Written to a temporary file and renamed over the cache, so a crash never leaves a
+    // half-written cache behind.
+    private void saveCache(List<Entry> entries) {
+        if (mCacheFile == null) {
+            return;
+        }
+        File temp = new File(mCacheFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(CACHE_MAGIC);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                writeString(out, entry.tags.title);
+                writeString(out, entry.tags.artist);
+                writeString(out, entry.tags.album);
+                writeString(out, entry.tags.genre);
+                out.writeInt(entry.tags.trackNumber);
+                out.writeInt(entry.tags.trackCount);
+                out.writeLong(entry.tags.durationMs);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mCacheFile)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            closeQuietly(out);
+            temp.delete();
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
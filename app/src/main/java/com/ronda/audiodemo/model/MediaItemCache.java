@@ -0,0 +1,130 @@
+package com.ronda.audiodemo.model;
+
+import android.support.v4.media.MediaBrowserCompat;
+import android.util.LruCache;
+
+/**
+ * Cache of the MediaItems built for each browse node, keyed by parent media ID and catalog
+ * version. A node's children are cached in pages of {@link #PAGE_SIZE}, so a large genre is
+ * cached a page at a time instead of needing room for all of its children at once, and a paged
+ * request only allocates the pages it touches. Items are created lazily, one slot at a time.
+ * The cache is bounded by the total number of slots it holds.
+ */
+final class MediaItemCache {
+
+    // Children per cached page.
+    static final int PAGE_SIZE = 100;
+
+    // Page of a node cached whole, see putItems.
+    private static final int WHOLE_NODE = -1;
+
+    private static final class Key {
+        final String parentMediaId;
+        final int page;
+
+        Key(String parentMediaId, int page) {
+            this.parentMediaId = parentMediaId;
+            this.page = page;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return page == other.page && parentMediaId.equals(other.parentMediaId);
+        }
+
+        @Override
+        public int hashCode() {
+            return parentMediaId.hashCode() * 31 + page;
+        }
+    }
+
+    private static final class Entry {
+        final int version;
+        final int childCount;
+        final MediaBrowserCompat.MediaItem[] items;
+
+        Entry(int version, int childCount, MediaBrowserCompat.MediaItem[] items) {
+            this.version = version;
+            this.childCount = childCount;
+            this.items = items;
+        }
+    }
+
+    private final LruCache<Key, Entry> mEntries;
+
+    MediaItemCache(int maxItems) {
+        mEntries = new LruCache<Key, Entry>(maxItems) {
+            @Override
+            protected int sizeOf(Key key, Entry value) {
+                return Math.max(1, value.items.length);
+            }
+        };
+    }
+
+    /**
+     * Return the item slots of a page of the given browse node: slot i holds child
+     * page * PAGE_SIZE + i. A stale page (built for another catalog version or child count) is
+     * replaced by an empty one.
+     *
+     * MediaItems are immutable, so two threads filling the same slot at once only cost a
+     * redundant build.
+     */
+    MediaBrowserCompat.MediaItem[] getPage(String parentMediaId, int version, int childCount,
+                                           int page) {
+        Key key = new Key(parentMediaId, page);
+        Entry entry = mEntries.get(key);
+        if (entry == null || entry.version != version || entry.childCount != childCount) {
+            int size = Math.min(PAGE_SIZE, childCount - page * PAGE_SIZE);
+            entry = new Entry(version, childCount, new MediaBrowserCompat.MediaItem[size]);
+            mEntries.put(key, entry);
+        }
+        return entry.items;
+    }
+
+    /**
+     * @return the items of the given node if cached whole for this catalog version, else null
+     */
+    MediaBrowserCompat.MediaItem[] peekItems(String parentMediaId, int version) {
+        Entry entry = mEntries.get(new Key(parentMediaId, WHOLE_NODE));
+        return entry == null || entry.version != version ? null : entry.items;
+    }
+
+    /**
+     * Cache a fully built node whole, replacing any previous entry. Meant for small nodes
+     * built all at once, like search results: unlike pages, a node larger than the cache
+     * isn't kept.
+     */
+    void putItems(String parentMediaId, int version, MediaBrowserCompat.MediaItem[] items) {
+        mEntries.put(new Key(parentMediaId, WHOLE_NODE), new Entry(version, items.length, items));
+    }
+
+    /**
+     * Drop the cached items of the given node.
+     */
+    void invalidate(String parentMediaId) {
+        for (Key key : mEntries.snapshot().keySet()) {
+            if (key.parentMediaId.equals(parentMediaId)) {
+                mEntries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Drop the cached items of every node whose media ID starts with the given prefix.
+     */
+    void invalidatePrefix(String prefix) {
+        for (Key key : mEntries.snapshot().keySet()) {
+            if (key.parentMediaId.startsWith(prefix)) {
+                mEntries.remove(key);
+            }
+        }
+    }
+
+    void invalidateAll() {
+        mEntries.evictAll();
+    }
+}
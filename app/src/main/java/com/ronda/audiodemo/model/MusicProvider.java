@@ -3,28 +3,42 @@ package com.ronda.audiodemo.model;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 
 
 import com.ronda.audiodemo.R;
+import com.ronda.audiodemo.TaskScheduler;
 import com.ronda.audiodemo.utils.LogHelper;
+import com.ronda.audiodemo.utils.LongHashSet;
+import com.ronda.audiodemo.utils.LongIntHashMap;
 import com.ronda.audiodemo.utils.MediaIDHelper;
+import com.ronda.audiodemo.utils.MediaId;
+import com.ronda.audiodemo.utils.ShuffleOrder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+import static com.ronda.audiodemo.utils.MediaIDHelper.MEDIA_ID_FAVORITES;
+import static com.ronda.audiodemo.utils.MediaIDHelper.MEDIA_ID_MOST_PLAYED;
 import static com.ronda.audiodemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE;
+import static com.ronda.audiodemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_SEARCH;
+import static com.ronda.audiodemo.utils.MediaIDHelper.MEDIA_ID_RECENTLY_PLAYED;
 import static com.ronda.audiodemo.utils.MediaIDHelper.MEDIA_ID_ROOT;
 import static com.ronda.audiodemo.utils.MediaIDHelper.createMediaID;
 
@@ -43,7 +57,62 @@ public class MusicProvider {
     private ConcurrentMap<String, List<MediaMetadataCompat>> mMusicListByGenre;
     private final ConcurrentMap<String, MutableMediaMetadata> mMusicListById;
 
-    private final Set<String> mFavoriteTracks;
+    private final FavoritesStore mFavorites;
+    private final PlayHistoryStore mPlayHistory;
+
+    // Tracks known from a saved playback session before the catalog is loaded, so that the
+    // session can resume without waiting for it. The catalog entry wins once there is one.
+    private final ConcurrentMap<String, MediaMetadataCompat> mPrimedMusic = new ConcurrentHashMap<>();
+
+    // Genre names in browse order, so a page of the genre list can be addressed by index.
+    private volatile List<String> mGenres = Collections.emptyList();
+
+    // Track ids by ordinal, so random picks can work on indexes instead of copying the catalog,
+    // and ordinals by TrackKey, to resolve the tracks of the play history.
+    private volatile TrackTable mTracks = new TrackTable(new String[0]);
+    // Neighbours of each track by ordinal, for radio queues. Built with the catalog, and rebuilt
+    // in the background when catalog changes affect it.
+    private volatile SimilarityIndex mSimilarityIndex;
+    // Word index of the catalog for voice search. Likewise.
+    private volatile FuzzySearchIndex mSearchIndex;
+    // Whether the two indexes lag behind the catalog, and whether a rebuild is on its way.
+    // Guarded by this.
+    private boolean mIndexesStale;
+    private boolean mIndexRebuildScheduled;
+
+    // Version of the loaded catalog, for a DeltaMusicProviderSource to tell what changed since.
+    private volatile String mSourceVersion;
+    // Serializes catalog syncs, which wait for their changes without holding the lock of this.
+    private final Object mSyncLock = new Object();
+    private final Random mRandom = new Random();
+
+    // Bumped every time the catalog is (re)loaded; cached browse results from an older
+    // version are discarded.
+    private volatile int mCatalogVersion;
+
+    // Upper bound on the number of MediaItems kept across all cached browse nodes.
+    private static final int MAX_CACHED_MEDIA_ITEMS = 2000;
+
+    // Tracks listed by the recently and most played nodes.
+    public static final int HISTORY_BROWSE_SIZE = 50;
+
+    // Browse categories listed at the root after the genres, with their title and subtitle.
+    private static final String[] ROOT_CATEGORIES = {
+            MEDIA_ID_FAVORITES, MEDIA_ID_RECENTLY_PLAYED, MEDIA_ID_MOST_PLAYED};
+    private static final int[] ROOT_CATEGORY_TITLES = {
+            R.string.browse_favorites, R.string.browse_recently_played, R.string.browse_most_played};
+    private static final int[] ROOT_CATEGORY_SUBTITLES = {
+            R.string.browse_favorites_subtitle, R.string.browse_recently_played_subtitle,
+            R.string.browse_most_played_subtitle};
+
+    // Search: default number of tracks returned, and time allowed to expand the query words.
+    public static final int SEARCH_MAX_RESULTS = 50;
+    public static final long SEARCH_BUDGET_NANOS = 30L * 1000 * 1000;
+    // Field weights, by FuzzySearchIndex.FIELD_*, of an unfocused search...
+    private static final float[] DEFAULT_SEARCH_WEIGHTS = {1f, 0.9f, 0.8f, 0.5f};
+    // ... and of the fields other than the focus of a focused one.
+    private static final float UNFOCUSED_SEARCH_WEIGHT = 0.3f;
+    private final MediaItemCache mChildrenCache = new MediaItemCache(MAX_CACHED_MEDIA_ITEMS);
 
     enum State {
         NON_INITIALIZED, INITIALIZING, INITIALIZED
@@ -55,14 +124,35 @@ public class MusicProvider {
         void onMusicCatalogReady(boolean success);
     }
 
+    /**
+     * Notified when the children of a browse node change without a catalog reload, for example
+     * when album art for one of its tracks has been fetched. Called on the main thread.
+     */
+    public interface OnChildrenChangedListener {
+        void onChildrenChanged(String parentMediaId);
+    }
+
+    private volatile OnChildrenChangedListener mChildrenChangedListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
     public MusicProvider() {
         this(new RemoteJSONSource());
     }
     public MusicProvider(MusicProviderSource source) {
+        this(source, new FavoritesStore(null), new PlayHistoryStore(null));
+    }
+
+    /**
+     * @param favorites   where favorites are kept; a store without a file keeps them in memory
+     * @param playHistory where playback events are logged; likewise
+     */
+    public MusicProvider(MusicProviderSource source, FavoritesStore favorites,
+                         PlayHistoryStore playHistory) {
         mSource = source;
         mMusicListByGenre = new ConcurrentHashMap<>();
         mMusicListById = new ConcurrentHashMap<>();
-        mFavoriteTracks = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        mFavorites = favorites;
+        mPlayHistory = playHistory;
     }
 
     /**
@@ -78,18 +168,61 @@ public class MusicProvider {
     }
 
     /**
-     * Get an iterator over a shuffled collection of all songs
+     * Get an iterator over a shuffled collection of all songs. The order is generated as the
+     * iteration advances, so taking the first few songs doesn't shuffle the whole catalog.
      */
     public Iterable<MediaMetadataCompat> getShuffledMusic() {
         if (mCurrentState != State.INITIALIZED) {
             return Collections.emptyList();
         }
-        List<MediaMetadataCompat> shuffled = new ArrayList<>(mMusicListById.size());
-        for (MutableMediaMetadata mutableMetadata: mMusicListById.values()) {
-            shuffled.add(mutableMetadata.metadata);
+        final String[] trackIds = mTracks.ids;
+        final long seed = mRandom.nextLong();
+        return new Iterable<MediaMetadataCompat>() {
+            @Override
+            public Iterator<MediaMetadataCompat> iterator() {
+                final ShuffleOrder order = new ShuffleOrder(trackIds.length, seed, -1);
+                return new Iterator<MediaMetadataCompat>() {
+                    private int mPosition;
+
+                    @Override
+                    public boolean hasNext() {
+                        return mPosition < order.size();
+                    }
+
+                    @Override
+                    public MediaMetadataCompat next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return getMusic(trackIds[order.get(mPosition++)]);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Get count distinct songs picked at random, without copying or shuffling the catalog.
+     */
+    public List<MediaMetadataCompat> getRandomMusic(int count) {
+        if (mCurrentState != State.INITIALIZED) {
+            return Collections.emptyList();
+        }
+        String[] trackIds = mTracks.ids;
+        int[] ordinals = ShuffleOrder.sample(trackIds.length, count, mRandom);
+        List<MediaMetadataCompat> result = new ArrayList<>(ordinals.length);
+        for (int ordinal : ordinals) {
+            MediaMetadataCompat metadata = getMusic(trackIds[ordinal]);
+            if (metadata != null) {
+                result.add(metadata);
+            }
         }
-        Collections.shuffle(shuffled);
-        return shuffled;
+        return result;
     }
 
     /**
@@ -104,56 +237,127 @@ public class MusicProvider {
     }
 
     /**
-     * Very basic implementation of a search that filter music tracks with title containing
-     * the given query.
+     * Get up to count tracks similar to the seed track (sharing its album, artist or genre),
+     * skipping the excluded ones. The best matches are favoured but picked at random, so two
+     * calls with the same seed don't return the same tracks. When the neighbourhood of the seed
+     * is used up, random tracks fill the rest: the result is only short when nearly the whole
+     * catalog is excluded.
      *
+     * @param excludedMusicIds music ids that must not be returned, eg those already queued
      */
-    public List<MediaMetadataCompat> searchMusicBySongTitle(String query) {
-        return searchMusic(MediaMetadataCompat.METADATA_KEY_TITLE, query);
-    }
+    public List<MediaMetadataCompat> getSimilarMusic(String seedMusicId, int count,
+                                                     Set<String> excludedMusicIds) {
+        SimilarityIndex index = mSimilarityIndex;
+        if (mCurrentState != State.INITIALIZED || index == null || count <= 0) {
+            return Collections.emptyList();
+        }
+        List<String> picked = new ArrayList<>(count);
 
-    /**
-     * Very basic implementation of a search that filter music tracks with album containing
-     * the given query.
-     *
-     */
-    public List<MediaMetadataCompat> searchMusicByAlbum(String query) {
-        return searchMusic(MediaMetadataCompat.METADATA_KEY_ALBUM, query);
+        // Candidates: the neighbours of the seed, then the neighbours of those neighbours.
+        List<String> candidates = new ArrayList<>();
+        int seed = index.ordinalOf(seedMusicId);
+        if (seed >= 0) {
+            int[] neighbours = index.getNeighbours(seed);
+            addCandidates(neighbours, index, excludedMusicIds, candidates, 2 * count);
+            for (int i = 0; i < neighbours.length && candidates.size() < 2 * count; i++) {
+                addCandidates(index.getNeighbours(neighbours[i]), index, excludedMusicIds,
+                        candidates, 2 * count);
+            }
+            candidates.remove(seedMusicId);
+        }
+        for (int ordinal : ShuffleOrder.sample(candidates.size(), count, mRandom)) {
+            picked.add(candidates.get(ordinal));
+        }
+
+        // Bounded number of random attempts, so a nearly fully excluded catalog can't loop.
+        for (int attempt = 0; picked.size() < count && attempt < 4; attempt++) {
+            for (MediaMetadataCompat metadata : getRandomMusic(2 * (count - picked.size()))) {
+                String musicId = metadata.getDescription().getMediaId();
+                if (picked.size() < count && !excludedMusicIds.contains(musicId)
+                        && !musicId.equals(seedMusicId) && !picked.contains(musicId)) {
+                    picked.add(musicId);
+                }
+            }
+        }
+
+        List<MediaMetadataCompat> result = new ArrayList<>(picked.size());
+        for (String musicId : picked) {
+            MediaMetadataCompat metadata = getMusic(musicId);
+            if (metadata != null) {
+                result.add(metadata);
+            }
+        }
+        return result;
     }
 
-    /**
-     * Very basic implementation of a search that filter music tracks with artist containing
-     * the given query.
-     *
-     */
-    public List<MediaMetadataCompat> searchMusicByArtist(String query) {
-        return searchMusic(MediaMetadataCompat.METADATA_KEY_ARTIST, query);
+    private static void addCandidates(int[] ordinals, SimilarityIndex index, Set<String> excluded,
+                                      List<String> candidates, int max) {
+        for (int i = 0; i < ordinals.length && candidates.size() < max; i++) {
+            String musicId = index.getTrackId(ordinals[i]);
+            if (!excluded.contains(musicId) && !candidates.contains(musicId)) {
+                candidates.add(musicId);
+            }
+        }
     }
 
     /**
-     * Very basic implementation of a search that filter music tracks with a genre containing
-     * the given query.
+     * Search the title, artist, album and genre of the catalog at once, tolerating misspelled
+     * and misheard words ("beetles" finds "The Beatles"). Exact word matches score highest,
+     * then prefixes, similar sounding or spelled words and substrings; matches in the focus
+     * field and in short fields count the most. Only the best maxResults are selected and
+     * ordered, so a broad query doesn't build a huge queue.
+     * <p/>
+     * The search gives up expanding words after {@link #SEARCH_BUDGET_NANOS}, so a slow
+     * device or a huge catalog returns fewer fuzzy matches rather than a late answer.
      *
+     * @param focusKey the METADATA_KEY_* (title, artist, album or genre) the query is about,
+     *                 or null if unknown
+     * @return at most maxResults matching tracks, best first
      */
-    public List<MediaMetadataCompat> searchMusicByGenre(String query) {
-        return searchMusic(MediaMetadataCompat.METADATA_KEY_GENRE, query);
+    public List<MediaMetadataCompat> searchMusic(String query, String focusKey, int maxResults) {
+        float[] weights;
+        int focus = searchField(focusKey);
+        if (focus < 0) {
+            weights = DEFAULT_SEARCH_WEIGHTS;
+        } else {
+            weights = new float[FuzzySearchIndex.FIELD_COUNT];
+            Arrays.fill(weights, UNFOCUSED_SEARCH_WEIGHT);
+            weights[focus] = 1f;
+        }
+        return runSearch(query, weights, maxResults);
     }
 
-    private List<MediaMetadataCompat> searchMusic(String metadataField, String query) {
-        if (mCurrentState != State.INITIALIZED) {
+    private List<MediaMetadataCompat> runSearch(String query, float[] weights, int maxResults) {
+        FuzzySearchIndex index = mSearchIndex;
+        if (mCurrentState != State.INITIALIZED || index == null || query == null) {
             return Collections.emptyList();
         }
-        ArrayList<MediaMetadataCompat> result = new ArrayList<>();
-        query = query.toLowerCase(Locale.US);
-        for (MutableMediaMetadata track : mMusicListById.values()) {
-            if (track.metadata.getString(metadataField).toLowerCase(Locale.US)
-                .contains(query)) {
-                result.add(track.metadata);
+        long start = System.nanoTime();
+        int[] ordinals = index.search(query, weights, maxResults, SEARCH_BUDGET_NANOS);
+        List<MediaMetadataCompat> result = new ArrayList<>(ordinals.length);
+        for (int ordinal : ordinals) {
+            MediaMetadataCompat metadata = getMusic(index.getTrackId(ordinal));
+            if (metadata != null) {
+                result.add(metadata);
             }
         }
+        LogHelper.d(TAG, "Search for ", query, " found ", result.size(), " tracks in ",
+                (System.nanoTime() - start) / 1000, "us");
         return result;
     }
 
+    private static int searchField(String metadataKey) {
+        if (MediaMetadataCompat.METADATA_KEY_TITLE.equals(metadataKey)) {
+            return FuzzySearchIndex.FIELD_TITLE;
+        } else if (MediaMetadataCompat.METADATA_KEY_ARTIST.equals(metadataKey)) {
+            return FuzzySearchIndex.FIELD_ARTIST;
+        } else if (MediaMetadataCompat.METADATA_KEY_ALBUM.equals(metadataKey)) {
+            return FuzzySearchIndex.FIELD_ALBUM;
+        } else if (MediaMetadataCompat.METADATA_KEY_GENRE.equals(metadataKey)) {
+            return FuzzySearchIndex.FIELD_GENRE;
+        }
+        return -1;
+    }
 
     /**
      * Return the MediaMetadataCompat for the given musicID.
@@ -161,7 +365,17 @@ public class MusicProvider {
      * @param musicId The unique, non-hierarchical music ID.
      */
     public MediaMetadataCompat getMusic(String musicId) {
-        return mMusicListById.containsKey(musicId) ? mMusicListById.get(musicId).metadata : null;
+        MutableMediaMetadata music = mMusicListById.get(musicId);
+        return music != null ? music.metadata : mPrimedMusic.get(musicId);
+    }
+
+    /**
+     * Make a track known before the catalog is loaded, from metadata saved earlier. Only
+     * {@link #getMusic(String)} returns it: it isn't browsable, and the catalog version of the
+     * track replaces it once loaded.
+     */
+    public void primeMusic(MediaMetadataCompat metadata) {
+        mPrimedMusic.put(metadata.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID), metadata);
     }
 
     public synchronized void updateMusicArt(String musicId, Bitmap albumArt, Bitmap icon) {
@@ -180,20 +394,115 @@ public class MusicProvider {
                 .build();
 
         MutableMediaMetadata mutableMetadata = mMusicListById.get(musicId);
+        if (mutableMetadata == null && mPrimedMusic.containsKey(musicId)) {
+            // Not in the catalog (yet): nothing is browsing it.
+            mPrimedMusic.put(musicId, metadata);
+            return;
+        }
         if (mutableMetadata == null) {
             throw new IllegalStateException("Unexpected error: Inconsistent data structures in " +
                     "MusicProvider");
         }
 
         mutableMetadata.metadata = metadata;
+
+        // The art is part of the description served to browsers: drop the cached items of the
+        // genre node this track is listed under.
+        String genre = metadata.getString(MediaMetadataCompat.METADATA_KEY_GENRE);
+        if (genre != null) {
+            notifyChildrenChanged(Collections.singletonList(
+                    createMediaID(null, MEDIA_ID_MUSICS_BY_GENRE, genre)));
+        }
+    }
+
+    /**
+     * @param listener the listener, or null to remove it. The provider is application scoped:
+     *                 a listener that doesn't live as long must be removed when done.
+     */
+    public void setOnChildrenChangedListener(OnChildrenChangedListener listener) {
+        mChildrenChangedListener = listener;
     }
 
     public void setFavorite(String musicId, boolean favorite) {
-        if (favorite) {
-            mFavoriteTracks.add(musicId);
-        } else {
-            mFavoriteTracks.remove(musicId);
+        if (mFavorites.setFavorite(musicId, favorite)) {
+            notifyChildrenChanged(Collections.singletonList(MEDIA_ID_FAVORITES));
+        }
+    }
+
+    /**
+     * Write the favorites changed since the last write now, instead of waiting for the store's
+     * write-behind delay.
+     */
+    public void flushFavorites() {
+        mFavorites.flush();
+    }
+
+    /**
+     * @return the favorite tracks that are in the catalog, most recently favorited first
+     */
+    public List<MediaMetadataCompat> getFavoriteMusic() {
+        if (mCurrentState != State.INITIALIZED) {
+            return Collections.emptyList();
+        }
+        List<String> musicIds = mFavorites.getFavorites();
+        List<MediaMetadataCompat> tracks = new ArrayList<>(musicIds.size());
+        for (String musicId : musicIds) {
+            // Favorites of tracks no longer in the catalog are kept, but not listed.
+            MediaMetadataCompat metadata = getMusic(musicId);
+            if (metadata != null) {
+                tracks.add(metadata);
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * Log a playback event of a track, see {@link PlayHistoryStore#record}. A play changes the
+     * recently and most played nodes.
+     */
+    public void recordPlayback(String musicId, byte event, long position) {
+        mPlayHistory.record(musicId, event, position);
+        if (event == PlayHistoryStore.EVENT_PLAYED) {
+            notifyChildrenChanged(Arrays.asList(MEDIA_ID_RECENTLY_PLAYED, MEDIA_ID_MOST_PLAYED));
+        }
+    }
+
+    /**
+     * Write the logged playback events now, instead of waiting for their batch to fill.
+     */
+    public void flushPlayHistory() {
+        mPlayHistory.flush();
+    }
+
+    /**
+     * @return the tracks played last, most recent first
+     */
+    public List<MediaMetadataCompat> getRecentlyPlayedMusic(int count) {
+        return getMusicByKeys(mPlayHistory.getRecentlyPlayed(count));
+    }
+
+    /**
+     * @return the tracks played the most times, most played first
+     */
+    public List<MediaMetadataCompat> getMostPlayedMusic(int count) {
+        return getMusicByKeys(mPlayHistory.getMostPlayed(count));
+    }
+
+    private List<MediaMetadataCompat> getMusicByKeys(long[] keys) {
+        if (mCurrentState != State.INITIALIZED) {
+            return Collections.emptyList();
         }
+        TrackTable table = mTracks;
+        List<MediaMetadataCompat> tracks = new ArrayList<>(keys.length);
+        for (long key : keys) {
+            // Tracks no longer in the catalog keep their history, but are not listed.
+            String musicId = table.getId(key);
+            MediaMetadataCompat metadata = musicId == null ? null : getMusic(musicId);
+            if (metadata != null) {
+                tracks.add(metadata);
+            }
+        }
+        return tracks;
     }
 
     public boolean isInitialized() {
@@ -201,7 +510,7 @@ public class MusicProvider {
     }
 
     public boolean isFavorite(String musicId) {
-        return mFavoriteTracks.contains(musicId);
+        return mFavorites.isFavorite(musicId);
     }
 
     /**
@@ -218,21 +527,31 @@ public class MusicProvider {
             return;
         }
 
-        // Asynchronously load the music catalog in a separate thread
-        new AsyncTask<Void, Void, State>() {
-            @Override
-            protected State doInBackground(Void... params) {
-                retrieveMedia();
-                return mCurrentState;
-            }
+        // Asynchronously load the music catalog in a separate thread. Browsing and playback wait
+        // for it, so it goes ahead of anything else queued on the network lane.
+        TaskScheduler.getInstance().execute(TaskScheduler.Lane.NETWORK, TaskScheduler.PRIORITY_HIGH,
+                new TaskScheduler.Task<State>() {
+                    @Override
+                    protected State doInBackground() {
+                        retrieveMedia();
+                        return mCurrentState;
+                    }
 
-            @Override
-            protected void onPostExecute(State current) {
-                if (callback != null) {
-                    callback.onMusicCatalogReady(current == State.INITIALIZED);
-                }
-            }
-        }.execute();
+                    @Override
+                    protected void onResult(State current) {
+                        if (callback != null) {
+                            callback.onMusicCatalogReady(current == State.INITIALIZED);
+                        }
+                    }
+
+                    @Override
+                    protected void onError(Exception e) {
+                        LogHelper.e(TAG, e, "Could not retrieve music catalog");
+                        if (callback != null) {
+                            callback.onMusicCatalogReady(false);
+                        }
+                    }
+                });
     }
 
     private synchronized void buildListsByGenre() {
@@ -248,6 +567,7 @@ public class MusicProvider {
             list.add(m.metadata);
         }
         mMusicListByGenre = newMusicListByGenre;
+        mGenres = new ArrayList<>(newMusicListByGenre.keySet());
     }
 
     private synchronized void retrieveMedia() {
@@ -255,13 +575,28 @@ public class MusicProvider {
             if (mCurrentState == State.NON_INITIALIZED) {
                 mCurrentState = State.INITIALIZING;
 
+                LongHashSet keys = new LongHashSet();
                 Iterator<MediaMetadataCompat> tracks = mSource.iterator();
                 while (tracks.hasNext()) {
                     MediaMetadataCompat item = tracks.next();
                     String musicId = item.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+                    if (!keys.add(TrackKey.of(musicId))) {
+                        reportCollision(musicId, item);
+                        continue;
+                    }
                     mMusicListById.put(musicId, new MutableMediaMetadata(musicId, item));
                 }
                 buildListsByGenre();
+                String[] trackIds = mMusicListById.keySet().toArray(new String[mMusicListById.size()]);
+                MediaMetadataCompat[] catalog = getCatalog(trackIds);
+                mSimilarityIndex = SimilarityIndex.build(trackIds, catalog);
+                mSearchIndex = FuzzySearchIndex.build(trackIds, catalog);
+                if (mSource instanceof DeltaMusicProviderSource) {
+                    mSourceVersion = ((DeltaMusicProviderSource) mSource).getVersion();
+                }
+                mTracks = new TrackTable(trackIds);
+                mCatalogVersion++;
+                mChildrenCache.invalidateAll();
                 mCurrentState = State.INITIALIZED;
             }
         } finally {
@@ -273,30 +608,526 @@ public class MusicProvider {
         }
     }
 
+    // Two tracks with the same id, or with ids of the same key, can't both be listed: the one
+    // loaded first stays. A source listing a track twice is harmless, anything else is logged.
+    private void reportCollision(String musicId, MediaMetadataCompat track) {
+        MutableMediaMetadata known = mMusicListById.get(musicId);
+        if (known != null && CatalogDelta.isSameTrack(known.metadata, track)) {
+            LogHelper.d(TAG, "Skipping duplicate track ", musicId);
+        } else {
+            LogHelper.w(TAG, "Track id collision, skipping ", musicId, " from ",
+                    track.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE));
+        }
+    }
+
+    private MediaMetadataCompat[] getCatalog(String[] trackIds) {
+        MediaMetadataCompat[] catalog = new MediaMetadataCompat[trackIds.length];
+        for (int i = 0; i < trackIds.length; i++) {
+            catalog[i] = mMusicListById.get(trackIds[i]).metadata;
+        }
+        return catalog;
+    }
+
+    /**
+     * Bring the loaded catalog up to date with its source, in the background. Only the changes
+     * are applied, and only the browse nodes they affect are notified; the catalog is loaded
+     * instead if it isn't yet.
+     */
+    public void syncCatalogAsync(final Callback callback) {
+        TaskScheduler.getInstance().execute(TaskScheduler.Lane.NETWORK, TaskScheduler.PRIORITY_LOW,
+                new TaskScheduler.Task<Boolean>() {
+                    @Override
+                    protected Boolean doInBackground() {
+                        return syncCatalog();
+                    }
+
+                    @Override
+                    protected void onResult(Boolean synced) {
+                        if (callback != null) {
+                            callback.onMusicCatalogReady(synced);
+                        }
+                    }
+
+                    @Override
+                    protected void onError(Exception e) {
+                        LogHelper.e(TAG, e, "Could not sync music catalog");
+                        if (callback != null) {
+                            callback.onMusicCatalogReady(false);
+                        }
+                    }
+                });
+    }
+
+    private boolean syncCatalog() {
+        if (mCurrentState != State.INITIALIZED) {
+            retrieveMedia();
+            return mCurrentState == State.INITIALIZED;
+        }
+        synchronized (mSyncLock) {
+            long start = System.currentTimeMillis();
+            CatalogDelta delta = null;
+            if (mSource instanceof DeltaMusicProviderSource && mSourceVersion != null) {
+                delta = ((DeltaMusicProviderSource) mSource).getDelta(mSourceVersion);
+            }
+            if (delta == null) {
+                delta = reloadAsDelta();
+                if (delta == null) {
+                    return false;
+                }
+            }
+            // The favorites and the play history have locks of their own: they are looked up,
+            // and the listener notified, once the catalog lock is released.
+            List<String> parentMediaIds = new ArrayList<>();
+            Set<String> touched = applyDelta(delta, parentMediaIds);
+            notifyTracksChanged(touched, parentMediaIds);
+            LogHelper.i(TAG, "Catalog synced in ", System.currentTimeMillis() - start, "ms: ",
+                    delta.added.size(), " added, ", delta.changed.size(), " changed, ",
+                    delta.removed.size(), " removed");
+            return true;
+        }
+    }
+
+    // For sources that can't tell what changed: the whole catalog is read again and compared
+    // with the loaded one, so that only the changes are applied all the same.
+    private CatalogDelta reloadAsDelta() {
+        List<MediaMetadataCompat> tracks = new ArrayList<>();
+        Iterator<MediaMetadataCompat> iterator = mSource.iterator();
+        while (iterator.hasNext()) {
+            tracks.add(iterator.next());
+        }
+        if (tracks.isEmpty() && !mMusicListById.isEmpty()) {
+            // More likely an unreachable source than an emptied catalog.
+            LogHelper.w(TAG, "Music source returned no tracks, keeping the loaded catalog");
+            return null;
+        }
+        Map<String, MediaMetadataCompat> loaded = new HashMap<>(mMusicListById.size() * 2);
+        for (MutableMediaMetadata m : mMusicListById.values()) {
+            loaded.put(m.trackId, m.metadata);
+        }
+        String version = mSource instanceof DeltaMusicProviderSource
+                ? ((DeltaMusicProviderSource) mSource).getVersion() : null;
+        return CatalogDelta.between(loaded, tracks, version);
+    }
+
+    /**
+     * Apply catalog changes to the id map, the ordinals and the genre lists. The search and
+     * similarity indexes are rebuilt in the background, and only if the changes affect them.
+     *
+     * @param parentMediaIds receives the genre nodes the changes touch, their cached items
+     *                       already dropped
+     * @return the ids of the tracks added, changed or removed
+     */
+    private synchronized Set<String> applyDelta(CatalogDelta delta, List<String> parentMediaIds) {
+        mSourceVersion = delta.version;
+        if (delta.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> touched = new HashSet<>();
+        Set<String> genres = new HashSet<>();
+        Map<String, Map<String, MediaMetadataCompat>> arrivedByGenre = new HashMap<>();
+        Set<String> removedIds = new HashSet<>();
+        List<String> addedIds = new ArrayList<>();
+        boolean indexesAffected = false;
+        TrackTable table = mTracks;
+        LongHashSet addedKeys = new LongHashSet();
+
+        for (String musicId : delta.removed) {
+            MutableMediaMetadata old = mMusicListById.remove(musicId);
+            if (old != null) {
+                removedIds.add(musicId);
+                touched.add(musicId);
+                addGenre(genres, old.metadata);
+                indexesAffected = true;
+            }
+        }
+        List<MediaMetadataCompat> arrived = new ArrayList<>(delta.changed);
+        arrived.addAll(delta.added);
+        for (MediaMetadataCompat track : arrived) {
+            String musicId = track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+            MutableMediaMetadata old = mMusicListById.get(musicId);
+            if (old == null) {
+                long key = TrackKey.of(musicId);
+                String holder = table.getId(key);
+                if (!addedKeys.add(key) || holder != null && !holder.equals(musicId)
+                        && mMusicListById.containsKey(holder)) {
+                    reportCollision(musicId, track);
+                    continue;
+                }
+                mMusicListById.put(musicId, new MutableMediaMetadata(musicId, track));
+                if (!removedIds.remove(musicId)) {
+                    addedIds.add(musicId);
+                }
+                indexesAffected = true;
+            } else {
+                indexesAffected |= CatalogDelta.isIndexedChange(old.metadata, track);
+                addGenre(genres, old.metadata);
+                old.metadata = track;
+            }
+            touched.add(musicId);
+            String genre = track.getString(MediaMetadataCompat.METADATA_KEY_GENRE);
+            if (genre != null) {
+                genres.add(genre);
+                Map<String, MediaMetadataCompat> tracks = arrivedByGenre.get(genre);
+                if (tracks == null) {
+                    tracks = new HashMap<>();
+                    arrivedByGenre.put(genre, tracks);
+                }
+                tracks.put(musicId, track);
+            }
+        }
+
+        if (!addedIds.isEmpty() || !removedIds.isEmpty()) {
+            String[] previous = table.ids;
+            List<String> trackIds = new ArrayList<>(previous.length + addedIds.size());
+            for (String trackId : previous) {
+                if (!removedIds.contains(trackId)) {
+                    trackIds.add(trackId);
+                }
+            }
+            trackIds.addAll(addedIds);
+            mTracks = new TrackTable(trackIds.toArray(new String[trackIds.size()]));
+        }
+        boolean genresChanged = updateGenreLists(genres, arrivedByGenre);
+        if (indexesAffected) {
+            scheduleIndexRebuild();
+        }
+        // Nobody subscribes to search results: they are only dropped.
+        mChildrenCache.invalidatePrefix(MEDIA_ID_MUSICS_BY_SEARCH);
+        if (genresChanged) {
+            parentMediaIds.add(MEDIA_ID_MUSICS_BY_GENRE);
+        }
+        for (String genre : genres) {
+            parentMediaIds.add(createMediaID(null, MEDIA_ID_MUSICS_BY_GENRE, genre));
+        }
+        // Dropped with the lists they were built from, so no browser is served stale items.
+        for (String parentMediaId : parentMediaIds) {
+            mChildrenCache.invalidate(parentMediaId);
+        }
+        return touched;
+    }
+
+    private static void addGenre(Set<String> genres, MediaMetadataCompat metadata) {
+        String genre = metadata.getString(MediaMetadataCompat.METADATA_KEY_GENRE);
+        if (genre != null) {
+            genres.add(genre);
+        }
+    }
+
+    // Each list is replaced rather than modified, as the previous one may have been handed out.
+    // Tracks keep their place in their genre; new ones are appended.
+    private boolean updateGenreLists(Set<String> genres,
+                                     Map<String, Map<String, MediaMetadataCompat>> arrivedByGenre) {
+        boolean genresChanged = false;
+        for (String genre : genres) {
+            Map<String, MediaMetadataCompat> arrived = arrivedByGenre.get(genre);
+            if (arrived == null) {
+                arrived = Collections.emptyMap();
+            }
+            List<MediaMetadataCompat> previous = mMusicListByGenre.get(genre);
+            List<MediaMetadataCompat> tracks = new ArrayList<>();
+            Set<String> listed = new HashSet<>();
+            if (previous != null) {
+                for (MediaMetadataCompat track : previous) {
+                    String musicId = track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+                    MutableMediaMetadata current = mMusicListById.get(musicId);
+                    if (current == null || !genre.equals(
+                            current.metadata.getString(MediaMetadataCompat.METADATA_KEY_GENRE))) {
+                        continue;
+                    }
+                    MediaMetadataCompat changed = arrived.get(musicId);
+                    tracks.add(changed != null ? changed : track);
+                    listed.add(musicId);
+                }
+            }
+            for (Map.Entry<String, MediaMetadataCompat> entry : arrived.entrySet()) {
+                if (listed.add(entry.getKey())) {
+                    tracks.add(entry.getValue());
+                }
+            }
+            if (tracks.isEmpty()) {
+                genresChanged |= mMusicListByGenre.remove(genre) != null;
+            } else {
+                genresChanged |= mMusicListByGenre.put(genre, tracks) == null;
+            }
+        }
+        if (genresChanged) {
+            // Remaining genres keep their browse order.
+            List<String> names = new ArrayList<>(mMusicListByGenre.size());
+            for (String genre : mGenres) {
+                if (mMusicListByGenre.containsKey(genre)) {
+                    names.add(genre);
+                }
+            }
+            for (String genre : mMusicListByGenre.keySet()) {
+                if (!names.contains(genre)) {
+                    names.add(genre);
+                }
+            }
+            mGenres = names;
+        }
+        return genresChanged;
+    }
+
+    // Notifies the given nodes, and those of the other nodes that list any of the tracks.
+    private void notifyTracksChanged(Set<String> musicIds, List<String> parentMediaIds) {
+        if (musicIds.isEmpty()) {
+            return;
+        }
+        for (String musicId : musicIds) {
+            if (mFavorites.isFavorite(musicId)) {
+                parentMediaIds.add(MEDIA_ID_FAVORITES);
+                break;
+            }
+        }
+        if (isInPlayHistoryNodes(musicIds)) {
+            parentMediaIds.add(MEDIA_ID_RECENTLY_PLAYED);
+            parentMediaIds.add(MEDIA_ID_MOST_PLAYED);
+        }
+        notifyChildrenChanged(parentMediaIds);
+    }
+
+    // Drops the cached items of the nodes at once, and notifies the listener later, on the
+    // main thread: the changes are often applied on a background lane, with locks held.
+    private void notifyChildrenChanged(final List<String> parentMediaIds) {
+        if (parentMediaIds.isEmpty()) {
+            return;
+        }
+        for (String parentMediaId : parentMediaIds) {
+            mChildrenCache.invalidate(parentMediaId);
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                OnChildrenChangedListener listener = mChildrenChangedListener;
+                if (listener == null) {
+                    return;
+                }
+                for (String parentMediaId : parentMediaIds) {
+                    listener.onChildrenChanged(parentMediaId);
+                }
+            }
+        });
+    }
+
+    private boolean isInPlayHistoryNodes(Set<String> musicIds) {
+        LongHashSet keys = new LongHashSet(musicIds.size());
+        for (String musicId : musicIds) {
+            keys.add(TrackKey.of(musicId));
+        }
+        for (long[] node : new long[][]{mPlayHistory.getRecentlyPlayed(HISTORY_BROWSE_SIZE),
+                mPlayHistory.getMostPlayed(HISTORY_BROWSE_SIZE)}) {
+            for (long key : node) {
+                if (keys.contains(key)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // One rebuild at a time: changes applied while one runs are picked up by one more pass.
+    private void scheduleIndexRebuild() {
+        mIndexesStale = true;
+        if (mIndexRebuildScheduled) {
+            return;
+        }
+        mIndexRebuildScheduled = true;
+        TaskScheduler.getInstance().execute(TaskScheduler.Lane.CPU, TaskScheduler.PRIORITY_LOW,
+                new TaskScheduler.Task<Void>() {
+                    @Override
+                    protected Void doInBackground() {
+                        rebuildIndexes();
+                        return null;
+                    }
+
+                    @Override
+                    protected void onError(Exception e) {
+                        LogHelper.e(TAG, e, "Could not rebuild the catalog indexes");
+                        synchronized (MusicProvider.this) {
+                            mIndexRebuildScheduled = false;
+                        }
+                    }
+                });
+    }
+
+    // Until a rebuild is done, the previous indexes keep answering: their tracks are looked
+    // up by id, so removed tracks are skipped and changed ones are returned as they are now.
+    private void rebuildIndexes() {
+        while (true) {
+            String[] trackIds;
+            MediaMetadataCompat[] catalog;
+            synchronized (this) {
+                if (!mIndexesStale) {
+                    mIndexRebuildScheduled = false;
+                    return;
+                }
+                mIndexesStale = false;
+                trackIds = mTracks.ids;
+                catalog = getCatalog(trackIds);
+            }
+            SimilarityIndex similarityIndex = SimilarityIndex.build(trackIds, catalog);
+            FuzzySearchIndex searchIndex = FuzzySearchIndex.build(trackIds, catalog);
+            mSimilarityIndex = similarityIndex;
+            mSearchIndex = searchIndex;
+            mChildrenCache.invalidatePrefix(MEDIA_ID_MUSICS_BY_SEARCH);
+        }
+    }
+
 
     public List<MediaBrowserCompat.MediaItem> getChildren(String mediaId, Resources resources) {
+        return getChildren(mediaId, resources, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Return a range of the children of the given browse node. Only the MediaItems inside the
+     * range are created, so a client paging through a large genre doesn't pay for (or receive
+     * over Binder) the whole list at once.
+     *
+     * @param fromIndex index of the first child to return
+     * @param count maximum number of children to return
+     */
+    public List<MediaBrowserCompat.MediaItem> getChildren(String mediaId, Resources resources,
+                                                          int fromIndex, int count) {
         List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
 
-        if (!MediaIDHelper.isBrowseable(mediaId)) {
+        if (!MediaIDHelper.isBrowseable(mediaId) || fromIndex < 0 || count <= 0) {
             return mediaItems;
         }
 
+        List<MediaMetadataCompat> tracks = null;
+        // Browse hierarchy of the track items, when not their genre.
+        String[] trackCategories = null;
+        List<String> genres = null;
+        int childCount;
         if (MEDIA_ID_ROOT.equals(mediaId)) {
-            mediaItems.add(createBrowsableMediaItemForRoot(resources));
+            // Genres, then the other categories.
+            childCount = 1 + ROOT_CATEGORIES.length;
 
         } else if (MEDIA_ID_MUSICS_BY_GENRE.equals(mediaId)) {
-            for (String genre : getGenres()) {
-                mediaItems.add(createBrowsableMediaItemForGenre(genre, resources));
-            }
+            genres = isInitialized() ? mGenres : Collections.<String>emptyList();
+            childCount = genres.size();
 
         } else if (mediaId.startsWith(MEDIA_ID_MUSICS_BY_GENRE)) {
-            String genre = MediaIDHelper.getHierarchy(mediaId)[1];
-            for (MediaMetadataCompat metadata : getMusicsByGenre(genre)) {
-                mediaItems.add(createMediaItem(metadata));
-            }
+            tracks = getMusicsByGenre(MediaId.parse(mediaId).getCategory(1));
+            childCount = tracks.size();
+
+        } else if (mediaId.startsWith(MEDIA_ID_MUSICS_BY_SEARCH)) {
+            return getSearchResults(mediaId, fromIndex, count);
+
+        } else if (MEDIA_ID_FAVORITES.equals(mediaId)) {
+            tracks = getFavoriteMusic();
+            trackCategories = new String[]{MEDIA_ID_FAVORITES};
+            childCount = tracks.size();
+
+        } else if (MEDIA_ID_RECENTLY_PLAYED.equals(mediaId)) {
+            tracks = getRecentlyPlayedMusic(HISTORY_BROWSE_SIZE);
+            trackCategories = new String[]{MEDIA_ID_RECENTLY_PLAYED};
+            childCount = tracks.size();
+
+        } else if (MEDIA_ID_MOST_PLAYED.equals(mediaId)) {
+            tracks = getMostPlayedMusic(HISTORY_BROWSE_SIZE);
+            trackCategories = new String[]{MEDIA_ID_MOST_PLAYED};
+            childCount = tracks.size();
 
         } else {
             LogHelper.w(TAG, "Skipping unmatched mediaId: ", mediaId);
+            return mediaItems;
+        }
+
+        // Several browsers (app UI, Auto, Wear) tend to load the same nodes: reuse the items
+        // built for them as long as the catalog hasn't changed.
+        int version = mCatalogVersion;
+        MediaBrowserCompat.MediaItem[] page = null;
+        int toIndex = count >= childCount - fromIndex ? childCount : fromIndex + count;
+        for (int i = fromIndex; i < toIndex; i++) {
+            int slot = i % MediaItemCache.PAGE_SIZE;
+            if (page == null || slot == 0) {
+                page = mChildrenCache.getPage(mediaId, version, childCount,
+                        i / MediaItemCache.PAGE_SIZE);
+            }
+            MediaBrowserCompat.MediaItem item = page[slot];
+            if (item == null) {
+                if (tracks != null) {
+                    item = trackCategories == null ? createMediaItem(tracks.get(i))
+                            : createMediaItem(tracks.get(i), trackCategories);
+                } else if (genres != null) {
+                    item = createBrowsableMediaItemForGenre(genres.get(i), resources);
+                } else if (i == 0) {
+                    item = createBrowsableMediaItemForRoot(resources);
+                } else {
+                    item = createBrowsableMediaItemForCategory(i - 1, resources);
+                }
+                page[slot] = item;
+            }
+            mediaItems.add(item);
+        }
+        return mediaItems;
+    }
+
+    /**
+     * Return the browse node listing the search results of the given query, or null if the
+     * query has no words to search for. Queries differing only in case, accents or punctuation
+     * share the same node, and so the same cached results.
+     */
+    public static String getSearchMediaId(String query) {
+        return getSearchMediaId(query, null);
+    }
+
+    /**
+     * Return the node of a search focused on one field, as voice searches are. Its id keeps
+     * the focus, so that a queue rebuilt from it weighs the fields the same way.
+     *
+     * @param focusKey the METADATA_KEY_* the query is about, or null if unknown
+     */
+    public static String getSearchMediaId(String query, String focusKey) {
+        List<String> words = FuzzySearchIndex.tokenize(query);
+        if (words.isEmpty()) {
+            return null;
+        }
+        StringBuilder normalized = new StringBuilder(query.length());
+        for (String word : words) {
+            if (normalized.length() > 0) {
+                normalized.append(' ');
+            }
+            normalized.append(word);
+        }
+        if (focusKey == null) {
+            return createMediaID(null, MEDIA_ID_MUSICS_BY_SEARCH, normalized.toString());
+        }
+        return createMediaID(null, MEDIA_ID_MUSICS_BY_SEARCH, normalized.toString(), focusKey);
+    }
+
+    /**
+     * Get the tracks of a search node, best first. Browsing the node and queueing it run the
+     * same search, so a track picked from the results is in the queue built for it.
+     */
+    public List<MediaMetadataCompat> getSearchNodeMusic(MediaId node) {
+        String focusKey = node.getHierarchyDepth() > 2 ? node.getCategory(2) : null;
+        return searchMusic(node.getCategory(1), focusKey, SEARCH_MAX_RESULTS);
+    }
+
+    // The search runs once per query and catalog version; its items are all built and cached
+    // together, so paging through the results doesn't search again.
+    private List<MediaBrowserCompat.MediaItem> getSearchResults(String mediaId, int fromIndex,
+                                                                 int count) {
+        int version = mCatalogVersion;
+        MediaBrowserCompat.MediaItem[] items = mChildrenCache.peekItems(mediaId, version);
+        if (items == null) {
+            MediaId node = MediaId.parse(mediaId);
+            List<MediaMetadataCompat> tracks = getSearchNodeMusic(node);
+            String[] categories = node.getHierarchy();
+            items = new MediaBrowserCompat.MediaItem[tracks.size()];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = createMediaItem(tracks.get(i), categories);
+            }
+            if (isInitialized()) {
+                mChildrenCache.putItems(mediaId, version, items);
+            }
+        }
+        List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
+        int toIndex = count >= items.length - fromIndex ? items.length : fromIndex + count;
+        for (int i = fromIndex; i < toIndex; i++) {
+            mediaItems.add(items[i]);
         }
         return mediaItems;
     }
@@ -311,6 +1142,16 @@ public class MusicProvider {
         return new MediaBrowserCompat.MediaItem(description, MediaBrowserCompat.MediaItem.FLAG_BROWSABLE);
     }
 
+    private MediaBrowserCompat.MediaItem createBrowsableMediaItemForCategory(int category,
+                                                                             Resources resources) {
+        MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                .setMediaId(ROOT_CATEGORIES[category])
+                .setTitle(resources.getString(ROOT_CATEGORY_TITLES[category]))
+                .setSubtitle(resources.getString(ROOT_CATEGORY_SUBTITLES[category]))
+                .build();
+        return new MediaBrowserCompat.MediaItem(description, MediaBrowserCompat.MediaItem.FLAG_BROWSABLE);
+    }
+
     private MediaBrowserCompat.MediaItem createBrowsableMediaItemForGenre(String genre, Resources resources) {
         MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
                 .setMediaId(createMediaID(null, MEDIA_ID_MUSICS_BY_GENRE, genre))
@@ -326,7 +1167,12 @@ public class MusicProvider {
         // when we get a onPlayFromMusicID call, so we can create the proper queue(适当的队列) based
         // on where the music was selected from (by artist, by genre, random, etc)
         String genre = metadata.getString(MediaMetadataCompat.METADATA_KEY_GENRE);
-        String hierarchyAwareMediaID = createMediaID(metadata.getDescription().getMediaId(), MEDIA_ID_MUSICS_BY_GENRE, genre);
+        return createMediaItem(metadata, MEDIA_ID_MUSICS_BY_GENRE, genre);
+    }
+
+    private MediaBrowserCompat.MediaItem createMediaItem(MediaMetadataCompat metadata,
+                                                         String... categories) {
+        String hierarchyAwareMediaID = createMediaID(metadata.getDescription().getMediaId(), categories);
         MediaMetadataCompat copy = new MediaMetadataCompat.Builder(metadata)
                 .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
                 .build();
@@ -334,4 +1180,28 @@ public class MusicProvider {
 
     }
 
+    /**
+     * Track ids by ordinal, and ordinals by TrackKey. Never modified once published, so it is
+     * read without locking.
+     */
+    private static final class TrackTable {
+        final String[] ids;
+        private final LongIntHashMap mOrdinals;
+
+        TrackTable(String[] ids) {
+            this.ids = ids;
+            mOrdinals = new LongIntHashMap(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                mOrdinals.put(TrackKey.of(ids[i]), i);
+            }
+        }
+
+        /**
+         * @return the id of the track with the key, or null if there is none
+         */
+        String getId(long key) {
+            int ordinal = mOrdinals.get(key, -1);
+            return ordinal < 0 ? null : ids[ordinal];
+        }
+    }
 }
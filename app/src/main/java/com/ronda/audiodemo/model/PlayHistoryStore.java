@@ -0,0 +1,414 @@
+package com.ronda.audiodemo.model;
+
+import com.ronda.audiodemo.TaskScheduler;
+import com.ronda.audiodemo.utils.LogHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Log of what was played, with the listening statistics derived from it.
+ * <p/>
+ * Every event is a fixed-size record (time, track key, event, position) appended to an
+ * {@link AppendLog}. Records are batched in memory and written on the DISK lane once a batch is
+ * full or a moment after its first record, so playing music costs a write every few tracks.
+ * Once the log holds many more records than there are tracks in it, it is rewritten as one pair
+ * of rollup records per track.
+ * <p/>
+ * The statistics are kept up to date in memory as events come in, so that queries don't scan
+ * the log:
+ * <ul>
+ * <li>play and skip counts per track;</li>
+ * <li>the played tracks in order of last play, as a linked list: the k most recent are the k
+ * first links;</li>
+ * <li>the played tracks in order of play count, as an array sorted by count with the start of
+ * each run of equal counts: a play moves the track to the start of its run and grows the
+ * count, which keeps the array sorted in constant time. The k most played are the k first
+ * entries.</li>
+ * </ul>
+ * Tracks are identified by the 64-bit key of their music id, see {@link TrackKey}.
+ */
+public class PlayHistoryStore {
+    private static final String TAG = LogHelper.makeLogTag(PlayHistoryStore.class);
+
+    /**
+     * The track was listened to: to its end, or long enough to count as played.
+     */
+    public static final byte EVENT_PLAYED = 0;
+    /**
+     * The track was left soon after it started.
+     */
+    public static final byte EVENT_SKIPPED = 1;
+    public static final byte EVENT_PAUSED = 2;
+    // Written by compaction: the play count (and last play time) or the skip count of a track.
+    private static final byte EVENT_ROLLUP_PLAYS = 3;
+    private static final byte EVENT_ROLLUP_SKIPS = 4;
+
+    // Time (8), track key (8), event (1), position or count (4).
+    private static final int RECORD_SIZE = 21;
+    private static final int BATCH_RECORDS = 64;
+    private static final long WRITE_BEHIND_DELAY_MS = 10000;
+    // The log is compacted once it holds this many records, and four times as many as there
+    // are tracks in it.
+    private static final int COMPACT_MIN_RECORDS = 4096;
+
+    private final AppendLog mLog;
+
+    // Guarded by this:
+    private boolean mLoaded;
+    private final Map<Long, TrackStats> mStats = new HashMap<>();
+    // Most recently played first.
+    private TrackStats mRecentHead;
+    // Played tracks by play count, highest first, and index of the first track of each count.
+    private TrackStats[] mRanking = new TrackStats[16];
+    private int mRankedCount;
+    private final Map<Integer, Integer> mRunStarts = new HashMap<>();
+    private ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    private int mPendingRecords;
+
+    /**
+     * @param file the log file, or null to keep the history in memory only
+     */
+    public PlayHistoryStore(File file) {
+        mLog = file == null ? null : new AppendLog(file, new AppendLog.Owner() {
+            @Override
+            public void readRecord(DataInputStream in) throws IOException {
+                PlayHistoryStore.this.readRecord(in);
+            }
+
+            @Override
+            public AppendLog.Batch takeBatch(int logRecords, boolean needSnapshot) {
+                return PlayHistoryStore.this.takeBatch(logRecords, needSnapshot);
+            }
+        });
+    }
+
+    /**
+     * Load the log on the DISK lane, so the statistics are ready before the first query.
+     */
+    public void loadAsync() {
+        TaskScheduler.getInstance().execute(TaskScheduler.Lane.DISK, TaskScheduler.PRIORITY_NORMAL,
+                new TaskScheduler.Task<Void>() {
+                    @Override
+                    protected Void doInBackground() {
+                        load();
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Read the log, if not done yet. Queries call this, so it only needs to be called directly
+     * to load ahead of time.
+     */
+    public synchronized void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (mLog == null) {
+            return;
+        }
+        // No flush can run yet: nothing is recorded before the log is loaded.
+        int records = mLog.load();
+        buildRanking();
+        LogHelper.d(TAG, "Loaded play history of ", mStats.size(), " tracks from ", records,
+                " records");
+    }
+
+    // Must hold the lock. Only counts: the ranking is built once the whole log is read.
+    private void readRecord(DataInputStream in) throws IOException {
+        long time = in.readLong();
+        long key = in.readLong();
+        byte event = in.readByte();
+        int value = in.readInt();
+        replay(time, key, event, value);
+    }
+
+    /**
+     * Record a playback event.
+     *
+     * @param event    one of the EVENT_* constants
+     * @param position how far into the track the event happened, in ms
+     */
+    public void record(String musicId, byte event, long position) {
+        long time = System.currentTimeMillis();
+        long key = TrackKey.of(musicId);
+        int value = (int) Math.min(Math.max(position, 0), Integer.MAX_VALUE);
+        boolean flushNow = false;
+        synchronized (this) {
+            load();
+            TrackStats stats = getStats(key);
+            if (event == EVENT_PLAYED) {
+                stats.lastPlayed = time;
+                moveToRecentHead(stats);
+                incrementPlays(stats);
+            } else if (event == EVENT_SKIPPED) {
+                stats.skips++;
+            }
+            if (mLog == null) {
+                return;
+            }
+            writeRecord(mPending, time, key, event, value);
+            mPendingRecords++;
+            if (mPendingRecords >= BATCH_RECORDS) {
+                flushNow = true;
+            } else {
+                mLog.scheduleFlush(WRITE_BEHIND_DELAY_MS);
+            }
+        }
+        if (flushNow) {
+            mLog.flush();
+        }
+    }
+
+    /**
+     * @return the keys of the k most recently played tracks, most recent first
+     */
+    public synchronized long[] getRecentlyPlayed(int k) {
+        load();
+        long[] keys = new long[k];
+        int count = 0;
+        for (TrackStats stats = mRecentHead; stats != null && count < k; stats = stats.next) {
+            keys[count++] = stats.key;
+        }
+        return count == k ? keys : Arrays.copyOf(keys, count);
+    }
+
+    /**
+     * @return the keys of the k most played tracks, most played first
+     */
+    public synchronized long[] getMostPlayed(int k) {
+        load();
+        long[] keys = new long[Math.min(k, mRankedCount)];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = mRanking[i].key;
+        }
+        return keys;
+    }
+
+    public synchronized int getPlayCount(String musicId) {
+        load();
+        TrackStats stats = mStats.get(TrackKey.of(musicId));
+        return stats == null ? 0 : stats.plays;
+    }
+
+    /**
+     * @return the share of the times the track was started that it was skipped, or 0 if it
+     * was never started
+     */
+    public synchronized float getSkipRate(String musicId) {
+        load();
+        TrackStats stats = mStats.get(TrackKey.of(musicId));
+        if (stats == null || stats.plays + stats.skips == 0) {
+            return 0;
+        }
+        return stats.skips / (float) (stats.plays + stats.skips);
+    }
+
+    /**
+     * Write the recorded events now, on the DISK lane, instead of waiting for the batch to fill.
+     */
+    public void flush() {
+        if (mLog != null) {
+            mLog.flush();
+        }
+    }
+
+    // The rollups and the pending records are taken together, so the rollups cover exactly
+    // the events they drop.
+    private synchronized AppendLog.Batch takeBatch(int logRecords, boolean needSnapshot) {
+        if (mPendingRecords == 0 && !needSnapshot) {
+            return null;
+        }
+        AppendLog.Batch batch;
+        int records = logRecords + mPendingRecords;
+        if (needSnapshot || records >= COMPACT_MIN_RECORDS && records >= 4 * mStats.size()) {
+            byte[] rollups = encodeRollups();
+            batch = AppendLog.Batch.snapshot(rollups, rollups.length / RECORD_SIZE);
+        } else {
+            batch = AppendLog.Batch.append(mPending.toByteArray(), mPendingRecords);
+        }
+        mPending = new ByteArrayOutputStream();
+        mPendingRecords = 0;
+        return batch;
+    }
+
+    // Must hold the lock. Tracks never played come first, then the played ones from the least
+    // to the most recent, so that replaying the rollups rebuilds the same recency order.
+    private byte[] encodeRollups() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(mStats.size() * 2 * RECORD_SIZE);
+        TrackStats oldest = null;
+        for (TrackStats stats : mStats.values()) {
+            if (stats.plays == 0) {
+                if (stats.skips > 0) {
+                    writeRecord(bytes, 0, stats.key, EVENT_ROLLUP_SKIPS, stats.skips);
+                }
+            } else if (stats.next == null) {
+                oldest = stats;
+            }
+        }
+        for (TrackStats stats = oldest; stats != null; stats = stats.previous) {
+            writeRecord(bytes, stats.lastPlayed, stats.key, EVENT_ROLLUP_PLAYS, stats.plays);
+            if (stats.skips > 0) {
+                writeRecord(bytes, stats.lastPlayed, stats.key, EVENT_ROLLUP_SKIPS, stats.skips);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeRecord(ByteArrayOutputStream bytes, long time, long key, byte event,
+                                    int value) {
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeLong(time);
+            out.writeLong(key);
+            out.writeByte(event);
+            out.writeInt(value);
+        } catch (IOException e) {
+            // Writing to memory.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Must hold the lock.
+    private void replay(long time, long key, byte event, int value) {
+        TrackStats stats = getStats(key);
+        switch (event) {
+            case EVENT_PLAYED:
+                stats.plays++;
+                stats.lastPlayed = time;
+                moveToRecentHead(stats);
+                break;
+            case EVENT_SKIPPED:
+                stats.skips++;
+                break;
+            case EVENT_ROLLUP_PLAYS:
+                stats.plays += value;
+                stats.lastPlayed = time;
+                moveToRecentHead(stats);
+                break;
+            case EVENT_ROLLUP_SKIPS:
+                stats.skips += value;
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Must hold the lock.
+    private TrackStats getStats(long key) {
+        TrackStats stats = mStats.get(key);
+        if (stats == null) {
+            stats = new TrackStats(key);
+            mStats.put(key, stats);
+        }
+        return stats;
+    }
+
+    // Must hold the lock.
+    private void moveToRecentHead(TrackStats stats) {
+        if (mRecentHead == stats) {
+            return;
+        }
+        if (stats.previous != null) {
+            stats.previous.next = stats.next;
+        }
+        if (stats.next != null) {
+            stats.next.previous = stats.previous;
+        }
+        stats.previous = null;
+        stats.next = mRecentHead;
+        if (mRecentHead != null) {
+            mRecentHead.previous = stats;
+        }
+        mRecentHead = stats;
+    }
+
+    // Must hold the lock.
+    private void buildRanking() {
+        List<TrackStats> played = new ArrayList<>();
+        for (TrackStats stats : mStats.values()) {
+            if (stats.plays > 0) {
+                played.add(stats);
+            }
+        }
+        TrackStats[] ranking = played.toArray(new TrackStats[Math.max(16, played.size())]);
+        Arrays.sort(ranking, 0, played.size(), new Comparator<TrackStats>() {
+            @Override
+            public int compare(TrackStats a, TrackStats b) {
+                if (a.plays != b.plays) {
+                    return a.plays > b.plays ? -1 : 1;
+                }
+                return a.lastPlayed > b.lastPlayed ? -1 : a.lastPlayed < b.lastPlayed ? 1 : 0;
+            }
+        });
+        mRanking = ranking;
+        mRankedCount = played.size();
+        mRunStarts.clear();
+        for (int i = 0; i < mRankedCount; i++) {
+            ranking[i].rank = i;
+            if (i == 0 || ranking[i - 1].plays != ranking[i].plays) {
+                mRunStarts.put(ranking[i].plays, i);
+            }
+        }
+    }
+
+    // Must hold the lock. Moves the track to the start of the run of its count, which becomes
+    // the end of the run of the next count.
+    private void incrementPlays(TrackStats stats) {
+        if (stats.plays == 0) {
+            if (mRankedCount == mRanking.length) {
+                mRanking = Arrays.copyOf(mRanking, mRankedCount * 2);
+            }
+            stats.rank = mRankedCount;
+            mRanking[mRankedCount++] = stats;
+            stats.plays = 1;
+            if (!mRunStarts.containsKey(1)) {
+                mRunStarts.put(1, stats.rank);
+            }
+            return;
+        }
+        int plays = stats.plays;
+        int first = mRunStarts.get(plays);
+        TrackStats displaced = mRanking[first];
+        mRanking[stats.rank] = displaced;
+        displaced.rank = stats.rank;
+        mRanking[first] = stats;
+        stats.rank = first;
+
+        if (first + 1 < mRankedCount && mRanking[first + 1].plays == plays) {
+            mRunStarts.put(plays, first + 1);
+        } else {
+            mRunStarts.remove(plays);
+        }
+        stats.plays = plays + 1;
+        if (!mRunStarts.containsKey(plays + 1)) {
+            mRunStarts.put(plays + 1, first);
+        }
+    }
+
+    private static final class TrackStats {
+        final long key;
+        int plays;
+        int skips;
+        long lastPlayed;
+        // Links of the recency list, and index in the ranking if played.
+        TrackStats previous;
+        TrackStats next;
+        int rank = -1;
+
+        TrackStats(long key) {
+            this.key = key;
+        }
+    }
+}
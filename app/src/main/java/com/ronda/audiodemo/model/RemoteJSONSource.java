@@ -1,27 +1,40 @@
 package com.ronda.audiodemo.model;
 
 import android.support.v4.media.MediaMetadataCompat;
-
+import android.util.JsonReader;
 
 import com.ronda.audiodemo.utils.LogHelper;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Utility class to get a list of MusicTrack's based on a server-side JSON
  * configuration.
+ * <p/>
+ * The catalog is asked for compressed, and in the binary encoding below when the server has it.
+ * Either way it is decompressed and parsed as it streams in, without a copy of the whole file.
  */
-public class RemoteJSONSource implements MusicProviderSource {
+public class RemoteJSONSource implements DeltaMusicProviderSource {
 
     private static final String TAG = LogHelper.makeLogTag(RemoteJSONSource.class);
 
@@ -38,41 +51,249 @@ public class RemoteJSONSource implements MusicProviderSource {
     private static final String JSON_TOTAL_TRACK_COUNT = "totalTrackCount";
     private static final String JSON_DURATION = "duration";
 
+    /*
+     * Binary catalog, served as BINARY_CATALOG_TYPE. The same fields as the JSON catalog, with
+     * every string stored once. Integers are unsigned LEB128 varints, strings are a varint
+     * length followed by UTF-8 bytes:
+     *
+     *   int32   magic, "MCT1" big-endian
+     *   varint  string count, followed by the strings
+     *   varint  track count, followed by the tracks, each:
+     *           6 varints: indexes of title, album, artist, genre, source and image strings
+     *           3 varints: track number, total track count, duration in seconds
+     */
+    private static final String BINARY_CATALOG_TYPE = "application/x-music-catalog";
+    private static final int BINARY_CATALOG_MAGIC = 0x4d435431; // "MCT1"
+    // Bounds the arrays a corrupt header could make us allocate.
+    private static final int BINARY_CATALOG_MAX_COUNT = 1 << 24;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 8192;
+
+    private final URL mCatalogUrl;
+
+    // The catalog last returned, to tell what changed in the next one, and its version: the
+    // ETag of the catalog file, or a checksum of its content when the server sends none.
+    private Map<String, MediaMetadataCompat> mSnapshot;
+    private String mVersion;
+    private String mETag;
+
+    public RemoteJSONSource() {
+        this(toUrl(CATALOG_URL));
+    }
+
+    /**
+     * @param catalogUrl where the catalog is downloaded from; relative media paths in it are
+     *                   resolved against it
+     */
+    RemoteJSONSource(URL catalogUrl) {
+        mCatalogUrl = catalogUrl;
+    }
+
+    private static URL toUrl(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
     @Override
-    public Iterator<MediaMetadataCompat> iterator() {
+    public synchronized Iterator<MediaMetadataCompat> iterator() {
         try {
-            int slashPos = CATALOG_URL.lastIndexOf('/');
-            String path = CATALOG_URL.substring(0, slashPos + 1);
-            JSONObject jsonObj = fetchJSONFromUrl(CATALOG_URL);
-            ArrayList<MediaMetadataCompat> tracks = new ArrayList<>();
-            if (jsonObj != null) {
-                JSONArray jsonTracks = jsonObj.getJSONArray(JSON_MUSIC);
-
-                if (jsonTracks != null) {
-                    for (int j = 0; j < jsonTracks.length(); j++) {
-                        tracks.add(buildFromJSON(jsonTracks.getJSONObject(j), path));
-                    }
-                }
+            Catalog catalog = fetchCatalog(null);
+            List<MediaMetadataCompat> tracks = new ArrayList<>();
+            if (catalog != null) {
+                tracks = catalog.tracks;
+                setSnapshot(tracks, catalog);
             }
             return tracks.iterator();
-        } catch (JSONException e) {
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not retrieve music list");
+            throw new RuntimeException("Could not retrieve music list", e);
+        }
+    }
+
+    @Override
+    public synchronized String getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * The catalog file is downloaded again only if its ETag changed, and then compared with the
+     * previous one.
+     */
+    @Override
+    public synchronized CatalogDelta getDelta(String sinceVersion) {
+        if (mVersion == null || !mVersion.equals(sinceVersion)) {
+            return null;
+        }
+        try {
+            Catalog catalog = fetchCatalog(mETag);
+            if (catalog == null) {
+                throw new RuntimeException("Could not retrieve music list");
+            }
+            if (catalog.tracks == null) {
+                return CatalogDelta.unchanged(mVersion);
+            }
+            CatalogDelta delta = CatalogDelta.between(mSnapshot, catalog.tracks, catalog.version);
+            setSnapshot(catalog.tracks, catalog);
+            return delta;
+        } catch (IOException e) {
             LogHelper.e(TAG, e, "Could not retrieve music list");
             throw new RuntimeException("Could not retrieve music list", e);
         }
     }
 
-    private MediaMetadataCompat buildFromJSON(JSONObject json, String basePath) throws JSONException {
-        String title = json.getString(JSON_TITLE);
-        String album = json.getString(JSON_ALBUM);
-        String artist = json.getString(JSON_ARTIST);
-        String genre = json.getString(JSON_GENRE);
-        String source = json.getString(JSON_SOURCE);
-        String iconUrl = json.getString(JSON_IMAGE);
-        int trackNumber = json.getInt(JSON_TRACK_NUMBER);
-        int totalTrackCount = json.getInt(JSON_TOTAL_TRACK_COUNT);
-        int duration = json.getInt(JSON_DURATION) * 1000; // ms
+    private void setSnapshot(List<MediaMetadataCompat> tracks, Catalog catalog) {
+        Map<String, MediaMetadataCompat> snapshot = new HashMap<>(tracks.size() * 2);
+        for (MediaMetadataCompat track : tracks) {
+            snapshot.put(track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID), track);
+        }
+        mSnapshot = snapshot;
+        mVersion = catalog.version;
+        mETag = catalog.etag;
+    }
+
+    private ArrayList<MediaMetadataCompat> readJSONTracks(InputStream in, String basePath)
+            throws IOException {
+        ArrayList<MediaMetadataCompat> tracks = new ArrayList<>();
+        JsonReader reader = new JsonReader(new InputStreamReader(in, UTF_8));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!JSON_MUSIC.equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    tracks.add(readJSONTrack(reader, basePath));
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Thrown by JsonReader on a value of the wrong type.
+            throw new IOException("Malformed music list", e);
+        }
+        return tracks;
+    }
+
+    private MediaMetadataCompat readJSONTrack(JsonReader reader, String basePath)
+            throws IOException {
+        String title = null;
+        String album = null;
+        String artist = null;
+        String genre = null;
+        String source = null;
+        String iconUrl = null;
+        int trackNumber = -1;
+        int totalTrackCount = -1;
+        int duration = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSON_TITLE.equals(name)) {
+                title = reader.nextString();
+            } else if (JSON_ALBUM.equals(name)) {
+                album = reader.nextString();
+            } else if (JSON_ARTIST.equals(name)) {
+                artist = reader.nextString();
+            } else if (JSON_GENRE.equals(name)) {
+                genre = reader.nextString();
+            } else if (JSON_SOURCE.equals(name)) {
+                source = reader.nextString();
+            } else if (JSON_IMAGE.equals(name)) {
+                iconUrl = reader.nextString();
+            } else if (JSON_TRACK_NUMBER.equals(name)) {
+                trackNumber = reader.nextInt();
+            } else if (JSON_TOTAL_TRACK_COUNT.equals(name)) {
+                totalTrackCount = reader.nextInt();
+            } else if (JSON_DURATION.equals(name)) {
+                duration = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (title == null || album == null || artist == null || genre == null || source == null
+                || iconUrl == null || trackNumber < 0 || totalTrackCount < 0 || duration < 0) {
+            throw new IOException("Music track with missing fields: " + title + " " + source);
+        }
+        return buildTrack(title, album, artist, genre, source, iconUrl, trackNumber,
+                totalTrackCount, duration, basePath);
+    }
+
+    private ArrayList<MediaMetadataCompat> readBinaryTracks(InputStream in, String basePath)
+            throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != BINARY_CATALOG_MAGIC) {
+            throw new IOException("Not a binary music list");
+        }
+        String[] strings = new String[readCount(data)];
+        byte[] buffer = new byte[256];
+        for (int i = 0; i < strings.length; i++) {
+            int length = readCount(data);
+            if (length > buffer.length) {
+                buffer = new byte[length];
+            }
+            data.readFully(buffer, 0, length);
+            strings[i] = new String(buffer, 0, length, UTF_8);
+        }
+        int count = readCount(data);
+        ArrayList<MediaMetadataCompat> tracks = new ArrayList<>(Math.min(count, 4096));
+        for (int i = 0; i < count; i++) {
+            String title = readString(data, strings);
+            String album = readString(data, strings);
+            String artist = readString(data, strings);
+            String genre = readString(data, strings);
+            String source = readString(data, strings);
+            String iconUrl = readString(data, strings);
+            tracks.add(buildTrack(title, album, artist, genre, source, iconUrl,
+                    readVarint(data), readVarint(data), readVarint(data), basePath));
+        }
+        return tracks;
+    }
+
+    private static String readString(DataInputStream data, String[] strings) throws IOException {
+        int index = readVarint(data);
+        if (index >= strings.length) {
+            throw new IOException("Malformed binary music list");
+        }
+        return strings[index];
+    }
+
+    private static int readCount(DataInputStream data) throws IOException {
+        int count = readVarint(data);
+        if (count > BINARY_CATALOG_MAX_COUNT) {
+            throw new IOException("Malformed binary music list");
+        }
+        return count;
+    }
+
+    private static int readVarint(DataInputStream data) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = data.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed binary music list");
+    }
+
+    private MediaMetadataCompat buildTrack(String title, String album, String artist,
+                                           String genre, String source, String iconUrl,
+                                           int trackNumber, int totalTrackCount,
+                                           int durationSeconds, String basePath) {
+        int duration = durationSeconds * 1000; // ms
 
-        LogHelper.d(TAG, "Found music track: ", json);
+        LogHelper.d(TAG, "Found music track: ", title, " ", source);
 
         // Media is stored relative to JSON file
         if (!source.startsWith("http")) {
@@ -81,9 +302,9 @@ public class RemoteJSONSource implements MusicProviderSource {
         if (!iconUrl.startsWith("http")) {
             iconUrl = basePath + iconUrl;
         }
-        // Since we don't have a unique ID in the server, we fake one using the hashcode of
-        // the music source. In a real world app, this could come from the server.
-        String id = String.valueOf(source.hashCode());
+        // Since we don't have a unique ID in the server, we derive one from the music source.
+        // In a real world app, this could come from the server.
+        String id = TrackKey.toMusicId(TrackKey.forContent(source));
 
         // Adding the music source to the MediaMetadata (and consequently using it in the
         // mediaSession.setMetadata) is not a good idea for a real world music app, because
@@ -106,35 +327,92 @@ public class RemoteJSONSource implements MusicProviderSource {
     }
 
     /**
-     * Download a JSON file from a server, parse the content and return the JSON
-     * object.
+     * A downloaded catalog file.
+     */
+    private static final class Catalog {
+        // Null when the file did not change.
+        final List<MediaMetadataCompat> tracks;
+        final String version;
+        final String etag;
+
+        Catalog(List<MediaMetadataCompat> tracks, String version, String etag) {
+            this.tracks = tracks;
+            this.version = version;
+            this.etag = etag;
+        }
+    }
+
+    /**
+     * Download the catalog file and parse its tracks as they arrive.
      *
-     * @return result JSONObject containing the parsed representation.
+     * @param etag ETag of the copy already downloaded, or null to download it anyway
+     * @return the catalog, with null tracks if the server answered that it did not change, or
+     * null if the server could not be reached
+     * @throws IOException if the catalog could not be read in full or is malformed
      */
-    private JSONObject fetchJSONFromUrl(String urlString) throws JSONException {
-        BufferedReader reader = null;
+    private Catalog fetchCatalog(String etag) throws IOException {
+        URLConnection urlConnection;
+        InputStream in;
         try {
-            URLConnection urlConnection = new URL(urlString).openConnection();
-            reader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream(), "iso-8859-1"));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
+            urlConnection = mCatalogUrl.openConnection();
+            urlConnection.setRequestProperty("Accept", BINARY_CATALOG_TYPE + ", application/json;q=0.9");
+            // Set explicitly, so the body is never decompressed behind our back and its size
+            // can be logged.
+            urlConnection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            if (etag != null) {
+                urlConnection.setRequestProperty("If-None-Match", etag);
+            }
+            if (urlConnection instanceof HttpURLConnection && ((HttpURLConnection) urlConnection)
+                    .getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return new Catalog(null, mVersion, etag);
             }
-            return new JSONObject(sb.toString());
-        } catch (JSONException e) {
-            throw e;
+            in = urlConnection.getInputStream();
         } catch (Exception e) {
-            LogHelper.e(TAG, "Failed to parse the json for media list", e);
+            LogHelper.e(TAG, "Failed to download the media list", e);
             return null;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            String encoding = urlConnection.getContentEncoding();
+            if ("gzip".equalsIgnoreCase(encoding)) {
+                in = new GZIPInputStream(in, BUFFER_SIZE);
+            } else if ("deflate".equalsIgnoreCase(encoding)) {
+                in = new InflaterInputStream(in, new Inflater(), BUFFER_SIZE);
+            } else if (encoding != null && !"identity".equalsIgnoreCase(encoding)) {
+                throw new IOException("Unsupported content encoding " + encoding);
+            }
+            CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+            // Buffered last: the parsers read a byte at a time, the streams below in blocks.
+            in = new BufferedInputStream(checked, BUFFER_SIZE);
+
+            String url = mCatalogUrl.toString();
+            String basePath = url.substring(0, url.lastIndexOf('/') + 1);
+            boolean binary = BINARY_CATALOG_TYPE.equals(getMimeType(urlConnection));
+            ArrayList<MediaMetadataCompat> tracks = binary
+                    ? readBinaryTracks(in, basePath) : readJSONTracks(in, basePath);
+
+            LogHelper.i(TAG, "Read ", tracks.size(), " tracks from a ",
+                    binary ? "binary" : "JSON", " music list of ", urlConnection.getContentLength(),
+                    " bytes, encoding ", encoding == null ? "identity" : encoding, ", in ", System.currentTimeMillis() - start, "ms");
+            String newETag = urlConnection.getHeaderField("ETag");
+            String version = newETag != null ? newETag
+                    : "#" + Long.toHexString(checked.getChecksum().getValue());
+            return new Catalog(tracks, version, newETag);
         } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    // ignore
-                }
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
             }
         }
     }
+
+    private static String getMimeType(URLConnection urlConnection) {
+        String type = urlConnection.getContentType();
+        if (type == null) {
+            return null;
+        }
+        int semicolon = type.indexOf(';');
+        return (semicolon < 0 ? type : type.substring(0, semicolon)).trim().toLowerCase(Locale.US);
+    }
 }
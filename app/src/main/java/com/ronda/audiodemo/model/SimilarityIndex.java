@@ -0,0 +1,186 @@
+package com.ronda.audiodemo.model;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precomputed neighbours of every catalog track, ranked by the features they share with it:
+ * album first, then artist, then genre.
+ * <p/>
+ * Tracks are addressed by ordinal, the index of their id in the array the index was built from.
+ * Candidates are only taken from a bounded window of each feature group, so building the index
+ * is linear in the catalog size even when one genre holds most of the catalog.
+ */
+final class SimilarityIndex {
+
+    private static final int ALBUM_SCORE = 4;
+    private static final int ARTIST_SCORE = 2;
+    private static final int GENRE_SCORE = 1;
+
+    // Candidates taken from each feature group of a track.
+    private static final int MAX_FROM_GROUP = 20;
+    // Neighbours kept per track.
+    private static final int MAX_NEIGHBOURS = 30;
+
+    private final String[] mTrackIds;
+    private final Map<String, Integer> mOrdinals;
+    private final int[][] mNeighbours;
+
+    private SimilarityIndex(String[] trackIds, Map<String, Integer> ordinals, int[][] neighbours) {
+        mTrackIds = trackIds;
+        mOrdinals = ordinals;
+        mNeighbours = neighbours;
+    }
+
+    /**
+     * @param trackIds the catalog track ids, by ordinal
+     * @param tracks   the metadata of each track, by ordinal
+     */
+    static SimilarityIndex build(String[] trackIds, MediaMetadataCompat[] tracks) {
+        int count = trackIds.length;
+        Map<String, Integer> ordinals = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            ordinals.put(trackIds[i], i);
+        }
+
+        // Feature value -> group number, and group number -> ordinals, for each feature.
+        int[] albums = new int[count];
+        int[] artists = new int[count];
+        int[] genres = new int[count];
+        List<int[]> albumGroups = groupBy(tracks, MediaMetadataCompat.METADATA_KEY_ALBUM, albums);
+        List<int[]> artistGroups = groupBy(tracks, MediaMetadataCompat.METADATA_KEY_ARTIST, artists);
+        List<int[]> genreGroups = groupBy(tracks, MediaMetadataCompat.METADATA_KEY_GENRE, genres);
+        int[] positionInGenre = positionsInGroup(genreGroups, count);
+        int[] positionInArtist = positionsInGroup(artistGroups, count);
+        int[] positionInAlbum = positionsInGroup(albumGroups, count);
+
+        int[][] neighbours = new int[count][];
+        int[] candidates = new int[3 * MAX_FROM_GROUP];
+        int[] scores = new int[3 * MAX_FROM_GROUP];
+        for (int t = 0; t < count; t++) {
+            int size = 0;
+            size = addWindow(t, albums[t], albumGroups, positionInAlbum[t], candidates, size);
+            size = addWindow(t, artists[t], artistGroups, positionInArtist[t], candidates, size);
+            size = addWindow(t, genres[t], genreGroups, positionInGenre[t], candidates, size);
+
+            for (int i = 0; i < size; i++) {
+                int c = candidates[i];
+                scores[i] = (albums[t] >= 0 && albums[c] == albums[t] ? ALBUM_SCORE : 0)
+                        + (artists[t] >= 0 && artists[c] == artists[t] ? ARTIST_SCORE : 0)
+                        + (genres[t] >= 0 && genres[c] == genres[t] ? GENRE_SCORE : 0);
+            }
+            // Insertion sort by score, best first: stable, and the arrays are tiny.
+            for (int i = 1; i < size; i++) {
+                int c = candidates[i];
+                int s = scores[i];
+                int j = i - 1;
+                while (j >= 0 && scores[j] < s) {
+                    candidates[j + 1] = candidates[j];
+                    scores[j + 1] = scores[j];
+                    j--;
+                }
+                candidates[j + 1] = c;
+                scores[j + 1] = s;
+            }
+            int[] result = new int[Math.min(size, MAX_NEIGHBOURS)];
+            System.arraycopy(candidates, 0, result, 0, result.length);
+            neighbours[t] = result;
+        }
+        return new SimilarityIndex(trackIds, ordinals, neighbours);
+    }
+
+    /**
+     * @return the ordinal of the given track, or -1 if it is not in the index
+     */
+    int ordinalOf(String musicId) {
+        Integer ordinal = mOrdinals.get(musicId);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /**
+     * @return the id of the track at the given ordinal, which may have left the catalog since
+     * the index was built
+     */
+    String getTrackId(int ordinal) {
+        return mTrackIds[ordinal];
+    }
+
+    /**
+     * @return the ordinals of the tracks most similar to the given one, best first
+     */
+    int[] getNeighbours(int ordinal) {
+        return mNeighbours[ordinal];
+    }
+
+    private static List<int[]> groupBy(MediaMetadataCompat[] tracks, String key, int[] groupOf) {
+        Map<String, Integer> groupIds = new HashMap<>();
+        List<List<Integer>> groups = new ArrayList<>();
+        for (int i = 0; i < tracks.length; i++) {
+            String value = tracks[i].getString(key);
+            if (value == null || value.isEmpty()) {
+                groupOf[i] = -1;
+                continue;
+            }
+            Integer group = groupIds.get(value);
+            if (group == null) {
+                group = groups.size();
+                groupIds.put(value, group);
+                groups.add(new ArrayList<Integer>());
+            }
+            groupOf[i] = group;
+            groups.get(group).add(i);
+        }
+        List<int[]> result = new ArrayList<>(groups.size());
+        for (List<Integer> group : groups) {
+            int[] members = new int[group.size()];
+            for (int i = 0; i < members.length; i++) {
+                members[i] = group.get(i);
+            }
+            result.add(members);
+        }
+        return result;
+    }
+
+    private static int[] positionsInGroup(List<int[]> groups, int count) {
+        int[] positions = new int[count];
+        for (int[] members : groups) {
+            for (int i = 0; i < members.length; i++) {
+                positions[members[i]] = i;
+            }
+        }
+        return positions;
+    }
+
+    // Add up to MAX_FROM_GROUP members of the group following the track, wrapping around, so
+    // that tracks of a large group don't all get the same neighbours.
+    private static int addWindow(int track, int group, List<int[]> groups, int position,
+                                 int[] candidates, int size) {
+        if (group < 0) {
+            return size;
+        }
+        int[] members = groups.get(group);
+        int taken = 0;
+        for (int i = 1; i < members.length && taken < MAX_FROM_GROUP; i++) {
+            int c = members[(position + i) % members.length];
+            if (c == track || contains(candidates, size, c)) {
+                continue;
+            }
+            candidates[size++] = c;
+            taken++;
+        }
+        return size;
+    }
+
+    private static boolean contains(int[] values, int size, int value) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,614 @@
+package com.ronda.audiodemo.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the tags and the duration of an audio file: ID3v2 (and ID3v1) with the MPEG frame
+ * header for MP3, Vorbis comments for FLAC, Ogg Vorbis and Opus, and the iTunes atoms for MP4.
+ * <p/>
+ * Only the headers are read, never the whole file: each read is a positioned read of a bounded
+ * range into one scratch buffer that is reused from file to file, and the tags are decoded in
+ * place from that buffer. Tags larger than {@link #MAX_READ} (embedded cover art, usually) are
+ * cut, which only loses the frames after the cut.
+ * <p/>
+ * Plain Java, so it can run on a desktop JVM. Not thread safe: use one reader per thread.
+ */
+final class TagReader {
+
+    // First read of a file, enough for the tags of most files without cover art.
+    private static final int HEADER_WINDOW = 64 * 1024;
+    // Largest range read at once.
+    private static final int MAX_READ = 1024 * 1024;
+    // How far the end of an Ogg file is searched for its last page.
+    private static final int OGG_TAIL_WINDOW = 64 * 1024;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16 = Charset.forName("UTF-16");
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+
+    // ID3v1 genres, also used by ID3v2 "(n)" genres and the MP4 "gnre" atom.
+    private static final String[] ID3_GENRES = {
+            "Blues", "Classic Rock", "Country", "Dance", "Disco", "Funk", "Grunge", "Hip-Hop",
+            "Jazz", "Metal", "New Age", "Oldies", "Other", "Pop", "R&B", "Rap", "Reggae", "Rock",
+            "Techno", "Industrial", "Alternative", "Ska", "Death Metal", "Pranks", "Soundtrack",
+            "Euro-Techno", "Ambient", "Trip-Hop", "Vocal", "Jazz+Funk", "Fusion", "Trance",
+            "Classical", "Instrumental", "Acid", "House", "Game", "Sound Clip", "Gospel", "Noise",
+            "AlternRock", "Bass", "Soul", "Punk", "Space", "Meditative", "Instrumental Pop",
+            "Instrumental Rock", "Ethnic", "Gothic", "Darkwave", "Techno-Industrial", "Electronic",
+            "Pop-Folk", "Eurodance", "Dream", "Southern Rock", "Comedy", "Cult", "Gangsta",
+            "Top 40", "Christian Rap", "Pop/Funk", "Jungle", "Native American", "Cabaret",
+            "New Wave", "Psychadelic", "Rave", "Showtunes", "Trailer", "Lo-Fi", "Tribal",
+            "Acid Punk", "Acid Jazz", "Polka", "Retro", "Musical", "Rock & Roll", "Hard Rock"};
+
+    // Bitrates in kbps, by bitrate index: MPEG-1 layers I, II, III, then MPEG-2/2.5 layer I,
+    // then MPEG-2/2.5 layers II and III.
+    private static final int[][] MPEG_BITRATES = {
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}};
+    private static final int[] MPEG1_SAMPLE_RATES = {44100, 48000, 32000};
+
+    /**
+     * What was found in a file. Any field may be missing: null, or 0 for the numbers.
+     */
+    static final class Tags {
+        String title;
+        String artist;
+        String album;
+        String genre;
+        int trackNumber;
+        int trackCount;
+        long durationMs;
+    }
+
+    private ByteBuffer mBuffer = ByteBuffer.allocate(HEADER_WINDOW);
+    private FileChannel mChannel;
+    private long mFileSize;
+
+    /**
+     * @return the tags of the file, or null if it is not in a format this reader knows
+     */
+    Tags read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            mChannel = raf.getChannel();
+            mFileSize = mChannel.size();
+            ByteBuffer header = fill(0, HEADER_WINDOW);
+            if (header.remaining() < 4) {
+                return null;
+            }
+            Tags tags = new Tags();
+            if (startsWith(header, 0, "ID3") || isMpegSync(header, 0)) {
+                readMp3(tags);
+            } else if (startsWith(header, 0, "fLaC")) {
+                readFlac(tags);
+            } else if (startsWith(header, 0, "OggS")) {
+                readOgg(tags);
+            } else if (header.remaining() >= 8 && startsWith(header, 4, "ftyp")) {
+                readMp4(tags, 0, mFileSize, 0);
+            } else {
+                return null;
+            }
+            return tags;
+        } finally {
+            mChannel = null;
+            raf.close();
+        }
+    }
+
+    /**
+     * Read up to length bytes at the given file position into the scratch buffer.
+     *
+     * @return the buffer, from 0 to the number of bytes read
+     */
+    private ByteBuffer fill(long position, int length) throws IOException {
+        length = (int) Math.max(0, Math.min(Math.min(length, MAX_READ), mFileSize - position));
+        if (mBuffer.capacity() < length) {
+            mBuffer = ByteBuffer.allocate(Math.min(MAX_READ, Math.max(length, mBuffer.capacity() * 2)));
+        }
+        mBuffer.clear();
+        mBuffer.limit(length);
+        while (mBuffer.hasRemaining()) {
+            if (mChannel.read(mBuffer, position + mBuffer.position()) < 0) {
+                break;
+            }
+        }
+        mBuffer.flip();
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+        return mBuffer;
+    }
+
+    // MP3
+
+    private void readMp3(Tags tags) throws IOException {
+        ByteBuffer b = mBuffer;
+        long audioStart = 0;
+        if (startsWith(b, 0, "ID3") && b.remaining() >= 10) {
+            int version = b.get(3) & 0xff;
+            int flags = b.get(5) & 0xff;
+            int tagSize = syncsafe(b, 6);
+            audioStart = 10L + tagSize + ((flags & 0x10) != 0 ? 10 : 0);
+            if (tagSize + 10 > b.remaining()) {
+                b = fill(0, tagSize + 10);
+            }
+            readId3v2Frames(tags, b, version, flags, Math.min(b.remaining(), tagSize + 10));
+        }
+        if (tags.title == null) {
+            readId3v1(tags);
+        }
+        if (tags.durationMs == 0) {
+            tags.durationMs = mpegDuration(audioStart);
+        }
+    }
+
+    private void readId3v2Frames(Tags tags, ByteBuffer b, int version, int flags, int end) {
+        int pos = 10;
+        if ((flags & 0x40) != 0 && version >= 3 && end >= 14) {
+            // Extended header: its size excludes itself in v2.3, includes itself in v2.4.
+            pos += version == 3 ? 4 + b.getInt(10) : syncsafe(b, 10);
+        }
+        int headerSize = version == 2 ? 6 : 10;
+        while (pos + headerSize <= end && pos >= 0) {
+            if (b.get(pos) == 0) {
+                // Padding.
+                break;
+            }
+            String id;
+            int size;
+            if (version == 2) {
+                id = ascii(b, pos, 3);
+                size = ((b.get(pos + 3) & 0xff) << 16) | ((b.get(pos + 4) & 0xff) << 8)
+                        | (b.get(pos + 5) & 0xff);
+            } else {
+                id = ascii(b, pos, 4);
+                size = version == 4 ? syncsafe(b, pos + 4) : b.getInt(pos + 4);
+            }
+            int data = pos + headerSize;
+            if (size <= 0 || data + size > end) {
+                break;
+            }
+            if (id.equals("TIT2") || id.equals("TT2")) {
+                tags.title = id3Text(b, data, size);
+            } else if (id.equals("TPE1") || id.equals("TP1")) {
+                tags.artist = id3Text(b, data, size);
+            } else if (id.equals("TALB") || id.equals("TAL")) {
+                tags.album = id3Text(b, data, size);
+            } else if (id.equals("TCON") || id.equals("TCO")) {
+                tags.genre = id3Genre(id3Text(b, data, size));
+            } else if (id.equals("TRCK") || id.equals("TRK")) {
+                readTrackNumber(tags, id3Text(b, data, size));
+            } else if (id.equals("TLEN") || id.equals("TLE")) {
+                tags.durationMs = parseInt(id3Text(b, data, size));
+            }
+            pos = data + size;
+        }
+    }
+
+    private static String id3Text(ByteBuffer b, int pos, int size) {
+        if (size < 2) {
+            return null;
+        }
+        Charset charset;
+        switch (b.get(pos)) {
+            case 1:
+                charset = UTF_16;
+                break;
+            case 2:
+                charset = UTF_16BE;
+                break;
+            case 3:
+                charset = UTF_8;
+                break;
+            default:
+                charset = ISO_8859_1;
+                break;
+        }
+        return clean(new String(b.array(), b.arrayOffset() + pos + 1, size - 1, charset));
+    }
+
+    // "(17)", "17" or "Rock": ID3v2 genres may refer to the ID3v1 list.
+    private static String id3Genre(String genre) {
+        if (genre == null) {
+            return null;
+        }
+        String number = genre;
+        if (genre.startsWith("(") && genre.indexOf(')') > 1) {
+            String rest = genre.substring(genre.indexOf(')') + 1).trim();
+            if (!rest.isEmpty()) {
+                return rest;
+            }
+            number = genre.substring(1, genre.indexOf(')'));
+        }
+        int index = parseInt(number);
+        if (index > 0 || "0".equals(number)) {
+            return index < ID3_GENRES.length ? ID3_GENRES[index] : null;
+        }
+        return genre;
+    }
+
+    private void readId3v1(Tags tags) throws IOException {
+        if (mFileSize < 128) {
+            return;
+        }
+        ByteBuffer b = fill(mFileSize - 128, 128);
+        if (b.remaining() < 128 || !startsWith(b, 0, "TAG")) {
+            return;
+        }
+        tags.title = clean(new String(b.array(), b.arrayOffset() + 3, 30, ISO_8859_1));
+        tags.artist = clean(new String(b.array(), b.arrayOffset() + 33, 30, ISO_8859_1));
+        tags.album = clean(new String(b.array(), b.arrayOffset() + 63, 30, ISO_8859_1));
+        if (b.get(125) == 0 && b.get(126) != 0) {
+            // ID3v1.1: the last byte of the comment is the track number.
+            tags.trackNumber = b.get(126) & 0xff;
+        }
+        int genre = b.get(127) & 0xff;
+        if (tags.genre == null && genre < ID3_GENRES.length) {
+            tags.genre = ID3_GENRES[genre];
+        }
+    }
+
+    // Duration from the first MPEG frame: its Xing/Info header if it has one (VBR), otherwise
+    // the bitrate of the frame over the size of the audio (CBR).
+    private long mpegDuration(long audioStart) throws IOException {
+        ByteBuffer b = fill(audioStart, 4096);
+        int pos = 0;
+        while (pos + 4 <= b.remaining() && !isMpegSync(b, pos)) {
+            pos++;
+        }
+        if (pos + 4 > b.remaining()) {
+            return 0;
+        }
+        int b1 = b.get(pos + 1) & 0xff;
+        int b2 = b.get(pos + 2) & 0xff;
+        int b3 = b.get(pos + 3) & 0xff;
+        int versionBits = (b1 >> 3) & 3;
+        int layer = 4 - ((b1 >> 1) & 3);
+        int bitrateIndex = b2 >> 4;
+        int sampleRateIndex = (b2 >> 2) & 3;
+        if (versionBits == 1 || layer == 4 || bitrateIndex == 0 || bitrateIndex == 15
+                || sampleRateIndex == 3) {
+            return 0;
+        }
+        boolean mpeg1 = versionBits == 3;
+        int sampleRate = MPEG1_SAMPLE_RATES[sampleRateIndex] >> (mpeg1 ? 0 : versionBits == 2 ? 1 : 2);
+        int table = mpeg1 ? layer - 1 : layer == 1 ? 3 : 4;
+        int bitrate = MPEG_BITRATES[table][bitrateIndex];
+        int samplesPerFrame = layer == 1 ? 384 : layer == 2 || mpeg1 ? 1152 : 576;
+        boolean mono = (b3 >> 6) == 3;
+
+        int xing = pos + 4 + (mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+        if (xing + 12 <= b.remaining()
+                && (startsWith(b, xing, "Xing") || startsWith(b, xing, "Info"))
+                && (b.getInt(xing + 4) & 1) != 0) {
+            long frames = b.getInt(xing + 8) & 0xffffffffL;
+            return frames * samplesPerFrame * 1000 / sampleRate;
+        }
+        long audioBytes = mFileSize - audioStart - pos;
+        return audioBytes * 8 / bitrate;
+    }
+
+    private static boolean isMpegSync(ByteBuffer b, int pos) {
+        return pos + 1 < b.remaining() && (b.get(pos) & 0xff) == 0xff
+                && (b.get(pos + 1) & 0xe0) == 0xe0;
+    }
+
+    // FLAC
+
+    private void readFlac(Tags tags) throws IOException {
+        long pos = 4;
+        boolean last = false;
+        while (!last && pos + 4 <= mFileSize) {
+            ByteBuffer b = fill(pos, 4);
+            if (b.remaining() < 4) {
+                return;
+            }
+            int header = b.getInt(0);
+            last = (header & 0x80000000) != 0;
+            int type = (header >> 24) & 0x7f;
+            int length = header & 0xffffff;
+            if (type == 0 && length >= 18) {
+                b = fill(pos + 4, 18);
+                if (b.remaining() == 18) {
+                    int sampleRate = ((b.get(10) & 0xff) << 12) | ((b.get(11) & 0xff) << 4)
+                            | ((b.get(12) & 0xff) >> 4);
+                    long samples = ((long) (b.get(13) & 0x0f) << 32) | (b.getInt(14) & 0xffffffffL);
+                    if (sampleRate > 0) {
+                        tags.durationMs = samples * 1000 / sampleRate;
+                    }
+                }
+            } else if (type == 4) {
+                b = fill(pos + 4, length);
+                readVorbisComments(tags, b, 0, b.remaining());
+            }
+            pos += 4 + length;
+        }
+    }
+
+    // Vorbis comments: little-endian vendor string, then "KEY=value" strings.
+    private static void readVorbisComments(Tags tags, ByteBuffer b, int pos, int end) {
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (pos + 4 > end) {
+                return;
+            }
+            pos += 4 + b.getInt(pos);
+            if (pos + 4 > end || pos < 0) {
+                return;
+            }
+            int count = b.getInt(pos);
+            pos += 4;
+            for (int i = 0; i < count && pos + 4 <= end; i++) {
+                int length = b.getInt(pos);
+                pos += 4;
+                if (length < 0 || pos + length > end) {
+                    return;
+                }
+                String comment = new String(b.array(), b.arrayOffset() + pos, length, UTF_8);
+                pos += length;
+                int equals = comment.indexOf('=');
+                if (equals <= 0) {
+                    continue;
+                }
+                String key = comment.substring(0, equals).toUpperCase();
+                String value = clean(comment.substring(equals + 1));
+                if (key.equals("TITLE")) {
+                    tags.title = value;
+                } else if (key.equals("ARTIST")) {
+                    tags.artist = value;
+                } else if (key.equals("ALBUM")) {
+                    tags.album = value;
+                } else if (key.equals("GENRE")) {
+                    tags.genre = value;
+                } else if (key.equals("TRACKNUMBER")) {
+                    readTrackNumber(tags, value);
+                } else if (key.equals("TRACKTOTAL") || key.equals("TOTALTRACKS")) {
+                    tags.trackCount = parseInt(value);
+                }
+            }
+        } finally {
+            b.order(ByteOrder.BIG_ENDIAN);
+        }
+    }
+
+    // Ogg
+
+    private void readOgg(Tags tags) throws IOException {
+        ByteBuffer b = fill(0, HEADER_WINDOW);
+        // Reassemble the first two packets of the first stream: the identification header and
+        // the comment header, which may span several pages.
+        byte[] packet = new byte[b.remaining()];
+        int packetLength = 0;
+        int packets = 0;
+        int serial = 0;
+        int sampleRate = 0;
+        int preSkip = 0;
+        boolean opus = false;
+        int pos = 0;
+        while (packets < 2 && pos + 27 <= b.remaining() && startsWith(b, pos, "OggS")) {
+            b.order(ByteOrder.LITTLE_ENDIAN);
+            int pageSerial = b.getInt(pos + 14);
+            b.order(ByteOrder.BIG_ENDIAN);
+            int segments = b.get(pos + 26) & 0xff;
+            int data = pos + 27 + segments;
+            if (pos == 0) {
+                serial = pageSerial;
+            }
+            for (int i = 0; i < segments && packets < 2; i++) {
+                int lacing = b.get(pos + 27 + i) & 0xff;
+                if (data + lacing > b.remaining()) {
+                    return;
+                }
+                if (pageSerial == serial) {
+                    System.arraycopy(b.array(), b.arrayOffset() + data, packet, packetLength, lacing);
+                    packetLength += lacing;
+                    if (lacing < 255) {
+                        // End of a packet.
+                        ByteBuffer p = ByteBuffer.wrap(packet, 0, packetLength);
+                        if (packets == 0) {
+                            opus = startsWith(p, 0, "OpusHead");
+                            p.order(ByteOrder.LITTLE_ENDIAN);
+                            if (opus && packetLength >= 12) {
+                                sampleRate = 48000;
+                                preSkip = p.getShort(10) & 0xffff;
+                            } else if (packetLength >= 16 && startsWith(p, 1, "vorbis")) {
+                                sampleRate = p.getInt(12);
+                            }
+                        } else {
+                            int start = opus ? 8 : 7;
+                            readVorbisComments(tags, p, start, packetLength);
+                        }
+                        packets++;
+                        packetLength = 0;
+                    }
+                }
+                data += lacing;
+            }
+            pos = data;
+        }
+        if (sampleRate > 0) {
+            long granule = lastGranule(serial);
+            if (granule > preSkip) {
+                tags.durationMs = (granule - preSkip) * 1000 / sampleRate;
+            }
+        }
+    }
+
+    // Granule position of the last page of the stream: its number of samples.
+    private long lastGranule(int serial) throws IOException {
+        long start = Math.max(0, mFileSize - OGG_TAIL_WINDOW);
+        ByteBuffer b = fill(start, OGG_TAIL_WINDOW);
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            for (int pos = b.remaining() - 27; pos >= 0; pos--) {
+                if (startsWith(b, pos, "OggS") && b.getInt(pos + 14) == serial) {
+                    return b.getLong(pos + 6);
+                }
+            }
+            return 0;
+        } finally {
+            b.order(ByteOrder.BIG_ENDIAN);
+        }
+    }
+
+    // MP4
+
+    // Walk the atoms of [start, end), descending into the containers that lead to the
+    // duration (moov/mvhd) and the iTunes tags (moov/udta/meta/ilst).
+    private void readMp4(Tags tags, long start, long end, int depth) throws IOException {
+        long pos = start;
+        while (pos + 8 <= end && depth < 6) {
+            ByteBuffer b = fill(pos, 16);
+            if (b.remaining() < 8) {
+                return;
+            }
+            long size = b.getInt(0) & 0xffffffffL;
+            String type = ascii(b, 4, 4);
+            int headerSize = 8;
+            if (size == 1 && b.remaining() >= 16) {
+                size = b.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - pos;
+            }
+            if (size < headerSize || pos + size > end) {
+                return;
+            }
+            long body = pos + headerSize;
+            long bodyEnd = pos + size;
+            if (type.equals("moov") || type.equals("udta") || type.equals("ilst")) {
+                readMp4(tags, body, bodyEnd, depth + 1);
+            } else if (type.equals("meta")) {
+                // A full atom (version and flags first), except in some QuickTime files.
+                b = fill(body, 8);
+                boolean full = b.remaining() < 8 || !startsWith(b, 4, "hdlr");
+                readMp4(tags, full ? body + 4 : body, bodyEnd, depth + 1);
+            } else if (type.equals("mvhd")) {
+                b = fill(body, 32);
+                if (b.remaining() >= 20) {
+                    boolean v1 = b.get(0) == 1;
+                    long timescale = b.getInt(v1 ? 20 : 12) & 0xffffffffL;
+                    long duration = v1 ? (b.remaining() >= 32 ? b.getLong(24) : 0)
+                            : b.getInt(16) & 0xffffffffL;
+                    if (timescale > 0) {
+                        tags.durationMs = duration * 1000 / timescale;
+                    }
+                }
+            } else if (depth > 0 && size <= HEADER_WINDOW && isMp4Tag(type)) {
+                b = fill(body, (int) (size - headerSize));
+                readMp4Tag(tags, type, b);
+            }
+            pos = bodyEnd;
+        }
+    }
+
+    private static boolean isMp4Tag(String type) {
+        return type.equals("\u00a9nam") || type.equals("\u00a9ART") || type.equals("\u00a9alb")
+                || type.equals("\u00a9gen") || type.equals("gnre") || type.equals("trkn");
+    }
+
+    // The value of an ilst item is in its "data" atom: size, "data", type, locale, value.
+    private static void readMp4Tag(Tags tags, String type, ByteBuffer b) {
+        if (b.remaining() < 16 || !startsWith(b, 4, "data")) {
+            return;
+        }
+        int size = Math.min(b.getInt(0), b.remaining());
+        int value = 16;
+        int length = size - value;
+        if (length <= 0) {
+            return;
+        }
+        if (type.equals("trkn")) {
+            if (length >= 6) {
+                tags.trackNumber = b.getShort(value + 2) & 0xffff;
+                tags.trackCount = b.getShort(value + 4) & 0xffff;
+            }
+        } else if (type.equals("gnre")) {
+            int index = length >= 2 ? (b.getShort(value) & 0xffff) - 1 : -1;
+            if (index >= 0 && index < ID3_GENRES.length) {
+                tags.genre = ID3_GENRES[index];
+            }
+        } else {
+            String text = clean(new String(b.array(), b.arrayOffset() + value, length, UTF_8));
+            if (type.equals("\u00a9nam")) {
+                tags.title = text;
+            } else if (type.equals("\u00a9ART")) {
+                tags.artist = text;
+            } else if (type.equals("\u00a9alb")) {
+                tags.album = text;
+            } else {
+                tags.genre = text;
+            }
+        }
+    }
+
+    // Helpers
+
+    // "3" or "3/12".
+    private static void readTrackNumber(Tags tags, String value) {
+        if (value == null) {
+            return;
+        }
+        int slash = value.indexOf('/');
+        if (slash < 0) {
+            tags.trackNumber = parseInt(value);
+        } else {
+            tags.trackNumber = parseInt(value.substring(0, slash));
+            tags.trackCount = parseInt(value.substring(slash + 1));
+        }
+    }
+
+    private static int syncsafe(ByteBuffer b, int pos) {
+        return ((b.get(pos) & 0x7f) << 21) | ((b.get(pos + 1) & 0x7f) << 14)
+                | ((b.get(pos + 2) & 0x7f) << 7) | (b.get(pos + 3) & 0x7f);
+    }
+
+    private static boolean startsWith(ByteBuffer b, int pos, String prefix) {
+        if (pos < 0 || pos + prefix.length() > b.limit()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (b.get(pos + i) != (byte) prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String ascii(ByteBuffer b, int pos, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (b.get(pos + i) & 0xff);
+        }
+        return new String(chars);
+    }
+
+    // Trim the padding and terminators tags are stored with, null if nothing is left.
+    private static String clean(String value) {
+        int end = value.indexOf('\0');
+        if (end >= 0) {
+            value = value.substring(0, end);
+        }
+        value = value.trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    private static int parseInt(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.ronda.audiodemo.model;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 64-bit key of a track, for the stores and indexes that work on a primitive instead of a
+ * string.
+ * <p/>
+ * Sources identify a track by a hash of what locates its audio (see {@link #forContent}) and
+ * use that key, in hex, as its music id: the key of such an id is read back from it, and the id
+ * is only a string at the media session boundary. Any other music id, such as one saved by an
+ * earlier version, is hashed instead. Collisions are too unlikely to plan for, but are detected
+ * when the catalog is loaded.
+ */
+final class TrackKey {
+
+    private static final int MUSIC_ID_LENGTH = 16;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private TrackKey() {
+    }
+
+    /**
+     * @return the key of the music id
+     */
+    static long of(String musicId) {
+        if (musicId.length() == MUSIC_ID_LENGTH) {
+            long key = 0;
+            int i = 0;
+            for (; i < MUSIC_ID_LENGTH; i++) {
+                char c = musicId.charAt(i);
+                int digit = c >= '0' && c <= '9' ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+                if (digit < 0) {
+                    break;
+                }
+                key = key << 4 | digit;
+            }
+            if (i == MUSIC_ID_LENGTH) {
+                return key;
+            }
+        }
+        // 64-bit FNV-1a.
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < musicId.length(); i++) {
+            hash ^= musicId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the music id of the key, which {@link #of} reads back
+     */
+    static String toMusicId(long key) {
+        char[] chars = new char[MUSIC_ID_LENGTH];
+        for (int i = MUSIC_ID_LENGTH - 1; i >= 0; i--) {
+            chars[i] = HEX_DIGITS[(int) (key & 0xf)];
+            key >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @param identity what locates the track's audio, such as its URL or path
+     * @return the first 64 bits of the MD5 digest of the identity. Not for security: MD5 is
+     * only used because it mixes well and is always available.
+     */
+    static long forContent(String identity) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(identity.getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long key = 0;
+        for (int i = 0; i < 8; i++) {
+            key = key << 8 | (digest[i] & 0xff);
+        }
+        return key;
+    }
+}
@@ -22,6 +22,7 @@ import android.content.IntentFilter;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.net.wifi.WifiManager;
+import android.os.Handler;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.text.TextUtils;
@@ -58,6 +59,9 @@ import static com.google.android.exoplayer2.C.USAGE_MEDIA;
 /**
  * A class that implements local media playback using {@link
  * com.google.android.exoplayer2.ExoPlayer}
+ * <p/>
+ * The player is created on, and reports its events to, the playback thread. Audio focus changes
+ * are posted there too, since they may be delivered on another thread.
  */
 public final class LocalPlayback implements Playback {
 
@@ -81,6 +85,7 @@ public final class LocalPlayback implements Playback {
     private boolean mPlayOnFocusGain;
     private Callback mCallback;
     private final MusicProvider mMusicProvider;
+    private final Handler mHandler;
     private boolean mAudioNoisyReceiverRegistered;
     private String mCurrentMediaId;
 
@@ -111,10 +116,11 @@ public final class LocalPlayback implements Playback {
                 }
             };
 
-    public LocalPlayback(Context context, MusicProvider musicProvider) {
+    public LocalPlayback(Context context, MusicProvider musicProvider, Handler playbackHandler) {
         Context applicationContext = context.getApplicationContext();
         this.mContext = applicationContext;
         this.mMusicProvider = musicProvider;
+        this.mHandler = playbackHandler;
 
         this.mAudioManager =
                 (AudioManager) applicationContext.getSystemService(Context.AUDIO_SERVICE);
@@ -339,35 +345,44 @@ public final class LocalPlayback implements Playback {
     private final AudioManager.OnAudioFocusChangeListener mOnAudioFocusChangeListener =
             new AudioManager.OnAudioFocusChangeListener() {
                 @Override
-                public void onAudioFocusChange(int focusChange) {
-                    LogHelper.d(TAG, "onAudioFocusChange. focusChange=", focusChange);
-                    switch (focusChange) {
-                        case AudioManager.AUDIOFOCUS_GAIN:
-                            mCurrentAudioFocusState = AUDIO_FOCUSED;
-                            break;
-                        case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-                            // Audio focus was lost, but it's possible to duck (i.e.: play quietly)
-                            mCurrentAudioFocusState = AUDIO_NO_FOCUS_CAN_DUCK;
-                            break;
-                        case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
-                            // Lost audio focus, but will gain it back (shortly), so note whether
-                            // playback should resume
-                            mCurrentAudioFocusState = AUDIO_NO_FOCUS_NO_DUCK;
-                            mPlayOnFocusGain = mExoPlayer != null && mExoPlayer.getPlayWhenReady();
-                            break;
-                        case AudioManager.AUDIOFOCUS_LOSS:
-                            // Lost audio focus, probably "permanently"
-                            mCurrentAudioFocusState = AUDIO_NO_FOCUS_NO_DUCK;
-                            break;
-                    }
-
-                    if (mExoPlayer != null) {
-                        // Update the player state based on the change
-                        configurePlayerState();
-                    }
+                public void onAudioFocusChange(final int focusChange) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            handleAudioFocusChange(focusChange);
+                        }
+                    });
                 }
             };
 
+    private void handleAudioFocusChange(int focusChange) {
+        LogHelper.d(TAG, "onAudioFocusChange. focusChange=", focusChange);
+        switch (focusChange) {
+            case AudioManager.AUDIOFOCUS_GAIN:
+                mCurrentAudioFocusState = AUDIO_FOCUSED;
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+                // Audio focus was lost, but it's possible to duck (i.e.: play quietly)
+                mCurrentAudioFocusState = AUDIO_NO_FOCUS_CAN_DUCK;
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+                // Lost audio focus, but will gain it back (shortly), so note whether
+                // playback should resume
+                mCurrentAudioFocusState = AUDIO_NO_FOCUS_NO_DUCK;
+                mPlayOnFocusGain = mExoPlayer != null && mExoPlayer.getPlayWhenReady();
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS:
+                // Lost audio focus, probably "permanently"
+                mCurrentAudioFocusState = AUDIO_NO_FOCUS_NO_DUCK;
+                break;
+        }
+
+        if (mExoPlayer != null) {
+            // Update the player state based on the change
+            configurePlayerState();
+        }
+    }
+
     /**
      * Releases resources used by the service for playback, which is mostly just the WiFi lock for
      * local playback. If requested, the ExoPlayer instance is also released.
@@ -393,7 +408,8 @@ public final class LocalPlayback implements Playback {
 
     private void registerAudioNoisyReceiver() {
         if (!mAudioNoisyReceiverRegistered) {
-            mContext.registerReceiver(mAudioNoisyReceiver, mAudioNoisyIntentFilter);
+            // Delivered on the playback thread, which owns the player state read by isPlaying().
+            mContext.registerReceiver(mAudioNoisyReceiver, mAudioNoisyIntentFilter, null, mHandler);
             mAudioNoisyReceiverRegistered = true;
         }
     }
@@ -3,25 +3,39 @@ package com.ronda.audiodemo.playback;
 import android.content.res.Resources;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.SystemClock;
+import android.os.Handler;
 import android.support.annotation.NonNull;
+import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 
 import com.ronda.audiodemo.R;
 import com.ronda.audiodemo.model.MusicProvider;
+import com.ronda.audiodemo.model.PlayHistoryStore;
 import com.ronda.audiodemo.utils.LogHelper;
 import com.ronda.audiodemo.utils.MediaIDHelper;
 
 
 /**
  * Manage the interactions among the container service, the queue manager and the actual playback.
+ * <p/>
+ * The manager, its queue manager and the playback are owned by the playback thread: all their
+ * methods must be called on the looper of the handler given to the constructor. Media session
+ * callbacks are delivered there directly when the session callback is registered with that
+ * handler.
  */
-public class PlaybackManager implements Playback.Callback {
+public class PlaybackManager implements Playback.Callback, PlaybackStatePublisher.Callback {
 
     private static final String TAG = LogHelper.makeLogTag(PlaybackManager.class);
     // Action to thumbs up a media item
     private static final String CUSTOM_ACTION_THUMBS_UP = "com.example.android.uamp.THUMBS_UP";
+    // Action to replace the queue with a radio seeded by the current track
+    public static final String CUSTOM_ACTION_START_RADIO = "com.example.android.uamp.START_RADIO";
+    // While playing, the position is saved this often, so a kill loses at most this much.
+    private static final long SESSION_CHECKPOINT_INTERVAL_MS = 10000;
+    // A track left after this long, or after half its duration if that is shorter, was played
+    // rather than skipped.
+    private static final long PLAYED_THRESHOLD_MS = 4 * 60 * 1000;
 
     private MusicProvider mMusicProvider;
     private QueueManager mQueueManager;
@@ -29,15 +43,38 @@ public class PlaybackManager implements Playback.Callback {
     private Playback mPlayback;
     private PlaybackServiceCallback mServiceCallback;
     private MediaSessionCallback mMediaSessionCallback;
+    private PlaybackStatePublisher mStatePublisher;
+    private final Handler mHandler;
+
+    // Saved playback session, and what was last saved to it: a change of queue, track or state
+    // is saved right away, a position that moved is throttled by the store.
+    private final PlaybackSessionStore mSessionStore;
+    private int mSavedQueueVersion = -1;
+    private long mSavedQueueItemId = MediaSessionCompat.QueueItem.UNKNOWN_ID;
+    private int mSavedState = PlaybackStateCompat.STATE_NONE;
+
+    // Media id of the track playing, until how it ended is logged to the play history.
+    private String mHistoryMediaId;
+
+    private final Runnable mSessionCheckpoint = new Runnable() {
+        @Override
+        public void run() {
+            saveSession(false);
+        }
+    };
 
     public PlaybackManager(PlaybackServiceCallback serviceCallback, Resources resources,
                            MusicProvider musicProvider, QueueManager queueManager,
-                           Playback playback) {
+                           Playback playback, PlaybackSessionStore sessionStore,
+                           Handler playbackHandler) {
         mMusicProvider = musicProvider;
+        mSessionStore = sessionStore;
         mServiceCallback = serviceCallback;
         mResources = resources;
         mQueueManager = queueManager;
         mMediaSessionCallback = new MediaSessionCallback();
+        mHandler = playbackHandler;
+        mStatePublisher = new PlaybackStatePublisher(this, playbackHandler);
         mPlayback = playback;
         mPlayback.setCallback(this);
     }
@@ -57,6 +94,12 @@ public class PlaybackManager implements Playback.Callback {
         LogHelper.d(TAG, "handlePlayRequest: mState=" + mPlayback.getState());
         MediaSessionCompat.QueueItem currentMusic = mQueueManager.getCurrentMusic();
         if (currentMusic != null) {
+            String mediaId = currentMusic.getDescription().getMediaId();
+            if (mHistoryMediaId != null && !mHistoryMediaId.equals(mediaId)) {
+                // The player still holds the track being left, and its position.
+                recordLeft();
+            }
+            mHistoryMediaId = mediaId;
             mServiceCallback.onPlaybackStart();
             mPlayback.play(currentMusic);
         }
@@ -68,6 +111,10 @@ public class PlaybackManager implements Playback.Callback {
     public void handlePauseRequest() {
         LogHelper.d(TAG, "handlePauseRequest: mState=" + mPlayback.getState());
         if (mPlayback.isPlaying()) {
+            if (mHistoryMediaId != null) {
+                mMusicProvider.recordPlayback(MediaIDHelper.extractMusicIDFromMediaID(mHistoryMediaId),
+                        PlayHistoryStore.EVENT_PAUSED, mPlayback.getCurrentStreamPosition());
+            }
             mPlayback.pause();
             mServiceCallback.onPlaybackStop();
         }
@@ -82,14 +129,34 @@ public class PlaybackManager implements Playback.Callback {
      */
     public void handleStopRequest(String withError) {
         LogHelper.d(TAG, "handleStopRequest: mState=" + mPlayback.getState() + " error=", withError);
+        // Stopping releases the player and its position: save them first, without delay, as the
+        // service may be on its way out.
+        saveSession(true);
+        if (mHistoryMediaId != null) {
+            recordLeft();
+        }
         mPlayback.stop(true);
         mServiceCallback.onPlaybackStop();
         updatePlaybackState(withError);
     }
 
 
+    // Log the track being left to the play history, as played or skipped depending on how far
+    // into it the player got.
+    private void recordLeft() {
+        String musicId = MediaIDHelper.extractMusicIDFromMediaID(mHistoryMediaId);
+        mHistoryMediaId = null;
+        long position = mPlayback.getCurrentStreamPosition();
+        MediaMetadataCompat track = mMusicProvider.getMusic(musicId);
+        long duration = track == null ? 0 : track.getLong(MediaMetadataCompat.METADATA_KEY_DURATION);
+        long threshold = duration > 0 ? Math.min(duration / 2, PLAYED_THRESHOLD_MS) : PLAYED_THRESHOLD_MS;
+        mMusicProvider.recordPlayback(musicId, position >= threshold
+                ? PlayHistoryStore.EVENT_PLAYED : PlayHistoryStore.EVENT_SKIPPED, position);
+    }
+
     /**
-     * Update the current media player state, optionally showing an error message.
+     * Update the current media player state, optionally showing an error message. Updates that
+     * wouldn't change what controllers show are dropped by the {@link PlaybackStatePublisher}.
      *
      * @param error if not null, error message to present to the user.
      */
@@ -100,52 +167,126 @@ public class PlaybackManager implements Playback.Callback {
             position = mPlayback.getCurrentStreamPosition();
         }
 
-        //noinspection ResourceType
-        PlaybackStateCompat.Builder stateBuilder = new PlaybackStateCompat.Builder()
-                .setActions(getAvailableActions());
-
-        setCustomAction(stateBuilder);
         int state = mPlayback.getState();
 
         // If there is an error message, send it to the playback state:
         if (error != null) {
             // Error states are really only supposed to be used for errors that cause playback to
             // stop unexpectedly and persist until the user takes action to fix it.
-            stateBuilder.setErrorMessage(error);
             state = PlaybackStateCompat.STATE_ERROR;
         }
-        //noinspection ResourceType
-        stateBuilder.setState(state, position, 1.0f, SystemClock.elapsedRealtime());
 
         // Set the activeQueueItemId if the current index is valid.
+        long activeQueueItemId = MediaSessionCompat.QueueItem.UNKNOWN_ID;
         MediaSessionCompat.QueueItem currentMusic = mQueueManager.getCurrentMusic();
         if (currentMusic != null) {
-            stateBuilder.setActiveQueueItemId(currentMusic.getQueueId());
+            activeQueueItemId = currentMusic.getQueueId();
+        }
+
+        mStatePublisher.update(new PlaybackStatePublisher.Snapshot(state, position,
+                getAvailableActions(), getFavoriteIcon(), activeQueueItemId, error));
+        saveSession(false);
+    }
+
+    /**
+     * Save the queue, the current track and its position, if the player holds a track. Called
+     * on every state change, and periodically while playing.
+     *
+     * @param urgent true to write without delay even if only the position moved
+     */
+    private void saveSession(boolean urgent) {
+        mHandler.removeCallbacks(mSessionCheckpoint);
+        int state = mPlayback.getState();
+        if (state != PlaybackStateCompat.STATE_PLAYING && state != PlaybackStateCompat.STATE_PAUSED
+                && state != PlaybackStateCompat.STATE_BUFFERING) {
+            return;
+        }
+        MediaSessionCompat.QueueItem currentMusic = mQueueManager.getCurrentMusic();
+        if (currentMusic == null) {
+            return;
+        }
+        MediaMetadataCompat track = mMusicProvider.getMusic(
+                MediaIDHelper.extractMusicIDFromMediaID(currentMusic.getDescription().getMediaId()));
+        if (track == null) {
+            return;
+        }
+
+        urgent |= state != mSavedState || currentMusic.getQueueId() != mSavedQueueItemId;
+        int currentIndex = mQueueManager.getCurrentIndex();
+        if (mQueueManager.isRestoringSession()) {
+            // The saved queue isn't restored yet and must not be replaced by the one track
+            // queued meanwhile: the state is saved against the saved queue.
+            currentIndex = (int) currentMusic.getQueueId();
+        } else if (mQueueManager.getQueueVersion() != mSavedQueueVersion) {
+            mSessionStore.saveQueue(mQueueManager.getQueueTitle(), mQueueManager.isRadioMode(),
+                    mQueueManager.getCurrentQueue(), currentIndex);
+            mSavedQueueVersion = mQueueManager.getQueueVersion();
+            urgent = true;
+        }
+        mSessionStore.saveState(currentIndex, currentMusic, track,
+                mPlayback.getCurrentStreamPosition(), urgent);
+        mSavedState = state;
+        mSavedQueueItemId = currentMusic.getQueueId();
+
+        if (state != PlaybackStateCompat.STATE_PAUSED) {
+            mHandler.postDelayed(mSessionCheckpoint, SESSION_CHECKPOINT_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * @return how many playback states were sent to the session and how many were dropped as
+     * redundant, for diagnostics
+     */
+    public String getStatePublishingStats() {
+        return "published=" + mStatePublisher.getPublishedCount()
+                + " suppressed=" + mStatePublisher.getSuppressedCount();
+    }
+
+    @Override
+    public void onPublishState(PlaybackStatePublisher.Snapshot snapshot) {
+        //noinspection ResourceType
+        PlaybackStateCompat.Builder stateBuilder = new PlaybackStateCompat.Builder()
+                .setActions(snapshot.actions);
+
+        setCustomAction(stateBuilder, snapshot.customActionIcon);
+        if (snapshot.errorMessage != null) {
+            stateBuilder.setErrorMessage(snapshot.errorMessage);
+        }
+        //noinspection ResourceType
+        stateBuilder.setState(snapshot.state, snapshot.position, 1.0f, snapshot.updateTime);
+        if (snapshot.activeQueueItemId != MediaSessionCompat.QueueItem.UNKNOWN_ID) {
+            stateBuilder.setActiveQueueItemId(snapshot.activeQueueItemId);
         }
 
         mServiceCallback.onPlaybackStateUpdated(stateBuilder.build());
 
-        if (state == PlaybackStateCompat.STATE_PLAYING ||
-                state == PlaybackStateCompat.STATE_PAUSED) {
+        if (snapshot.state == PlaybackStateCompat.STATE_PLAYING ||
+                snapshot.state == PlaybackStateCompat.STATE_PAUSED) {
             mServiceCallback.onNotificationRequired();
         }
     }
 
-    private void setCustomAction(PlaybackStateCompat.Builder stateBuilder) {
+    /**
+     * @return the "Favorite" icon matching the current music, or 0 if there is no current music
+     */
+    private int getFavoriteIcon() {
         MediaSessionCompat.QueueItem currentMusic = mQueueManager.getCurrentMusic();
         if (currentMusic == null) {
-            return;
+            return 0;
         }
-        // Set appropriate "Favorite" icon on Custom action:
         String mediaId = currentMusic.getDescription().getMediaId();
         if (mediaId == null) {
-            return;
+            return 0;
         }
         String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
-        int favoriteIcon = mMusicProvider.isFavorite(musicId) ?
-                R.drawable.ic_star_on : R.drawable.ic_star_off;
-        LogHelper.d(TAG, "updatePlaybackState, setting Favorite custom action of music ",
-                musicId, " current favorite=", mMusicProvider.isFavorite(musicId));
+        return mMusicProvider.isFavorite(musicId) ? R.drawable.ic_star_on : R.drawable.ic_star_off;
+    }
+
+    private void setCustomAction(PlaybackStateCompat.Builder stateBuilder, int favoriteIcon) {
+        if (favoriteIcon == 0) {
+            return;
+        }
+        // Set appropriate "Favorite" icon on Custom action:
         Bundle customActionExtras = new Bundle();
 //        WearHelper.setShowCustomActionOnWear(customActionExtras, true);
         stateBuilder.addCustomAction(new PlaybackStateCompat.CustomAction.Builder(
@@ -160,7 +301,8 @@ public class PlaybackManager implements Playback.Callback {
                 PlaybackStateCompat.ACTION_PLAY_FROM_MEDIA_ID |
                 PlaybackStateCompat.ACTION_PLAY_FROM_SEARCH |
                 PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
-                PlaybackStateCompat.ACTION_SKIP_TO_NEXT;
+                PlaybackStateCompat.ACTION_SKIP_TO_NEXT |
+                PlaybackStateCompat.ACTION_SET_SHUFFLE_MODE;
         if (mPlayback.isPlaying()) {
             actions |= PlaybackStateCompat.ACTION_PAUSE;
         } else {
@@ -176,6 +318,11 @@ public class PlaybackManager implements Playback.Callback {
     public void onCompletion() {
         // The media player finished playing the current song, so we go ahead
         // and start the next.
+        if (mHistoryMediaId != null) {
+            mMusicProvider.recordPlayback(MediaIDHelper.extractMusicIDFromMediaID(mHistoryMediaId),
+                    PlayHistoryStore.EVENT_PLAYED, mPlayback.getCurrentStreamPosition());
+            mHistoryMediaId = null;
+        }
         if (mQueueManager.skipQueuePosition(1)) {
             handlePlayRequest();
             mQueueManager.updateMetadata();
@@ -250,10 +397,22 @@ public class PlaybackManager implements Playback.Callback {
         @Override
         public void onPlay() {
             LogHelper.d(TAG, "play");
+            long resumePosition = 0;
             if (mQueueManager.getCurrentMusic() == null) {
-                mQueueManager.setRandomQueue();
+                // Typically a media button after the service was killed: resume the saved
+                // session, which doesn't need to wait for the catalog.
+                PlaybackSessionStore.Session session = mSessionStore.load();
+                if (session != null && mQueueManager.restoreSession(session)) {
+                    LogHelper.i(TAG, "Resuming saved session at ", session.position, " ms");
+                    resumePosition = session.position;
+                } else {
+                    mQueueManager.setRandomQueue();
+                }
             }
             handlePlayRequest();
+            if (resumePosition > 0) {
+                mPlayback.seekTo(resumePosition);
+            }
         }
 
         @Override
@@ -309,6 +468,13 @@ public class PlaybackManager implements Playback.Callback {
             mQueueManager.updateMetadata();
         }
 
+        @Override
+        public void onSetShuffleMode(int shuffleMode) {
+            LogHelper.d(TAG, "setShuffleMode:", shuffleMode);
+            mQueueManager.setShuffleEnabled(shuffleMode != PlaybackStateCompat.SHUFFLE_MODE_NONE);
+            mServiceCallback.onShuffleModeUpdated(shuffleMode);
+        }
+
         @Override
         public void onCustomAction(@NonNull String action, Bundle extras) {
             if (CUSTOM_ACTION_THUMBS_UP.equals(action)) {
@@ -324,6 +490,13 @@ public class PlaybackManager implements Playback.Callback {
                 // playback state needs to be updated because the "Favorite" icon on the
                 // custom action will change to reflect the new favorite state.
                 updatePlaybackState(null);
+            } else if (CUSTOM_ACTION_START_RADIO.equals(action)) {
+                LogHelper.i(TAG, "onCustomAction: radio from current track");
+                MediaSessionCompat.QueueItem currentMusic = mQueueManager.getCurrentMusic();
+                if (currentMusic != null && mQueueManager.startRadio(MediaIDHelper
+                        .extractMusicIDFromMediaID(currentMusic.getDescription().getMediaId()))) {
+                    handlePlayRequest();
+                }
             } else {
                 LogHelper.e(TAG, "Unsupported action: ", action);
             }
@@ -338,9 +511,9 @@ public class PlaybackManager implements Playback.Callback {
          * Threads and async handling:
          * Search, as a potentially slow operation, should run in another thread.
          * <p/>
-         * Since this method runs on the main thread, most apps with non-trivial metadata
-         * should defer the actual search to another thread (for example, by using
-         * an {@link AsyncTask} as we do here).
+         * This method runs on the playback thread. The catalog is retrieved with an
+         * {@link AsyncTask}, whose callback arrives on the main thread, so the search itself is
+         * posted back to the playback thread.
          **/
         @Override
         public void onPlayFromSearch(final String query, final Bundle extras) {
@@ -349,18 +522,23 @@ public class PlaybackManager implements Playback.Callback {
             mPlayback.setState(PlaybackStateCompat.STATE_CONNECTING);
             mMusicProvider.retrieveMediaAsync(new MusicProvider.Callback() {
                 @Override
-                public void onMusicCatalogReady(boolean success) {
-                    if (!success) {
-                        updatePlaybackState("Could not load catalog");
-                    }
-
-                    boolean successSearch = mQueueManager.setQueueFromSearch(query, extras);
-                    if (successSearch) {
-                        handlePlayRequest();
-                        mQueueManager.updateMetadata();
-                    } else {
-                        updatePlaybackState("Could not find music");
-                    }
+                public void onMusicCatalogReady(final boolean success) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!success) {
+                                updatePlaybackState("Could not load catalog");
+                            }
+
+                            boolean successSearch = mQueueManager.setQueueFromSearch(query, extras);
+                            if (successSearch) {
+                                handlePlayRequest();
+                                mQueueManager.updateMetadata();
+                            } else {
+                                updatePlaybackState("Could not find music");
+                            }
+                        }
+                    });
                 }
             });
         }
@@ -375,5 +553,7 @@ public class PlaybackManager implements Playback.Callback {
         void onPlaybackStop();
 
         void onPlaybackStateUpdated(PlaybackStateCompat newState);
+
+        void onShuffleModeUpdated(int shuffleMode);
     }
 }
@@ -0,0 +1,367 @@
+package com.ronda.audiodemo.playback;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.util.AtomicFile;
+
+import com.ronda.audiodemo.TaskScheduler;
+import com.ronda.audiodemo.model.MusicProviderSource;
+import com.ronda.audiodemo.utils.LogHelper;
+import com.ronda.audiodemo.utils.MediaIDHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Saves the playback session (queue, current track and position) so that playback can resume
+ * where it was after the service or the process is killed.
+ * <p/>
+ * The session is split in two files, so that what changes often stays cheap to write:
+ * <ul>
+ * <li>the queue, rewritten only when the queue changes. Items are stored as music ids under a
+ * table of their category prefixes, so a queue of one genre writes its prefix once;</li>
+ * <li>the state: current index, position, and the metadata of the current track, which is
+ * what lets playback start before the catalog is loaded. It is written at most every
+ * {@link #MIN_STATE_WRITE_INTERVAL_MS} while only the position moves, and right away on
+ * changes that matter (another track, paused or stopped).</li>
+ * </ul>
+ * Both files are written through AtomicFile on the DISK lane. The state names the queue it goes
+ * with by a stamp, so a state saved after a queue whose own write never made it to disk is
+ * restored without that queue rather than with the wrong one.
+ * <p/>
+ * Must be used from the thread of the handler given to the constructor.
+ */
+public class PlaybackSessionStore {
+    private static final String TAG = LogHelper.makeLogTag(PlaybackSessionStore.class);
+
+    private static final String QUEUE_FILE = "session_queue.bin";
+    private static final String STATE_FILE = "session_state.bin";
+    private static final int QUEUE_MAGIC = 0x50535131; // "PSQ1"
+    private static final int STATE_MAGIC = 0x50535331; // "PSS1"
+
+    // Minimum time between two state writes that only move the position.
+    private static final long MIN_STATE_WRITE_INTERVAL_MS = 5000;
+    // Items saved around the current one, for very long queues such as a large genre.
+    private static final int MAX_SAVED_QUEUE_ITEMS = 1000;
+
+    private final AtomicFile mQueueFile;
+    private final AtomicFile mStateFile;
+    private final Handler mHandler;
+    private final Random mRandom = new Random();
+
+    // Stamp of the last queue saved, recorded with every state.
+    private long mQueueStamp;
+    // Part of the queue that was saved: offset in the whole queue, and number of items.
+    private int mQueueOffset;
+    private int mQueueCount;
+
+    private byte[] mPendingState;
+    private long mLastStateWrite;
+    private boolean mStateWriteScheduled;
+
+    // Sequence numbers of the encoded and written contents of each file: a write that lost the
+    // race to a newer one on another DISK thread is dropped.
+    private int mQueueSequence;
+    private int mStateSequence;
+    private final Object mWriteLock = new Object();
+    private int mWrittenQueueSequence;
+    private int mWrittenStateSequence;
+
+    private final Runnable mWriteStateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mStateWriteScheduled = false;
+            writeState();
+        }
+    };
+
+    /**
+     * A saved session.
+     */
+    public static final class Session {
+        // The queue, or null if it couldn't be restored: then only the current track can be.
+        public final String queueTitle;
+        public final boolean radio;
+        public final List<String> mediaIds;
+        // Index of the current track in mediaIds, when there is a queue.
+        public final int currentIndex;
+        public final String currentMediaId;
+        public final MediaMetadataCompat currentTrack;
+        public final long position;
+
+        Session(String queueTitle, boolean radio, List<String> mediaIds, int currentIndex,
+                String currentMediaId, MediaMetadataCompat currentTrack, long position) {
+            this.queueTitle = queueTitle;
+            this.radio = radio;
+            this.mediaIds = mediaIds;
+            this.currentIndex = currentIndex;
+            this.currentMediaId = currentMediaId;
+            this.currentTrack = currentTrack;
+            this.position = position;
+        }
+    }
+
+    public PlaybackSessionStore(File directory, Handler playbackHandler) {
+        mQueueFile = new AtomicFile(new File(directory, QUEUE_FILE));
+        mStateFile = new AtomicFile(new File(directory, STATE_FILE));
+        mHandler = playbackHandler;
+    }
+
+    /**
+     * Save a new queue. The state saved next refers to it.
+     */
+    public void saveQueue(String title, boolean radio, List<MediaSessionCompat.QueueItem> queue,
+                          int currentIndex) {
+        mQueueStamp = mRandom.nextLong();
+        int count = Math.min(queue.size(), MAX_SAVED_QUEUE_ITEMS);
+        mQueueCount = count;
+        mQueueOffset = Math.max(0, Math.min(currentIndex - count / 2, queue.size() - count));
+
+        List<String> prefixes = new ArrayList<>();
+        Map<String, Integer> prefixIndexes = new HashMap<>();
+        int[] itemPrefixes = new int[count];
+        String[] musicIds = new String[count];
+        for (int i = 0; i < count; i++) {
+            String mediaId = queue.get(mQueueOffset + i).getDescription().getMediaId();
+            String prefix = MediaIDHelper.getParentMediaID(mediaId);
+            Integer prefixIndex = prefixIndexes.get(prefix);
+            if (prefixIndex == null) {
+                prefixIndex = prefixes.size();
+                prefixIndexes.put(prefix, prefixIndex);
+                prefixes.add(prefix);
+            }
+            itemPrefixes[i] = prefixIndex;
+            musicIds[i] = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(QUEUE_MAGIC);
+            out.writeLong(mQueueStamp);
+            writeNullableString(out, title);
+            out.writeBoolean(radio);
+            out.writeInt(prefixes.size());
+            for (String prefix : prefixes) {
+                out.writeUTF(prefix);
+            }
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeInt(itemPrefixes[i]);
+                out.writeUTF(musicIds[i]);
+            }
+        } catch (IOException e) {
+            // Writing to memory.
+            throw new IllegalStateException(e);
+        }
+        final byte[] data = bytes.toByteArray();
+        final int sequence = ++mQueueSequence;
+        TaskScheduler.getInstance().execute(TaskScheduler.Lane.DISK, TaskScheduler.PRIORITY_NORMAL,
+                new TaskScheduler.Task<Void>() {
+                    @Override
+                    protected Void doInBackground() throws IOException {
+                        synchronized (mWriteLock) {
+                            if (sequence > mWrittenQueueSequence) {
+                                mWrittenQueueSequence = sequence;
+                                write(mQueueFile, data);
+                            }
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Save the current track and position in the last saved queue.
+     *
+     * @param urgent false if only the position moved since the last call, in which case the
+     *               write may be delayed and merged with the next ones
+     */
+    public void saveState(int currentIndex, MediaSessionCompat.QueueItem current,
+                          MediaMetadataCompat track, long position, boolean urgent) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(STATE_MAGIC);
+            out.writeLong(mQueueStamp);
+            int savedIndex = currentIndex - mQueueOffset;
+            out.writeInt(savedIndex >= 0 && savedIndex < mQueueCount ? savedIndex : -1);
+            out.writeLong(position);
+            out.writeUTF(current.getDescription().getMediaId());
+            out.writeUTF(track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID));
+            writeNullableString(out, track.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE));
+            writeNullableString(out, track.getString(MediaMetadataCompat.METADATA_KEY_TITLE));
+            writeNullableString(out, track.getString(MediaMetadataCompat.METADATA_KEY_ARTIST));
+            writeNullableString(out, track.getString(MediaMetadataCompat.METADATA_KEY_ALBUM));
+            writeNullableString(out, track.getString(MediaMetadataCompat.METADATA_KEY_GENRE));
+            writeNullableString(out, track.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI));
+            out.writeLong(track.getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        mPendingState = bytes.toByteArray();
+
+        long sinceLastWrite = SystemClock.elapsedRealtime() - mLastStateWrite;
+        if (urgent || sinceLastWrite >= MIN_STATE_WRITE_INTERVAL_MS) {
+            mHandler.removeCallbacks(mWriteStateRunnable);
+            mStateWriteScheduled = false;
+            writeState();
+        } else if (!mStateWriteScheduled) {
+            mStateWriteScheduled = true;
+            mHandler.postDelayed(mWriteStateRunnable, MIN_STATE_WRITE_INTERVAL_MS - sinceLastWrite);
+        }
+    }
+
+    private void writeState() {
+        if (mPendingState == null) {
+            return;
+        }
+        final byte[] data = mPendingState;
+        final int sequence = ++mStateSequence;
+        mPendingState = null;
+        mLastStateWrite = SystemClock.elapsedRealtime();
+        TaskScheduler.getInstance().execute(TaskScheduler.Lane.DISK, TaskScheduler.PRIORITY_NORMAL,
+                new TaskScheduler.Task<Void>() {
+                    @Override
+                    protected Void doInBackground() throws IOException {
+                        synchronized (mWriteLock) {
+                            if (sequence > mWrittenStateSequence) {
+                                mWrittenStateSequence = sequence;
+                                write(mStateFile, data);
+                            }
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Read the saved session. The files are small, so this is cheap enough to call when
+     * playback is requested.
+     *
+     * @return the session, or null if there is none
+     */
+    public Session load() {
+        DataInputStream in = null;
+        String currentMediaId;
+        MediaMetadataCompat track;
+        long queueStamp;
+        int currentIndex;
+        long position;
+        try {
+            in = new DataInputStream(mStateFile.openRead());
+            if (in.readInt() != STATE_MAGIC) {
+                LogHelper.w(TAG, "Ignoring saved playback state of an unknown format");
+                return null;
+            }
+            queueStamp = in.readLong();
+            currentIndex = in.readInt();
+            position = in.readLong();
+            currentMediaId = in.readUTF();
+            MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder()
+                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, in.readUTF());
+            putNullableString(builder, MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE, in);
+            putNullableString(builder, MediaMetadataCompat.METADATA_KEY_TITLE, in);
+            putNullableString(builder, MediaMetadataCompat.METADATA_KEY_ARTIST, in);
+            putNullableString(builder, MediaMetadataCompat.METADATA_KEY_ALBUM, in);
+            putNullableString(builder, MediaMetadataCompat.METADATA_KEY_GENRE, in);
+            putNullableString(builder, MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, in);
+            builder.putLong(MediaMetadataCompat.METADATA_KEY_DURATION, in.readLong());
+            track = builder.build();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not read saved playback state");
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+
+        in = null;
+        try {
+            in = new DataInputStream(mQueueFile.openRead());
+            if (currentIndex >= 0 && in.readInt() == QUEUE_MAGIC && in.readLong() == queueStamp) {
+                String title = readNullableString(in);
+                boolean radio = in.readBoolean();
+                String[] prefixes = new String[in.readInt()];
+                for (int i = 0; i < prefixes.length; i++) {
+                    prefixes[i] = in.readUTF();
+                }
+                int count = in.readInt();
+                List<String> mediaIds = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String[] hierarchy = MediaIDHelper.getHierarchy(prefixes[in.readInt()]);
+                    mediaIds.add(MediaIDHelper.createMediaID(in.readUTF(), hierarchy));
+                }
+                if (currentIndex < count && currentMediaId.equals(mediaIds.get(currentIndex))) {
+                    // States saved while the queue is being restored go with this queue.
+                    mQueueStamp = queueStamp;
+                    mQueueOffset = 0;
+                    mQueueCount = count;
+                    return new Session(title, radio, mediaIds, currentIndex, currentMediaId,
+                            track, position);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Only the current track can be restored.
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not read saved playback queue");
+        } finally {
+            closeQuietly(in);
+        }
+        LogHelper.d(TAG, "Saved queue doesn't match the saved state, restoring the current track only");
+        return new Session(null, false, null, 0, currentMediaId, track, position);
+    }
+
+    private static void write(AtomicFile file, byte[] data) throws IOException {
+        FileOutputStream stream = file.startWrite();
+        try {
+            stream.write(data);
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            file.failWrite(stream);
+            throw e;
+        }
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void putNullableString(MediaMetadataCompat.Builder builder, String key,
+                                          DataInputStream in) throws IOException {
+        String value = readNullableString(in);
+        if (value != null) {
+            builder.putString(key, value);
+        }
+    }
+
+    private static void closeQuietly(DataInputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing was written, nothing to lose.
+            }
+        }
+    }
+}
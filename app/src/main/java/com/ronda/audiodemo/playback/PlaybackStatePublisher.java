@@ -0,0 +1,168 @@
+package com.ronda.audiodemo.playback;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
+
+import com.ronda.audiodemo.utils.LogHelper;
+
+/**
+ * Decides which playback state updates are worth sending to the media session.
+ * <p/>
+ * Every PlaybackState pushed to the session is a Binder callback to each connected controller
+ * (notification, lock screen, Android Auto, the app UI), so an update is only published when
+ * something a controller can see changed: the state, the actions, the custom action, the
+ * active queue item, the error message, or a position that no longer matches what controllers
+ * extrapolate from the last published state. Transient states (buffering, connecting) are held
+ * back for a short burst window, so a quick BUFFERING -> PLAYING flap publishes only the final
+ * state.
+ * <p/>
+ * Must be used from the thread of the handler it was created with.
+ */
+final class PlaybackStatePublisher {
+    private static final String TAG = LogHelper.makeLogTag(PlaybackStatePublisher.class);
+
+    // How long a transient state is held back, waiting for the state that follows it.
+    private static final long BURST_WINDOW_MS = 150;
+    // Position error tolerated before controllers need a fresh position.
+    private static final long POSITION_DRIFT_MS = 500;
+
+    /**
+     * Receives the states that survived filtering.
+     */
+    interface Callback {
+        void onPublishState(Snapshot snapshot);
+    }
+
+    /**
+     * The fields of a PlaybackState that controllers can observe.
+     */
+    static final class Snapshot {
+        final int state;
+        final long position;
+        final long updateTime;
+        final long actions;
+        // Icon of the custom action, or 0 if there is none.
+        final int customActionIcon;
+        final long activeQueueItemId;
+        final String errorMessage;
+
+        Snapshot(int state, long position, long actions, int customActionIcon,
+                 long activeQueueItemId, String errorMessage) {
+            this.state = state;
+            this.position = position;
+            this.updateTime = SystemClock.elapsedRealtime();
+            this.actions = actions;
+            this.customActionIcon = customActionIcon;
+            this.activeQueueItemId = activeQueueItemId;
+            this.errorMessage = errorMessage;
+        }
+
+        /**
+         * @return the position a controller computes from this snapshot at the given time
+         */
+        long getExtrapolatedPosition(long now) {
+            if (state != PlaybackStateCompat.STATE_PLAYING
+                    || position == PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN) {
+                return position;
+            }
+            return position + (now - updateTime);
+        }
+    }
+
+    private final Callback mCallback;
+    private final Handler mHandler;
+
+    private Snapshot mPublished;
+    private Snapshot mPending;
+    private int mPublishedCount;
+    private int mSuppressedCount;
+
+    private final Runnable mPublishPending = new Runnable() {
+        @Override
+        public void run() {
+            Snapshot pending = mPending;
+            mPending = null;
+            if (pending != null) {
+                publishIfChanged(pending);
+            }
+        }
+    };
+
+    PlaybackStatePublisher(Callback callback, Handler handler) {
+        mCallback = callback;
+        mHandler = handler;
+    }
+
+    /**
+     * Offer a new state. It is published now, later (if transient) or not at all (if it
+     * doesn't differ from the last published one).
+     */
+    void update(Snapshot snapshot) {
+        if (mPending != null) {
+            // Superseded before its burst window ended: never seen by controllers.
+            mSuppressedCount++;
+            mHandler.removeCallbacks(mPublishPending);
+            mPending = null;
+        }
+        if (isTransient(snapshot.state) && mPublished != null
+                && mPublished.state != snapshot.state) {
+            mPending = snapshot;
+            mHandler.postDelayed(mPublishPending, BURST_WINDOW_MS);
+            return;
+        }
+        publishIfChanged(snapshot);
+    }
+
+    /**
+     * Drop any held back state and forget the last published one, so the next update is
+     * published unconditionally.
+     */
+    void reset() {
+        mHandler.removeCallbacks(mPublishPending);
+        mPending = null;
+        mPublished = null;
+    }
+
+    int getPublishedCount() {
+        return mPublishedCount;
+    }
+
+    int getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    private void publishIfChanged(Snapshot snapshot) {
+        if (mPublished != null && !isVisibleChange(mPublished, snapshot)) {
+            mSuppressedCount++;
+            LogHelper.d(TAG, "Suppressed redundant playback state ", snapshot.state,
+                    " published=", mPublishedCount, " suppressed=", mSuppressedCount);
+            return;
+        }
+        mPublished = snapshot;
+        mPublishedCount++;
+        mCallback.onPublishState(snapshot);
+    }
+
+    private static boolean isVisibleChange(Snapshot published, Snapshot next) {
+        if (published.state != next.state
+                || published.actions != next.actions
+                || published.customActionIcon != next.customActionIcon
+                || published.activeQueueItemId != next.activeQueueItemId
+                || !TextUtils.equals(published.errorMessage, next.errorMessage)) {
+            return true;
+        }
+        if ((published.position == PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN)
+                != (next.position == PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN)) {
+            return true;
+        }
+        long expected = published.getExtrapolatedPosition(next.updateTime);
+        return Math.abs(expected - next.position) > POSITION_DRIFT_MS;
+    }
+
+    private static boolean isTransient(int state) {
+        return state == PlaybackStateCompat.STATE_BUFFERING
+                || state == PlaybackStateCompat.STATE_CONNECTING;
+    }
+}
@@ -3,6 +3,7 @@ package com.ronda.audiodemo.playback;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
@@ -10,15 +11,19 @@ import android.support.v4.media.session.MediaSessionCompat;
 
 import com.ronda.audiodemo.AlbumArtCache;
 import com.ronda.audiodemo.R;
+import com.ronda.audiodemo.TaskScheduler;
 import com.ronda.audiodemo.model.MusicProvider;
 import com.ronda.audiodemo.utils.LogHelper;
 import com.ronda.audiodemo.utils.MediaIDHelper;
 import com.ronda.audiodemo.utils.QueueHelper;
+import com.ronda.audiodemo.utils.ShuffleOrder;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 /**
  * Simple data provider for queues. Keeps track of a current queue and a current index in the
@@ -28,18 +33,50 @@ import java.util.List;
 public class QueueManager {
     private static final String TAG = LogHelper.makeLogTag(QueueManager.class);
 
+    // Tracks added to a radio queue at a time.
+    private static final int RADIO_BATCH = 10;
+    // A radio queue is extended once this few tracks are left after the current one.
+    private static final int RADIO_LOW_WATER = 3;
+    // Played tracks kept at the head of a radio queue, so it doesn't grow forever.
+    private static final int RADIO_KEEP_PLAYED = 10;
+
     private MusicProvider mMusicProvider;
     private MetadataUpdateListener mListener;
     private Resources mResources;
+    // Handler of the playback thread, which owns the queue.
+    private Handler mHandler;
 
     // "Now playing" queue:
     private List<MediaSessionCompat.QueueItem> mPlayingQueue;
     private int mCurrentIndex;
+    private String mQueueTitle;
+    // Bumped whenever the queue is replaced or extended, so its saved copy can tell it's stale.
+    private int mQueueVersion;
+
+    // Shuffled playback: skipping moves through mShuffleOrder, whose positions map to indexes
+    // in mPlayingQueue. The order starts at the track that was current when it was created.
+    private boolean mShuffleEnabled;
+    private ShuffleOrder mShuffleOrder;
+    private int mShufflePosition;
+    private final Random mRandom = new Random();
+
+    // Radio: the queue never wraps around, instead tracks similar to the current one are
+    // appended in the background before playback gets to its end. mRadioGeneration changes
+    // with every new queue, so that an extension computed for an older queue is dropped.
+    private boolean mRadioMode;
+    private boolean mRadioExtending;
+    private int mRadioGeneration;
+
+    // Whether the queue only holds the current track of a saved session, whose queue is yet to
+    // be restored around it: until then, the saved queue must not be replaced.
+    private boolean mRestoringSession;
 
     public QueueManager(@NonNull MusicProvider musicProvider,
                         @NonNull Resources resources,
-                        @NonNull MetadataUpdateListener listener) {
+                        @NonNull MetadataUpdateListener listener,
+                        @NonNull Handler playbackHandler) {
         this.mMusicProvider = musicProvider;
+        this.mHandler = playbackHandler;
         this.mListener = listener;
         this.mResources = resources;
 
@@ -48,20 +85,18 @@ public class QueueManager {
     }
 
     public boolean isSameBrowsingCategory(@NonNull String mediaId) {
-        String[] newBrowseHierarchy = MediaIDHelper.getHierarchy(mediaId);
         MediaSessionCompat.QueueItem current = getCurrentMusic();
         if (current == null) {
             return false;
         }
-        String[] currentBrowseHierarchy = MediaIDHelper.getHierarchy(
-                current.getDescription().getMediaId());
-
-        return Arrays.equals(newBrowseHierarchy, currentBrowseHierarchy);
+        return MediaIDHelper.isSameBrowsingCategory(mediaId, current.getDescription().getMediaId());
     }
 
     private void setCurrentQueueIndex(int index) {
         if (index >= 0 && index < mPlayingQueue.size()) {
             mCurrentIndex = index;
+            resetShuffleOrder();
+            maybeExtendRadio();
             mListener.onCurrentQueueIndexUpdated(mCurrentIndex);
         }
     }
@@ -81,6 +116,12 @@ public class QueueManager {
     }
 
     public boolean skipQueuePosition(int amount) {
+        if (mRadioMode) {
+            return skipRadioPosition(amount);
+        }
+        if (mShuffleOrder != null) {
+            return skipShufflePosition(amount);
+        }
         int index = mCurrentIndex + amount;
         if (index < 0) {
             // skip backwards before the first song will keep you on the first song
@@ -98,6 +139,67 @@ public class QueueManager {
         return true;
     }
 
+    private boolean skipShufflePosition(int amount) {
+        int position = mShufflePosition + amount;
+        if (position < 0) {
+            position = 0;
+        } else {
+            position %= mShuffleOrder.size();
+        }
+        int index = mShuffleOrder.get(position);
+        if (!QueueHelper.isIndexPlayable(index, mPlayingQueue)) {
+            LogHelper.e(TAG, "Cannot move shuffle position by ", amount,
+                    ". Current=", mShufflePosition, " queue length=", mPlayingQueue.size());
+            return false;
+        }
+        mShufflePosition = position;
+        mCurrentIndex = index;
+        return true;
+    }
+
+    private boolean skipRadioPosition(int amount) {
+        int index = Math.max(0, mCurrentIndex + amount);
+        if (index >= mPlayingQueue.size()) {
+            // Skipped past the end before the extension came in: append random tracks right
+            // away rather than wait for it, so the radio never runs dry.
+            int offset = index - mCurrentIndex;
+            appendRadioTracks(mMusicProvider.getRandomMusic(index - mPlayingQueue.size() + 1));
+            index = mCurrentIndex + offset;
+        }
+        if (!QueueHelper.isIndexPlayable(index, mPlayingQueue)) {
+            LogHelper.e(TAG, "Cannot move radio position by ", amount,
+                    ". Current=", mCurrentIndex, " queue length=", mPlayingQueue.size());
+            return false;
+        }
+        mCurrentIndex = index;
+        maybeExtendRadio();
+        return true;
+    }
+
+    public boolean isShuffleEnabled() {
+        return mShuffleEnabled;
+    }
+
+    /**
+     * Turn shuffled playback on or off. The current track keeps playing; when shuffling, the
+     * following tracks come from a fresh random order of the queue.
+     */
+    public void setShuffleEnabled(boolean enabled) {
+        mShuffleEnabled = enabled;
+        resetShuffleOrder();
+    }
+
+    private void resetShuffleOrder() {
+        // A radio queue is already in random order, and only ever played forward.
+        if (mShuffleEnabled && !mRadioMode && mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
+            mShuffleOrder = new ShuffleOrder(mPlayingQueue.size(), mRandom.nextLong(),
+                    Math.min(mCurrentIndex, mPlayingQueue.size() - 1));
+            mShufflePosition = 0;
+        } else {
+            mShuffleOrder = null;
+        }
+    }
+
     public boolean setQueueFromSearch(String query, Bundle extras) {
         List<MediaSessionCompat.QueueItem> queue =
                 QueueHelper.getPlayingQueueFromSearch(query, extras, mMusicProvider);
@@ -106,11 +208,181 @@ public class QueueManager {
         return queue != null && !queue.isEmpty();
     }
 
+    /**
+     * Start playing from a random track, as a radio seeded by that track. Falls back to a plain
+     * random queue if the radio can't be started.
+     */
     public void setRandomQueue() {
+        List<MediaMetadataCompat> seed = mMusicProvider.getRandomMusic(1);
+        if (!seed.isEmpty() && startRadio(seed.get(0).getDescription().getMediaId())) {
+            return;
+        }
         setCurrentQueue("Random music", QueueHelper.getRandomQueue(mMusicProvider));
         updateMetadata();
     }
 
+    /**
+     * Replace the queue with a radio: the seed track followed by similar tracks, extended
+     * endlessly as it plays.
+     *
+     * @return false if the seed is not in the catalog
+     */
+    public boolean startRadio(String seedMusicId) {
+        MediaMetadataCompat seed = mMusicProvider.getMusic(seedMusicId);
+        if (seed == null) {
+            LogHelper.w(TAG, "Cannot start radio from unknown track ", seedMusicId);
+            return false;
+        }
+        List<MediaMetadataCompat> tracks = new ArrayList<>(RADIO_BATCH + 1);
+        tracks.add(seed);
+        tracks.addAll(mMusicProvider.getSimilarMusic(seedMusicId, RADIO_BATCH,
+                Collections.singleton(seedMusicId)));
+        String title = mResources.getString(R.string.radio_queue_title,
+                seed.getString(MediaMetadataCompat.METADATA_KEY_TITLE));
+        setCurrentQueue(title, QueueHelper.getRadioQueue(tracks, 0), null, true);
+        updateMetadata();
+        return true;
+    }
+
+    public boolean isRadioMode() {
+        return mRadioMode;
+    }
+
+    private void maybeExtendRadio() {
+        if (!mRadioMode || mRadioExtending
+                || mPlayingQueue.size() - 1 - mCurrentIndex > RADIO_LOW_WATER) {
+            return;
+        }
+        MediaSessionCompat.QueueItem current = getCurrentMusic();
+        if (current == null) {
+            return;
+        }
+        final String seedMusicId = MediaIDHelper.extractMusicIDFromMediaID(
+                current.getDescription().getMediaId());
+        final Set<String> queuedMusicIds = new HashSet<>();
+        for (MediaSessionCompat.QueueItem item : mPlayingQueue) {
+            queuedMusicIds.add(MediaIDHelper.extractMusicIDFromMediaID(
+                    item.getDescription().getMediaId()));
+        }
+        final int generation = mRadioGeneration;
+        mRadioExtending = true;
+        TaskScheduler.getInstance().execute(TaskScheduler.Lane.CPU, TaskScheduler.PRIORITY_NORMAL,
+                new TaskScheduler.Task<List<MediaMetadataCompat>>() {
+                    @Override
+                    protected List<MediaMetadataCompat> doInBackground() {
+                        return mMusicProvider.getSimilarMusic(seedMusicId, RADIO_BATCH,
+                                queuedMusicIds);
+                    }
+
+                    @Override
+                    protected void onResult(final List<MediaMetadataCompat> tracks) {
+                        // Delivered on the main thread: the queue is only changed on the
+                        // playback thread.
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (generation == mRadioGeneration) {
+                                    mRadioExtending = false;
+                                    appendRadioTracks(tracks);
+                                }
+                            }
+                        });
+                    }
+
+                    @Override
+                    protected void onError(Exception e) {
+                        super.onError(e);
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (generation == mRadioGeneration) {
+                                    mRadioExtending = false;
+                                }
+                            }
+                        });
+                    }
+                });
+    }
+
+    // Append to the radio queue, dropping the oldest played tracks.
+    private void appendRadioTracks(List<MediaMetadataCompat> tracks) {
+        if (tracks.isEmpty()) {
+            return;
+        }
+        int size = mPlayingQueue.size();
+        long nextQueueId = size == 0 ? 0 : mPlayingQueue.get(size - 1).getQueueId() + 1;
+        int trimmed = Math.max(0, mCurrentIndex - RADIO_KEEP_PLAYED);
+        List<MediaSessionCompat.QueueItem> newQueue = new ArrayList<>(
+                size - trimmed + tracks.size());
+        newQueue.addAll(mPlayingQueue.subList(trimmed, size));
+        newQueue.addAll(QueueHelper.getRadioQueue(tracks, nextQueueId));
+        mPlayingQueue = newQueue;
+        mQueueVersion++;
+        mCurrentIndex -= trimmed;
+        LogHelper.d(TAG, "Radio extended by ", tracks.size(), " tracks, dropped ", trimmed);
+        mListener.onQueueUpdated(mQueueTitle, newQueue);
+    }
+
+    /**
+     * Bring back the queue of a saved session. The current track is queued right away, from the
+     * metadata saved with the session, so that it can start playing before the catalog is
+     * loaded; the rest of the queue is restored around it once the catalog is ready, unless
+     * another queue has been set by then.
+     *
+     * @return false if the session has no playable track
+     */
+    public boolean restoreSession(final PlaybackSessionStore.Session session) {
+        mMusicProvider.primeMusic(session.currentTrack);
+        List<MediaSessionCompat.QueueItem> queue = QueueHelper.getQueueFromMediaIds(
+                Collections.singletonList(session.currentMediaId), session.currentIndex,
+                mMusicProvider);
+        if (queue.isEmpty()) {
+            return false;
+        }
+        String title = session.queueTitle != null ? session.queueTitle
+                : session.currentTrack.getString(MediaMetadataCompat.METADATA_KEY_TITLE);
+        setCurrentQueue(title, queue, 0, false);
+        updateMetadata();
+        if (session.mediaIds == null) {
+            return true;
+        }
+        mRestoringSession = true;
+
+        final int generation = mRadioGeneration;
+        mMusicProvider.retrieveMediaAsync(new MusicProvider.Callback() {
+            @Override
+            public void onMusicCatalogReady(boolean success) {
+                if (!success) {
+                    return;
+                }
+                // Delivered on the main thread: the queue is only changed on the playback thread.
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mRadioGeneration) {
+                            restoreSessionQueue(session);
+                        }
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    private void restoreSessionQueue(PlaybackSessionStore.Session session) {
+        List<MediaSessionCompat.QueueItem> queue = QueueHelper.getQueueFromMediaIds(
+                session.mediaIds, 0, mMusicProvider);
+        // The current item has the same queue id in both queues.
+        int index = QueueHelper.getMusicIndexOnQueue(queue, (long) session.currentIndex);
+        if (index < 0) {
+            // The saved queue can't be restored: the current track becomes the queue.
+            mRestoringSession = false;
+            return;
+        }
+        LogHelper.d(TAG, "Restored saved queue of ", queue.size(), " tracks");
+        setCurrentQueue(mQueueTitle, queue, index, session.radio);
+    }
+
     public void setQueueFromMusic(String mediaId) {
         LogHelper.d(TAG, "setQueueFromMusic", mediaId);
 
@@ -124,8 +396,20 @@ public class QueueManager {
             canReuseQueue = setCurrentQueueItem(mediaId);
         }
         if (!canReuseQueue) {
-            String queueTitle = mResources.getString(R.string.browse_musics_by_genre_subtitle,
-                    MediaIDHelper.extractBrowseCategoryValueFromMediaID(mediaId));
+            String queueTitle;
+            String category = MediaIDHelper.getHierarchy(mediaId)[0];
+            if (MediaIDHelper.MEDIA_ID_FAVORITES.equals(category)) {
+                queueTitle = mResources.getString(R.string.browse_favorites);
+            } else if (MediaIDHelper.MEDIA_ID_RECENTLY_PLAYED.equals(category)) {
+                queueTitle = mResources.getString(R.string.browse_recently_played);
+            } else if (MediaIDHelper.MEDIA_ID_MOST_PLAYED.equals(category)) {
+                queueTitle = mResources.getString(R.string.browse_most_played);
+            } else if (MediaIDHelper.MEDIA_ID_MUSICS_BY_SEARCH.equals(category)) {
+                queueTitle = mResources.getString(R.string.search_queue_title);
+            } else {
+                queueTitle = mResources.getString(R.string.browse_musics_by_genre_subtitle,
+                        MediaIDHelper.extractBrowseCategoryValueFromMediaID(mediaId));
+            }
             setCurrentQueue(queueTitle,
                     QueueHelper.getPlayingQueue(mediaId, mMusicProvider), mediaId);
         }
@@ -146,19 +430,64 @@ public class QueueManager {
         return mPlayingQueue.size();
     }
 
+    public List<MediaSessionCompat.QueueItem> getCurrentQueue() {
+        return mPlayingQueue;
+    }
+
+    public String getQueueTitle() {
+        return mQueueTitle;
+    }
+
+    public int getCurrentIndex() {
+        return mCurrentIndex;
+    }
+
+    /**
+     * @return a number that changes every time the queue is replaced or extended
+     */
+    public int getQueueVersion() {
+        return mQueueVersion;
+    }
+
+    /**
+     * @return true while the queue only holds the current track of a session being restored,
+     * see {@link #restoreSession}. Its queue id is its index in the saved queue.
+     */
+    public boolean isRestoringSession() {
+        return mRestoringSession;
+    }
+
     protected void setCurrentQueue(String title, List<MediaSessionCompat.QueueItem> newQueue) {
         setCurrentQueue(title, newQueue, null);
     }
 
     protected void setCurrentQueue(String title, List<MediaSessionCompat.QueueItem> newQueue,
                                    String initialMediaId) {
-        mPlayingQueue = newQueue;
+        setCurrentQueue(title, newQueue, initialMediaId, false);
+    }
+
+    private void setCurrentQueue(String title, List<MediaSessionCompat.QueueItem> newQueue,
+                                 String initialMediaId, boolean radio) {
         int index = 0;
         if (initialMediaId != null) {
-            index = QueueHelper.getMusicIndexOnQueue(mPlayingQueue, initialMediaId);
+            index = QueueHelper.getMusicIndexOnQueue(newQueue, initialMediaId);
         }
-        mCurrentIndex = Math.max(index, 0);
+        setCurrentQueue(title, newQueue, Math.max(index, 0), radio);
+    }
+
+    private void setCurrentQueue(String title, List<MediaSessionCompat.QueueItem> newQueue,
+                                 int index, boolean radio) {
+        mRadioGeneration++;
+        mRestoringSession = false;
+        mRadioMode = radio;
+        mRadioExtending = false;
+        mQueueTitle = title;
+        mPlayingQueue = newQueue;
+        mQueueVersion++;
+        mCurrentIndex = index;
+        resetShuffleOrder();
         mListener.onQueueUpdated(title, newQueue);
+        maybeExtendRadio();
     }
 
     public void updateMetadata() {
@@ -183,19 +512,25 @@ public class QueueManager {
             String albumUri = metadata.getDescription().getIconUri().toString();
             AlbumArtCache.getInstance().fetch(albumUri, new AlbumArtCache.FetchListener() {
                 @Override
-                public void onFetched(String artUrl, Bitmap bitmap, Bitmap icon) {
-                    mMusicProvider.updateMusicArt(musicId, bitmap, icon);
+                public void onFetched(String artUrl, final Bitmap bitmap, final Bitmap icon) {
+                    // Delivered on the main thread: the queue is only read on the playback thread.
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mMusicProvider.updateMusicArt(musicId, bitmap, icon);
 
-                    // If we are still playing the same music, notify the listeners:
-                    MediaSessionCompat.QueueItem currentMusic = getCurrentMusic();
-                    if (currentMusic == null) {
-                        return;
-                    }
-                    String currentPlayingId = MediaIDHelper.extractMusicIDFromMediaID(
-                            currentMusic.getDescription().getMediaId());
-                    if (musicId.equals(currentPlayingId)) {
-                        mListener.onMetadataChanged(mMusicProvider.getMusic(currentPlayingId));
-                    }
+                            // If we are still playing the same music, notify the listeners:
+                            MediaSessionCompat.QueueItem currentMusic = getCurrentMusic();
+                            if (currentMusic == null) {
+                                return;
+                            }
+                            String currentPlayingId = MediaIDHelper.extractMusicIDFromMediaID(
+                                    currentMusic.getDescription().getMediaId());
+                            if (musicId.equals(currentPlayingId)) {
+                                mListener.onMetadataChanged(mMusicProvider.getMusic(currentPlayingId));
+                            }
+                        }
+                    });
                 }
             });
         }
@@ -0,0 +1,202 @@
+package com.ronda.audiodemo.ui;
+
+import android.app.Activity;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaControllerCompat;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.ronda.audiodemo.MediaItemViewHolder;
+import com.ronda.audiodemo.StartupOrchestrator;
+import com.ronda.audiodemo.TaskScheduler;
+import com.ronda.audiodemo.utils.MediaId;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An adapter for showing the list of browsed MediaItem's.
+ * <p/>
+ * New child lists are diffed against the current one on a background thread, keyed by media
+ * ID, and only the rows that actually changed are rebound.
+ */
+class BrowseAdapter extends RecyclerView.Adapter<BrowseAdapter.ItemHolder> {
+
+    interface OnItemClickListener {
+        void onItemClick(MediaBrowserCompat.MediaItem item);
+    }
+
+    private final Activity mActivity;
+    private final OnItemClickListener mListener;
+
+    private List<MediaBrowserCompat.MediaItem> mItems = Collections.emptyList();
+    // Incremented for every submitted list, so a diff that finishes after a newer list was
+    // submitted is dropped instead of being applied on top of it.
+    private int mDiffGeneration;
+    private TaskScheduler.Task<DiffUtil.DiffResult> mDiffTask;
+    private boolean mFirstRowBound;
+    private String mPlayingMusicId;
+
+    BrowseAdapter(Activity activity, OnItemClickListener listener) {
+        mActivity = activity;
+        mListener = listener;
+    }
+
+    /**
+     * Replace the adapter content. The list must not be modified after it is submitted.
+     */
+    void submitList(final List<MediaBrowserCompat.MediaItem> newItems) {
+        final int generation = ++mDiffGeneration;
+        if (mDiffTask != null) {
+            mDiffTask.cancel();
+            mDiffTask = null;
+        }
+        final List<MediaBrowserCompat.MediaItem> oldItems = mItems;
+        if (oldItems.isEmpty() || newItems.isEmpty()) {
+            // Nothing to diff against: a full refresh is as cheap as it gets.
+            mItems = newItems;
+            notifyDataSetChanged();
+            return;
+        }
+        // The visible list waits for this diff, so it goes ahead of other CPU work.
+        mDiffTask = TaskScheduler.getInstance().execute(TaskScheduler.Lane.CPU, TaskScheduler.PRIORITY_HIGH,
+                new TaskScheduler.Task<DiffUtil.DiffResult>() {
+                    @Override
+                    protected DiffUtil.DiffResult doInBackground() {
+                        return DiffUtil.calculateDiff(new ItemDiffCallback(oldItems, newItems));
+                    }
+
+                    @Override
+                    protected void onResult(DiffUtil.DiffResult result) {
+                        if (generation != mDiffGeneration) {
+                            return;
+                        }
+                        mDiffTask = null;
+                        mItems = newItems;
+                        result.dispatchUpdatesTo(BrowseAdapter.this);
+                    }
+                });
+    }
+
+    MediaBrowserCompat.MediaItem getItem(int position) {
+        return mItems.get(position);
+    }
+
+    /**
+     * Rebind only the rows of the previously and currently playing tracks, after a metadata or
+     * playback state change.
+     */
+    void updatePlayingState() {
+        String previous = mPlayingMusicId;
+        String current = null;
+        MediaControllerCompat controller = MediaControllerCompat.getMediaController(mActivity);
+        if (controller != null) {
+            MediaMetadataCompat metadata = controller.getMetadata();
+            if (metadata != null) {
+                current = metadata.getDescription().getMediaId();
+            }
+        }
+        mPlayingMusicId = current;
+        if (previous == null && current == null) {
+            return;
+        }
+        for (int i = 0; i < mItems.size(); i++) {
+            String mediaId = mItems.get(i).getMediaId();
+            if (MediaId.hasMusicId(mediaId, previous) || MediaId.hasMusicId(mediaId, current)) {
+                notifyItemChanged(i);
+            }
+        }
+    }
+
+    @Override
+    public ItemHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        final ItemHolder holder = new ItemHolder(MediaItemViewHolder.createView(mActivity, parent));
+        holder.itemView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                int position = holder.getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION) {
+                    mListener.onItemClick(mItems.get(position));
+                }
+            }
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(ItemHolder holder, int position) {
+        MediaItemViewHolder.bindView(mActivity, holder.itemView, mItems.get(position));
+        if (!mFirstRowBound) {
+            mFirstRowBound = true;
+            StartupOrchestrator.getInstance().markFirstBrowseRow();
+        }
+    }
+
+    @Override
+    public void onViewRecycled(ItemHolder holder) {
+        MediaItemViewHolder.unbindView(holder.itemView);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mItems.size();
+    }
+
+    static class ItemHolder extends RecyclerView.ViewHolder {
+        ItemHolder(View itemView) {
+            super(itemView);
+        }
+    }
+
+    private static class ItemDiffCallback extends DiffUtil.Callback {
+        private final List<MediaBrowserCompat.MediaItem> mOldItems;
+        private final List<MediaBrowserCompat.MediaItem> mNewItems;
+
+        ItemDiffCallback(List<MediaBrowserCompat.MediaItem> oldItems,
+                         List<MediaBrowserCompat.MediaItem> newItems) {
+            mOldItems = oldItems;
+            mNewItems = newItems;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldItems.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewItems.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return TextUtils.equals(mOldItems.get(oldItemPosition).getMediaId(),
+                    mNewItems.get(newItemPosition).getMediaId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            MediaBrowserCompat.MediaItem oldItem = mOldItems.get(oldItemPosition);
+            MediaBrowserCompat.MediaItem newItem = mNewItems.get(newItemPosition);
+            if (oldItem == newItem) {
+                return true;
+            }
+            if (oldItem.getFlags() != newItem.getFlags()) {
+                return false;
+            }
+            MediaDescriptionCompat oldDescription = oldItem.getDescription();
+            MediaDescriptionCompat newDescription = newItem.getDescription();
+            return TextUtils.equals(oldDescription.getTitle(), newDescription.getTitle())
+                    && TextUtils.equals(oldDescription.getSubtitle(), newDescription.getSubtitle())
+                    && oldDescription.getIconBitmap() == newDescription.getIconBitmap()
+                    && (oldDescription.getIconUri() == null
+                        ? newDescription.getIconUri() == null
+                        : oldDescription.getIconUri().equals(newDescription.getIconUri()));
+        }
+    }
+}
@@ -14,17 +14,18 @@ import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.ronda.audiodemo.MediaItemViewHolder;
 import com.ronda.audiodemo.R;
+import com.ronda.audiodemo.ThumbnailLoader;
 import com.ronda.audiodemo.utils.LogHelper;
 import com.ronda.audiodemo.utils.MediaIDHelper;
 import com.ronda.audiodemo.utils.NetworkHelper;
@@ -39,8 +40,8 @@ import java.util.List;
  * from a {@link android.service.media.MediaBrowserService}.
  * <p/>
  * It uses a {@link MediaBrowserCompat} to connect to the {@link com.ronda.audiodemo.MusicService}.
- * Once connected, the fragment subscribes to get all the children.
- * All {@link MediaBrowserCompat.MediaItem}'s that can be browsed are shown in a ListView.
+ * Once connected, the fragment subscribes to the children one page at a time as the list scrolls.
+ * All {@link MediaBrowserCompat.MediaItem}'s that can be browsed are shown in a RecyclerView.
  */
 
 public class MediaBrowserFragment extends Fragment {
@@ -49,12 +50,21 @@ public class MediaBrowserFragment extends Fragment {
 
     private static final String ARG_MEDIA_ID = "media_id";
 
+    // Number of children requested per subscription. Large genres are loaded page by page
+    // as the user scrolls instead of in a single Binder transaction.
+    public static final int PAGE_SIZE = 50;
+    private static final int PREFETCH_ROWS = 10;
+
     private BrowseAdapter mBrowserAdapter;
     private String mMediaId;
     private MediaFragmentListener mMediaFragmentListener;
     private View mErrorView;
     private TextView mErrorMessage;
 
+    private final SparseArray<List<MediaBrowserCompat.MediaItem>> mLoadedPages = new SparseArray<>();
+    private final SparseBooleanArray mRequestedPages = new SparseBooleanArray();
+    private int mLastPage = Integer.MAX_VALUE;
+
     private final BroadcastReceiver mConnectivityChangeReceiver = new BroadcastReceiver() {
         private boolean oldOnline = false;
 
@@ -85,7 +95,7 @@ public class MediaBrowserFragment extends Fragment {
                 return;
             }
             LogHelper.d(TAG, "Received metadata change to media ", metadata.getDescription().getMediaId());
-            mBrowserAdapter.notifyDataSetChanged();
+            mBrowserAdapter.updatePlayingState();
         }
 
         @Override
@@ -93,36 +103,73 @@ public class MediaBrowserFragment extends Fragment {
             super.onPlaybackStateChanged(state);
             LogHelper.d(TAG, "Received state change: ", state);
             checkForUserVisibleErrors(false);
-            mBrowserAdapter.notifyDataSetChanged();
+            mBrowserAdapter.updatePlayingState();
         }
     };
 
     private final MediaBrowserCompat.SubscriptionCallback mSubscriptionCallback = new MediaBrowserCompat.SubscriptionCallback() {
         @Override
-        public void onChildrenLoaded(@NonNull String parentId, @NonNull List<MediaBrowserCompat.MediaItem> children) {
+        public void onChildrenLoaded(@NonNull String parentId, @NonNull List<MediaBrowserCompat.MediaItem> children,
+                                     @NonNull Bundle options) {
             try {
-                LogHelper.d(TAG, "fragment onChildrenLoaded, parentId=" + parentId + "  count=" + children.size());
-                KLog.d("fragment onChildrenLoaded, parentId=" + parentId + "  count=" + children.size());
+                int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE, 0);
+                LogHelper.d(TAG, "fragment onChildrenLoaded, parentId=" + parentId + "  page=" + page + "  count=" + children.size());
+                KLog.d("fragment onChildrenLoaded, parentId=" + parentId + "  page=" + page + "  count=" + children.size());
+
+                if (!parentId.equals(mMediaId)) {
+                    return;
+                }
+                mRequestedPages.delete(page);
+                mLoadedPages.put(page, children);
+                if (children.size() < PAGE_SIZE) {
+                    mLastPage = page;
+                }
 
-                checkForUserVisibleErrors(children.isEmpty());
-                mBrowserAdapter.clear();
-                for (MediaBrowserCompat.MediaItem item : children) {
-                    mBrowserAdapter.add(item);
+                checkForUserVisibleErrors(mLoadedPages.size() == 1 && mLoadedPages.valueAt(0).isEmpty());
+                // Pages may arrive out of order (or be refreshed individually by the service), so
+                // the list is rebuilt from the contiguous run of loaded pages starting at 0. The
+                // adapter diffs it against the current rows and only rebinds what changed.
+                List<MediaBrowserCompat.MediaItem> items = new ArrayList<>();
+                for (int i = 0; mLoadedPages.get(i) != null; i++) {
+                    items.addAll(mLoadedPages.get(i));
                 }
-                mBrowserAdapter.notifyDataSetChanged();
+                mBrowserAdapter.submitList(items);
             } catch (Throwable t) {
                 LogHelper.e(TAG, "Error on childrenloaded", t);
             }
         }
 
         @Override
-        public void onError(@NonNull String id) {
-            LogHelper.e(TAG, "browse fragment subscription onError, id=" + id);
+        public void onError(@NonNull String id, @NonNull Bundle options) {
+            LogHelper.e(TAG, "browse fragment subscription onError, id=" + id + " options=" + options);
+            mRequestedPages.delete(options.getInt(MediaBrowserCompat.EXTRA_PAGE, 0));
             Toast.makeText(getActivity(), "Error Loading Media", Toast.LENGTH_LONG).show();
             checkForUserVisibleErrors(true);
         }
     };
 
+    // Request the next page once the user scrolls within PREFETCH_ROWS of the end of the
+    // loaded rows. Thumbnail downloads are held back while the list flings, so the rows that
+    // fly past don't queue work.
+    private final RecyclerView.OnScrollListener mScrollListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+            if (newState == RecyclerView.SCROLL_STATE_SETTLING) {
+                ThumbnailLoader.getInstance().pause();
+            } else {
+                ThumbnailLoader.getInstance().resume();
+            }
+        }
+
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+            int itemCount = mBrowserAdapter.getItemCount();
+            if (itemCount > 0 && layoutManager.findLastVisibleItemPosition() >= itemCount - 1 - PREFETCH_ROWS) {
+                subscribeNextPage();
+            }
+        }
+    };
 
     @Override
     public void onAttach(Activity activity) {
@@ -141,18 +188,18 @@ public class MediaBrowserFragment extends Fragment {
         mErrorView = rootView.findViewById(R.id.playback_error);
         mErrorMessage = (TextView) mErrorView.findViewById(R.id.error_message);
 
-        mBrowserAdapter = new BrowseAdapter(getActivity());
-
-        ListView listView = (ListView) rootView.findViewById(R.id.list_view);
-        listView.setAdapter(mBrowserAdapter);
-        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        mBrowserAdapter = new BrowseAdapter(getActivity(), new BrowseAdapter.OnItemClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+            public void onItemClick(MediaBrowserCompat.MediaItem item) {
                 checkForUserVisibleErrors(false);
-                MediaBrowserCompat.MediaItem item = mBrowserAdapter.getItem(position);
                 mMediaFragmentListener.onMediaItemSelected(item);
             }
         });
+
+        RecyclerView recyclerView = (RecyclerView) rootView.findViewById(R.id.list_view);
+        recyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
+        recyclerView.setAdapter(mBrowserAdapter);
+        recyclerView.addOnScrollListener(mScrollListener);
         return rootView;
     }
 
@@ -176,6 +223,7 @@ public class MediaBrowserFragment extends Fragment {
     @Override
     public void onStop() {
         super.onStop();
+        ThumbnailLoader.getInstance().resume();
 
         MediaBrowserCompat mediaBrowser = mMediaFragmentListener.getMediaBrowser();
         if (mediaBrowser != null && mediaBrowser.isConnected() && mMediaId != null) {
@@ -232,7 +280,10 @@ public class MediaBrowserFragment extends Fragment {
         // unsubscribe first.
         mMediaFragmentListener.getMediaBrowser().unsubscribe(mMediaId);
 
-        mMediaFragmentListener.getMediaBrowser().subscribe(mMediaId, mSubscriptionCallback);
+        mLoadedPages.clear();
+        mRequestedPages.clear();
+        mLastPage = Integer.MAX_VALUE;
+        subscribePage(0);
 
         // Add MediaController callback so we can redraw the list when metadata changes:
         MediaControllerCompat controller = MediaControllerCompat.getMediaController(getActivity());
@@ -241,6 +292,26 @@ public class MediaBrowserFragment extends Fragment {
         }
     }
 
+    private void subscribeNextPage() {
+        MediaBrowserCompat mediaBrowser = mMediaFragmentListener == null ? null : mMediaFragmentListener.getMediaBrowser();
+        if (mMediaId == null || mediaBrowser == null || !mediaBrowser.isConnected()) {
+            return;
+        }
+        int nextPage = mLoadedPages.size();
+        if (nextPage <= mLastPage && mLoadedPages.get(nextPage) == null && !mRequestedPages.get(nextPage)) {
+            subscribePage(nextPage);
+        }
+    }
+
+    private void subscribePage(int page) {
+        LogHelper.d(TAG, "subscribePage, mediaId=", mMediaId, " page=", page);
+        Bundle options = new Bundle(2);
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE, page);
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, PAGE_SIZE);
+        mRequestedPages.put(page, true);
+        mMediaFragmentListener.getMediaBrowser().subscribe(mMediaId, options, mSubscriptionCallback);
+    }
+
     private void checkForUserVisibleErrors(boolean forceError) {
         boolean showError = forceError;
         // If offline, message is about the lack of connectivity:
@@ -286,22 +357,6 @@ public class MediaBrowserFragment extends Fragment {
         });
     }
 
-    // An adapter for showing the list of browsed MediaItem's
-    private static class BrowseAdapter extends ArrayAdapter<MediaBrowserCompat.MediaItem> {
-
-        public BrowseAdapter(Activity context) {
-            super(context, R.layout.media_list_item, new ArrayList<MediaBrowserCompat.MediaItem>());
-        }
-
-        @NonNull
-        @Override
-        public View getView(int position, View convertView, @NonNull ViewGroup parent) {
-            MediaBrowserCompat.MediaItem item = getItem(position);
-            return MediaItemViewHolder.setupListView((Activity) getContext(), convertView, parent, item);
-        }
-    }
-
-
     public interface MediaFragmentListener extends MediaBrowserProvider {
         void onMediaItemSelected(MediaBrowserCompat.MediaItem item);
 
@@ -19,6 +19,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
@@ -29,6 +30,8 @@ public class BitmapHelper {
 
     // Max read limit that we allow our input stream to mark/reset.
     private static final int MAX_READ_LIMIT_PER_IMG = 1024 * 1024;
+    // Largest image download accepted by fetchBytes.
+    private static final int MAX_DOWNLOAD_SIZE = 4 * 1024 * 1024;
 
     public static Bitmap scaleBitmap(Bitmap src, int maxWidth, int maxHeight) {
         double scaleFactor = Math.min(((double) maxWidth) / src.getWidth(), ((double) maxHeight) / src.getHeight());
@@ -58,6 +61,124 @@ public class BitmapHelper {
         return Math.min(actualW / targetW, actualH / targetH);
     }
 
+    /**
+     * Largest power of two sample size that still decodes the image at or above the target size
+     * in both dimensions.
+     */
+    public static int findSampleSize(int actualW, int actualH, int targetW, int targetH) {
+        int sampleSize = 1;
+        while (actualW / (sampleSize * 2) >= targetW && actualH / (sampleSize * 2) >= targetH) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Scale and center crop the bitmap to exactly width x height pixels. The source bitmap is
+     * recycled if a new one had to be created.
+     */
+    public static Bitmap centerCrop(Bitmap src, int width, int height) {
+        if (src.getWidth() == width && src.getHeight() == height) {
+            return src;
+        }
+        float scale = Math.max(((float) width) / src.getWidth(), ((float) height) / src.getHeight());
+        int scaledW = Math.max(width, Math.round(src.getWidth() * scale));
+        int scaledH = Math.max(height, Math.round(src.getHeight() * scale));
+        Bitmap scaled = Bitmap.createScaledBitmap(src, scaledW, scaledH, true);
+        Bitmap cropped = Bitmap.createBitmap(scaled, (scaledW - width) / 2, (scaledH - height) / 2, width, height);
+        if (scaled != src) {
+            src.recycle();
+        }
+        if (cropped != scaled) {
+            scaled.recycle();
+        }
+        return cropped;
+    }
+
+    /**
+     * Download an image and decode it at exactly width x height pixels, subsampling while
+     * decoding so the full resolution image is never held in memory.
+     */
+    public static Bitmap fetchAndDecodeBitmap(String uri, int width, int height) throws IOException {
+        URL url = new URL(uri);
+        BufferedInputStream is = null;
+        try {
+            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+            is = new BufferedInputStream(urlConnection.getInputStream());
+            is.mark(MAX_READ_LIMIT_PER_IMG);
+
+            BitmapFactory.Options bmOptions = new BitmapFactory.Options();
+            bmOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(is, null, bmOptions);
+            if (bmOptions.outWidth <= 0 || bmOptions.outHeight <= 0) {
+                throw new IOException("Could not decode image bounds of " + uri);
+            }
+            is.reset();
+
+            bmOptions.inJustDecodeBounds = false;
+            bmOptions.inSampleSize = findSampleSize(bmOptions.outWidth, bmOptions.outHeight, width, height);
+            Bitmap bitmap = BitmapFactory.decodeStream(is, null, bmOptions);
+            if (bitmap == null) {
+                throw new IOException("Could not decode image " + uri);
+            }
+            return centerCrop(bitmap, width, height);
+        } finally {
+            if (is != null) {
+                is.close();
+            }
+        }
+    }
+
+    /**
+     * Download the raw bytes of an image, so that decoding can be done separately (and on
+     * another thread) from the network transfer.
+     */
+    public static byte[] fetchBytes(String uri) throws IOException {
+        URL url = new URL(uri);
+        InputStream is = null;
+        try {
+            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+            is = urlConnection.getInputStream();
+            int length = urlConnection.getContentLength();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    length > 0 && length <= MAX_DOWNLOAD_SIZE ? length : 16 * 1024);
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                if (out.size() + read > MAX_DOWNLOAD_SIZE) {
+                    throw new IOException("Image larger than " + MAX_DOWNLOAD_SIZE + " bytes: " + uri);
+                }
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            if (is != null) {
+                is.close();
+            }
+        }
+    }
+
+    /**
+     * Decode an image downloaded by {@link #fetchBytes(String)}, subsampled the same way as
+     * {@link #fetchAndRescaleBitmap(String, int, int)}.
+     */
+    public static Bitmap decodeScaledBitmap(byte[] data, int width, int height) throws IOException {
+        BitmapFactory.Options bmOptions = new BitmapFactory.Options();
+        bmOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, bmOptions);
+        if (bmOptions.outWidth <= 0 || bmOptions.outHeight <= 0) {
+            throw new IOException("Could not decode image bounds");
+        }
+        bmOptions.inJustDecodeBounds = false;
+        bmOptions.inSampleSize = Math.max(1,
+                Math.min(bmOptions.outWidth / width, bmOptions.outHeight / height));
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, bmOptions);
+        if (bitmap == null) {
+            throw new IOException("Could not decode image");
+        }
+        return bitmap;
+    }
+
     @SuppressWarnings("SameParameterValue")
     public static Bitmap fetchAndRescaleBitmap(String uri, int width, int height) throws IOException {
         URL url = new URL(uri);
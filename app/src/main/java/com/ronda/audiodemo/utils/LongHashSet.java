@@ -0,0 +1,134 @@
+package com.ronda.audiodemo.utils;
+
+import java.util.Arrays;
+
+/**
+ * Set of longs, open addressed with linear probing over a plain long[]: no boxing and no entry
+ * objects, so a lookup is a hash and a few array reads.
+ * <p/>
+ * Not thread safe.
+ */
+public final class LongHashSet {
+
+    // Marks an empty slot; the key 0 itself is tracked by mHasZero.
+    private static final long EMPTY = 0;
+
+    private long[] mKeys;
+    private int mSize;
+    private boolean mHasZero;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public LongHashSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        mKeys = new long[capacity];
+    }
+
+    public int size() {
+        return mSize + (mHasZero ? 1 : 0);
+    }
+
+    public boolean contains(long key) {
+        if (key == EMPTY) {
+            return mHasZero;
+        }
+        int mask = mKeys.length - 1;
+        for (int i = slot(key, mask); mKeys[i] != EMPTY; i = (i + 1) & mask) {
+            if (mKeys[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the key was not in the set
+     */
+    public boolean add(long key) {
+        if (key == EMPTY) {
+            boolean added = !mHasZero;
+            mHasZero = true;
+            return added;
+        }
+        if ((mSize + 1) * 4 > mKeys.length * 3) {
+            rehash(mKeys.length * 2);
+        }
+        int mask = mKeys.length - 1;
+        int i = slot(key, mask);
+        while (mKeys[i] != EMPTY) {
+            if (mKeys[i] == key) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        mKeys[i] = key;
+        mSize++;
+        return true;
+    }
+
+    /**
+     * @return true if the key was in the set
+     */
+    public boolean remove(long key) {
+        if (key == EMPTY) {
+            boolean removed = mHasZero;
+            mHasZero = false;
+            return removed;
+        }
+        int mask = mKeys.length - 1;
+        int i = slot(key, mask);
+        while (mKeys[i] != key) {
+            if (mKeys[i] == EMPTY) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        // Shift back the following keys of the probe run, so no tombstone is needed.
+        int gap = i;
+        for (int j = (gap + 1) & mask; mKeys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(mKeys[j], mask);
+            // Move the key into the gap unless its home slot lies cyclically in (gap, j].
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                mKeys[gap] = mKeys[j];
+                gap = j;
+            }
+        }
+        mKeys[gap] = EMPTY;
+        mSize--;
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(mKeys, EMPTY);
+        mSize = 0;
+        mHasZero = false;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = mKeys;
+        mKeys = new long[capacity];
+        int mask = capacity - 1;
+        for (long key : old) {
+            if (key != EMPTY) {
+                int i = slot(key, mask);
+                while (mKeys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                mKeys[i] = key;
+            }
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        // Mix the bits (MurmurHash3 finalizer), keys may share their low bits.
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+}
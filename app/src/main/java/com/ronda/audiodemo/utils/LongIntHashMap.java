@@ -0,0 +1,118 @@
+package com.ronda.audiodemo.utils;
+
+/**
+ * Map from longs to ints, open addressed with linear probing over parallel arrays, like
+ * {@link LongHashSet}: no boxing and no entry objects.
+ * <p/>
+ * Not thread safe.
+ */
+public final class LongIntHashMap {
+
+    // Marks an empty slot; the key 0 itself is kept aside in mZeroValue.
+    private static final long EMPTY = 0;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private int mSize;
+    private boolean mHasZero;
+    private int mZeroValue;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+    }
+
+    public int size() {
+        return mSize + (mHasZero ? 1 : 0);
+    }
+
+    public boolean containsKey(long key) {
+        if (key == EMPTY) {
+            return mHasZero;
+        }
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * @return the value of the key, or defaultValue if the key is not in the map
+     */
+    public int get(long key, int defaultValue) {
+        if (key == EMPTY) {
+            return mHasZero ? mZeroValue : defaultValue;
+        }
+        int i = indexOf(key);
+        return i >= 0 ? mValues[i] : defaultValue;
+    }
+
+    /**
+     * @return true if the key was not in the map
+     */
+    public boolean put(long key, int value) {
+        if (key == EMPTY) {
+            boolean added = !mHasZero;
+            mHasZero = true;
+            mZeroValue = value;
+            return added;
+        }
+        if ((mSize + 1) * 4 > mKeys.length * 3) {
+            rehash(mKeys.length * 2);
+        }
+        int mask = mKeys.length - 1;
+        int i = slot(key, mask);
+        while (mKeys[i] != EMPTY) {
+            if (mKeys[i] == key) {
+                mValues[i] = value;
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        mSize++;
+        return true;
+    }
+
+    private int indexOf(long key) {
+        int mask = mKeys.length - 1;
+        for (int i = slot(key, mask); mKeys[i] != EMPTY; i = (i + 1) & mask) {
+            if (mKeys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = mKeys;
+        int[] oldValues = mValues;
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != EMPTY) {
+                int i = slot(oldKeys[j], mask);
+                while (mKeys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                mKeys[i] = oldKeys[j];
+                mValues[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        // Mix the bits (MurmurHash3 finalizer), keys may share their low bits.
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+}
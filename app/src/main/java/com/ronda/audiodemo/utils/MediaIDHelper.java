@@ -20,7 +20,6 @@ import android.app.Activity;
 import android.support.annotation.NonNull;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.session.MediaControllerCompat;
-import android.text.TextUtils;
 
 import com.socks.library.KLog;
 
@@ -36,6 +35,9 @@ public class MediaIDHelper {
     public static final String MEDIA_ID_ROOT = "__ROOT__";
     public static final String MEDIA_ID_MUSICS_BY_GENRE = "__BY_GENRE__";
     public static final String MEDIA_ID_MUSICS_BY_SEARCH = "__BY_SEARCH__";
+    public static final String MEDIA_ID_FAVORITES = "__FAVORITES__";
+    public static final String MEDIA_ID_RECENTLY_PLAYED = "__RECENTLY_PLAYED__";
+    public static final String MEDIA_ID_MOST_PLAYED = "__MOST_PLAYED__";
 
     private static final char CATEGORY_SEPARATOR = '/';
     private static final char LEAF_SEPARATOR = '|';
@@ -95,11 +97,7 @@ public class MediaIDHelper {
      */
     // 从 MediaId 中提取 MusicId. extract 意思就是: 提取,萃取的意思. extra 的意思是: 额外的. 这两个不要弄混淆了
     public static String extractMusicIDFromMediaID(@NonNull String mediaID) {
-        int pos = mediaID.indexOf(LEAF_SEPARATOR);
-        if (pos >= 0) {
-            return mediaID.substring(pos+1);
-        }
-        return null;
+        return MediaId.parse(mediaID).getMusicId();
     }
 
     /**
@@ -111,28 +109,28 @@ public class MediaIDHelper {
      * @param mediaID that contains a category and categoryValue.
      */
     public static @NonNull String[] getHierarchy(@NonNull String mediaID) {
-        int pos = mediaID.indexOf(LEAF_SEPARATOR);
-        if (pos >= 0) {
-            mediaID = mediaID.substring(0, pos);
-        }
-        return mediaID.split(String.valueOf(CATEGORY_SEPARATOR));
+        return MediaId.parse(mediaID).getHierarchy();
     }
 
     public static String extractBrowseCategoryValueFromMediaID(@NonNull String mediaID) {
-        String[] hierarchy = getHierarchy(mediaID);
-        if (hierarchy.length == 2) {
-            return hierarchy[1];
-        }
-        return null;
+        return MediaId.parse(mediaID).getBrowseCategoryValue();
     }
 
     public static boolean isBrowseable(@NonNull String mediaID) {
         return mediaID.indexOf(LEAF_SEPARATOR) < 0;
     }
 
+    /**
+     * @return true if both media IDs were selected from the same browse category
+     */
+    public static boolean isSameBrowsingCategory(@NonNull String mediaID1, @NonNull String mediaID2) {
+        return MediaId.parse(mediaID1).isSameBrowsingCategory(MediaId.parse(mediaID2));
+    }
+
     public static String getParentMediaID(@NonNull String mediaID) {
-        String[] hierarchy = getHierarchy(mediaID);
-        if (!isBrowseable(mediaID)) {
+        MediaId parsed = MediaId.parse(mediaID);
+        String[] hierarchy = parsed.getHierarchy();
+        if (!parsed.isBrowseable()) {
             return createMediaID(null, hierarchy);
         }
         if (hierarchy.length <= 1) {
@@ -158,8 +156,8 @@ public class MediaIDHelper {
             String currentPlayingMediaId = controller.getMetadata().getDescription().getMediaId();
             KLog.d("currentPlayingMediaId: "+currentPlayingMediaId);
 
-            String itemMusicId = MediaIDHelper.extractMusicIDFromMediaID(mediaItem.getDescription().getMediaId());
-            if (currentPlayingMediaId != null && TextUtils.equals(currentPlayingMediaId, itemMusicId)) {
+            // Compare in place: this runs once per visible list row on every bind.
+            if (MediaId.hasMusicId(mediaItem.getDescription().getMediaId(), currentPlayingMediaId)) {
                 return true;
             }
         }
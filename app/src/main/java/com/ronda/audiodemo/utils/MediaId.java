@@ -0,0 +1,178 @@
+package com.ronda.audiodemo.utils;
+
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import java.util.Arrays;
+
+/**
+ * Parsed, immutable representation of a hierarchy-aware media ID of the form
+ * <categoryType>/<categoryValue>|<musicUniqueId>.
+ *
+ * The hierarchy and the leaf (music ID) are split once, when the instance is created, so
+ * callers that repeatedly ask for them (queue building, list rows, playback state) don't need
+ * to run substring/split on every call. Instances are obtained through {@link #parse(String)},
+ * which keeps a bounded cache of recently parsed IDs.
+ */
+public final class MediaId {
+
+    static final char CATEGORY_SEPARATOR = '/';
+    static final char LEAF_SEPARATOR = '|';
+
+    // Enough to hold the visible rows of a few browse lists plus the playing queue.
+    private static final int MAX_INTERNED_IDS = 512;
+
+    private static final LruCache<String, MediaId> sInterned = new LruCache<>(MAX_INTERNED_IDS);
+
+    private final String mMediaId;
+    private final String[] mHierarchy;
+    private final String mMusicId;
+    // Index of LEAF_SEPARATOR in mMediaId, or -1 for browseable ids.
+    private final int mLeafPos;
+    private final int mHierarchyHash;
+
+    private MediaId(String mediaId) {
+        mMediaId = mediaId;
+        mLeafPos = mediaId.indexOf(LEAF_SEPARATOR);
+        mMusicId = mLeafPos >= 0 ? mediaId.substring(mLeafPos + 1) : null;
+        mHierarchy = splitHierarchy(mediaId, mLeafPos >= 0 ? mLeafPos : mediaId.length());
+        mHierarchyHash = Arrays.hashCode(mHierarchy);
+    }
+
+    /**
+     * Return the parsed form of the given media ID, reusing a previously parsed instance if
+     * it is still in the cache.
+     */
+    public static MediaId parse(@NonNull String mediaId) {
+        MediaId parsed = sInterned.get(mediaId);
+        if (parsed == null) {
+            parsed = new MediaId(mediaId);
+            sInterned.put(mediaId, parsed);
+        }
+        return parsed;
+    }
+
+    // Same result as String.split("/") on mediaId.substring(0, end), without the regex
+    // machinery or the intermediate substring.
+    private static String[] splitHierarchy(String mediaId, int end) {
+        int count = 1;
+        for (int i = 0; i < end; i++) {
+            if (mediaId.charAt(i) == CATEGORY_SEPARATOR) {
+                count++;
+            }
+        }
+        String[] parts = new String[count];
+        int start = 0;
+        int index = 0;
+        for (int i = 0; i < end; i++) {
+            if (mediaId.charAt(i) == CATEGORY_SEPARATOR) {
+                parts[index++] = mediaId.substring(start, i);
+                start = i + 1;
+            }
+        }
+        parts[index] = mediaId.substring(start, end);
+
+        // String.split drops trailing empty strings, but always keeps at least one element
+        int length = parts.length;
+        while (length > 1 && parts[length - 1].isEmpty()) {
+            length--;
+        }
+        return length == parts.length ? parts : Arrays.copyOf(parts, length);
+    }
+
+    public String getMediaId() {
+        return mMediaId;
+    }
+
+    /**
+     * @return the unique music ID, or null if this is a browseable (non-leaf) media ID
+     */
+    public String getMusicId() {
+        return mMusicId;
+    }
+
+    public boolean isBrowseable() {
+        return mLeafPos < 0;
+    }
+
+    public int getHierarchyDepth() {
+        return mHierarchy.length;
+    }
+
+    public String getCategory(int level) {
+        return mHierarchy[level];
+    }
+
+    /**
+     * @return a copy of the browse hierarchy, safe for the caller to modify
+     */
+    public String[] getHierarchy() {
+        return mHierarchy.clone();
+    }
+
+    /**
+     * @return the category value (eg the genre name) for ids of the form
+     * <categoryType>/<categoryValue>, or null otherwise
+     */
+    public String getBrowseCategoryValue() {
+        return mHierarchy.length == 2 ? mHierarchy[1] : null;
+    }
+
+    /**
+     * @return true if both IDs were selected from the same browse category
+     */
+    public boolean isSameBrowsingCategory(MediaId other) {
+        if (other == this) {
+            return true;
+        }
+        return other != null && mHierarchyHash == other.mHierarchyHash
+                && Arrays.equals(mHierarchy, other.mHierarchy);
+    }
+
+    /**
+     * @return true if the leaf of this ID is exactly the given music ID
+     */
+    public boolean hasMusicId(String musicId) {
+        return musicId != null && mLeafPos >= 0 && matchesLeaf(mMediaId, mLeafPos, musicId);
+    }
+
+    /**
+     * Compare the music ID part of a hierarchy-aware media ID with a unique music ID, without
+     * extracting (or caching) the leaf.
+     */
+    public static boolean hasMusicId(String mediaId, String musicId) {
+        if (mediaId == null || musicId == null) {
+            return false;
+        }
+        int pos = mediaId.indexOf(LEAF_SEPARATOR);
+        return pos >= 0 && matchesLeaf(mediaId, pos, musicId);
+    }
+
+    private static boolean matchesLeaf(String mediaId, int leafPos, String musicId) {
+        int leafLength = mediaId.length() - leafPos - 1;
+        return leafLength == musicId.length()
+                && mediaId.regionMatches(leafPos + 1, musicId, 0, leafLength);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || o.getClass() != MediaId.class) {
+            return false;
+        }
+        return TextUtils.equals(mMediaId, ((MediaId) o).mMediaId);
+    }
+
+    @Override
+    public int hashCode() {
+        return mMediaId.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mMediaId;
+    }
+}
@@ -14,8 +14,11 @@ import com.ronda.audiodemo.model.MusicProvider;
 import java.util.ArrayList;
 import java.util.List;
 
+import static com.ronda.audiodemo.utils.MediaIDHelper.MEDIA_ID_FAVORITES;
+import static com.ronda.audiodemo.utils.MediaIDHelper.MEDIA_ID_MOST_PLAYED;
 import static com.ronda.audiodemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE;
 import static com.ronda.audiodemo.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_SEARCH;
+import static com.ronda.audiodemo.utils.MediaIDHelper.MEDIA_ID_RECENTLY_PLAYED;
 
 /**
  * Utility class to help on queue related tasks.
@@ -29,23 +32,41 @@ public class QueueHelper {
     public static List<MediaSessionCompat.QueueItem> getPlayingQueue(String mediaId, MusicProvider musicProvider) {
 
         // extract the browsing hierarchy from the media ID:
-        String[] hierarchy = MediaIDHelper.getHierarchy(mediaId);
+        MediaId parsed = MediaId.parse(mediaId);
+
+        if (parsed.getHierarchyDepth() == 1) {
+            String category = parsed.getCategory(0);
+            if (MEDIA_ID_FAVORITES.equals(category)) {
+                return convertToQueue(musicProvider.getFavoriteMusic(), MEDIA_ID_FAVORITES);
+            } else if (MEDIA_ID_RECENTLY_PLAYED.equals(category)) {
+                return convertToQueue(musicProvider.getRecentlyPlayedMusic(
+                        MusicProvider.HISTORY_BROWSE_SIZE), MEDIA_ID_RECENTLY_PLAYED);
+            } else if (MEDIA_ID_MOST_PLAYED.equals(category)) {
+                return convertToQueue(musicProvider.getMostPlayedMusic(
+                        MusicProvider.HISTORY_BROWSE_SIZE), MEDIA_ID_MOST_PLAYED);
+            }
+        }
+
+        if (parsed.getHierarchyDepth() > 1
+                && MEDIA_ID_MUSICS_BY_SEARCH.equals(parsed.getCategory(0))) {
+            // The node's own search, focused if it was a voice search: the queue is the list
+            // of results the track was picked from.
+            return convertToQueue(musicProvider.getSearchNodeMusic(parsed), parsed.getHierarchy());
+        }
 
-        if (hierarchy.length != 2) {
+        if (parsed.getHierarchyDepth() != 2) {
             LogHelper.e(TAG, "Could not build a playing queue for this mediaId: ", mediaId);
             return null;
         }
 
-        String categoryType = hierarchy[0];
-        String categoryValue = hierarchy[1];
+        String categoryType = parsed.getCategory(0);
+        String categoryValue = parsed.getCategory(1);
         LogHelper.d(TAG, "Creating playing queue for ", categoryType, ",  ", categoryValue);
 
         Iterable<MediaMetadataCompat> tracks = null;
-        // This sample only supports genre and by_search category types.
+        // Search nodes are handled above: only genres are left.
         if (categoryType.equals(MEDIA_ID_MUSICS_BY_GENRE)) {
             tracks = musicProvider.getMusicsByGenre(categoryValue);
-        } else if (categoryType.equals(MEDIA_ID_MUSICS_BY_SEARCH)) {
-            tracks = musicProvider.searchMusicBySongTitle(categoryValue);
         }
 
         if (tracks == null) {
@@ -53,7 +74,7 @@ public class QueueHelper {
             return null;
         }
 
-        return convertToQueue(tracks, hierarchy[0], hierarchy[1]);
+        return convertToQueue(tracks, categoryType, categoryValue);
     }
 
     public static List<MediaSessionCompat.QueueItem> getPlayingQueueFromSearch(String query, Bundle queryParams, MusicProvider musicProvider) {
@@ -70,15 +91,28 @@ public class QueueHelper {
             return getRandomQueue(musicProvider);
         }
 
-        List<MediaMetadataCompat> result = null;
+        // Voice queries are often misrecognized, so all searches are fuzzy, and search every
+        // field at once: the focus only decides which field weighs the most. The search node
+        // keeps the focus, so that the queue is rebuilt from its id with the same weights.
+        if (params.isGenreFocus) {
+            List<MediaMetadataCompat> genre = musicProvider.getMusicsByGenre(params.genre);
+            if (!genre.isEmpty()) {
+                return convertToQueue(genre, MEDIA_ID_MUSICS_BY_GENRE, params.genre);
+            }
+        }
+        String searchMediaId = null;
         if (params.isAlbumFocus) {
-            result = musicProvider.searchMusicByAlbum(params.album);
+            searchMediaId = MusicProvider.getSearchMediaId(params.album, MediaMetadataCompat.METADATA_KEY_ALBUM);
         } else if (params.isGenreFocus) {
-            result = musicProvider.getMusicsByGenre(params.genre);
+            searchMediaId = MusicProvider.getSearchMediaId(params.genre, MediaMetadataCompat.METADATA_KEY_GENRE);
         } else if (params.isArtistFocus) {
-            result = musicProvider.searchMusicByArtist(params.artist);
+            searchMediaId = MusicProvider.getSearchMediaId(params.artist, MediaMetadataCompat.METADATA_KEY_ARTIST);
         } else if (params.isSongFocus) {
-            result = musicProvider.searchMusicBySongTitle(params.song);
+            searchMediaId = MusicProvider.getSearchMediaId(params.song, MediaMetadataCompat.METADATA_KEY_TITLE);
+        }
+        List<MediaSessionCompat.QueueItem> queue = null;
+        if (!params.isUnstructured && searchMediaId != null) {
+            queue = getPlayingQueue(searchMediaId, musicProvider);
         }
 
         // If there was no results using media focus parameter, we do an unstructured query.
@@ -86,17 +120,12 @@ public class QueueHelper {
         // to Google, for example, but is not. For example, a user searching for Madonna on
         // a PodCast application wouldn't get results if we only looked at the
         // Artist (podcast author). Then, we can instead do an unstructured search.
-        if (params.isUnstructured || result == null || !result.iterator().hasNext()) {
-            // To keep it simple for this example, we do unstructured searches on the
-            // song title and genre only. A real world application could search
-            // on other fields as well.
-            result = musicProvider.searchMusicBySongTitle(query);
-            if (result.isEmpty()) {
-                result = musicProvider.searchMusicByGenre(query);
-            }
+        if (queue == null || queue.isEmpty()) {
+            searchMediaId = MusicProvider.getSearchMediaId(query);
+            queue = searchMediaId == null ? new ArrayList<MediaSessionCompat.QueueItem>()
+                    : getPlayingQueue(searchMediaId, musicProvider);
         }
-
-        return convertToQueue(result, MEDIA_ID_MUSICS_BY_SEARCH, query);
+        return queue;
     }
 
 
@@ -124,28 +153,56 @@ public class QueueHelper {
 
     private static List<MediaSessionCompat.QueueItem> convertToQueue(
             Iterable<MediaMetadataCompat> tracks, String... categories) {
+        return convertToQueue(tracks, 0, categories);
+    }
+
+    private static List<MediaSessionCompat.QueueItem> convertToQueue(
+            Iterable<MediaMetadataCompat> tracks, long firstQueueId, String... categories) {
         List<MediaSessionCompat.QueueItem> queue = new ArrayList<>();
-        int count = 0;
+        long count = firstQueueId;
         for (MediaMetadataCompat track : tracks) {
 
             // We create a hierarchy-aware mediaID, so we know what the queue is about by looking
             // at the QueueItem media IDs.
             String hierarchyAwareMediaID = MediaIDHelper.createMediaID(track.getDescription().getMediaId(), categories);
 
-            MediaMetadataCompat trackCopy = new MediaMetadataCompat.Builder(track)
-                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
-                    .build();
-
-            // We don't expect queues to change after created, so we use the item index as the
-            // queueId. Any other number unique in the queue would work.
-            MediaSessionCompat.QueueItem item = new MediaSessionCompat.QueueItem(
-                    trackCopy.getDescription(), count++);
-            queue.add(item);
+            // We use the item index as the queueId, offset by firstQueueId when the items are
+            // appended to a radio queue. Any other number unique in the queue would work.
+            queue.add(createQueueItem(track, hierarchyAwareMediaID, count++));
         }
         return queue;
 
     }
 
+    private static MediaSessionCompat.QueueItem createQueueItem(
+            MediaMetadataCompat track, String hierarchyAwareMediaID, long queueId) {
+        MediaMetadataCompat trackCopy = new MediaMetadataCompat.Builder(track)
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
+                .build();
+        return new MediaSessionCompat.QueueItem(trackCopy.getDescription(), queueId);
+    }
+
+    /**
+     * Create queue items for hierarchy-aware media ids saved earlier, skipping the tracks the
+     * provider doesn't know. The queue id of each item is its position in mediaIds plus
+     * firstQueueId, skipped ones included, so that an item keeps its id whether the whole list
+     * or only part of it is converted.
+     */
+    public static List<MediaSessionCompat.QueueItem> getQueueFromMediaIds(
+            List<String> mediaIds, long firstQueueId, MusicProvider musicProvider) {
+        List<MediaSessionCompat.QueueItem> queue = new ArrayList<>(mediaIds.size());
+        long queueId = firstQueueId;
+        for (String mediaId : mediaIds) {
+            MediaMetadataCompat track = musicProvider.getMusic(
+                    MediaIDHelper.extractMusicIDFromMediaID(mediaId));
+            if (track != null) {
+                queue.add(createQueueItem(track, mediaId, queueId));
+            }
+            queueId++;
+        }
+        return queue;
+    }
+
     /**
      * Create a random queue with at most {@link #RANDOM_QUEUE_SIZE} elements.
      *
@@ -153,19 +210,21 @@ public class QueueHelper {
      * @return list containing {@link MediaSessionCompat.QueueItem}'s
      */
     public static List<MediaSessionCompat.QueueItem> getRandomQueue(MusicProvider musicProvider) {
-        List<MediaMetadataCompat> result = new ArrayList<>(RANDOM_QUEUE_SIZE);
-        Iterable<MediaMetadataCompat> shuffled = musicProvider.getShuffledMusic();
-        for (MediaMetadataCompat metadata : shuffled) {
-            if (result.size() == RANDOM_QUEUE_SIZE) {
-                break;
-            }
-            result.add(metadata);
-        }
+        List<MediaMetadataCompat> result = musicProvider.getRandomMusic(RANDOM_QUEUE_SIZE);
         LogHelper.d(TAG, "getRandomQueue: result.size=", result.size());
 
         return convertToQueue(result, MEDIA_ID_MUSICS_BY_SEARCH, "random");
     }
 
+    /**
+     * Create queue items for radio tracks, numbering their queue ids from firstQueueId, so that
+     * they can be appended to an existing radio queue.
+     */
+    public static List<MediaSessionCompat.QueueItem> getRadioQueue(
+            List<MediaMetadataCompat> tracks, long firstQueueId) {
+        return convertToQueue(tracks, firstQueueId, MEDIA_ID_MUSICS_BY_SEARCH, "radio");
+    }
+
     public static boolean isIndexPlayable(int index, List<MediaSessionCompat.QueueItem> queue) {
         return (queue != null && index >= 0 && index < queue.size());
     }
@@ -214,10 +273,8 @@ public class QueueHelper {
         if (controller != null && controller.getPlaybackState() != null) {
             long currentPlayingQueueId = controller.getPlaybackState().getActiveQueueItemId();
             String currentPlayingMediaId = controller.getMetadata().getDescription().getMediaId();
-            String itemMusicId = MediaIDHelper.extractMusicIDFromMediaID(queueItem.getDescription().getMediaId());
             if (queueItem.getQueueId() == currentPlayingQueueId
-                    && currentPlayingMediaId != null
-                    && TextUtils.equals(currentPlayingMediaId, itemMusicId)) {
+                    && MediaId.hasMusicId(queueItem.getDescription().getMediaId(), currentPlayingMediaId)) {
                 return true;
             }
         }
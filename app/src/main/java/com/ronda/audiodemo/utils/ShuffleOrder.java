@@ -0,0 +1,123 @@
+package com.ronda.audiodemo.utils;
+
+import android.util.SparseIntArray;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A random permutation of the ordinals 0..size-1, generated lazily and reproducibly from a seed.
+ * <p/>
+ * The permutation is a Fisher-Yates shuffle run one step at a time: asking for position p only
+ * performs the swaps up to p. The swaps are kept in a sparse map instead of an array of all the
+ * ordinals, so the cost is proportional to the positions actually visited, not to the size of
+ * the catalog or queue being shuffled. The same seed always gives the same order, so an order
+ * can be resumed from just its seed (and pinned first ordinal) after a restart.
+ * <p/>
+ * Not thread safe.
+ */
+public final class ShuffleOrder {
+
+    private final int mSize;
+    private final long mSeed;
+    private final int mFirst;
+    private final Random mRandom;
+    // Slots displaced by a swap: slot -> ordinal. Slots not in the map still hold their own index.
+    private final SparseIntArray mSwapped = new SparseIntArray();
+    // The positions generated so far.
+    private int[] mOrder = new int[16];
+    private int mGenerated;
+
+    /**
+     * @param size  number of ordinals to shuffle
+     * @param seed  seed of the order; the same seed gives the same order
+     * @param first ordinal placed at position 0, or -1 to shuffle it like any other
+     */
+    public ShuffleOrder(int size, long seed, int first) {
+        if (size < 0 || first >= size) {
+            throw new IllegalArgumentException("Invalid shuffle of " + size + " starting at " + first);
+        }
+        mSize = size;
+        mSeed = seed;
+        mFirst = first;
+        mRandom = new Random(seed);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getSeed() {
+        return mSeed;
+    }
+
+    public int getFirst() {
+        return mFirst;
+    }
+
+    /**
+     * @return the ordinal at the given position of the order
+     */
+    public int get(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("Position " + position + " of " + mSize);
+        }
+        while (mGenerated <= position) {
+            generateNext();
+        }
+        return mOrder[position];
+    }
+
+    /**
+     * @return the position of the given ordinal, generating the order up to it if needed
+     */
+    public int indexOf(int ordinal) {
+        for (int i = 0; i < mSize; i++) {
+            if (get(i) == ordinal) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void generateNext() {
+        int i = mGenerated;
+        int j;
+        if (i == 0 && mFirst >= 0) {
+            j = mFirst;
+        } else {
+            j = i + mRandom.nextInt(mSize - i);
+        }
+        int picked = mSwapped.get(j, j);
+        if (j != i) {
+            mSwapped.put(j, mSwapped.get(i, i));
+        }
+        mSwapped.delete(i);
+
+        if (i == mOrder.length) {
+            mOrder = Arrays.copyOf(mOrder, Math.min(mSize, i * 2));
+        }
+        mOrder[i] = picked;
+        mGenerated++;
+    }
+
+    /**
+     * Pick count distinct ordinals out of 0..size-1, uniformly at random, with a partial
+     * Fisher-Yates shuffle over a sparse swap map: O(count) time and memory, whatever the size.
+     *
+     * @return the picked ordinals, min(count, size) of them, in random order
+     */
+    public static int[] sample(int size, int count, Random random) {
+        int k = Math.max(0, Math.min(count, size));
+        int[] result = new int[k];
+        SparseIntArray swapped = new SparseIntArray(k);
+        for (int i = 0; i < k; i++) {
+            int j = i + random.nextInt(size - i);
+            result[i] = swapped.get(j, j);
+            if (j != i) {
+                swapped.put(j, swapped.get(i, i));
+            }
+        }
+        return result;
+    }
+}
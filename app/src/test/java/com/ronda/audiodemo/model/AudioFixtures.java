@@ -0,0 +1,276 @@
+package com.ronda.audiodemo.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Builds minimal audio files for TagReader and LocalMusicScanner: just the headers the reader
+ * looks at, with the tags and duration given, and silence (zeros) where the audio would be.
+ */
+final class AudioFixtures {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16 = Charset.forName("UTF-16");
+
+    // MPEG-1 layer III, 128 kbps, 44100 Hz, stereo.
+    private static final byte[] MPEG_FRAME_HEADER = {(byte) 0xff, (byte) 0xfb, (byte) 0x90, 0};
+    static final int MPEG_KBPS = 128;
+    static final int MPEG_SAMPLE_RATE = 44100;
+    static final int MPEG_SAMPLES_PER_FRAME = 1152;
+
+    private AudioFixtures() {
+    }
+
+    /**
+     * ID3v2.3 tag with big-endian frame sizes and ISO-8859-1 and UTF-16 text, over CBR audio
+     * lasting durationMs: the reader works the duration out from the bitrate.
+     */
+    static byte[] id3v23(String title, String artist, String album, String genre,
+                         String track, long durationMs) {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        id3Frame(frames, 3, "TIT2", 0, title);
+        id3Frame(frames, 3, "TPE1", 1, artist);
+        id3Frame(frames, 3, "TALB", 0, album);
+        id3Frame(frames, 3, "TCON", 0, genre);
+        id3Frame(frames, 3, "TRCK", 0, track);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        id3Header(out, 3, frames.size() + 32);
+        write(out, frames.toByteArray());
+        // Padding.
+        out.write(new byte[32], 0, 32);
+        write(out, MPEG_FRAME_HEADER);
+        int audioBytes = (int) (durationMs * MPEG_KBPS / 8);
+        out.write(new byte[audioBytes - MPEG_FRAME_HEADER.length], 0,
+                audioBytes - MPEG_FRAME_HEADER.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * ID3v2.4 tag with syncsafe frame sizes and UTF-8 text, over VBR audio whose first frame
+     * has a Xing header counting the given number of frames.
+     */
+    static byte[] id3v24(String title, String artist, String album, String genre,
+                         String track, int frames) {
+        ByteArrayOutputStream tag = new ByteArrayOutputStream();
+        id3Frame(tag, 4, "TIT2", 3, title);
+        id3Frame(tag, 4, "TPE1", 3, artist);
+        id3Frame(tag, 4, "TALB", 3, album);
+        id3Frame(tag, 4, "TCON", 3, genre);
+        id3Frame(tag, 4, "TRCK", 3, track);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        id3Header(out, 4, tag.size());
+        write(out, tag.toByteArray());
+        // Xing header after the side information of a stereo MPEG-1 frame.
+        ByteBuffer frame = ByteBuffer.allocate(417);
+        frame.put(MPEG_FRAME_HEADER);
+        frame.position(4 + 32);
+        frame.put("Xing".getBytes(ISO_8859_1)).putInt(1).putInt(frames);
+        write(out, frame.array());
+        out.write(new byte[4096], 0, 4096);
+        return out.toByteArray();
+    }
+
+    private static void id3Header(ByteArrayOutputStream out, int version, int size) {
+        write(out, "ID3".getBytes(ISO_8859_1));
+        out.write(version);
+        out.write(0);
+        out.write(0);
+        writeSyncsafe(out, size);
+    }
+
+    private static void id3Frame(ByteArrayOutputStream out, int version, String id, int encoding,
+                                 String text) {
+        byte[] value = text.getBytes(encoding == 1 ? UTF_16 : encoding == 3 ? UTF_8 : ISO_8859_1);
+        write(out, id.getBytes(ISO_8859_1));
+        if (version == 4) {
+            writeSyncsafe(out, value.length + 1);
+        } else {
+            writeIntBE(out, value.length + 1);
+        }
+        out.write(0);
+        out.write(0);
+        out.write(encoding);
+        write(out, value);
+    }
+
+    /**
+     * FLAC stream: STREAMINFO with the sample count, then a Vorbis comment block.
+     */
+    static byte[] flac(int sampleRate, long samples, String... comments) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, "fLaC".getBytes(ISO_8859_1));
+        ByteBuffer info = ByteBuffer.allocate(4 + 34);
+        info.putInt(34);
+        info.position(4 + 10);
+        info.put((byte) (sampleRate >> 12));
+        info.put((byte) (sampleRate >> 4));
+        // Low bits of the sample rate, then 2 channels and 16 bits per sample.
+        info.put((byte) ((sampleRate & 0xf) << 4 | 1 << 1));
+        info.put((byte) (15 << 4 | (int) (samples >> 32) & 0xf));
+        info.putInt((int) samples);
+        write(out, info.array());
+        byte[] block = vorbisComments(comments);
+        writeIntBE(out, 0x84000000 | block.length);
+        write(out, block);
+        out.write(new byte[1024], 0, 1024);
+        return out.toByteArray();
+    }
+
+    /**
+     * Ogg Vorbis stream: a first page with the identification and comment headers, then a
+     * last page whose granule position is the sample count.
+     */
+    static byte[] oggVorbis(int sampleRate, long samples, String... comments) {
+        ByteBuffer id = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+        id.put((byte) 1).put("vorbis".getBytes(ISO_8859_1)).putInt(0).put((byte) 2)
+                .putInt(sampleRate);
+        ByteArrayOutputStream comment = new ByteArrayOutputStream();
+        comment.write(3);
+        write(comment, "vorbis".getBytes(ISO_8859_1));
+        write(comment, vorbisComments(comments));
+        comment.write(1);
+        return ogg(id.array(), comment.toByteArray(), samples);
+    }
+
+    /**
+     * Ogg Opus stream, always at 48 kHz: the duration is the last granule position less the
+     * pre-skip.
+     */
+    static byte[] oggOpus(int preSkip, long samples, String... comments) {
+        ByteBuffer head = ByteBuffer.allocate(19).order(ByteOrder.LITTLE_ENDIAN);
+        head.put("OpusHead".getBytes(ISO_8859_1)).put((byte) 1).put((byte) 2)
+                .putShort((short) preSkip).putInt(44100);
+        ByteArrayOutputStream tags = new ByteArrayOutputStream();
+        write(tags, "OpusTags".getBytes(ISO_8859_1));
+        write(tags, vorbisComments(comments));
+        return ogg(head.array(), tags.toByteArray(), preSkip + samples);
+    }
+
+    private static byte[] ogg(byte[] first, byte[] second, long lastGranule) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        oggPage(out, 2, 0, 0, first, second);
+        oggPage(out, 0, 0, 1, new byte[4000]);
+        oggPage(out, 4, lastGranule, 2, new byte[4000]);
+        return out.toByteArray();
+    }
+
+    private static void oggPage(ByteArrayOutputStream out, int type, long granule, int sequence,
+                                byte[]... packets) {
+        ByteArrayOutputStream lacing = new ByteArrayOutputStream();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (byte[] packet : packets) {
+            int length = packet.length;
+            for (; length >= 255; length -= 255) {
+                lacing.write(255);
+            }
+            lacing.write(length);
+            write(data, packet);
+        }
+        ByteBuffer header = ByteBuffer.allocate(27).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("OggS".getBytes(ISO_8859_1)).put((byte) 0).put((byte) type).putLong(granule)
+                .putInt(0x5eed).putInt(sequence).putInt(0).put((byte) lacing.size());
+        write(out, header.array());
+        write(out, lacing.toByteArray());
+        write(out, data.toByteArray());
+    }
+
+    // "KEY=value" comments, after a vendor string.
+    private static byte[] vorbisComments(String... comments) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] vendor = "fixture".getBytes(UTF_8);
+        writeIntLE(out, vendor.length);
+        write(out, vendor);
+        writeIntLE(out, comments.length);
+        for (String comment : comments) {
+            byte[] bytes = comment.getBytes(UTF_8);
+            writeIntLE(out, bytes.length);
+            write(out, bytes);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * MP4 file: ftyp, then moov with the duration in mvhd and iTunes tags in udta/meta/ilst.
+     * A genre of 0 is left out.
+     */
+    static byte[] mp4(String title, String artist, String album, int genreIndex, int track,
+                      int trackCount, long durationMs) {
+        ByteBuffer mvhd = ByteBuffer.allocate(100);
+        mvhd.putInt(12, 1000).putInt(16, (int) durationMs);
+        ByteArrayOutputStream ilst = new ByteArrayOutputStream();
+        write(ilst, atom("\u00a9nam", dataAtom(title.getBytes(UTF_8))));
+        write(ilst, atom("\u00a9ART", dataAtom(artist.getBytes(UTF_8))));
+        write(ilst, atom("\u00a9alb", dataAtom(album.getBytes(UTF_8))));
+        if (genreIndex > 0) {
+            write(ilst, atom("gnre", dataAtom(ByteBuffer.allocate(2)
+                    .putShort((short) (genreIndex + 1)).array())));
+        }
+        write(ilst, atom("trkn", dataAtom(ByteBuffer.allocate(8)
+                .putShort(2, (short) track).putShort(4, (short) trackCount).array())));
+        // A full atom: version and flags, then the handler.
+        byte[] meta = concat(new byte[4], atom("hdlr", new byte[25]),
+                atom("ilst", ilst.toByteArray()));
+        byte[] moov = concat(atom("mvhd", mvhd.array()), atom("udta", atom("meta", meta)));
+        return concat(atom("ftyp", "M4A \0\0\0\0".getBytes(ISO_8859_1)), atom("moov", moov),
+                atom("mdat", new byte[2048]));
+    }
+
+    private static byte[] dataAtom(byte[] value) {
+        // Type and locale, then the value.
+        return atom("data", concat(new byte[8], value));
+    }
+
+    private static byte[] atom(String type, byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeIntBE(out, 8 + body.length);
+        write(out, type.getBytes(ISO_8859_1));
+        write(out, body);
+        return out.toByteArray();
+    }
+
+    static void writeFile(File file, byte[] contents) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            write(out, part);
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeSyncsafe(ByteArrayOutputStream out, int value) {
+        out.write(value >> 21 & 0x7f);
+        out.write(value >> 14 & 0x7f);
+        out.write(value >> 7 & 0x7f);
+        out.write(value & 0x7f);
+    }
+
+    private static void writeIntBE(ByteArrayOutputStream out, int value) {
+        write(out, ByteBuffer.allocate(4).putInt(value).array());
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        write(out, ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array());
+    }
+}
@@ -0,0 +1,169 @@
+package com.ronda.audiodemo.model;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeNoException;
+
+/**
+ * Scans a fixture tree of {@link AudioFixtures} files:
+ * <pre>
+ * music/
+ *   a.mp3              ID3v2.3
+ *   notes.txt          not audio
+ *   .hidden.mp3        hidden file
+ *   .hidden/c.mp3      hidden directory
+ *   skipped/.nomedia
+ *   skipped/d.mp3
+ *   albums/b.flac
+ *   albums/e.ogg
+ *   albums/f.opus
+ *   albums/g.m4a
+ *   albums/h.mp3       ID3v2.4
+ *   albums/loop        symlink to music/
+ * </pre>
+ */
+public class LocalMusicScannerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mRoot;
+    private File mCacheFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = mFolder.newFolder("music");
+        mCacheFile = new File(mFolder.getRoot(), "scan.cache");
+        write("a.mp3", AudioFixtures.id3v23("A", "Artist", "Album", "Rock", "1", 1000));
+        write("notes.txt", "not audio".getBytes("US-ASCII"));
+        write(".hidden.mp3", AudioFixtures.id3v23("Hidden", "Artist", "Album", "Rock", "1", 1000));
+        write(".hidden/c.mp3", AudioFixtures.id3v23("C", "Artist", "Album", "Rock", "1", 1000));
+        write("skipped/.nomedia", new byte[0]);
+        write("skipped/d.mp3", AudioFixtures.id3v23("D", "Artist", "Album", "Rock", "1", 1000));
+        write("albums/b.flac", AudioFixtures.flac(44100, 44100, "TITLE=B"));
+        write("albums/e.ogg", AudioFixtures.oggVorbis(44100, 44100, "TITLE=E"));
+        write("albums/f.opus", AudioFixtures.oggOpus(312, 48000, "TITLE=F"));
+        write("albums/g.m4a", AudioFixtures.mp4("G", "Artist", "Album", 0, 1, 1, 1000));
+        write("albums/h.mp3", AudioFixtures.id3v24("H", "Artist", "Album", "Pop", "1", 38));
+    }
+
+    @Test
+    public void findsAudioFilesAndReadsTheirTags() throws Exception {
+        LocalMusicScanner.Result result = scanner(null).scan();
+        assertEquals(Arrays.asList("a.mp3", "albums/b.flac", "albums/e.ogg",
+                "albums/f.opus", "albums/g.m4a", "albums/h.mp3"), paths(result));
+        assertEquals(Arrays.asList("A", "B", "E", "F", "G", "H"), titles(result));
+        assertEquals(6, result.parsed);
+        assertEquals(0, result.reused);
+        assertEquals(0, result.failed);
+        for (LocalMusicScanner.Entry entry : result.entries) {
+            // Every fixture lasts about a second, give or take the rounding of each format.
+            assertEquals(entry.path, 1000, entry.tags.durationMs, 10);
+        }
+    }
+
+    @Test
+    public void symlinkLoopIsWalkedOnce() throws Exception {
+        try {
+            Files.createSymbolicLink(new File(mRoot, "albums/loop").toPath(), mRoot.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            assumeNoException(e);
+        }
+        // A loop would never end, or list the files again under albums/loop/.
+        LocalMusicScanner.Result result = scanner(null).scan();
+        assertEquals(6, result.entries.size());
+        assertEquals(0, result.failed);
+        for (String path : paths(result)) {
+            assertFalse(path, path.contains("loop"));
+        }
+    }
+
+    @Test
+    public void rescanReusesUnchangedFiles() throws Exception {
+        LocalMusicScanner scanner = scanner(mCacheFile);
+        scanner.scan();
+        LocalMusicScanner.Result result = scanner.scan();
+        assertEquals(0, result.parsed);
+        assertEquals(6, result.reused);
+        assertEquals(Arrays.asList("A", "B", "E", "F", "G", "H"), titles(result));
+
+        // A new scanner starts from the cache file.
+        result = scanner(mCacheFile).scan();
+        assertEquals(0, result.parsed);
+        assertEquals(6, result.reused);
+        assertEquals(Arrays.asList("A", "B", "E", "F", "G", "H"), titles(result));
+    }
+
+    @Test
+    public void rescanReadsChangedFilesAgain() throws Exception {
+        LocalMusicScanner scanner = scanner(mCacheFile);
+        scanner.scan();
+
+        // Same size, new modification time.
+        File a = new File(mRoot, "a.mp3");
+        write("a.mp3", AudioFixtures.id3v23("Z", "Artist", "Album", "Rock", "1", 1000));
+        assertTrue(a.setLastModified(a.lastModified() + 10000));
+        // New size. Older than before, which must not matter.
+        File b = new File(mRoot, "albums/b.flac");
+        long modified = b.lastModified();
+        write("albums/b.flac", AudioFixtures.flac(44100, 44100, "TITLE=Longer title"));
+        assertTrue(b.setLastModified(modified - 10000));
+        // Removed.
+        assertTrue(new File(mRoot, "albums/g.m4a").delete());
+
+        LocalMusicScanner.Result result = scanner.scan();
+        assertEquals(2, result.parsed);
+        assertEquals(3, result.reused);
+        assertEquals(Arrays.asList("Z", "Longer title", "E", "F", "H"), titles(result));
+
+        result = scanner(mCacheFile).scan();
+        assertEquals(0, result.parsed);
+        assertEquals(Arrays.asList("Z", "Longer title", "E", "F", "H"), titles(result));
+    }
+
+    @Test
+    public void unreadableAudioFileIsCounted() throws Exception {
+        write("albums/broken.mp3", "not audio".getBytes("US-ASCII"));
+        LocalMusicScanner.Result result = scanner(null).scan();
+        assertEquals(6, result.entries.size());
+        assertEquals(1, result.failed);
+    }
+
+    private LocalMusicScanner scanner(File cacheFile) {
+        return new LocalMusicScanner(Collections.singletonList(mRoot), cacheFile, 3);
+    }
+
+    private void write(String path, byte[] contents) throws IOException {
+        AudioFixtures.writeFile(new File(mRoot, path), contents);
+    }
+
+    private List<String> paths(LocalMusicScanner.Result result) {
+        String root = mRoot.getAbsolutePath() + File.separator;
+        List<String> paths = new ArrayList<>();
+        for (LocalMusicScanner.Entry entry : result.entries) {
+            assertTrue(entry.path, entry.path.startsWith(root));
+            paths.add(entry.path.substring(root.length()).replace(File.separatorChar, '/'));
+        }
+        return paths;
+    }
+
+    private static List<String> titles(LocalMusicScanner.Result result) {
+        List<String> titles = new ArrayList<>();
+        for (LocalMusicScanner.Entry entry : result.entries) {
+            titles.add(entry.tags.title);
+        }
+        return titles;
+    }
+}
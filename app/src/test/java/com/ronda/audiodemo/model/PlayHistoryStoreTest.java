@@ -0,0 +1,109 @@
+package com.ronda.audiodemo.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the store in memory only (no log file), which needs no Android classes.
+ */
+public class PlayHistoryStoreTest {
+
+    @Test
+    public void mostPlayedFollowsThePlayCounts() {
+        PlayHistoryStore store = new PlayHistoryStore(null);
+        store.record("a", PlayHistoryStore.EVENT_PLAYED, 0);
+        store.record("b", PlayHistoryStore.EVENT_PLAYED, 0);
+        store.record("b", PlayHistoryStore.EVENT_PLAYED, 0);
+        store.record("c", PlayHistoryStore.EVENT_PLAYED, 0);
+        store.record("c", PlayHistoryStore.EVENT_PLAYED, 0);
+        store.record("c", PlayHistoryStore.EVENT_PLAYED, 0);
+        assertArrayEquals(keys("c", "b", "a"), store.getMostPlayed(10));
+        assertArrayEquals(keys("c", "b"), store.getMostPlayed(2));
+
+        // a overtakes b, then c.
+        store.record("a", PlayHistoryStore.EVENT_PLAYED, 0);
+        store.record("a", PlayHistoryStore.EVENT_PLAYED, 0);
+        assertArrayEquals(keys("c", "a", "b"), store.getMostPlayed(10));
+        store.record("a", PlayHistoryStore.EVENT_PLAYED, 0);
+        assertArrayEquals(keys("a", "c", "b"), store.getMostPlayed(10));
+        assertEquals(4, store.getPlayCount("a"));
+        assertEquals(0, store.getPlayCount("d"));
+    }
+
+    @Test
+    public void rankingMatchesRandomPlays() {
+        Random random = new Random(7);
+        PlayHistoryStore store = new PlayHistoryStore(null);
+        Map<Long, Integer> plays = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            // Skewed, so that runs of equal counts form and break up.
+            String musicId = "track" + (int) (60 * random.nextDouble() * random.nextDouble());
+            store.record(musicId, PlayHistoryStore.EVENT_PLAYED, 0);
+            long key = TrackKey.of(musicId);
+            Integer count = plays.get(key);
+            plays.put(key, count == null ? 1 : count + 1);
+            if (i % 50 == 0) {
+                assertRanking(plays, store.getMostPlayed(Integer.MAX_VALUE));
+            }
+        }
+        assertRanking(plays, store.getMostPlayed(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void skipsAreNotPlays() {
+        PlayHistoryStore store = new PlayHistoryStore(null);
+        store.record("a", PlayHistoryStore.EVENT_SKIPPED, 1000);
+        assertEquals(0, store.getMostPlayed(10).length);
+        assertEquals(1f, store.getSkipRate("a"), 0);
+        store.record("a", PlayHistoryStore.EVENT_PLAYED, 0);
+        store.record("a", PlayHistoryStore.EVENT_PAUSED, 5000);
+        assertEquals(0.5f, store.getSkipRate("a"), 0);
+        assertEquals(0f, store.getSkipRate("b"), 0);
+        assertArrayEquals(keys("a"), store.getMostPlayed(10));
+    }
+
+    @Test
+    public void recentlyPlayedIsMostRecentFirst() {
+        PlayHistoryStore store = new PlayHistoryStore(null);
+        for (String musicId : new String[]{"a", "b", "c", "a"}) {
+            store.record(musicId, PlayHistoryStore.EVENT_PLAYED, 0);
+        }
+        assertArrayEquals(keys("a", "c", "b"), store.getRecentlyPlayed(10));
+        assertArrayEquals(keys("a", "c"), store.getRecentlyPlayed(2));
+    }
+
+    // The ranking has every played track once, with play counts that never increase.
+    private static void assertRanking(Map<Long, Integer> plays, long[] ranking) {
+        assertEquals(plays.size(), ranking.length);
+        List<Integer> counts = new ArrayList<>();
+        for (long key : ranking) {
+            assertTrue(plays.containsKey(key));
+            counts.add(plays.get(key));
+        }
+        List<Integer> sorted = new ArrayList<>(plays.values());
+        Collections.sort(sorted, Collections.reverseOrder());
+        assertEquals(sorted, counts);
+        Set<Long> distinct = new HashSet<>();
+        for (long key : ranking) {
+            assertTrue(distinct.add(key));
+        }
+    }
+
+    private static long[] keys(String... musicIds) {
+        long[] keys = new long[musicIds.length];
+        for (int i = 0; i < musicIds.length; i++) {
+            keys[i] = TrackKey.of(musicIds[i]);
+        }
+        return keys;
+    }
+}
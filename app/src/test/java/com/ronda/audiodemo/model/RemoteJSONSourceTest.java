@@ -0,0 +1,421 @@
+package com.ronda.audiodemo.model;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import com.ronda.audiodemo.BuildConfig;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs RemoteJSONSource against a stand-in server: a URL whose connection serves a synthetic
+ * catalog from memory, in any of the formats and encodings the source accepts.
+ * <p/>
+ * {@link #benchmark()} measures the download of a large catalog in each format and encoding. It
+ * is skipped unless run with -DcatalogBenchmark=true:
+ * <pre>
+ * ./gradlew testDebugUnitTest -DcatalogBenchmark=true --tests '*RemoteJSONSourceTest.benchmark'
+ * </pre>
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class RemoteJSONSourceTest {
+
+    private static final String JSON = "application/json";
+    private static final String BINARY = "application/x-music-catalog";
+    private static final String[] GENRES = {
+            "Rock", "Jazz", "Pop", "Classical", "Electronic", "Folk", "Blues", "Hip-Hop"};
+
+    @Test
+    public void allFormatsGiveTheSameTracks() throws Exception {
+        List<Track> catalog = generateCatalog(200);
+        List<String> expected = describe(read(new StandInServer(json(catalog), JSON, null)));
+        assertEquals(200, expected.size());
+        assertTrue(expected.get(0).contains("http://catalog.test/media/track_0.mp3"));
+
+        for (String encoding : new String[]{"gzip", "deflate"}) {
+            assertEquals(encoding, expected,
+                    describe(read(new StandInServer(json(catalog), JSON, encoding))));
+        }
+        for (String encoding : new String[]{null, "gzip", "deflate"}) {
+            assertEquals("binary " + encoding, expected,
+                    describe(read(new StandInServer(binary(catalog), BINARY, encoding))));
+        }
+    }
+
+    @Test
+    public void unchangedCatalogIsNotDownloadedAgain() throws Exception {
+        StandInServer server = new StandInServer(json(generateCatalog(10)), JSON, "gzip");
+        server.etag = "\"v1\"";
+        RemoteJSONSource source = new RemoteJSONSource(server.url());
+        read(source);
+        assertEquals("\"v1\"", source.getVersion());
+
+        CatalogDelta delta = source.getDelta("\"v1\"");
+        assertTrue(delta.isEmpty());
+        assertEquals("\"v1\"", delta.version);
+        assertEquals("\"v1\"", server.ifNoneMatch);
+        assertEquals(1, server.bodiesServed);
+    }
+
+    @Test
+    public void versionIsAChecksumWithoutETag() throws Exception {
+        List<Track> catalog = generateCatalog(10);
+        RemoteJSONSource source = new RemoteJSONSource(new StandInServer(json(catalog), JSON, null).url());
+        read(source);
+        String version = source.getVersion();
+        assertNotNull(version);
+        assertTrue(version.startsWith("#"));
+
+        // The same content, compressed or not, has the same version.
+        RemoteJSONSource gzipped = new RemoteJSONSource(
+                new StandInServer(json(catalog), JSON, "gzip").url());
+        read(gzipped);
+        assertEquals(version, gzipped.getVersion());
+    }
+
+    @Test
+    public void truncatedCatalogFails() throws Exception {
+        for (String type : new String[]{JSON, BINARY}) {
+            List<Track> catalog = generateCatalog(50);
+            byte[] body = type.equals(JSON) ? json(catalog) : binary(catalog);
+            StandInServer server = new StandInServer(Arrays.copyOf(body, body.length / 2), type, null);
+            try {
+                read(server);
+                fail("Read a truncated " + type + " catalog");
+            } catch (RuntimeException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void unsupportedEncodingFails() throws Exception {
+        read(new StandInServer(json(generateCatalog(10)), JSON, "br"));
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        assumeTrue(Boolean.getBoolean("catalogBenchmark"));
+        List<Track> catalog = generateCatalog(20000);
+        byte[] json = json(catalog);
+        byte[] binary = binary(catalog);
+
+        System.out.println("format  encoding  wire bytes  parse CPU  allocated");
+        for (String type : new String[]{JSON, BINARY}) {
+            for (String encoding : new String[]{null, "gzip"}) {
+                StandInServer server = new StandInServer(type.equals(JSON) ? json : binary,
+                        type, encoding);
+                Measurement m = measure(server, new RemoteJSONSource(server.url()));
+                System.out.println(String.format(Locale.US, "%-7s %-9s %,11d %6d ms %6d MB",
+                        type.equals(JSON) ? "json" : "binary", encoding == null ? "identity" : encoding,
+                        server.wireBytes(), m.cpuMs, m.allocatedMb));
+            }
+        }
+        // The previous path: the whole file read into a String, then parsed into a JSONObject.
+        StandInServer server = new StandInServer(json, JSON, null);
+        Measurement m = measure(server, null);
+        System.out.println(String.format(Locale.US, "(String + DOM path: %d ms, %d MB)",
+                m.cpuMs, m.allocatedMb));
+    }
+
+    private static final class Measurement {
+        long cpuMs;
+        long allocatedMb;
+    }
+
+    // Best of several runs, once warmed up.
+    private static Measurement measure(StandInServer server, RemoteJSONSource source)
+            throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Measurement best = null;
+        for (int run = 0; run < 8; run++) {
+            long allocated = allocatedBytes(threads);
+            long cpu = threads.getCurrentThreadCpuTime();
+            int count = source != null ? read(source).size() : readAsDom(server.url());
+            Measurement m = new Measurement();
+            m.cpuMs = (threads.getCurrentThreadCpuTime() - cpu) / 1000000;
+            m.allocatedMb = (allocatedBytes(threads) - allocated) >> 20;
+            assertEquals(20000, count);
+            if (run >= 3 && (best == null || m.cpuMs < best.cpuMs)) {
+                best = m;
+            }
+        }
+        return best;
+    }
+
+    // Bytes allocated by this thread, where the JVM tells; -1 elsewhere.
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static int readAsDom(URL url) throws Exception {
+        URLConnection connection = url.openConnection();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                connection.getInputStream(), "iso-8859-1"));
+        StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            sb.append(line);
+        }
+        JSONArray tracks = new JSONObject(sb.toString()).getJSONArray("music");
+        List<MediaMetadataCompat> result = new ArrayList<>();
+        for (int i = 0; i < tracks.length(); i++) {
+            JSONObject track = tracks.getJSONObject(i);
+            result.add(new MediaMetadataCompat.Builder()
+                    .putString(MediaMetadataCompat.METADATA_KEY_TITLE, track.getString("title"))
+                    .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, track.getString("album"))
+                    .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, track.getString("artist"))
+                    .putString(MediaMetadataCompat.METADATA_KEY_GENRE, track.getString("genre"))
+                    .putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, track.getString("image"))
+                    .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, track.getInt("duration") * 1000)
+                    .build());
+        }
+        return result.size();
+    }
+
+    private static List<MediaMetadataCompat> read(StandInServer server) {
+        return read(new RemoteJSONSource(server.url()));
+    }
+
+    private static List<MediaMetadataCompat> read(RemoteJSONSource source) {
+        List<MediaMetadataCompat> tracks = new ArrayList<>();
+        for (Iterator<MediaMetadataCompat> it = source.iterator(); it.hasNext(); ) {
+            tracks.add(it.next());
+        }
+        return tracks;
+    }
+
+    private static List<String> describe(List<MediaMetadataCompat> tracks) {
+        List<String> descriptions = new ArrayList<>(tracks.size());
+        for (MediaMetadataCompat track : tracks) {
+            descriptions.add(track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID)
+                    + " " + track.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE)
+                    + " " + track.getString(MediaMetadataCompat.METADATA_KEY_TITLE)
+                    + " " + track.getString(MediaMetadataCompat.METADATA_KEY_ALBUM)
+                    + " " + track.getString(MediaMetadataCompat.METADATA_KEY_ARTIST)
+                    + " " + track.getString(MediaMetadataCompat.METADATA_KEY_GENRE)
+                    + " " + track.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI)
+                    + " " + track.getLong(MediaMetadataCompat.METADATA_KEY_TRACK_NUMBER)
+                    + "/" + track.getLong(MediaMetadataCompat.METADATA_KEY_NUM_TRACKS)
+                    + " " + track.getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
+        }
+        return descriptions;
+    }
+
+    private static final class Track {
+        String title;
+        String album;
+        String artist;
+        String genre;
+        String source;
+        String image;
+        int trackNumber;
+        int totalTrackCount;
+        int duration;
+    }
+
+    // Albums of 12 tracks, artists of 5 albums; sources relative to the catalog, like the
+    // real one.
+    private static List<Track> generateCatalog(int count) {
+        List<Track> tracks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Track track = new Track();
+            track.title = "Track " + i + " été";
+            track.album = "Album " + i / 12;
+            track.artist = "Artist " + i / 60;
+            track.genre = GENRES[i / 60 % GENRES.length];
+            track.source = "media/track_" + i + ".mp3";
+            track.image = "art/album_" + i / 12 + ".jpg";
+            track.trackNumber = i % 12 + 1;
+            track.totalTrackCount = 12;
+            track.duration = 120 + i % 240;
+            tracks.add(track);
+        }
+        return tracks;
+    }
+
+    private static byte[] json(List<Track> tracks) throws IOException {
+        StringBuilder sb = new StringBuilder("{\"music\" : [\n");
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            sb.append(i == 0 ? "" : ",\n")
+                    .append("{ \"title\" : \"").append(track.title)
+                    .append("\",\n  \"album\" : \"").append(track.album)
+                    .append("\",\n  \"artist\" : \"").append(track.artist)
+                    .append("\",\n  \"genre\" : \"").append(track.genre)
+                    .append("\",\n  \"source\" : \"").append(track.source)
+                    .append("\",\n  \"image\" : \"").append(track.image)
+                    .append("\",\n  \"trackNumber\" : ").append(track.trackNumber)
+                    .append(",\n  \"totalTrackCount\" : ").append(track.totalTrackCount)
+                    .append(",\n  \"duration\" : ").append(track.duration)
+                    .append(",\n  \"site\" : \"https://example.com/\"\n}");
+        }
+        sb.append("\n]}\n");
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    // See the format in RemoteJSONSource.
+    private static byte[] binary(List<Track> tracks) throws IOException {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeVarint(body, tracks.size());
+        for (Track track : tracks) {
+            for (String value : new String[]{track.title, track.album, track.artist,
+                    track.genre, track.source, track.image}) {
+                Integer index = strings.get(value);
+                if (index == null) {
+                    index = strings.size();
+                    strings.put(value, index);
+                }
+                writeVarint(body, index);
+            }
+            writeVarint(body, track.trackNumber);
+            writeVarint(body, track.totalTrackCount);
+            writeVarint(body, track.duration);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(0x4d435431);
+        writeVarint(bytes, strings.size());
+        for (String value : strings.keySet()) {
+            byte[] utf8 = value.getBytes("UTF-8");
+            writeVarint(bytes, utf8.length);
+            bytes.write(utf8);
+        }
+        body.writeTo(bytes);
+        return bytes.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Serves one catalog body over a fake HTTP connection, honoring If-None-Match.
+     */
+    private static final class StandInServer extends URLStreamHandler {
+        final byte[] body;
+        final String contentType;
+        final String encoding;
+        String etag;
+        // Of the last request, and the number of bodies sent so far.
+        String ifNoneMatch;
+        int bodiesServed;
+
+        StandInServer(byte[] content, String contentType, String encoding) throws IOException {
+            this.contentType = contentType;
+            this.encoding = encoding;
+            if (encoding == null || "br".equals(encoding)) {
+                body = content;
+            } else {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DeflaterOutputStream out = "gzip".equals(encoding)
+                        ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes);
+                out.write(content);
+                out.close();
+                body = bytes.toByteArray();
+            }
+        }
+
+        URL url() {
+            try {
+                return new URL("http", "catalog.test", -1, "/music.json", this);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        int wireBytes() {
+            return body.length;
+        }
+
+        @Override
+        protected URLConnection openConnection(URL url) {
+            return new HttpURLConnection(url) {
+                @Override
+                public int getResponseCode() {
+                    ifNoneMatch = getRequestProperty("If-None-Match");
+                    return etag != null && etag.equals(ifNoneMatch) ? HTTP_NOT_MODIFIED : HTTP_OK;
+                }
+
+                @Override
+                public InputStream getInputStream() {
+                    bodiesServed++;
+                    return new ByteArrayInputStream(body);
+                }
+
+                @Override
+                public String getContentEncoding() {
+                    return encoding;
+                }
+
+                @Override
+                public String getContentType() {
+                    return contentType + "; charset=utf-8";
+                }
+
+                @Override
+                public int getContentLength() {
+                    return body.length;
+                }
+
+                @Override
+                public String getHeaderField(String name) {
+                    return "ETag".equalsIgnoreCase(name) ? etag : null;
+                }
+
+                @Override
+                public void connect() {
+                    connected = true;
+                }
+
+                @Override
+                public void disconnect() {
+                }
+
+                @Override
+                public boolean usingProxy() {
+                    return false;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.ronda.audiodemo.model;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads the minimal files of {@link AudioFixtures} in every format TagReader knows.
+ */
+public class TagReaderTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final TagReader mReader = new TagReader();
+
+    @Test
+    public void id3v23WithCbrDuration() throws Exception {
+        TagReader.Tags tags = read("a.mp3", AudioFixtures.id3v23(
+                "Title 23", "Artist \u00e9\u4e2d", "Album", "(17)", "3/12", 2000));
+        assertTags(tags, "Title 23", "Artist \u00e9\u4e2d", "Album", "Rock", 3, 12);
+        assertEquals(2000, tags.durationMs);
+    }
+
+    @Test
+    public void id3v24WithXingDuration() throws Exception {
+        TagReader.Tags tags = read("b.mp3", AudioFixtures.id3v24(
+                "Title \u00fc", "Artist", "Album 24", "Jazz", "7", 100));
+        assertTags(tags, "Title \u00fc", "Artist", "Album 24", "Jazz", 7, 0);
+        assertEquals(100L * AudioFixtures.MPEG_SAMPLES_PER_FRAME * 1000
+                / AudioFixtures.MPEG_SAMPLE_RATE, tags.durationMs);
+    }
+
+    @Test
+    public void flac() throws Exception {
+        TagReader.Tags tags = read("c.flac", AudioFixtures.flac(44100, 44100L * 3,
+                "TITLE=Flac", "artist=Lower Case Key", "ALBUM=Lossless", "GENRE=Folk",
+                "TRACKNUMBER=5", "TRACKTOTAL=9"));
+        assertTags(tags, "Flac", "Lower Case Key", "Lossless", "Folk", 5, 9);
+        assertEquals(3000, tags.durationMs);
+    }
+
+    @Test
+    public void oggVorbis() throws Exception {
+        TagReader.Tags tags = read("d.ogg", AudioFixtures.oggVorbis(48000, 48000L * 4,
+                "TITLE=Vorbis", "ARTIST=Ogg", "ALBUM=Xiph", "GENRE=Ambient", "TRACKNUMBER=2/4"));
+        assertTags(tags, "Vorbis", "Ogg", "Xiph", "Ambient", 2, 4);
+        assertEquals(4000, tags.durationMs);
+    }
+
+    @Test
+    public void oggOpus() throws Exception {
+        TagReader.Tags tags = read("e.opus", AudioFixtures.oggOpus(312, 48000L * 2,
+                "TITLE=Opus", "ARTIST=Ogg", "ALBUM=Xiph", "GENRE=Speech", "TRACKNUMBER=1"));
+        assertTags(tags, "Opus", "Ogg", "Xiph", "Speech", 1, 0);
+        // The pre-skip isn't part of the duration.
+        assertEquals(2000, tags.durationMs);
+    }
+
+    @Test
+    public void mp4() throws Exception {
+        TagReader.Tags tags = read("f.m4a", AudioFixtures.mp4(
+                "Mp4", "Apple", "iTunes", 8, 4, 10, 5000));
+        assertTags(tags, "Mp4", "Apple", "iTunes", "Jazz", 4, 10);
+        assertEquals(5000, tags.durationMs);
+    }
+
+    @Test
+    public void unknownFormat() throws Exception {
+        assertNull(read("g.mp3", "not audio at all".getBytes("US-ASCII")));
+        assertNull(read("h.mp3", new byte[2]));
+    }
+
+    @Test
+    public void readerIsReusedAcrossFormats() throws Exception {
+        // The scratch buffer grows and is reused: nothing may leak from one file to the next.
+        mp4();
+        flac();
+        id3v23WithCbrDuration();
+        oggOpus();
+    }
+
+    private TagReader.Tags read(String name, byte[] contents) throws Exception {
+        File file = new File(mFolder.getRoot(), name);
+        AudioFixtures.writeFile(file, contents);
+        return mReader.read(file);
+    }
+
+    private static void assertTags(TagReader.Tags tags, String title, String artist,
+                                   String album, String genre, int trackNumber, int trackCount) {
+        assertNotNull(tags);
+        assertEquals(title, tags.title);
+        assertEquals(artist, tags.artist);
+        assertEquals(album, tags.album);
+        assertEquals(genre, tags.genre);
+        assertEquals(trackNumber, tags.trackNumber);
+        assertEquals(trackCount, tags.trackCount);
+    }
+}
@@ -0,0 +1,48 @@
+package com.ronda.audiodemo.model;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TrackKeyTest {
+
+    @Test
+    public void musicIdOfAKeyReadsBack() {
+        Random random = new Random(4);
+        for (int i = 0; i < 1000; i++) {
+            long key = random.nextLong();
+            String musicId = TrackKey.toMusicId(key);
+            assertEquals(16, musicId.length());
+            assertEquals(key, TrackKey.of(musicId));
+        }
+        assertEquals("0000000000000000", TrackKey.toMusicId(0));
+        assertEquals("ffffffffffffffff", TrackKey.toMusicId(-1));
+        assertEquals(-1, TrackKey.of("ffffffffffffffff"));
+    }
+
+    @Test
+    public void otherMusicIdsAreHashed() {
+        // Not 16 lower case hex digits: hashed, consistently.
+        String[] ids = {"", "Rock|0", "0123456789ABCDEF", "0123456789abcdeg", "0123456789abcdef0"};
+        for (String id : ids) {
+            assertEquals(id, TrackKey.of(id), TrackKey.of(new String(id)));
+        }
+        assertNotEquals(0x0123456789abcdefL, TrackKey.of("0123456789ABCDEF"));
+        assertNotEquals(TrackKey.of("Rock|0"), TrackKey.of("Rock|1"));
+        // 64-bit FNV-1a of the empty string is its offset basis.
+        assertEquals(0xcbf29ce484222325L, TrackKey.of(""));
+    }
+
+    @Test
+    public void contentKeyIsTheStartOfTheMd5() {
+        // MD5("") = d41d8cd98f00b204e9800998ecf8427e
+        assertEquals(0xd41d8cd98f00b204L, TrackKey.forContent(""));
+        String url = "http://example.com/music/track.mp3";
+        assertEquals(TrackKey.forContent(url), TrackKey.forContent(url));
+        assertNotEquals(TrackKey.forContent(url), TrackKey.forContent(url + "?"));
+        long key = TrackKey.forContent(url);
+        assertEquals(key, TrackKey.of(TrackKey.toMusicId(key)));
+    }
+}
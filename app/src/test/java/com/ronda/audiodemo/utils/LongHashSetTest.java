@@ -0,0 +1,96 @@
+package com.ronda.audiodemo.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LongHashSetTest {
+
+    @Test
+    public void addContainsRemove() {
+        LongHashSet set = new LongHashSet();
+        assertTrue(set.add(42));
+        assertFalse(set.add(42));
+        assertTrue(set.add(-1));
+        assertTrue(set.contains(42));
+        assertTrue(set.contains(-1));
+        assertFalse(set.contains(43));
+        assertEquals(2, set.size());
+
+        assertTrue(set.remove(42));
+        assertFalse(set.remove(42));
+        assertFalse(set.contains(42));
+        assertTrue(set.contains(-1));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void zeroIsAKey() {
+        // 0 marks the empty slots, so it is kept aside.
+        LongHashSet set = new LongHashSet();
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.contains(0));
+        assertEquals(1, set.size());
+        assertTrue(set.remove(0));
+        assertFalse(set.contains(0));
+        assertEquals(0, set.size());
+    }
+
+    @Test
+    public void removeKeepsTheRestOfTheProbeRunReachable() {
+        // A full table, just under the load factor, is made of long probe runs that wrap
+        // around: removing from their middle must shift back every key that probed past.
+        Random random = new Random(1);
+        for (int round = 0; round < 200; round++) {
+            LongHashSet set = new LongHashSet(12);
+            List<Long> keys = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                long key = random.nextLong();
+                keys.add(key);
+                set.add(key);
+            }
+            while (!keys.isEmpty()) {
+                long removed = keys.remove(random.nextInt(keys.size()));
+                assertTrue(set.remove(removed));
+                assertFalse(set.contains(removed));
+                for (long key : keys) {
+                    assertTrue(set.contains(key));
+                }
+                assertEquals(keys.size(), set.size());
+            }
+        }
+    }
+
+    @Test
+    public void matchesHashSet() {
+        Random random = new Random(2);
+        LongHashSet set = new LongHashSet();
+        Set<Long> expected = new HashSet<>();
+        for (int i = 0; i < 100000; i++) {
+            // A small key range, so the same keys come back after being removed.
+            long key = random.nextInt(2000) - 1000;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), set.remove(key));
+            } else {
+                assertEquals(expected.add(key), set.add(key));
+            }
+            assertEquals(expected.size(), set.size());
+        }
+        for (long key = -1000; key < 1000; key++) {
+            assertEquals(expected.contains(key), set.contains(key));
+        }
+
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(0));
+        assertFalse(set.contains(expected.iterator().next()));
+    }
+}
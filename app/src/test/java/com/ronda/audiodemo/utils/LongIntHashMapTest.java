@@ -0,0 +1,58 @@
+package com.ronda.audiodemo.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongIntHashMapTest {
+
+    @Test
+    public void putAndGet() {
+        LongIntHashMap map = new LongIntHashMap();
+        assertEquals(-1, map.get(7, -1));
+        assertFalse(map.containsKey(7));
+
+        assertTrue(map.put(7, 70));
+        assertFalse(map.put(7, 71));
+        assertTrue(map.put(Long.MIN_VALUE, 1));
+        assertEquals(71, map.get(7, -1));
+        assertEquals(1, map.get(Long.MIN_VALUE, -1));
+        assertTrue(map.containsKey(7));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void zeroIsAKey() {
+        // 0 marks the empty slots, so it is kept aside.
+        LongIntHashMap map = new LongIntHashMap();
+        assertFalse(map.containsKey(0));
+        assertEquals(-1, map.get(0, -1));
+        assertTrue(map.put(0, 5));
+        assertFalse(map.put(0, 6));
+        assertTrue(map.containsKey(0));
+        assertEquals(6, map.get(0, -1));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void matchesHashMapAcrossRehashes() {
+        Random random = new Random(3);
+        LongIntHashMap map = new LongIntHashMap(4);
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 50000; i++) {
+            // Keys sharing their low bits, which the hash must mix.
+            long key = (long) random.nextInt(20000) << 32;
+            int value = random.nextInt();
+            assertEquals(expected.put(key, value) == null, map.put(key, value));
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), map.get(entry.getKey(), 0));
+        }
+        assertFalse(map.containsKey(1));
+    }
+}
@@ -0,0 +1,121 @@
+package com.ronda.audiodemo.utils;
+
+import com.ronda.audiodemo.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs under Robolectric for the SparseIntArray that holds the swaps.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class ShuffleOrderTest {
+
+    @Test
+    public void isAPermutation() {
+        for (int size : new int[]{0, 1, 2, 17, 1000}) {
+            ShuffleOrder order = new ShuffleOrder(size, size * 31L, -1);
+            assertEquals(size, order.size());
+            assertPermutation(size, order);
+        }
+    }
+
+    @Test
+    public void sameSeedGivesTheSameOrder() {
+        ShuffleOrder a = new ShuffleOrder(500, 42, -1);
+        ShuffleOrder b = new ShuffleOrder(500, 42, -1);
+        // Generated in a different order: positions are generated lazily, on demand.
+        assertEquals(b.get(499), a.get(499));
+        for (int i = 499; i >= 0; i--) {
+            assertEquals(a.get(i), b.get(i));
+        }
+        assertFalse(Arrays.equals(orderOf(a), orderOf(new ShuffleOrder(500, 43, -1))));
+    }
+
+    @Test
+    public void firstOrdinalIsPinned() {
+        ShuffleOrder order = new ShuffleOrder(100, 7, 63);
+        assertEquals(63, order.getFirst());
+        assertEquals(63, order.get(0));
+        assertEquals(0, order.indexOf(63));
+        assertPermutation(100, order);
+        // Resumed from its seed and first ordinal.
+        assertArrayEquals(orderOf(order),
+                orderOf(new ShuffleOrder(order.size(), order.getSeed(), order.getFirst())));
+    }
+
+    @Test
+    public void indexOfFindsEveryOrdinal() {
+        ShuffleOrder order = new ShuffleOrder(200, 9, -1);
+        for (int ordinal = 0; ordinal < 200; ordinal++) {
+            assertEquals(ordinal, order.get(order.indexOf(ordinal)));
+        }
+        assertEquals(-1, order.indexOf(200));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void positionOutOfRange() {
+        new ShuffleOrder(10, 1, -1).get(10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void firstOutOfRange() {
+        new ShuffleOrder(10, 1, 10);
+    }
+
+    @Test
+    public void samplePicksDistinctOrdinals() {
+        Random random = new Random(5);
+        for (int[] sizeAndCount : new int[][]{{0, 5}, {10, 0}, {10, 3}, {10, 10}, {10, 25},
+                {1000000, 50}}) {
+            int size = sizeAndCount[0];
+            int[] picked = ShuffleOrder.sample(size, sizeAndCount[1], random);
+            assertEquals(Math.min(size, sizeAndCount[1]), picked.length);
+            int[] sorted = picked.clone();
+            Arrays.sort(sorted);
+            for (int i = 0; i < sorted.length; i++) {
+                assertTrue(sorted[i] >= 0 && sorted[i] < size);
+                assertTrue(i == 0 || sorted[i] != sorted[i - 1]);
+            }
+        }
+    }
+
+    @Test
+    public void sampleIsRoughlyUniform() {
+        Random random = new Random(6);
+        int[] counts = new int[10];
+        for (int i = 0; i < 10000; i++) {
+            for (int ordinal : ShuffleOrder.sample(10, 3, random)) {
+                counts[ordinal]++;
+            }
+        }
+        // 3000 expected each.
+        for (int count : counts) {
+            assertEquals(3000, count, 300);
+        }
+    }
+
+    private static void assertPermutation(int size, ShuffleOrder order) {
+        int[] sorted = orderOf(order);
+        Arrays.sort(sorted);
+        for (int i = 0; i < size; i++) {
+            assertEquals(i, sorted[i]);
+        }
+    }
+
+    private static int[] orderOf(ShuffleOrder order) {
+        int[] ordinals = new int[order.size()];
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = order.get(i);
+        }
+        return ordinals;
+    }
+}